@@ -1,11 +1,17 @@
 package cz.cas.lib.arcstorage.api;
 
+import cz.cas.lib.arcstorage.domain.entity.AipSip;
+import cz.cas.lib.arcstorage.domain.entity.AipXml;
+import cz.cas.lib.arcstorage.domain.entity.ArchivalObject;
 import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.exception.BadRequestException;
+import cz.cas.lib.arcstorage.exception.TransferAbortedException;
 import cz.cas.lib.arcstorage.security.Roles;
 import cz.cas.lib.arcstorage.security.user.UserDetails;
 import cz.cas.lib.arcstorage.service.ArchivalService;
 import cz.cas.lib.arcstorage.service.exception.BadXmlVersionProvidedException;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import cz.cas.lib.arcstorage.service.exception.RangeNotSatisfiableException;
 import cz.cas.lib.arcstorage.service.exception.ReadOnlyStateException;
 import cz.cas.lib.arcstorage.service.exception.state.*;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
@@ -13,48 +19,78 @@ import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageReachable
 import cz.cas.lib.arcstorage.service.exception.storage.ObjectCouldNotBeRetrievedException;
 import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
-import cz.cas.lib.arcstorage.util.Utils;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
+import org.apache.tomcat.util.http.fileupload.FileItemIterator;
+import org.apache.tomcat.util.http.fileupload.FileItemStream;
+import org.apache.tomcat.util.http.fileupload.FileUploadException;
+import org.apache.tomcat.util.http.fileupload.servlet.ServletFileUpload;
+import org.apache.tomcat.util.http.fileupload.util.Streams;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.security.RolesAllowed;
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
+import static cz.cas.lib.arcstorage.util.Utils.asList;
 import static cz.cas.lib.arcstorage.util.Utils.checkChecksumFormat;
 import static cz.cas.lib.arcstorage.util.Utils.checkUUID;
+import static cz.cas.lib.arcstorage.util.Utils.checkUUIDOrGenerate;
 
 @Slf4j
 @RestController
 @RequestMapping("/api/storage")
 public class AipApi {
+    static final String STREAMING_SAVE_PATH = "/api/storage/save/stream";
+    private static final String RANGE_NOTES = "The response carries ETag derived from the stored checksum, if it " +
+            "matches If-None-Match header, 304 is returned. A single byte range can be requested by Range header " +
+            "(optionally with If-Range header), the range is read directly from the storage. Checksum of a range can " +
+            "not be verified, so ranges are served only from a storage whose copy of the file was read whole and " +
+            "verified, the first ranged request of a file may therefore take longer.";
 
     private ArchivalService archivalService;
     private Path tmpFolder;
     private UserDetails userDetails;
 
-    @ApiOperation(value = "Return specified AIP as a ZIP package")
+    @ApiOperation(value = "Return specified AIP as a ZIP package", notes = "" +
+            "By default the AIP is copied to the tmp folder and verified before the response is sent. In streaming mode " +
+            "the AIP is sent directly from the storage while its checksums are computed, if a checksum does not match " +
+            "at the end of the file the response is aborted (the ZIP is left incomplete) and the AIP is recovered from " +
+            "other storages in background, the client can then repeat the request. The response carries a weak ETag " +
+            "derived from checksums of the returned files, if it matches If-None-Match header, 304 is returned. The ZIP " +
+            "is created on the fly and does not support ranges, use retrieval of SIP to resume its download.")
     @RequestMapping(value = "/{aipId}", method = RequestMethod.GET)
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "AIP successfully returned"),
+            @ApiResponse(code = 304, message = "AIP has not been modified, i.e. the ETag matches If-None-Match header"),
             @ApiResponse(code = 403, message = "operation forbidden with respect to the current AIP state"),
             @ApiResponse(code = 400, message = "bad request, e.g. the specified id is not a valid UUID"),
             @ApiResponse(code = 503, message = "all attached logical storages are currently unreachable"),
@@ -64,29 +100,36 @@ public class AipApi {
     public void getAip(
             @ApiParam(value = "AIP ID", required = true) @PathVariable("aipId") String aipId,
             @ApiParam(value = "true to return all XMLs, otherwise only the latest is returned") @RequestParam(value = "all", defaultValue = "false") boolean all,
-            HttpServletResponse response)
+            @ApiParam(value = "true to stream the AIP from the storage and verify it on the fly") @RequestParam(value = "streaming", defaultValue = "false") boolean streaming,
+            ServletWebRequest request, HttpServletResponse response)
             throws IOException, RollbackStateException, DeletedStateException, StillProcessingStateException,
             FailedStateException, ObjectCouldNotBeRetrievedException, BadRequestException, RemovedStateException,
             NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
         checkUUID(aipId);
 
-        AipRetrievalResource aipRetrievalResource = archivalService.getAip(aipId, all);
+        AipSip sip = archivalService.getArchivedAip(aipId);
+        if (request.checkNotModified(aipETag(sip, all ? sip.getArchivedXmls() : asList(sip.getLatestArchivedXml()))))
+            return;
+        AipRetrievalResource aipRetrievalResource = archivalService.getAip(aipId, all, streaming);
         response.setContentType("application/zip");
         response.setStatus(200);
         response.addHeader("Content-Disposition", "attachment; filename=aip_" + aipId + ".zip");
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
 
-        try (ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(response.getOutputStream()));
-             InputStream sipIs = new BufferedInputStream(aipRetrievalResource.getSip())) {
+        //the zip is finished only if all entries were written, so that a failed transfer does not look like a valid zip
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(response.getOutputStream()));
+        try (InputStream sipIs = new BufferedInputStream(aipRetrievalResource.getSip())) {
             zipOut.putNextEntry(new ZipEntry(aipId + ".zip"));
-            IOUtils.copyLarge(sipIs, zipOut);
+            copyRetrievedStream(sipIs, zipOut);
             zipOut.closeEntry();
             for (Integer xmlVersion : aipRetrievalResource.getXmls().keySet()) {
                 try (InputStream xmlIs = new BufferedInputStream(aipRetrievalResource.getXmls().get(xmlVersion))) {
                     zipOut.putNextEntry(new ZipEntry(toXmlId(aipId, xmlVersion) + ".xml"));
-                    IOUtils.copyLarge(xmlIs, zipOut);
+                    copyRetrievedStream(xmlIs, zipOut);
                     zipOut.closeEntry();
                 }
             }
+            zipOut.close();
         } finally {
             aipRetrievalResource.close();
             String tmpFileId = aipRetrievalResource.getId();
@@ -97,10 +140,41 @@ public class AipApi {
         }
     }
 
-    @ApiOperation(value = "Return specified AIP XML")
+    @ApiOperation(value = "Return SIP of specified AIP", notes = "" +
+            "In streaming mode the SIP is sent directly from the storage and the response is aborted if its checksum " +
+            "does not match, see retrieval of AIP. " + RANGE_NOTES)
+    @RequestMapping(value = "/{aipId}/sip", method = RequestMethod.GET)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "SIP successfully returned"),
+            @ApiResponse(code = 206, message = "requested range of SIP successfully returned"),
+            @ApiResponse(code = 304, message = "SIP has not been modified, i.e. the ETag matches If-None-Match header"),
+            @ApiResponse(code = 403, message = "operation forbidden with respect to the current AIP state"),
+            @ApiResponse(code = 400, message = "bad request, e.g. the specified id is not a valid UUID"),
+            @ApiResponse(code = 416, message = "requested range starts beyond the end of the SIP"),
+            @ApiResponse(code = 503, message = "all attached logical storages are currently unreachable"),
+            @ApiResponse(code = 500, message = "file is corrupted at all storages, no logical storage attached, or other internal server error")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public void getSip(
+            @ApiParam(value = "AIP ID", required = true) @PathVariable("aipId") String aipId,
+            @ApiParam(value = "true to stream the SIP from the storage and verify it on the fly") @RequestParam(value = "streaming", defaultValue = "false") boolean streaming,
+            ServletWebRequest request, HttpServletResponse response) throws IOException, RollbackStateException,
+            DeletedStateException, StillProcessingStateException, FailedStateException, RemovedStateException,
+            ObjectCouldNotBeRetrievedException, BadRequestException, NoLogicalStorageReachableException,
+            NoLogicalStorageAttachedException, RangeNotSatisfiableException {
+        checkUUID(aipId);
+        AipSip sip = archivalService.getArchivedAip(aipId);
+        sendObject(sip, "application/zip", aipId + ".zip", streaming, request, response);
+    }
+
+    @ApiOperation(value = "Return specified AIP XML", notes = "" +
+            "In streaming mode the XML is sent directly from the storage and the response is aborted if its checksum " +
+            "does not match, see retrieval of AIP. " + RANGE_NOTES)
     @RequestMapping(value = "/{aipId}/xml", method = RequestMethod.GET)
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "AIP XML successfully returned"),
+            @ApiResponse(code = 206, message = "requested range of AIP XML successfully returned"),
+            @ApiResponse(code = 304, message = "AIP XML has not been modified, i.e. the ETag matches If-None-Match header"),
             @ApiResponse(code = 403, message = "operation forbidden with respect to the current AIP state"),
             @ApiResponse(code = 400, message = "bad request, e.g. the specified id is not a valid UUID"),
             @ApiResponse(code = 503, message = "all attached logical storages are currently unreachable"),
@@ -110,19 +184,166 @@ public class AipApi {
     public void getXml(
             @ApiParam(value = "AIP ID", required = true) @PathVariable("aipId") String aipId,
             @ApiParam(value = "version number of XML, if not set the latest version is returned") @RequestParam(value = "v", defaultValue = "") Integer version,
-            HttpServletResponse response) throws StillProcessingStateException,
+            @ApiParam(value = "true to stream the XML from the storage and verify it on the fly") @RequestParam(value = "streaming", defaultValue = "false") boolean streaming,
+            ServletWebRequest request, HttpServletResponse response) throws StillProcessingStateException,
             RollbackStateException, IOException, FailedStateException, ObjectCouldNotBeRetrievedException,
-            BadRequestException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
+            BadRequestException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException,
+            RangeNotSatisfiableException {
         checkUUID(aipId);
-        Utils.Pair<Integer, ObjectRetrievalResource> retrievedXml = archivalService.getXml(aipId, version);
-        response.setContentType("application/xml");
+        AipXml xml = archivalService.findXml(aipId, version);
+        sendObject(xml, "application/xml", toXmlId(aipId, xml.getVersion()) + ".xml", streaming, request, response);
+    }
+
+    /**
+     * Sends the object, or its range if the request contains a single range which is valid for the current ETag.
+     * Nothing is retrieved if the ETag matches If-None-Match header of the request.
+     */
+    private void sendObject(ArchivalObject object, String contentType, String fileName, boolean streaming,
+                            ServletWebRequest request, HttpServletResponse response) throws IOException,
+            RollbackStateException, StillProcessingStateException, FailedStateException, RangeNotSatisfiableException,
+            ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
+        String eTag = eTag(object.getChecksum());
+        if (request.checkNotModified(eTag))
+            return;
+        response.setContentType(contentType);
+        response.addHeader("Content-Disposition", "attachment; filename=" + fileName);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        HttpRange range = parseRange(request, eTag);
+        if (range != null) {
+            ObjectRangeRetrievalResource objectRange = archivalService.getObjectRange(object.toDto(), range);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + objectRange.getOffset() + "-" +
+                    (objectRange.getOffset() + objectRange.getLength() - 1) + "/" + objectRange.getObjectSize());
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(objectRange.getLength()));
+            try (InputStream is = objectRange.getInputStream()) {
+                IOUtils.copyLarge(is, response.getOutputStream());
+            } finally {
+                //the range has been copied or the transfer has failed, there is nothing left to wait for
+                objectRange.closeWithoutDelay();
+            }
+            return;
+        }
+        ObjectRetrievalResource retrievedObject = archivalService.getObject(object.toDto(), streaming);
         response.setStatus(200);
-        response.addHeader("Content-Disposition", "attachment; filename=" + toXmlId(aipId, retrievedXml.getL()) + ".xml");
-        try (InputStream is = new BufferedInputStream(retrievedXml.getR().getInputStream())) {
-            IOUtils.copyLarge(is, response.getOutputStream());
+        //streamed response is chunked, so that the client can tell an aborted transfer from a complete one
+        if (!streaming && retrievedObject.getSize() != null)
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(retrievedObject.getSize()));
+        try (InputStream is = new BufferedInputStream(retrievedObject.getInputStream())) {
+            copyRetrievedStream(is, response.getOutputStream());
         } finally {
-            tmpFolder.resolve(retrievedXml.getR().getId()).toFile().delete();
+            retrievedObject.closeWithoutDelay();
+            tmpFolder.resolve(retrievedObject.getId()).toFile().delete();
+        }
+    }
+
+    /**
+     * Copies the retrieved stream to the response. Streams retrieved in streaming mode are verified while they are
+     * read and fail at their end if their checksum does not match. At that point the response is already committed and
+     * its status can not be changed, so the transfer is aborted by {@link TransferAbortedException} instead of sending
+     * an error which would be appended to the corrupted data of a seemingly complete response.
+     */
+    private void copyRetrievedStream(InputStream in, OutputStream out) throws IOException {
+        try {
+            IOUtils.copyLarge(in, out);
+        } catch (InvalidChecksumException e) {
+            throw new TransferAbortedException("transfer aborted, the checksum of the streamed file does not match: " + e);
+        }
+    }
+
+    /**
+     * @return the range requested by the Range header, null if there is none, it is not valid, there are more ranges
+     * or If-Range header does not match the ETag, in which case the whole object is sent
+     */
+    private HttpRange parseRange(ServletWebRequest request, String eTag) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null)
+            return null;
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(eTag))
+            return null;
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring invalid Range header: " + rangeHeader);
+            return null;
+        }
+        return ranges.size() == 1 ? ranges.get(0) : null;
+    }
+
+    /**
+     * @return strong ETag of the object, the stored checksum of the object never changes
+     */
+    private String eTag(Checksum checksum) {
+        return "\"" + checksum.getType() + "-" + checksum.getValue().toLowerCase() + "\"";
+    }
+
+    /**
+     * @return weak ETag of the AIP ZIP, the ZIP itself differs byte by byte between responses, but its files do not
+     */
+    private String aipETag(AipSip sip, List<AipXml> xmls) {
+        StringBuilder checksums = new StringBuilder(eTag(sip.getChecksum()));
+        for (AipXml xml : xmls) {
+            checksums.append(xml.getVersion()).append(eTag(xml.getChecksum()));
         }
+        return "W/\"" + DigestUtils.md5DigestAsHex(checksums.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    /**
+     * Parses query parameters of the request from its query string. {@link HttpServletRequest#getParameter(String)}
+     * can not be used by the streaming upload as the servlet container would parse the body of the request to find
+     * form parameters.
+     *
+     * @return decoded query parameters, the first value is used if the parameter is repeated
+     */
+    private Map<String, String> queryParameters(HttpServletRequest request) throws IOException, BadRequestException {
+        Map<String, String> parameters = new HashMap<>();
+        String query = request.getQueryString();
+        if (query == null)
+            return parameters;
+        try {
+            for (String parameter : query.split("&")) {
+                if (parameter.isEmpty())
+                    continue;
+                int separator = parameter.indexOf('=');
+                String name = URLDecoder.decode(separator == -1 ? parameter : parameter.substring(0, separator), StandardCharsets.UTF_8.name());
+                String value = separator == -1 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8.name());
+                parameters.putIfAbsent(name, value);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("invalid query string: " + e.getMessage());
+        }
+        return parameters;
+    }
+
+    /**
+     * @param fields query parameters and form fields received before the file parts
+     * @return value of the field
+     * @throws BadRequestException if the field is required and has not been received
+     */
+    private String field(Map<String, String> fields, String name, boolean required) throws BadRequestException {
+        String value = fields.get(name);
+        if (required && value == null)
+            throw new BadRequestException(name + " has to be sent before the file parts");
+        return value;
+    }
+
+    /**
+     * @param fields query parameters and form fields received before the file parts
+     * @param part   name of the file part whose checksum is returned
+     * @return checksum of the file part with checked format
+     * @throws BadRequestException if the checksum fields are missing or invalid
+     */
+    private Checksum checksumField(Map<String, String> fields, String part) throws BadRequestException {
+        ChecksumType type;
+        try {
+            type = ChecksumType.valueOf(field(fields, part + "ChecksumType", true));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("unsupported " + part + "ChecksumType");
+        }
+        Checksum checksum = new Checksum(type, field(fields, part + "ChecksumValue", true));
+        checkChecksumFormat(checksum);
+        return checksum;
     }
 
     @ApiOperation(value = "Stores AIP parts (SIP and AIP XML) into Archival Storage and returns the AIP ID.", response = String.class)
@@ -144,13 +365,7 @@ public class AipApi {
             @ApiParam(value = "type of the AIP XML checksum", required = true) @RequestParam("aipXmlChecksumType") ChecksumType aipXmlChecksumType,
             @ApiParam(value = "UUID of the AIP, generated if not specifies") @RequestParam(value = "UUID", defaultValue = "") String id)
             throws IOException, SomeLogicalStoragesNotReachableException, BadRequestException, NoLogicalStorageAttachedException, ReadOnlyStateException {
-        String aipId;
-        if (id == null || id.isEmpty())
-            aipId = UUID.randomUUID().toString();
-        else {
-            checkUUID(id);
-            aipId = id;
-        }
+        String aipId = checkUUIDOrGenerate(id);
 
         Checksum sipChecksum = new Checksum(sipChecksumType, sipChecksumValue);
         checkChecksumFormat(sipChecksum);
@@ -163,6 +378,67 @@ public class AipApi {
         return aipId;
     }
 
+    @ApiOperation(value = "Stores AIP parts (SIP and AIP XML) into Archival Storage and returns the AIP ID, the SIP is " +
+            "processed as it is received.", notes = "" +
+            "Accepts the same multipart/form-data request as /save, but the request is not stored to disk by the " +
+            "server before it is processed: SIP is copied to the tmp folder directly from the request while its " +
+            "checksum is computed. Therefore the parts must be sent in this order: checksum fields and UUID (these may " +
+            "be also sent as query parameters), aipXml, sip. Parts following the sip are ignored. If the field direct " +
+            "is true, SIP is not copied to the tmp folder at all but streamed directly to all storages, its checksum is " +
+            "validated as it is streamed and the AIP is rolled back if it does not match. The request is then " +
+            "processed synchronously: the response is sent once the AIP is stored at all storages.", response = String.class)
+    @RequestMapping(value = "/save/stream", method = RequestMethod.POST)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "AIP successfully stored"),
+            @ApiResponse(code = 400, message = "bad request, e.g. the specified id is not a valid UUID or the parts are in wrong order"),
+            @ApiResponse(code = 422, message = "the checksum computed after the transfer does not match the provided checksum"),
+            @ApiResponse(code = 503, message = "some attached logical storage is currently not reachable or system is in readonly state"),
+            @ApiResponse(code = 500, message = "no logical storage attached, storing of directly streamed AIP failed, or other internal server error")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public String saveStreaming(HttpServletRequest request) throws IOException, SomeLogicalStoragesNotReachableException,
+            BadRequestException, NoLogicalStorageAttachedException, ReadOnlyStateException {
+        if (!ServletFileUpload.isMultipartContent(request))
+            throw new BadRequestException("multipart/form-data request expected");
+        Map<String, String> fields = queryParameters(request);
+        byte[] aipXml = null;
+        try {
+            FileItemIterator parts = new ServletFileUpload().getItemIterator(request);
+            while (parts.hasNext()) {
+                FileItemStream part = parts.next();
+                switch (part.getFieldName()) {
+                    case "aipXml":
+                        try (InputStream is = part.openStream()) {
+                            aipXml = IOUtils.toByteArray(is);
+                        }
+                        break;
+                    case "sip":
+                        if (aipXml == null)
+                            throw new BadRequestException("sip part has to follow the aipXml part");
+                        String aipId = checkUUIDOrGenerate(field(fields, "UUID", false));
+                        Checksum sipChecksum = checksumField(fields, "sip");
+                        Checksum aipXmlChecksum = checksumField(fields, "aipXml");
+                        boolean direct = Boolean.parseBoolean(field(fields, "direct", false));
+                        try (InputStream sip = part.openStream()) {
+                            AipDto aipDto = new AipDto(userDetails.getId(), aipId, sip, sipChecksum,
+                                    new ByteArrayInputStream(aipXml), aipXmlChecksum);
+                            if (direct)
+                                archivalService.saveAipDirectly(aipDto);
+                            else
+                                archivalService.saveAip(aipDto);
+                        }
+                        return aipId;
+                    default:
+                        if (part.isFormField())
+                            fields.put(part.getFieldName(), Streams.asString(part.openStream(), StandardCharsets.UTF_8.name()));
+                }
+            }
+        } catch (FileUploadException e) {
+            throw new BadRequestException("invalid multipart request: " + e.getMessage());
+        }
+        throw new BadRequestException("sip part is missing");
+    }
+
     @ApiOperation(value = "Versioning of the AIP XML: stores new AIP XML into Archival Storage.", notes =
             "Sync flag is set to false for batch AIP XML updates from Ingest. Sync flag is set to true for AIP XML" +
                     " updates invoked from user's interaction with the AIP XML editor in GUI.")
@@ -6,6 +6,7 @@ import cz.cas.lib.arcstorage.exception.ForbiddenByConfigException;
 import cz.cas.lib.arcstorage.exception.MissingObject;
 import cz.cas.lib.arcstorage.service.exception.BadXmlVersionProvidedException;
 import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import cz.cas.lib.arcstorage.service.exception.RangeNotSatisfiableException;
 import cz.cas.lib.arcstorage.service.exception.ReadOnlyStateException;
 import cz.cas.lib.arcstorage.service.exception.state.StateException;
 import cz.cas.lib.arcstorage.service.exception.storage.ObjectCouldNotBeRetrievedException;
@@ -14,6 +15,7 @@ import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageReachable
 import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
 import cz.cas.lib.arcstorage.storagesync.StorageStillProcessObjectsException;
 import cz.cas.lib.arcstorage.storagesync.SynchronizationInProgressException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindException;
@@ -60,6 +62,13 @@ public class ResourceExceptionHandler {
         return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(e.toString());
     }
 
+    @ExceptionHandler(RangeNotSatisfiableException.class)
+    public ResponseEntity rangeNotSatisfiableException(RangeNotSatisfiableException e) {
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + e.getObjectSize())
+                .body(e.getMessage());
+    }
+
     @ExceptionHandler(ObjectCouldNotBeRetrievedException.class)
     public ResponseEntity fileCorruptedAtAllStoragesException(ObjectCouldNotBeRetrievedException e) {
         return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(e.toString());
@@ -4,12 +4,17 @@ import cz.cas.lib.arcstorage.domain.entity.Storage;
 import cz.cas.lib.arcstorage.domain.store.ConfigurationStore;
 import cz.cas.lib.arcstorage.domain.store.StorageStore;
 import cz.cas.lib.arcstorage.domain.store.Transactional;
+import cz.cas.lib.arcstorage.dto.SshPoolStatsDto;
+import cz.cas.lib.arcstorage.dto.StorageReadStatsDto;
 import cz.cas.lib.arcstorage.dto.StorageUpdateDto;
+import cz.cas.lib.arcstorage.exception.BadRequestException;
 import cz.cas.lib.arcstorage.exception.ConflictObject;
 import cz.cas.lib.arcstorage.exception.ForbiddenByConfigException;
 import cz.cas.lib.arcstorage.exception.MissingObject;
 import cz.cas.lib.arcstorage.security.Roles;
 import cz.cas.lib.arcstorage.service.StorageAdministrationService;
+import cz.cas.lib.arcstorage.service.StorageProvider;
+import cz.cas.lib.arcstorage.service.StorageReadStatistics;
 import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
 import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
 import cz.cas.lib.arcstorage.storagesync.StorageStillProcessObjectsException;
@@ -26,6 +31,7 @@ import javax.annotation.security.RolesAllowed;
 import javax.inject.Inject;
 import javax.validation.Valid;
 import java.util.Collection;
+import java.util.List;
 
 import static cz.cas.lib.arcstorage.util.Utils.notNull;
 
@@ -38,6 +44,8 @@ public class StorageAdministrationApi {
     private ConfigurationStore configurationStore;
     private StorageAdministrationService storageAdministrationService;
     private StorageSyncStatusStore storageSyncStatusStore;
+    private StorageReadStatistics readStatistics;
+    private StorageProvider storageProvider;
 
     @ApiOperation(value = "Returns all attached logical storages.", response = Storage.class, responseContainer = "list")
     @Transactional
@@ -49,6 +57,29 @@ public class StorageAdministrationApi {
         return storageStore.findAll();
     }
 
+    @ApiOperation(value = "Returns read statistics of all attached logical storages.", response = StorageReadStatsDto.class,
+            responseContainer = "list", notes = "Latency, throughput and error rate are moving averages of the reads since " +
+            "the application start. Storages of the same priority are chosen for retrieval by the expected read time.")
+    @Transactional
+    @RequestMapping(value = "/read-statistics", method = RequestMethod.GET)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "successful response")
+    })
+    public List<StorageReadStatsDto> getReadStatistics() {
+        return readStatistics.getStats(storageStore.findAll());
+    }
+
+    @ApiOperation(value = "Returns state and counters of the pools of ssh connections to remote FS/ZFS storages.",
+            response = SshPoolStatsDto.class, responseContainer = "list", notes = "Pools are created with the first " +
+            "use of the storage, storages which have not been used since the application start are not listed.")
+    @RequestMapping(value = "/ssh-pools", method = RequestMethod.GET)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "successful response")
+    })
+    public List<SshPoolStatsDto> getSshPoolStats() {
+        return storageProvider.getSshPoolStats();
+    }
+
     @ApiOperation(value = "Returns logical storage with specified ID.", response = Storage.class)
     @Transactional
     @RequestMapping(value = "/{id}", method = RequestMethod.GET)
@@ -116,6 +147,24 @@ public class StorageAdministrationApi {
         return syncStatusOfStorage;
     }
 
+    @ApiOperation(value = "Starts migration of the metadata of the objects stored at FS/ZFS storage in the legacy layout.", notes = "" +
+            "Converts state files (e.g. fileId.ARCHIVED) and checksum files (e.g. fileId.MD5) of the objects to the single " +
+            "metadata file per object (fileId.meta). The migration runs in background and its result is logged, it can be " +
+            "safely run again. Objects stored in the legacy layout remain accessible during the migration.")
+    @RequestMapping(value = "/{id}/migrate-metadata", method = RequestMethod.POST)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "migration has started"),
+            @ApiResponse(code = 400, message = "storage is not FS/ZFS storage"),
+            @ApiResponse(code = 404, message = "storage with the id is missing"),
+            @ApiResponse(code = 503, message = "storage is not reachable")
+    })
+    public void migrateMetadata(
+            @ApiParam(value = "id of the logical storage", required = true) @PathVariable("id") String id)
+            throws BadRequestException, SomeLogicalStoragesNotReachableException {
+        notNull(storageStore.find(id), () -> new MissingObject(Storage.class, id));
+        storageAdministrationService.migrateFsMetadata(id);
+    }
+
     @ApiOperation(value = "Updates a logical storage.", response = Storage.class)
     @Transactional
     @RequestMapping(value = "/update", method = RequestMethod.POST)
@@ -173,4 +222,14 @@ public class StorageAdministrationApi {
     public void setStorageSyncStatusStore(StorageSyncStatusStore storageSyncStatusStore) {
         this.storageSyncStatusStore = storageSyncStatusStore;
     }
+
+    @Inject
+    public void setReadStatistics(StorageReadStatistics readStatistics) {
+        this.readStatistics = readStatistics;
+    }
+
+    @Inject
+    public void setStorageProvider(StorageProvider storageProvider) {
+        this.storageProvider = storageProvider;
+    }
 }
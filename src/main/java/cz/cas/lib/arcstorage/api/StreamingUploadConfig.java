@@ -0,0 +1,45 @@
+package cz.cas.lib.arcstorage.api;
+
+import org.springframework.boot.web.filter.OrderedHiddenHttpMethodFilter;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps the servlet container and the filters away from the body of the streaming upload, so that
+ * {@link AipApi#saveStreaming(HttpServletRequest)} reads the parts as they are received.
+ * <p>
+ * Tomcat parses and spools the parts of a multipart request once any request parameter is read, e.g. by a filter, if
+ * the servlet handling the request has a multipart config. The streaming upload is therefore handled by its own
+ * dispatcher servlet registered without the multipart config, sharing the application context with the main one.
+ * </p>
+ */
+@Configuration
+public class StreamingUploadConfig {
+
+    @Bean
+    public ServletRegistrationBean streamingUploadServlet(WebApplicationContext context) {
+        ServletRegistrationBean registration = new ServletRegistrationBean(new DispatcherServlet(context), AipApi.STREAMING_SAVE_PATH);
+        registration.setName("streamingUploadServlet");
+        return registration;
+    }
+
+    /**
+     * Hidden HTTP method filter which does not read the parameters of the streaming upload.
+     */
+    @Bean
+    public OrderedHiddenHttpMethodFilter hiddenHttpMethodFilter() {
+        UrlPathHelper urlPathHelper = new UrlPathHelper();
+        return new OrderedHiddenHttpMethodFilter() {
+            @Override
+            protected boolean shouldNotFilter(HttpServletRequest request) {
+                return AipApi.STREAMING_SAVE_PATH.equals(urlPathHelper.getPathWithinApplication(request));
+            }
+        };
+    }
+}
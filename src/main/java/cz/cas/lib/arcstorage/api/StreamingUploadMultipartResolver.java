@@ -0,0 +1,26 @@
+package cz.cas.lib.arcstorage.api;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Standard multipart resolver which leaves requests of the streaming upload unresolved, so that their parts are not
+ * spooled to disk by the servlet container and {@link AipApi#saveStreaming(HttpServletRequest)} can read them as they
+ * are received. The servlet of the streaming upload has no multipart config, see {@link StreamingUploadConfig}, so its
+ * parts could not be resolved anyway.
+ */
+@Component(DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+public class StreamingUploadMultipartResolver extends StandardServletMultipartResolver {
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    @Override
+    public boolean isMultipart(HttpServletRequest request) {
+        if (AipApi.STREAMING_SAVE_PATH.equals(urlPathHelper.getPathWithinApplication(request)))
+            return false;
+        return super.isMultipart(request);
+    }
+}
@@ -3,7 +3,10 @@ package cz.cas.lib.arcstorage.api;
 import cz.cas.lib.arcstorage.domain.entity.Configuration;
 import cz.cas.lib.arcstorage.domain.store.ConfigurationStore;
 import cz.cas.lib.arcstorage.domain.store.Transactional;
+import cz.cas.lib.arcstorage.dto.ObjectCacheStatsDto;
 import cz.cas.lib.arcstorage.security.Roles;
+import cz.cas.lib.arcstorage.service.ObjectCache;
+import cz.cas.lib.arcstorage.storage.cache.DiskCache;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
@@ -25,6 +28,8 @@ import javax.validation.Valid;
 public class SystemAdministrationApi {
 
     private ConfigurationStore configurationStore;
+    private ObjectCache objectCache;
+    private DiskCache diskCache;
 
     @ApiOperation(value = "Creates/updates configuration of the Archival Storage", response = Configuration.class)
     @Transactional
@@ -52,6 +57,44 @@ public class SystemAdministrationApi {
         return configurationStore.get();
     }
 
+    @ApiOperation(value = "Returns hit, miss and eviction counters of the in-memory cache of retrieved objects", response = ObjectCacheStatsDto.class)
+    @RequestMapping(value = "/object-cache", method = RequestMethod.GET)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "successful response")
+    })
+    public ObjectCacheStatsDto getObjectCacheStats() {
+        return objectCache.getStats();
+    }
+
+    @ApiOperation(value = "Clears the in-memory cache of retrieved objects")
+    @RequestMapping(value = "/object-cache", method = RequestMethod.DELETE)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "cache cleared")
+    })
+    public void clearObjectCache() {
+        log.info("Clearing object cache.");
+        objectCache.clear();
+    }
+
+    @ApiOperation(value = "Returns hit, miss and eviction counters of the local disk cache of retrieved objects, hits of the disk cache are not counted as reads of any storage", response = ObjectCacheStatsDto.class)
+    @RequestMapping(value = "/disk-cache", method = RequestMethod.GET)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "successful response")
+    })
+    public ObjectCacheStatsDto getDiskCacheStats() {
+        return diskCache.getStats();
+    }
+
+    @Inject
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    @Inject
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
     @Inject
     public void setConfigurationStore(ConfigurationStore configurationStore) {
         this.configurationStore = configurationStore;
@@ -0,0 +1,168 @@
+package cz.cas.lib.arcstorage.api;
+
+import cz.cas.lib.arcstorage.dto.AipDto;
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.UploadSessionDto;
+import cz.cas.lib.arcstorage.exception.BadRequestException;
+import cz.cas.lib.arcstorage.exception.ForbiddenByConfigException;
+import cz.cas.lib.arcstorage.security.Roles;
+import cz.cas.lib.arcstorage.security.user.UserDetails;
+import cz.cas.lib.arcstorage.service.ArchivalService;
+import cz.cas.lib.arcstorage.service.UploadSessionService;
+import cz.cas.lib.arcstorage.service.exception.ReadOnlyStateException;
+import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
+import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.security.RolesAllowed;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import static cz.cas.lib.arcstorage.util.Utils.checkChecksumFormat;
+import static cz.cas.lib.arcstorage.util.Utils.checkUUIDOrGenerate;
+
+@RestController
+@RequestMapping("/api/storage/upload")
+public class UploadApi {
+
+    private ArchivalService archivalService;
+    private UploadSessionService uploadSessionService;
+    private UserDetails userDetails;
+
+    @ApiOperation(value = "Creates session of chunked upload of SIP and returns its state.", notes = "" +
+            "SIP of the session is uploaded by chunks of the given size (the last chunk may be smaller), the chunks " +
+            "may be uploaded in any order and in parallel. Once all chunks are received, the session is committed " +
+            "together with the AIP XML and the AIP is stored as by /api/storage/save. Sessions without any activity " +
+            "expire. Count of sessions and their total size are limited.", response = UploadSessionDto.class)
+    @RequestMapping(method = RequestMethod.POST)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "session successfully created"),
+            @ApiResponse(code = 400, message = "bad request, e.g. the size is not positive"),
+            @ApiResponse(code = 403, message = "max count of sessions or their max total size would be exceeded")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public UploadSessionDto create(
+            @ApiParam(value = "size of the SIP in bytes", required = true) @RequestParam("size") long size,
+            @ApiParam(value = "size of the chunk in bytes") @RequestParam(value = "chunkSize", defaultValue = "67108864") int chunkSize)
+            throws BadRequestException, IOException, ForbiddenByConfigException {
+        return uploadSessionService.create(userDetails.getId(), size, chunkSize);
+    }
+
+    @ApiOperation(value = "Uploads chunk of SIP, the content of the chunk is the body of the request.", notes = "" +
+            "The chunk is received only if its checksum matches, otherwise it has to be uploaded again. Chunk which " +
+            "has been received already may be uploaded again, e.g. when its response was lost.")
+    @RequestMapping(value = "/{sessionId}/{chunk}", method = RequestMethod.PUT)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "chunk successfully received"),
+            @ApiResponse(code = 400, message = "bad request, e.g. the chunk index is out of range or the chunk has wrong length"),
+            @ApiResponse(code = 404, message = "session does not exist or has expired"),
+            @ApiResponse(code = 409, message = "session is being committed"),
+            @ApiResponse(code = 422, message = "the checksum computed after the transfer does not match the provided checksum")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public void uploadChunk(
+            @ApiParam(value = "session id", required = true) @PathVariable("sessionId") String sessionId,
+            @ApiParam(value = "index of the chunk, starting from 0", required = true) @PathVariable("chunk") int chunk,
+            @ApiParam(value = "value of the chunk checksum", required = true) @RequestParam("checksumValue") String checksumValue,
+            @ApiParam(value = "type of the chunk checksum", required = true) @RequestParam("checksumType") ChecksumType checksumType,
+            HttpServletRequest request) throws IOException, BadRequestException {
+        Checksum checksum = new Checksum(checksumType, checksumValue);
+        checkChecksumFormat(checksum);
+        try (InputStream content = request.getInputStream()) {
+            uploadSessionService.writeChunk(sessionId, userDetails.getId(), chunk, content, checksum);
+        }
+    }
+
+    @ApiOperation(value = "Returns state of the session, including the chunks which have not been received yet.",
+            response = UploadSessionDto.class)
+    @RequestMapping(value = "/{sessionId}", method = RequestMethod.GET)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "state successfully returned"),
+            @ApiResponse(code = 404, message = "session does not exist or has expired")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public UploadSessionDto get(
+            @ApiParam(value = "session id", required = true) @PathVariable("sessionId") String sessionId) {
+        return uploadSessionService.get(sessionId, userDetails.getId());
+    }
+
+    @ApiOperation(value = "Stores AIP whose SIP has been uploaded by the session and returns the AIP ID.", notes = "" +
+            "All chunks must have been received. The session is removed once the AIP is passed for storing, if the " +
+            "AIP can not be stored, e.g. because the checksum of the SIP does not match, the session remains and can " +
+            "be committed again.", response = String.class)
+    @RequestMapping(value = "/{sessionId}/commit", method = RequestMethod.POST)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "AIP successfully stored"),
+            @ApiResponse(code = 400, message = "bad request, e.g. some chunks have not been received yet or the specified id is not a valid UUID"),
+            @ApiResponse(code = 404, message = "session does not exist or has expired"),
+            @ApiResponse(code = 409, message = "session is being committed or its chunks are being uploaded"),
+            @ApiResponse(code = 422, message = "the checksum of the uploaded SIP or AIP XML does not match the provided checksum"),
+            @ApiResponse(code = 503, message = "some attached logical storage is currently not reachable or system is in readonly state"),
+            @ApiResponse(code = 500, message = "no logical storage attached, or other internal server error")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public String commit(
+            @ApiParam(value = "session id", required = true) @PathVariable("sessionId") String sessionId,
+            @ApiParam(value = "AIP XML file", required = true) @RequestParam("aipXml") MultipartFile aipXml,
+            @ApiParam(value = "value of the SIP checksum", required = true) @RequestParam("sipChecksumValue") String sipChecksumValue,
+            @ApiParam(value = "type of the SIP checksum", required = true) @RequestParam("sipChecksumType") ChecksumType sipChecksumType,
+            @ApiParam(value = "value of the AIP XML checksum", required = true) @RequestParam("aipXmlChecksumValue") String aipXmlChecksumValue,
+            @ApiParam(value = "type of the AIP XML checksum", required = true) @RequestParam("aipXmlChecksumType") ChecksumType aipXmlChecksumType,
+            @ApiParam(value = "UUID of the AIP, generated if not specifies") @RequestParam(value = "UUID", defaultValue = "") String id)
+            throws IOException, SomeLogicalStoragesNotReachableException, BadRequestException, NoLogicalStorageAttachedException, ReadOnlyStateException {
+        String aipId = checkUUIDOrGenerate(id);
+
+        Checksum sipChecksum = new Checksum(sipChecksumType, sipChecksumValue);
+        checkChecksumFormat(sipChecksum);
+
+        Checksum aipXmlChecksum = new Checksum(aipXmlChecksumType, aipXmlChecksumValue);
+        checkChecksumFormat(aipXmlChecksum);
+
+        Path sip = uploadSessionService.startCommit(sessionId, userDetails.getId());
+        boolean stored = false;
+        try {
+            archivalService.saveAip(new AipDto(userDetails.getId(), aipId, null, sipChecksum, aipXml.getInputStream(), aipXmlChecksum), sip);
+            stored = true;
+        } finally {
+            uploadSessionService.finishCommit(sessionId, stored);
+        }
+        return aipId;
+    }
+
+    @ApiOperation(value = "Removes the session and the chunks uploaded by it.")
+    @RequestMapping(value = "/{sessionId}", method = RequestMethod.DELETE)
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "session successfully removed"),
+            @ApiResponse(code = 404, message = "session does not exist or has expired"),
+            @ApiResponse(code = 409, message = "session is being committed")
+    })
+    @RolesAllowed(Roles.READ_WRITE)
+    public void remove(
+            @ApiParam(value = "session id", required = true) @PathVariable("sessionId") String sessionId) throws IOException {
+        uploadSessionService.remove(sessionId, userDetails.getId());
+    }
+
+    @Inject
+    public void setArchivalService(ArchivalService archivalService) {
+        this.archivalService = archivalService;
+    }
+
+    @Inject
+    public void setUploadSessionService(UploadSessionService uploadSessionService) {
+        this.uploadSessionService = uploadSessionService;
+    }
+
+    @Inject
+    public void setUserDetails(UserDetails userDetails) {
+        this.userDetails = userDetails;
+    }
+}
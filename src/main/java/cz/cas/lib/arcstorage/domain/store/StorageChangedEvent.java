@@ -0,0 +1,16 @@
+package cz.cas.lib.arcstorage.domain.store;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Published by {@link StorageStore} when a {@link cz.cas.lib.arcstorage.domain.entity.Storage} is saved or deleted.
+ */
+@Getter
+@AllArgsConstructor
+public class StorageChangedEvent {
+    /**
+     * id of the changed storage
+     */
+    private String storageId;
+}
@@ -3,15 +3,19 @@ package cz.cas.lib.arcstorage.domain.store;
 import cz.cas.lib.arcstorage.domain.entity.QStorage;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 
+import javax.inject.Inject;
 import java.util.List;
 
 @Repository
 @Slf4j
 public class StorageStore extends DomainStore<Storage, QStorage> {
 
+    private ApplicationEventPublisher eventPublisher;
+
     public StorageStore() {
         super(Storage.class, QStorage.class);
     }
@@ -19,18 +23,22 @@ public class StorageStore extends DomainStore<Storage, QStorage> {
     @Transactional
     @Override
     public Storage save(Storage entity) {
-        return super.save(entity);
+        Storage saved = super.save(entity);
+        publishChange(saved.getId());
+        return saved;
     }
 
     @Transactional
     @Override
     public void delete(Storage entity) {
         super.delete(entity);
+        publishChange(entity.getId());
     }
 
     /**
      * does not check for reachability, i.e. if the storage has become unreachabe/reachable after the last reachability check
-     * this method does not reflect it.. storages are checked for reachability during every get/store request
+     * this method does not reflect it.. storages are checked for reachability periodically by
+     * {@link cz.cas.lib.arcstorage.service.StorageProvider}
      */
     public List<Storage> findUnreachableStorages() {
         List<Storage> fetch = query().select(qObject()).where(qObject().reachable.eq(false)).fetch();
@@ -41,4 +49,14 @@ public class StorageStore extends DomainStore<Storage, QStorage> {
     public long getCount() {
         return query().fetchCount();
     }
+
+    private void publishChange(String storageId) {
+        if (eventPublisher != null)
+            eventPublisher.publishEvent(new StorageChangedEvent(storageId));
+    }
+
+    @Inject
+    public void setEventPublisher(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
 }
@@ -2,6 +2,7 @@ package cz.cas.lib.arcstorage.dto;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.apache.commons.io.IOUtils;
 
 import java.io.Closeable;
 import java.io.InputStream;
@@ -36,4 +37,15 @@ public class AipRetrievalResource extends StorageSessionHolder {
     public void addXml(int version, InputStream xmlInputStream) {
         xmls.put(version, xmlInputStream);
     }
+
+    /**
+     * Closes the SIP and XML streams and then the connection. Streams may have been left open e.g. if the transfer to
+     * the client has been aborted, streams which have been closed already are closed again.
+     */
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(sip);
+        xmls.values().forEach(IOUtils::closeQuietly);
+        super.close();
+    }
 }
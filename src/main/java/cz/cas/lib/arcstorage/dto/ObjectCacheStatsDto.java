@@ -0,0 +1,27 @@
+package cz.cas.lib.arcstorage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Counters of a cache of retrieved objects (the in-memory object cache or the disk cache), counted since the
+ * application start.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class ObjectCacheStatsDto {
+    private long hits;
+    private long misses;
+    private long evictions;
+    /**
+     * count of currently cached objects
+     */
+    private long count;
+    /**
+     * total size of currently cached objects in bytes
+     */
+    private long size;
+    private long maxSize;
+}
@@ -0,0 +1,32 @@
+package cz.cas.lib.arcstorage.dto;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.InputStream;
+
+/**
+ * Reference to a byte range of the object retrieved from the storage.
+ */
+@Getter
+public class ObjectRangeRetrievalResource extends ObjectRetrievalResource {
+    /**
+     * position of the first byte of the range in the object
+     */
+    private long offset;
+    /**
+     * number of bytes in the range, the range never exceeds the end of the object
+     */
+    private long length;
+    /**
+     * size of the whole object in bytes
+     */
+    private long objectSize;
+
+    public ObjectRangeRetrievalResource(InputStream inputStream, Closeable connection, long offset, long length, long objectSize) {
+        super(inputStream, connection);
+        this.offset = offset;
+        this.length = length;
+        this.objectSize = objectSize;
+    }
+}
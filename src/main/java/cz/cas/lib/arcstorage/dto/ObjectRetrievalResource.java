@@ -20,6 +20,14 @@ public class ObjectRetrievalResource extends StorageSessionHolder {
     @Getter
     private InputStream inputStream;
 
+    /**
+     * size of the object in bytes if it is known before the stream is read, e.g. when the object was copied to the tmp
+     * folder, null otherwise
+     */
+    @Setter
+    @Getter
+    private Long size;
+
     public ObjectRetrievalResource(InputStream inputStream, Closeable connection) {
         super(connection);
         this.inputStream = inputStream;
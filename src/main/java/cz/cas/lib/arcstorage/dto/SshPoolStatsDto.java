@@ -0,0 +1,35 @@
+package cz.cas.lib.arcstorage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * State and counters of the pool of ssh connections to a remote FS/ZFS storage, counters are counted since the pool
+ * was created.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class SshPoolStatsDto {
+    private String storageId;
+    private String storageName;
+    private int maxSize;
+    /**
+     * number of borrowed connections
+     */
+    private int active;
+    /**
+     * number of opened connections waiting in the pool
+     */
+    private int idle;
+    private long borrowCount;
+    private long createdCount;
+    private long discardedCount;
+    /**
+     * times which threads spent waiting for a free connection, in milliseconds
+     */
+    private double averageWaitTime;
+    private long maxWaitTime;
+    private long totalWaitTime;
+}
@@ -0,0 +1,35 @@
+package cz.cas.lib.arcstorage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Statistics of reads from a logical storage, used to choose the storage for retrieval. Latency, throughput and error
+ * rate are exponentially weighted moving averages, recent reads have the biggest weight.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class StorageReadStatsDto {
+    private String storageId;
+    private String storageName;
+    /**
+     * time from the request to the storage until the data are available, in milliseconds
+     */
+    private double latency;
+    /**
+     * bytes per second transferred from the storage, 0 if no transfer has been measured yet
+     */
+    private double throughput;
+    /**
+     * share of failed reads, failed read is a read which ended with an error or returned corrupted data
+     */
+    private double errorRate;
+    private long reads;
+    private long errors;
+    /**
+     * expected time of the read of an object of the average size, in milliseconds, -1 if no read has succeeded yet
+     */
+    private double expectedReadTime;
+}
@@ -30,8 +30,28 @@ public abstract class StorageSessionHolder implements Closeable {
         // use some internal after-transfer messaging which would be broken by immediate connection closing
         try {
             Thread.sleep(1000);
-            connection.close();
-        } catch (IOException | InterruptedException e) {
+        } catch (InterruptedException e) {
+            throw new GeneralException("can't close connection", e);
+        }
+        closeWithoutDelay();
+    }
+
+    /**
+     * Closes the connection right away, without the wait of {@link #close()}. Use only if the streams were read
+     * completely or are no longer needed, e.g. for short reads of parts of a larger object. The connection is closed
+     * only once, later calls of this method or of {@link #close()} do nothing.
+     */
+    public void closeWithoutDelay() {
+        Closeable toClose;
+        synchronized (this) {
+            toClose = connection;
+            connection = null;
+        }
+        if (toClose == null)
+            return;
+        try {
+            toClose.close();
+        } catch (IOException e) {
             throw new GeneralException("can't close connection", e);
         }
     }
@@ -0,0 +1,30 @@
+package cz.cas.lib.arcstorage.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * State of the chunked upload of a SIP.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+public class UploadSessionDto {
+    private String id;
+    /**
+     * size of the whole SIP in bytes
+     */
+    private long size;
+    /**
+     * size of every chunk but the last one in bytes
+     */
+    private int chunkSize;
+    private int chunkCount;
+    /**
+     * indexes of the chunks which have not been received yet, in ascending order
+     */
+    private List<Integer> missingChunks;
+}
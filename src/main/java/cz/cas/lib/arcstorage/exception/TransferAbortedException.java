@@ -0,0 +1,17 @@
+package cz.cas.lib.arcstorage.exception;
+
+/**
+ * Thrown when the transfer of a response which has been already committed has to be aborted, e.g. when the checksum
+ * of a streamed file does not match once the whole file has been sent.
+ * <p>
+ * The exception is intentionally not mapped to any HTTP code: the status of a committed response can not be changed
+ * anymore, so the exception is left to the servlet container which closes the connection without finishing the
+ * response and the client can not mistake the received data for a complete file. For the same reason the exception
+ * which caused the abort is not chained as the cause, the handlers would match it.
+ * </p>
+ */
+public class TransferAbortedException extends GeneralException {
+    public TransferAbortedException(String message) {
+        super(message);
+    }
+}
@@ -6,6 +6,8 @@ import cz.cas.lib.arcstorage.domain.entity.User;
 import cz.cas.lib.arcstorage.domain.store.StorageStore;
 import cz.cas.lib.arcstorage.dto.ArchivalObjectDto;
 import cz.cas.lib.arcstorage.exception.GeneralException;
+import cz.cas.lib.arcstorage.repair.RepairQueue;
+import cz.cas.lib.arcstorage.repair.RepairTask;
 import cz.cas.lib.arcstorage.security.Role;
 import cz.cas.lib.arcstorage.security.user.UserStore;
 import cz.cas.lib.arcstorage.storagesync.StorageSyncStatus;
@@ -108,6 +110,36 @@ public class ArcstorageMailCenter {
         }
     }
 
+    /**
+     * Sends digest of the repairs of corrupted objects done by {@link RepairQueue}.
+     *
+     * @param repaired objects which have been repaired
+     * @param failed   objects whose repair has been given up
+     * @param pending  number of repairs which are still waiting in the queue
+     */
+    public void sendRepairDigest(List<RepairTask> repaired, List<RepairTask> failed, long pending) {
+        try {
+            for (User user : userStore.findByRole(Role.ROLE_ADMIN)) {
+                MimeMessageHelper message = generalMessage(user.getEmail(), "Object Repair Digest", false);
+                Map<String, Object> params = new HashMap<>();
+                params.put("appName", applicationName);
+                params.put("appUrl", applicationUrl);
+                params.put("repaired", getTemplateValue(repaired));
+                params.put("repairedCount", repaired.size());
+                params.put("failed", getTemplateValue(failed));
+                params.put("failedCount", failed.size());
+                params.put("pendingCount", pending);
+                String conclusion = failed.isEmpty() ? "All processed objects were successfully repaired." :
+                        "Some objects could not be repaired. Manual recovery required.";
+                params.put("conclusion", conclusion);
+                InputStream template = Utils.resource("mail/repairDigest.vm");
+                transformAndSend(template, params, message);
+            }
+        } catch (MessagingException | IOException ex) {
+            throw new GeneralException(ex);
+        }
+    }
+
     private MimeMessageHelper generalMessage(String emailTo, @Nullable String subject, boolean hasAttachment) throws MessagingException {
         MimeMessage message = sender.create();
 
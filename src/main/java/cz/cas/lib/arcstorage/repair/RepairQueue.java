@@ -0,0 +1,169 @@
+package cz.cas.lib.arcstorage.repair;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.ArchivalObjectDto;
+import cz.cas.lib.arcstorage.exception.MissingObject;
+import cz.cas.lib.arcstorage.mail.ArcstorageMailCenter;
+import cz.cas.lib.arcstorage.service.ArchivalDbService;
+import cz.cas.lib.arcstorage.service.ArchivalService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent queue of objects which were found corrupted at some storage during retrieval. Retrieval does not wait for
+ * the repair, it only adds the object to the queue, and the objects are re-uploaded to the storages in background.
+ * <p>
+ * Every run processes at most batch-size due tasks, one by one, so that repairs do not overload the storages. Failed
+ * repair is retried with exponential backoff until the maximal number of attempts is reached. Outcomes of every run are
+ * sent to administrators as a single digest e-mail.
+ * </p>
+ */
+@Slf4j
+@Service
+public class RepairQueue {
+    private RepairTaskStore repairTaskStore;
+    private ArchivalService archivalService;
+    private ArchivalDbService archivalDbService;
+    private ArcstorageMailCenter arcstorageMailCenter;
+    private TransactionTemplate transactionTemplate;
+    private int batchSize;
+    private int maxAttempts;
+    private long retryDelay;
+
+    /**
+     * Adds object to the queue, does nothing if the object is already queued for repair at the storage.
+     *
+     * @param objectDto object which is corrupted at the storage
+     * @param storage   storage where the object is corrupted
+     */
+    public synchronized void enqueue(ArchivalObjectDto objectDto, Storage storage) {
+        transactionTemplate.execute(status -> {
+            if (repairTaskStore.find(objectDto.getDatabaseId(), storage.getId()) != null) {
+                log.debug("Object " + objectDto.getStorageId() + " is already queued for repair at storage " + storage.getName() + ".");
+                return null;
+            }
+            repairTaskStore.save(new RepairTask(objectDto.getDatabaseId(), storage.getId()));
+            log.info("Object " + objectDto.getStorageId() + " has been queued for repair at storage " + storage.getName() + ".");
+            return null;
+        });
+    }
+
+    /**
+     * Repairs objects whose repair is due.
+     */
+    @Scheduled(fixedDelayString = "${arcstorage.repair.interval:60000}")
+    public void repairDueObjects() {
+        List<RepairTask> tasks = repairTaskStore.findDue(Instant.now(), batchSize);
+        if (tasks.isEmpty())
+            return;
+        List<RepairTask> repaired = new ArrayList<>();
+        List<RepairTask> failed = new ArrayList<>();
+        for (RepairTask task : tasks) {
+            String error;
+            try {
+                ArchivalObjectDto objectDto = archivalDbService.getObject(task.getObjectId()).toDto();
+                switch (objectDto.getState()) {
+                    case ARCHIVED:
+                    case REMOVED:
+                        error = archivalService.repairObject(objectDto, task.getStorageId()) ? null :
+                                "no valid copy of the object found at other storages";
+                        break;
+                    case PROCESSING:
+                    case PRE_PROCESSING:
+                        error = "object is being processed";
+                        break;
+                    default:
+                        log.info("Object " + objectDto.getStorageId() + " is in state " + objectDto.getState() +
+                                ", dropping its repair.");
+                        finish(task);
+                        continue;
+                }
+            } catch (MissingObject e) {
+                log.info("Object " + task.getObjectId() + " no longer exists, dropping its repair.");
+                finish(task);
+                continue;
+            } catch (Exception e) {
+                log.error("Repair of object " + task.getObjectId() + " at storage " + task.getStorageId() + " has failed.", e);
+                error = e.toString();
+            }
+            if (error == null) {
+                finish(task);
+                repaired.add(task);
+                continue;
+            }
+            task.setAttempts(task.getAttempts() + 1);
+            task.setLastError(error.length() > 2000 ? error.substring(0, 2000) : error);
+            if (task.getAttempts() >= maxAttempts) {
+                log.error("Repair of object " + task.getObjectId() + " at storage " + task.getStorageId() +
+                        " has failed " + task.getAttempts() + " times, giving up.");
+                finish(task);
+                failed.add(task);
+            } else {
+                task.setNextAttempt(Instant.now().plusMillis(retryDelay << Math.min(task.getAttempts() - 1, 16)));
+                transactionTemplate.execute(status -> repairTaskStore.save(task));
+            }
+        }
+        if (repaired.isEmpty() && failed.isEmpty())
+            return;
+        try {
+            arcstorageMailCenter.sendRepairDigest(repaired, failed, repairTaskStore.countAll());
+        } catch (Exception e) {
+            log.error("Could not send digest of repairs.", e);
+        }
+    }
+
+    private void finish(RepairTask task) {
+        transactionTemplate.execute(status -> {
+            repairTaskStore.delete(task);
+            return null;
+        });
+    }
+
+    @Inject
+    public void setRepairTaskStore(RepairTaskStore repairTaskStore) {
+        this.repairTaskStore = repairTaskStore;
+    }
+
+    @Inject
+    public void setArchivalService(ArchivalService archivalService) {
+        this.archivalService = archivalService;
+    }
+
+    @Inject
+    public void setArchivalDbService(ArchivalDbService archivalDbService) {
+        this.archivalDbService = archivalDbService;
+    }
+
+    @Inject
+    public void setArcstorageMailCenter(ArcstorageMailCenter arcstorageMailCenter) {
+        this.arcstorageMailCenter = arcstorageMailCenter;
+    }
+
+    @Inject
+    public void setTransactionTemplate(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * @param batchSize   maximal number of repairs in one run
+     * @param maxAttempts number of failed attempts after which the repair is given up
+     * @param retryDelay  delay in milliseconds before the first retry, doubled with every following retry
+     */
+    @Inject
+    public void setLimits(@Value("${arcstorage.repair.batch-size:10}") int batchSize,
+                          @Value("${arcstorage.repair.max-attempts:5}") int maxAttempts,
+                          @Value("${arcstorage.repair.retry-delay:300000}") long retryDelay) {
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+    }
+}
@@ -0,0 +1,59 @@
+package cz.cas.lib.arcstorage.repair;
+
+import cz.cas.lib.arcstorage.domain.entity.DomainObject;
+import cz.cas.lib.arcstorage.domain.store.InstantGenerator;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.GenerationTime;
+import org.hibernate.annotations.GeneratorType;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * entity of the repair queue, object which was found corrupted at the storage and has to be re-uploaded there from
+ * other storage, there is at most one task for every object and storage
+ */
+@Entity
+@Table(name = "arcstorage_repair_task", uniqueConstraints = @UniqueConstraint(columnNames = {"object_id", "storage_id"}))
+@NoArgsConstructor
+@Getter
+public class RepairTask extends DomainObject {
+    /**
+     * the UUID of the object in database
+     */
+    @Column(name = "object_id", updatable = false, nullable = false)
+    private String objectId;
+    /**
+     * id of the storage where the object is corrupted
+     */
+    @Column(name = "storage_id", updatable = false, nullable = false)
+    private String storageId;
+    @Column(updatable = false)
+    @GeneratorType(type = InstantGenerator.class, when = GenerationTime.INSERT)
+    private Instant created;
+    @Setter
+    private Instant nextAttempt;
+    @Setter
+    private int attempts;
+    @Setter
+    @Column(length = 2000)
+    private String lastError;
+
+    public RepairTask(String objectId, String storageId) {
+        this.objectId = objectId;
+        this.storageId = storageId;
+        this.nextAttempt = Instant.now();
+    }
+
+    @Override
+    public String toString() {
+        return "RepairTask{" +
+                "objectId='" + objectId + '\'' +
+                ", storageId='" + storageId + '\'' +
+                ", attempts=" + attempts +
+                ", lastError='" + lastError + '\'' +
+                '}';
+    }
+}
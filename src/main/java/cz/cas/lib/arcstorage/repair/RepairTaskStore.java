@@ -0,0 +1,40 @@
+package cz.cas.lib.arcstorage.repair;
+
+import cz.cas.lib.arcstorage.domain.store.DomainStore;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.List;
+
+@Repository
+public class RepairTaskStore extends DomainStore<RepairTask, QRepairTask> {
+    public RepairTaskStore() {
+        super(RepairTask.class, QRepairTask.class);
+    }
+
+    public RepairTask find(String objectId, String storageId) {
+        RepairTask task = query()
+                .select(qObject())
+                .where(qObject().objectId.eq(objectId))
+                .where(qObject().storageId.eq(storageId))
+                .fetchFirst();
+        detachAll();
+        return task;
+    }
+
+    /**
+     * @param now   current time
+     * @param limit maximal number of returned tasks
+     * @return tasks whose next attempt is due, the longest waiting first
+     */
+    public List<RepairTask> findDue(Instant now, int limit) {
+        List<RepairTask> fetch = query()
+                .select(qObject())
+                .where(qObject().nextAttempt.loe(now))
+                .orderBy(qObject().nextAttempt.asc())
+                .limit(limit)
+                .fetch();
+        detachAll();
+        return fetch;
+    }
+}
@@ -12,9 +12,15 @@ import cz.cas.lib.arcstorage.dto.TmpSourceHolder;
 import cz.cas.lib.arcstorage.exception.GeneralException;
 import cz.cas.lib.arcstorage.mail.ArcstorageMailCenter;
 import cz.cas.lib.arcstorage.service.exception.CantReadException;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import cz.cas.lib.arcstorage.storage.ChunkPool;
+import cz.cas.lib.arcstorage.storage.FanOutReader;
 import cz.cas.lib.arcstorage.storage.StorageService;
+import cz.cas.lib.arcstorage.storage.VerifyingInputStream;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
@@ -41,6 +47,11 @@ public class ArchivalAsyncService {
     private ArchivalDbService archivalDbService;
     private ExecutorService executor;
     private ArcstorageMailCenter mailCenter;
+    private long fanOutMaxLag = 64L * 1024 * 1024;
+    /**
+     * chunks of the fan-out shared by all AIPs being stored
+     */
+    private ChunkPool fanOutChunkPool = new ChunkPool(FanOutReader.DEFAULT_CHUNK_SIZE, 256);
 
     /**
      * Saves AIP asynchronously to the provided storage services.
@@ -49,6 +60,8 @@ public class ArchivalAsyncService {
      * In case of an archival storage error at any of the storages, the storage process is rolled back.
      * If the rollback succeeds, AIP in DB is set to ROLL_BACKED.
      * If the rollback fails at any of the storages, AIP in DB is set to ARCHIVAL FAILURE.
+     * <p>
+     * The SIP tmp file is read once for all storages, see {@link FanOutReader}.
      *
      * @param aip             AIP DTO
      * @param tmpSipPath      path to the temporary location storing the SIP content
@@ -59,12 +72,68 @@ public class ArchivalAsyncService {
     @Async
     @Transactional
     public void saveAip(AipDto aip, Path tmpSipPath, byte[] xmlContent, List<StorageService> storageServices, String dataSpace) {
+        try {
+            storeAip(aip, openSipStreams(aip, tmpSipPath, storageServices.size()), xmlContent, storageServices, dataSpace);
+        } finally {
+            try {
+                Files.delete(tmpSipPath);
+            } catch (IOException e) {
+                log.error("Could not delete temporary file " + tmpSipPath);
+            }
+        }
+    }
+
+    /**
+     * Stores AIP to the provided storage services in the calling thread, reading the SIP directly from the stream. The
+     * stream is read once for all storages, see {@link FanOutReader}, and its checksum is validated as it is read. As
+     * the stream can not be read again, the fastest storage waits for the slowest one if it is ahead by more than the
+     * max lag of the fan-out.
+     *
+     * @param aip             AIP DTO
+     * @param sipStream       stream of the SIP content, closed by this method
+     * @param xmlContent      content of the XML
+     * @param storageServices storage services to store AIP to
+     * @param dataSpace       data space of the AIP owner
+     * @return true if the AIP has been stored at all storages, false if it has been rolled back
+     * @throws InvalidChecksumException if the checksum of the SIP does not match, the AIP has been rolled back
+     */
+    @Transactional
+    public boolean storeAip(AipDto aip, InputStream sipStream, byte[] xmlContent, List<StorageService> storageServices,
+                            String dataSpace) throws InvalidChecksumException {
+        FanOutReader reader = new FanOutReader("SIP " + aip.getSip().getDatabaseId(),
+                new VerifyingInputStream(sipStream, aip.getSip().getChecksum(), computed -> {
+                }), fanOutChunkPool, Math.max(fanOutMaxLag, FanOutReader.DEFAULT_CHUNK_SIZE));
+        List<InputStream> sipStreams = new ArrayList<>();
+        for (int i = 0; i < storageServices.size(); i++) {
+            sipStreams.add(reader.newInputStream());
+        }
+        if (storeAip(aip, sipStreams, xmlContent, storageServices, dataSpace))
+            return true;
+        if (reader.getSourceError() instanceof InvalidChecksumException)
+            throw (InvalidChecksumException) reader.getSourceError();
+        return false;
+    }
+
+    /**
+     * Stores AIP to the provided storage services in the calling thread, see {@link #saveAip}.
+     *
+     * @param aip             AIP DTO
+     * @param sipStreams      streams of the SIP content, one for every storage service, closed by this method
+     * @param xmlContent      content of the XML
+     * @param storageServices storage services to store AIP to
+     * @param dataSpace       data space of the AIP owner
+     * @return true if the AIP has been stored at all storages, false if it has been rolled back
+     */
+    @Transactional
+    public boolean storeAip(AipDto aip, List<InputStream> sipStreams, byte[] xmlContent, List<StorageService> storageServices, String dataSpace) {
         String op = "storing AIP: ";
         List<CompletableFuture<Void>> futures = new ArrayList<>();
         AtomicBoolean rollback = new AtomicBoolean(false);
-        for (StorageService a : storageServices) {
+        for (int i = 0; i < storageServices.size(); i++) {
+            StorageService a = storageServices.get(i);
+            InputStream storageSipStream = sipStreams.get(i);
             CompletableFuture<Void> c = CompletableFuture.runAsync(() -> {
-                        try (InputStream sipStream = new FileInputStream(tmpSipPath.toFile());
+                        try (InputStream sipStream = storageSipStream;
                              InputStream xmlStream = new ByteArrayInputStream(xmlContent)) {
                             a.storeAip(new AipDto(aip, sipStream, xmlStream), rollback, dataSpace);
                             log.info(strSA(a.getStorage().getName(), aip.getSip().getDatabaseId()) + op + "success");
@@ -72,7 +141,7 @@ public class ArchivalAsyncService {
                             log.warn(strSA(a.getStorage().getName(), aip.getSip().getDatabaseId()) + op + "error: " + e);
                             throw new GeneralException(e);
                         } catch (IOException e) {
-                            throw new CantReadException("SIP tmp file at path " + tmpSipPath.toString() +
+                            throw new CantReadException("SIP " + aip.getSip().getDatabaseId() +
                                     " or stream of XML " + aip.getXml().getStorageId(), e);
                         }
                     }, executor
@@ -88,17 +157,11 @@ public class ArchivalAsyncService {
         } catch (ExecutionException e) {
             rollback.set(true);
             log.error(op + "some storage has encountered problem");
-        } finally {
-            try {
-                Files.delete(tmpSipPath);
-            } catch (IOException e) {
-                log.error("Could not delete temporary file " + tmpSipPath);
-            }
         }
         if (!rollback.get()) {
             archivalDbService.finishAipCreation(aip.getSip().getDatabaseId(), aip.getXml().getDatabaseId());
             log.info(strA(aip.getSip().getDatabaseId()) + op + "success on all storages");
-            return;
+            return true;
         }
         log.info(op + "Archival storage error. Starting rollback.");
         futures = new ArrayList<>();
@@ -125,6 +188,7 @@ public class ArchivalAsyncService {
             archivalDbService.setAipFailed(aip.getSip().getDatabaseId(), aip.getXml().getDatabaseId());
             log.error(strA(aip.getSip().getDatabaseId()) + "rollback failed on some storages: " + e);
         }
+        return false;
     }
 
     /**
@@ -365,6 +429,31 @@ public class ArchivalAsyncService {
         log.info("Object: " + id + " has been successfully renewed.");
     }
 
+    /**
+     * Creates streams of the SIP tmp file, one for every storage. If the fan-out is enabled, the file is read once and
+     * the streams share the data read.
+     */
+    private List<InputStream> openSipStreams(AipDto aip, Path tmpSipPath, int count) {
+        List<InputStream> streams = new ArrayList<>();
+        if (fanOutMaxLag > 0) {
+            FanOutReader reader = new FanOutReader("SIP " + aip.getSip().getDatabaseId(),
+                    () -> new FileInputStream(tmpSipPath.toFile()), fanOutChunkPool, fanOutMaxLag);
+            for (int i = 0; i < count; i++) {
+                streams.add(reader.newInputStream());
+            }
+            return streams;
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                streams.add(new FileInputStream(tmpSipPath.toFile()));
+            } catch (IOException e) {
+                streams.forEach(IOUtils::closeQuietly);
+                throw new CantReadException("SIP tmp file at path " + tmpSipPath.toString(), e);
+            }
+        }
+        return streams;
+    }
+
     @Inject
     public void setArchivalDbService(ArchivalDbService archivalDbService) {
         this.archivalDbService = archivalDbService;
@@ -379,4 +468,22 @@ public class ArchivalAsyncService {
     public void setExecutor(ExecutorService executor) {
         this.executor = executor;
     }
+
+    /**
+     * @param fanOutMaxLag maximal lag in MiB of the slowest storage behind the fastest one when the SIP is read once
+     *                     for all storages, 0 to let every storage read the SIP tmp file on its own
+     */
+    @Inject
+    public void setFanOutMaxLag(@Value("${arcstorage.fan-out.max-lag:64}") int fanOutMaxLag) {
+        this.fanOutMaxLag = fanOutMaxLag * 1024L * 1024;
+    }
+
+    /**
+     * @param fanOutPoolSize size in MiB of the memory shared by the fan-outs of all AIPs being stored, at least 1
+     */
+    @Inject
+    public void setFanOutPoolSize(@Value("${arcstorage.fan-out.pool-size:256}") int fanOutPoolSize) {
+        this.fanOutChunkPool = new ChunkPool(FanOutReader.DEFAULT_CHUNK_SIZE,
+                (int) Math.max(1, fanOutPoolSize * 1024L * 1024 / FanOutReader.DEFAULT_CHUNK_SIZE));
+    }
 }
@@ -15,6 +15,7 @@ import cz.cas.lib.arcstorage.service.exception.state.DeletedStateException;
 import cz.cas.lib.arcstorage.service.exception.state.FailedStateException;
 import cz.cas.lib.arcstorage.service.exception.state.RollbackStateException;
 import cz.cas.lib.arcstorage.service.exception.state.StillProcessingStateException;
+import cz.cas.lib.arcstorage.storage.cache.DiskCache;
 import cz.cas.lib.arcstorage.storagesync.AuditedOperation;
 import cz.cas.lib.arcstorage.storagesync.ObjectAudit;
 import cz.cas.lib.arcstorage.storagesync.ObjectAuditStore;
@@ -47,6 +48,8 @@ public class ArchivalDbService {
     private UserStore userStore;
     private ConfigurationStore configurationStore;
     private TransactionTemplate transactionTemplate;
+    private ObjectCache objectCache;
+    private DiskCache diskCache;
 
     /**
      * Registers that AIP creation process has started. Stores AIP records to database and sets their state to <i>processing</i>.
@@ -136,6 +139,8 @@ public class ArchivalDbService {
                 version = latestXml.getVersion();
         }
         int xmlVersion = version;
+        //version of failed or rolled back XML is reused by the new XML
+        sip.getXmls().stream().filter(xml -> xml.getVersion() == xmlVersion).forEach(xml -> invalidateCaches(xml.getId()));
         return transactionTemplate.execute(new TransactionCallback<AipXml>() {
             @Override
             public AipXml doInTransaction(TransactionStatus status) {
@@ -170,6 +175,7 @@ public class ArchivalDbService {
                 throw new RollbackStateException(obj);
         }
         obj.setState(ObjectState.DELETED);
+        invalidateCaches(id);
         return transactionTemplate.execute(new TransactionCallback<ArchivalObject>() {
             @Override
             public ArchivalObject doInTransaction(TransactionStatus status) {
@@ -183,13 +189,16 @@ public class ArchivalDbService {
     }
 
     /**
-     * Sets state of object.
+     * Sets state of object. Object which is no longer {@link ObjectState#ARCHIVED} is removed from {@link ObjectCache}
+     * and {@link DiskCache}.
      */
     @Transactional
     public void setObjectState(String databaseId, ObjectState state) {
         ArchivalObject object = archivalObjectStore.find(databaseId);
         object.setState(state);
         archivalObjectStore.save(object);
+        if (state != ObjectState.ARCHIVED)
+            invalidateCaches(databaseId);
         log.info("State of object with id " + databaseId + " has changed to " + state + ".");
     }
 
@@ -201,6 +210,8 @@ public class ArchivalDbService {
     @Transactional
     public void setObjectsState(ObjectState state, List<String> ids) {
         archivalObjectStore.setObjectsState(state, ids);
+        if (state != ObjectState.ARCHIVED)
+            ids.forEach(this::invalidateCaches);
         log.info("State of objects with ids " + ids.toString() + " has changed to " + state + ".");
     }
 
@@ -227,6 +238,8 @@ public class ArchivalDbService {
         });
         xml.setState(ObjectState.ARCHIVAL_FAILURE);
         aipXmlStore.save(xml);
+        invalidateCaches(sipId);
+        invalidateCaches(xmlId);
     }
 
     /**
@@ -256,6 +269,7 @@ public class ArchivalDbService {
                 throw new FailedStateException(obj);
         }
         obj.setState(ObjectState.REMOVED);
+        invalidateCaches(id);
         return transactionTemplate.execute(new TransactionCallback<ArchivalObject>() {
             @Override
             public ArchivalObject doInTransaction(TransactionStatus status) {
@@ -406,6 +420,21 @@ public class ArchivalDbService {
         this.userStore = userStore;
     }
 
+    @Inject
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    @Inject
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    private void invalidateCaches(String databaseId) {
+        objectCache.invalidate(databaseId);
+        diskCache.invalidate(databaseId);
+    }
+
     public void setTransactionTemplateTimeout(int timeout) {
         transactionTemplate.setTimeout(timeout);
     }
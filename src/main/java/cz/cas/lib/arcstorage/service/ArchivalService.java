@@ -8,21 +8,29 @@ import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.exception.GeneralException;
 import cz.cas.lib.arcstorage.exception.MissingObject;
 import cz.cas.lib.arcstorage.mail.ArcstorageMailCenter;
+import cz.cas.lib.arcstorage.repair.RepairQueue;
 import cz.cas.lib.arcstorage.service.exception.BadXmlVersionProvidedException;
 import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import cz.cas.lib.arcstorage.service.exception.RangeNotSatisfiableException;
 import cz.cas.lib.arcstorage.service.exception.ReadOnlyStateException;
 import cz.cas.lib.arcstorage.service.exception.state.*;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageReachableException;
 import cz.cas.lib.arcstorage.service.exception.storage.ObjectCouldNotBeRetrievedException;
 import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
+import cz.cas.lib.arcstorage.storage.CancellableInputStream;
 import cz.cas.lib.arcstorage.storage.StorageService;
+import cz.cas.lib.arcstorage.storage.VerifyingInputStream;
+import cz.cas.lib.arcstorage.storage.cache.DiskCache;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import cz.cas.lib.arcstorage.util.Utils;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpRange;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -32,13 +40,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static cz.cas.lib.arcstorage.storage.StorageUtils.*;
@@ -47,19 +52,49 @@ import static cz.cas.lib.arcstorage.util.Utils.*;
 @Service
 @Slf4j
 public class ArchivalService {
+    private static final String SHARED_SIP = "sip";
+    private static final String SHARED_OBJECT = "object";
 
     private ArchivalAsyncService async;
     private ArchivalDbService archivalDbService;
     private StorageProvider storageProvider;
     private Path tmpFolder;
     private ExecutorService executor;
+    private ExecutorService retrievalExecutor;
     private ArcstorageMailCenter arcstorageMailCenter;
+    private ObjectCache objectCache;
+    private DiskCache diskCache;
+    private RetrievalCoalescer retrievalCoalescer;
+    private StorageReadStatistics readStatistics;
+    private RepairQueue repairQueue;
+    private VerifiedCopyCache verifiedCopyCache;
+    /**
+     * time in milliseconds after which a read of an object is hedged by a read from other storage, 0 disables hedging
+     */
+    private long hedgedReadDelay;
+    /**
+     * throughput in bytes per second which the first read has to reach to not be hedged after the delay
+     */
+    private long hedgedReadMinThroughput;
+
+    /**
+     * Hedged reads wait for the reads of other requests, they do not use {@link #executor} so that they can not
+     * exhaust it.
+     */
+    private static final ExecutorService hedgedReadExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "hedged-read");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
      * Retrieves reference to AIP.
      *
-     * @param sipId id of the AIP to retrieve
-     * @param all   if <code>true</code> reference to SIP and all XMLs is returned otherwise reference to SIP and latest XML is retrieved
+     * @param sipId     id of the AIP to retrieve
+     * @param all       if <code>true</code> reference to SIP and all XMLs is returned otherwise reference to SIP and latest XML is retrieved
+     * @param streaming if <code>true</code> streams of the storage are returned and verified while they are read, see
+     *                  {@link #streamAipFromStorage(AipSip, List, List)}, otherwise the AIP is copied to tmp folder and
+     *                  verified before it is returned
      * @return reference of AIP which contains id and inputStream of SIP and XML/XMLs, if there are more XML to return those
      * which are rolled back are skipped
      * @throws DeletedStateException              if SIP is deleted
@@ -71,14 +106,33 @@ public class ArchivalService {
      * @throws NoLogicalStorageReachableException
      * @throws NoLogicalStorageAttachedException
      */
-    public AipRetrievalResource getAip(String sipId, boolean all) throws RollbackStateException,
+    public AipRetrievalResource getAip(String sipId, boolean all, boolean streaming) throws RollbackStateException,
             StillProcessingStateException, DeletedStateException, FailedStateException,
             ObjectCouldNotBeRetrievedException, RemovedStateException, NoLogicalStorageReachableException,
             NoLogicalStorageAttachedException {
         log.info("Retrieving AIP with id " + sipId + ".");
 
-        AipSip sipEntity = archivalDbService.getAip(sipId);
+        AipSip sipEntity = getArchivedAip(sipId);
+        List<AipXml> xmls = all ? sipEntity.getArchivedXmls() : asList(sipEntity.getLatestArchivedXml());
+        if (xmls.isEmpty())
+            throw new IllegalStateException("found ARCHIVED SIP " + sipId + " with no ARCHIVED XML");
+        return streaming ? retrieveAip(sipEntity, xmls, true) : coalescedRetrieveAip(sipEntity, xmls);
+    }
 
+    /**
+     * Finds AIP which can be retrieved, i.e. is ARCHIVED.
+     *
+     * @param sipId id of the AIP
+     * @return SIP entity
+     * @throws DeletedStateException         if SIP is deleted
+     * @throws RollbackStateException        if SIP is rolled back
+     * @throws StillProcessingStateException if SIP is still processing
+     * @throws FailedStateException          if SIP is failed
+     * @throws RemovedStateException         if SIP is removed
+     */
+    public AipSip getArchivedAip(String sipId) throws RollbackStateException, StillProcessingStateException,
+            DeletedStateException, FailedStateException, RemovedStateException {
+        AipSip sipEntity = archivalDbService.getAip(sipId);
         switch (sipEntity.getState()) {
             case PROCESSING:
             case PRE_PROCESSING:
@@ -93,18 +147,15 @@ public class ArchivalService {
             case REMOVED:
                 throw new RemovedStateException(sipEntity);
         }
-
-        List<AipXml> xmls = all ? sipEntity.getArchivedXmls() : asList(sipEntity.getLatestArchivedXml());
-        if (xmls.isEmpty())
-            throw new IllegalStateException("found ARCHIVED SIP " + sipId + " with no ARCHIVED XML");
-        return retrieveAip(sipEntity, xmls);
+        return sipEntity;
     }
 
     /**
      * Retrieves AIP XML reference.
      *
      * @param sipId   id of the AIP that the XML belongs
-     * @param version specifies version of XML to return, by default the latest XML is returned
+     * @param version   specifies version of XML to return, by default the latest XML is returned
+     * @param streaming if <code>true</code> stream of the storage is returned and verified while it is read
      * @return reference to AIP XML
      * @throws FailedStateException
      * @throws RollbackStateException
@@ -114,11 +165,24 @@ public class ArchivalService {
      * @throws NoLogicalStorageReachableException
      * @throws NoLogicalStorageAttachedException
      */
-    public Pair<Integer, ObjectRetrievalResource> getXml(String sipId, Integer version) throws
+    public Pair<Integer, ObjectRetrievalResource> getXml(String sipId, Integer version, boolean streaming) throws
             FailedStateException, RollbackStateException, StillProcessingStateException,
             ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
         log.info("Retrieving XML of AIP with id " + sipId + ".");
 
+        AipXml requestedXml = findXml(sipId, version);
+        return new Pair<>(requestedXml.getVersion(), getObject(requestedXml.toDto(), streaming));
+    }
+
+    /**
+     * Finds AIP XML entity.
+     *
+     * @param sipId   id of the AIP that the XML belongs
+     * @param version version of the XML, if null the latest archived XML is returned
+     * @return XML entity
+     * @throws MissingObject if there is no XML of the version
+     */
+    public AipXml findXml(String sipId, Integer version) {
         AipSip sipEntity = archivalDbService.getAip(sipId);
         AipXml requestedXml;
         if (version != null) {
@@ -130,7 +194,7 @@ public class ArchivalService {
             requestedXml = xmlOpt.get();
         } else
             requestedXml = sipEntity.getLatestArchivedXml();
-        return new Pair<>(requestedXml.getVersion(), getObject(requestedXml.toDto()));
+        return requestedXml;
     }
 
     /**
@@ -149,7 +213,7 @@ public class ArchivalService {
     public ObjectRetrievalResource getGeneralObject(String id) throws
             FailedStateException, RollbackStateException, StillProcessingStateException,
             ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
-        return getObject(archivalDbService.getObject(id).toDto());
+        return getObject(archivalDbService.getObject(id).toDto(), false);
     }
 
     /**
@@ -171,6 +235,38 @@ public class ArchivalService {
      */
     public void saveAip(AipDto aip) throws InvalidChecksumException, SomeLogicalStoragesNotReachableException, IOException,
             NoLogicalStorageAttachedException, ReadOnlyStateException {
+        saveAip(aip, tmpSipPath -> {
+            //copy SIP to tmp file and validate its checksum computed during the copy
+            try (BufferedInputStream ios = new BufferedInputStream(aip.getSip().getInputStream())) {
+                copyStreamAndValidateChecksum(ios, tmpSipPath, aip.getSip().getChecksum());
+                log.info("SIP content of AIP with id " + aip.getSip().getStorageId() + " has been stored to temporary storage and its checksum has been validated.");
+            }
+        });
+    }
+
+    /**
+     * Stores AIP whose SIP is already in a file at the tmp folder, e.g. assembled from uploaded chunks, see
+     * {@link #saveAip(AipDto)}. Input stream of the SIP in the DTO is not used.
+     * <p>
+     * Checksum of the file is validated and the file is moved to the place of the SIP tmp file, so that it is not
+     * copied again. If the AIP can not be stored before the file is moved, the file is left in place.
+     * </p>
+     *
+     * @param aip     AIP to store
+     * @param sipFile file with the content of the SIP
+     * @throws InvalidChecksumException if the checksum of the XML or the file does not match
+     */
+    public void saveAip(AipDto aip, Path sipFile) throws InvalidChecksumException, SomeLogicalStoragesNotReachableException,
+            IOException, NoLogicalStorageAttachedException, ReadOnlyStateException {
+        saveAip(aip, tmpSipPath -> {
+            validateChecksum(aip.getSip().getChecksum(), sipFile);
+            Files.move(sipFile, tmpSipPath, StandardCopyOption.REPLACE_EXISTING);
+            log.info("SIP content of AIP with id " + aip.getSip().getStorageId() + " has been moved to temporary storage and its checksum has been validated.");
+        });
+    }
+
+    private void saveAip(AipDto aip, SipSpooler sipSpooler) throws InvalidChecksumException, SomeLogicalStoragesNotReachableException,
+            IOException, NoLogicalStorageAttachedException, ReadOnlyStateException {
         log.info("Saving AIP with id " + aip.getSip().getStorageId());
 
         AipSip aipSip = archivalDbService.registerAipCreation(aip.getSip().getDatabaseId(), aip.getSip().getChecksum(),
@@ -180,21 +276,9 @@ public class ArchivalService {
         byte[] xmlContent;
         try {
             reachableAdapters = storageProvider.createAdaptersForWriteOperation();
-            //validate checksum of XML
-            try (BufferedInputStream ios = new BufferedInputStream(aip.getXml().getInputStream())) {
-                xmlContent = inputStreamToBytes(ios);
-                validateChecksum(aip.getXml().getChecksum(), new ByteArrayInputStream(xmlContent));
-                log.info("Checksum of XML of AIP with id " + aip.getSip().getStorageId() + " has been validated.");
-                aip.getXml().setInputStream(new ByteArrayInputStream(xmlContent));
-            }
-            //copy SIP to tmp file and validate its checksum
+            xmlContent = readAipXml(aip);
             tmpSipPath = tmpFolder.resolve(aip.getSip().getDatabaseId());
-            try (BufferedInputStream ios = new BufferedInputStream(aip.getSip().getInputStream())) {
-                Files.copy(ios, tmpSipPath, StandardCopyOption.REPLACE_EXISTING);
-                log.info("SIP content of AIP with id " + aip.getSip().getStorageId() + " has been stored to temporary storage.");
-                validateChecksum(aip.getSip().getChecksum(), tmpSipPath);
-                log.info("Checksum of SIP of AIP with id " + aip.getSip().getStorageId() + " has been validated.");
-            }
+            sipSpooler.spool(tmpSipPath);
         } catch (Exception e) {
             archivalDbService.setObjectState(aip.getSip().getDatabaseId(), ObjectState.ARCHIVAL_FAILURE);
             throw e;
@@ -206,6 +290,63 @@ public class ArchivalService {
         async.saveAip(aip, tmpSipPath, xmlContent, reachableAdapters, aipSip.getOwner().getDataSpace());
     }
 
+    /**
+     * Stores AIP parts (SIP and ARCLib XML) into Archival Storage synchronously, streaming the SIP directly to all
+     * storages without copying it to the tmp folder first.
+     * <p>
+     * Checksum of the SIP is validated as the SIP is streamed, if it does not match, the AIP is rolled back at all
+     * storages. Storages read the SIP at the pace of the slowest of them.
+     * </p>
+     *
+     * @param aip AIP to store
+     * @throws InvalidChecksumException if the checksum of the XML or the SIP does not match
+     * @throws GeneralException         if the AIP could not be stored at some storage and has been rolled back
+     */
+    public void saveAipDirectly(AipDto aip) throws InvalidChecksumException, SomeLogicalStoragesNotReachableException, IOException,
+            NoLogicalStorageAttachedException, ReadOnlyStateException {
+        log.info("Saving AIP with id " + aip.getSip().getStorageId() + " directly to storages");
+
+        AipSip aipSip = archivalDbService.registerAipCreation(aip.getSip().getDatabaseId(), aip.getSip().getChecksum(),
+                aip.getXml().getDatabaseId(), aip.getXml().getChecksum());
+        List<StorageService> reachableAdapters;
+        byte[] xmlContent;
+        try {
+            reachableAdapters = storageProvider.createAdaptersForWriteOperation();
+            xmlContent = readAipXml(aip);
+        } catch (Exception e) {
+            archivalDbService.setObjectState(aip.getSip().getDatabaseId(), ObjectState.ARCHIVAL_FAILURE);
+            throw e;
+        }
+        aip.getSip().setState(ObjectState.PROCESSING);
+        aip.getXml().setState(ObjectState.PROCESSING);
+        archivalDbService.setObjectsState(ObjectState.PROCESSING, asList(aip.getSip().getDatabaseId(), aip.getXml().getDatabaseId()));
+
+        if (!async.storeAip(aip, aip.getSip().getInputStream(), xmlContent, reachableAdapters, aipSip.getOwner().getDataSpace()))
+            throw new GeneralException("storing of AIP with id " + aip.getSip().getStorageId() + " has failed, the AIP has been rolled back");
+    }
+
+    /**
+     * Writes the SIP to its tmp file and validates its checksum.
+     */
+    @FunctionalInterface
+    private interface SipSpooler {
+        void spool(Path tmpSipPath) throws IOException;
+    }
+
+    /**
+     * Reads XML of the AIP to memory and validates its checksum.
+     *
+     * @return content of the XML, also set as the new input stream of the XML
+     */
+    private byte[] readAipXml(AipDto aip) throws IOException {
+        try (BufferedInputStream ios = new BufferedInputStream(aip.getXml().getInputStream())) {
+            byte[] xmlContent = readStreamAndValidateChecksum(ios, aip.getXml().getChecksum());
+            log.info("Checksum of XML of AIP with id " + aip.getSip().getStorageId() + " has been validated.");
+            aip.getXml().setInputStream(new ByteArrayInputStream(xmlContent));
+            return xmlContent;
+        }
+    }
+
     /**
      * Stores ARCLib AIP XML into Archival Storage.
      * <p>
@@ -230,8 +371,7 @@ public class ArchivalService {
         try {
             reachableAdapters = storageProvider.createAdaptersForWriteOperation();
             try (BufferedInputStream ios = new BufferedInputStream(xml)) {
-                bytes = inputStreamToBytes(ios);
-                validateChecksum(checksum, new ByteArrayInputStream(bytes));
+                bytes = readStreamAndValidateChecksum(ios, checksum);
                 log.info("Checksum of XML in version " + version + " of AIP with id " + sipId + " has been validated.");
                 xml = new ByteArrayInputStream(bytes);
             }
@@ -271,8 +411,7 @@ public class ArchivalService {
         try {
             reachableAdapters = storageProvider.createAdaptersForWriteOperation();
             try (BufferedInputStream ios = new BufferedInputStream(xml)) {
-                bytes = inputStreamToBytes(ios);
-                validateChecksum(checksum, new ByteArrayInputStream(bytes));
+                bytes = readStreamAndValidateChecksum(ios, checksum);
                 log.info("Checksum of XML in version " + version + " of AIP with id " + sipId + " has been validated.");
                 xml = new ByteArrayInputStream(bytes);
             }
@@ -457,6 +596,7 @@ public class ArchivalService {
      * Retrieves object if the object is in the allowed state or throws corresponding exception.
      *
      * @param objectDto dto with the object to retrieve
+     * @param streaming if <code>true</code> stream of the storage is returned and verified while it is read
      * @return retrieved object
      * @throws FailedStateException
      * @throws RollbackStateException
@@ -465,11 +605,109 @@ public class ArchivalService {
      * @throws NoLogicalStorageReachableException
      * @throws NoLogicalStorageAttachedException
      */
-    public ObjectRetrievalResource getObject(ArchivalObjectDto objectDto) throws
+    public ObjectRetrievalResource getObject(ArchivalObjectDto objectDto, boolean streaming) throws
             FailedStateException, RollbackStateException, StillProcessingStateException,
             ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
         log.info("Retrieving object with storage id " + objectDto.getStorageId() + ".");
 
+        checkRetrievable(objectDto);
+        ObjectRetrievalResource objectRef;
+        try {
+            objectRef = streaming ? retrieveObject(objectDto, true) : coalescedRetrieveObject(objectDto);
+        } catch (ObjectCouldNotBeRetrievedException e) {
+            log.error("Storage error has occurred during retrieval process of object " + objectDto.getStorageId());
+            throw e;
+        }
+        log.info("object " + objectDto.getStorageId() + " has been successfully retrieved.");
+        return objectRef;
+    }
+
+    /**
+     * Retrieves a byte range of the object, only the range is transferred from the storage.
+     * <p>
+     * Checksum of a range can not be verified, so the range is served only from a storage whose copy of the object was
+     * read whole and verified, see {@link VerifiedCopyCache}. Storages with such copy are preferred, if there is none,
+     * the copy of the first storage is verified before its range is read. Storages with corrupted copies are skipped
+     * and the copies are queued for repair.
+     * </p>
+     *
+     * @param objectDto dto with the object to retrieve
+     * @param range     requested range
+     * @return range of the object together with the size of the whole object
+     * @throws RangeNotSatisfiableException       if the range starts beyond the end of the object
+     * @throws ObjectCouldNotBeRetrievedException if there is no valid copy at the reachable storages
+     * @throws FailedStateException
+     * @throws RollbackStateException
+     * @throws StillProcessingStateException
+     * @throws NoLogicalStorageReachableException
+     * @throws NoLogicalStorageAttachedException
+     */
+    public ObjectRangeRetrievalResource getObjectRange(ArchivalObjectDto objectDto, HttpRange range) throws
+            FailedStateException, RollbackStateException, StillProcessingStateException, RangeNotSatisfiableException,
+            ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
+        log.info("Retrieving range " + range + " of object with storage id " + objectDto.getStorageId() + ".");
+
+        checkRetrievable(objectDto);
+        List<StorageService> storageServices = storageProvider.getReachableStorageServicesByPriorities();
+        storageServices.sort(Comparator.comparing(service -> verifiedCopyCache.getSize(objectDto, service.getStorage()) == null));
+        for (StorageService storageService : storageServices) {
+            String storageName = storageService.getStorage().getName();
+            try {
+                Long objectSize = verifiedCopyCache.getSize(objectDto, storageService.getStorage());
+                if (objectSize == null)
+                    objectSize = verifyCopy(objectDto, storageService);
+                if (objectSize == null)
+                    continue;
+                long start = range.getRangeStart(objectSize);
+                if (start >= objectSize)
+                    throw new RangeNotSatisfiableException(objectDto.getStorageId(), objectSize);
+                long length = range.getRangeEnd(objectSize) - start + 1;
+                ObjectRangeRetrievalResource objectRange = storageService.getObjectRange(objectDto.getStorageId(),
+                        objectDto.getOwner().getDataSpace(), start, length);
+                log.info("Range " + range + " of object " + objectDto.getStorageId() + " has been retrieved from storage " + storageName + ".");
+                return objectRange;
+            } catch (StorageException | GeneralException e) {
+                readStatistics.recordError(storageService.getStorage());
+                log.error("Storage error has occurred during retrieval of range of object " + objectDto.getStorageId() +
+                        " from storage " + storageName + ".", e);
+            }
+        }
+        log.error("Cannot retrieve range of object " + objectDto.getStorageId() + " from neither of the storages.");
+        throw new ObjectCouldNotBeRetrievedException(objectDto);
+    }
+
+    /**
+     * Reads the whole copy of the object at the storage and verifies its checksum. Valid copy is added to
+     * {@link VerifiedCopyCache}, corrupted one is queued for repair.
+     *
+     * @param objectDto      dto with the object to verify
+     * @param storageService storage of the copy
+     * @return size of the copy if it is valid, null if it is corrupted
+     * @throws StorageException if the copy could not be retrieved
+     */
+    private Long verifyCopy(ArchivalObjectDto objectDto, StorageService storageService) throws StorageException {
+        log.info("Verifying copy of object " + objectDto.getStorageId() + " at storage " + storageService.getStorage().getName() + ".");
+        ObjectRetrievalResource copy = storageService.getObject(objectDto.getStorageId(), objectDto.getOwner().getDataSpace());
+        try {
+            CountingInputStream copyStream = new CountingInputStream(copy.getInputStream());
+            Checksum checksum = computeChecksum(copyStream, objectDto.getChecksum().getType());
+            if (!objectDto.getChecksum().equals(checksum)) {
+                readStatistics.recordError(storageService.getStorage());
+                log.error("Checksum of object " + objectDto.getStorageId() + " is invalid at storage " +
+                        storageService.getStorage().getName() + ". Expected checksum: " + objectDto.getChecksum() +
+                        " computed checksum: " + checksum + ". The object has been queued for repair.");
+                repairQueue.enqueue(objectDto, storageService.getStorage());
+                return null;
+            }
+            verifiedCopyCache.put(objectDto, storageService.getStorage(), copyStream.getByteCount());
+            return copyStream.getByteCount();
+        } finally {
+            copy.close();
+        }
+    }
+
+    private void checkRetrievable(ArchivalObjectDto objectDto) throws RollbackStateException, FailedStateException,
+            StillProcessingStateException {
         switch (objectDto.getState()) {
             case ROLLED_BACK:
                 throw new RollbackStateException(objectDto);
@@ -479,15 +717,6 @@ public class ArchivalService {
             case PRE_PROCESSING:
                 throw new StillProcessingStateException(objectDto);
         }
-        ObjectRetrievalResource objectRef;
-        try {
-            objectRef = retrieveObject(objectDto);
-        } catch (ObjectCouldNotBeRetrievedException e) {
-            log.error("Storage error has occurred during retrieval process of object " + objectDto.getStorageId());
-            throw e;
-        }
-        log.info("object " + objectDto.getStorageId() + " has been successfully retrieved.");
-        return objectRef;
     }
 
     /**
@@ -497,23 +726,41 @@ public class ArchivalService {
      * {@link StorageException}, or checksum does not match, {@link #recoverAipFromOtherStorages(AipSip, List, List, AipRetrievalResult)}
      * is called to scan through all storages until it finds the right one or throws {@link ObjectCouldNotBeRetrievedException} which
      * is propagated.
+     * <p>
+     * Archived AIPs whose SIP and XMLs are all found in {@link DiskCache} are returned without contacting any storage,
+     * files of retrieved archived AIPs are added to the cache once they are verified.
+     * </p>
      *
      * @param sipEntity sip from main request
      * @param xmls      xmls from main request
+     * @param streaming whether the AIP is streamed from the storage, see {@link #streamAipFromStorage(AipSip, List, List)}
      * @return valid AIP
      * @throws ObjectCouldNotBeRetrievedException if AIP is corrupted at the given storages
      */
-    private AipRetrievalResource retrieveAip(AipSip sipEntity, List<AipXml> xmls)
+    private AipRetrievalResource retrieveAip(AipSip sipEntity, List<AipXml> xmls, boolean streaming)
             throws ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
         log.info("Retrieving AIP with id " + sipEntity.getId() + ".");
 
+        boolean cacheable = sipEntity.getState() == ObjectState.ARCHIVED &&
+                xmls.stream().allMatch(xml -> xml.getState() == ObjectState.ARCHIVED);
+        if (cacheable) {
+            AipRetrievalResource cached = getAipFromDiskCache(sipEntity, xmls);
+            if (cached != null) {
+                log.info("AIP: " + sipEntity.getId() + " has been retrieved from disk cache.");
+                return cached;
+            }
+        }
         List<StorageService> storageServicesByPriorities = storageProvider.getReachableStorageServicesByPriorities();
 
         AipRetrievalResource aip;
         try {
-            AipRetrievalResult result = retrieveAipFromStorage(sipEntity, xmls, storageServicesByPriorities.get(0));
-            aip = !result.invalidChecksumFound ? result.getAipFromStorage() :
-                    recoverAipFromOtherStorages(sipEntity, xmls, storageServicesByPriorities, result);
+            if (streaming)
+                aip = streamAipFromStorage(sipEntity, xmls, storageServicesByPriorities);
+            else {
+                AipRetrievalResult result = retrieveAipFromStorage(sipEntity, xmls, storageServicesByPriorities.get(0));
+                aip = !result.invalidChecksumFound ? result.getAipFromStorage() :
+                        recoverAipFromOtherStorages(sipEntity, xmls, storageServicesByPriorities, result);
+            }
         } catch (ObjectCouldNotBeRetrievedException e) {
             log.error("Cannot retrieve AIP " + sipEntity.getId() + " from neither of the storages because the checksums do not match.");
             throw e;
@@ -522,43 +769,248 @@ public class ArchivalService {
             aip = recoverAipFromOtherStorages(sipEntity, xmls, storageServicesByPriorities, null);
         }
         log.info("AIP: " + sipEntity.getId() + " has been successfully retrieved.");
+        if (cacheable)
+            addAipToDiskCache(sipEntity, xmls, aip, streaming);
+        return aip;
+    }
+
+    /**
+     * @return AIP read from {@link DiskCache}, null if the SIP or some of the XMLs is not cached
+     */
+    private AipRetrievalResource getAipFromDiskCache(AipSip sipEntity, List<AipXml> xmls) {
+        InputStream sip = diskCache.get(sipEntity.getId(), sipEntity.getChecksum());
+        if (sip == null)
+            return null;
+        AipRetrievalResource aip = new AipRetrievalResource(null);
+        aip.setSip(sip);
+        for (AipXml xmlEntity : xmls) {
+            InputStream xml = diskCache.get(xmlEntity.getId(), xmlEntity.getChecksum());
+            if (xml == null) {
+                aip.close();
+                return null;
+            }
+            aip.addXml(xmlEntity.getVersion(), xml);
+        }
+        return aip;
+    }
+
+    /**
+     * Adds the retrieved AIP to {@link DiskCache}. Files copied to the tmp folder are already verified and are added
+     * right away, streams of the storage are added once they are read and match their checksums.
+     */
+    private void addAipToDiskCache(AipSip sipEntity, List<AipXml> xmls, AipRetrievalResource aip, boolean streaming) {
+        if (streaming) {
+            aip.setSip(diskCache.cacheWhileReading(sipEntity.getId(), aip.getSip(), sipEntity.getChecksum()));
+            for (AipXml xmlEntity : xmls) {
+                InputStream xml = aip.getXmls().get(xmlEntity.getVersion());
+                aip.addXml(xmlEntity.getVersion(), diskCache.cacheWhileReading(xmlEntity.getId(), xml, xmlEntity.getChecksum()));
+            }
+            return;
+        }
+        addFileToDiskCache(sipEntity.getId(), sipEntity.getChecksum(), tmpFolder.resolve(aip.getId()));
+        for (AipXml xmlEntity : xmls) {
+            addFileToDiskCache(xmlEntity.getId(), xmlEntity.getChecksum(), tmpFolder.resolve(toXmlId(aip.getId(), xmlEntity.getVersion())));
+        }
+    }
+
+    private void addFileToDiskCache(String databaseId, Checksum checksum, Path verifiedTmpFile) {
+        if (Files.isRegularFile(verifiedTmpFile))
+            diskCache.put(databaseId, checksum, verifiedTmpFile);
+    }
+
+    /**
+     * Retrieves AIP and verifies it in the tmp folder, or waits for the same retrieval of a concurrent request and
+     * reads its verified tmp files, see {@link RetrievalCoalescer}.
+     *
+     * @param sipEntity sip from main request
+     * @param xmls      xmls from main request
+     * @return valid AIP
+     * @throws ObjectCouldNotBeRetrievedException if AIP is corrupted at the given storages
+     */
+    private AipRetrievalResource coalescedRetrieveAip(AipSip sipEntity, List<AipXml> xmls)
+            throws ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
+        List<Integer> versions = xmls.stream().map(AipXml::getVersion).sorted().collect(Collectors.toList());
+        RetrievalCoalescer.Participant participant = retrievalCoalescer.join("aip:" + sipEntity.getId() + ":" + versions);
+        if (participant.isLeader()) {
+            AipRetrievalResource aip;
+            try {
+                aip = retrieveAip(sipEntity, xmls, false);
+            } catch (Throwable e) {
+                participant.fail(e);
+                throw e;
+            }
+            Map<String, Path> tmpFiles = new LinkedHashMap<>();
+            tmpFiles.put(SHARED_SIP, tmpFolder.resolve(aip.getId()));
+            for (Integer version : aip.getXmls().keySet()) {
+                tmpFiles.put(version.toString(), tmpFolder.resolve(toXmlId(aip.getId(), version)));
+            }
+            participant.complete(tmpFiles);
+            Map<String, InputStream> shared = awaitRetrieval(participant);
+            if (shared != null) {
+                IOUtils.closeQuietly(aip.getSip());
+                aip.setSip(shared.get(SHARED_SIP));
+                for (Integer version : aip.getXmls().keySet()) {
+                    IOUtils.closeQuietly(aip.getXmls().get(version));
+                    aip.addXml(version, shared.get(version.toString()));
+                }
+            }
+            return aip;
+        }
+        Map<String, InputStream> shared = awaitRetrieval(participant);
+        if (shared == null)
+            return retrieveAip(sipEntity, xmls, false);
+        log.info("AIP: " + sipEntity.getId() + " has been retrieved by concurrent request.");
+        AipRetrievalResource aip = new AipRetrievalResource(null);
+        aip.setSip(shared.get(SHARED_SIP));
+        for (Integer version : versions) {
+            aip.addXml(version, shared.get(version.toString()));
+        }
         return aip;
     }
 
+    /**
+     * Retrieves object and verifies it in the tmp folder, or waits for the same retrieval of a concurrent request and
+     * reads its verified tmp file, see {@link RetrievalCoalescer}.
+     *
+     * @param objectDto object from main request
+     * @return {@link ObjectRetrievalResource} with valid object's input stream
+     * @throws ObjectCouldNotBeRetrievedException if object is corrupted at the given storages
+     */
+    private ObjectRetrievalResource coalescedRetrieveObject(ArchivalObjectDto objectDto)
+            throws ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
+        RetrievalCoalescer.Participant participant = retrievalCoalescer.join("object:" + objectDto.getDatabaseId());
+        if (participant.isLeader()) {
+            ObjectRetrievalResource objectRef;
+            try {
+                objectRef = retrieveObject(objectDto, false);
+            } catch (Throwable e) {
+                participant.fail(e);
+                throw e;
+            }
+            participant.complete(Collections.singletonMap(SHARED_OBJECT, tmpFolder.resolve(objectRef.getId())));
+            Map<String, InputStream> shared = awaitRetrieval(participant);
+            if (shared != null) {
+                IOUtils.closeQuietly(objectRef.getInputStream());
+                objectRef.setInputStream(shared.get(SHARED_OBJECT));
+            }
+            return objectRef;
+        }
+        Map<String, InputStream> shared = awaitRetrieval(participant);
+        if (shared == null)
+            return retrieveObject(objectDto, false);
+        log.info("object: " + objectDto.getStorageId() + " has been retrieved by concurrent request.");
+        return new ObjectRetrievalResource(shared.get(SHARED_OBJECT), null);
+    }
+
+    /**
+     * @return streams of the shared files, null if there is nothing shared
+     * @throws ObjectCouldNotBeRetrievedException the exception of the leader of the retrieval
+     */
+    private Map<String, InputStream> awaitRetrieval(RetrievalCoalescer.Participant participant)
+            throws ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
+        try {
+            return participant.await();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ObjectCouldNotBeRetrievedException)
+                throw (ObjectCouldNotBeRetrievedException) cause;
+            if (cause instanceof NoLogicalStorageReachableException)
+                throw (NoLogicalStorageReachableException) cause;
+            if (cause instanceof NoLogicalStorageAttachedException)
+                throw (NoLogicalStorageAttachedException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new GeneralException(cause);
+        }
+    }
+
     /**
      * Retrieves object.
      * <p>
      * Storage is chosen randomly from those with highest priority. If the chose storage throws
-     * {@link StorageException}, or checksum does not match, {@link #recoverObjectFromOtherStorages(ArchivalObjectDto, List, boolean)}
+     * {@link StorageException}, or checksum does not match, {@link #recoverObjectFromOtherStorages(ArchivalObjectDto, List, boolean, ObjectReadAttempt)}
      * is called to scan through all storages until it finds the right one or throws {@link ObjectCouldNotBeRetrievedException} which
      * is propagated.
+     * <p>
+     * Archived objects found in {@link ObjectCache} or {@link DiskCache} are returned without contacting any storage.
+     * Small objects which were copied to the tmp folder and verified are added to the object cache, retrieved archived
+     * objects are added to the disk cache once they are verified.
+     * </p>
      *
      * @param archivalObject object from main request
+     * @param streaming      whether the object is streamed from the storage, see {@link #streamObjectFromStorage(ArchivalObjectDto, List)}
      * @return {@link ObjectRetrievalResource} with valid object's input stream
      * @throws ObjectCouldNotBeRetrievedException if object is corrupted at the given storages
      */
-    private ObjectRetrievalResource retrieveObject(ArchivalObjectDto archivalObject)
+    private ObjectRetrievalResource retrieveObject(ArchivalObjectDto archivalObject, boolean streaming)
             throws ObjectCouldNotBeRetrievedException, NoLogicalStorageReachableException, NoLogicalStorageAttachedException {
         log.info("Retrieving archival object with storage id " + archivalObject.getStorageId() + ".");
 
+        boolean cacheable = archivalObject.getState() == ObjectState.ARCHIVED;
+        if (cacheable) {
+            byte[] cached = objectCache.get(archivalObject.getDatabaseId(), archivalObject.getChecksum());
+            if (cached != null) {
+                log.info("object: " + archivalObject.getStorageId() + " has been retrieved from object cache.");
+                ObjectRetrievalResource objectRef = new ObjectRetrievalResource(new ByteArrayInputStream(cached), null);
+                objectRef.setSize((long) cached.length);
+                return objectRef;
+            }
+            InputStream diskCached = diskCache.get(archivalObject.getDatabaseId(), archivalObject.getChecksum());
+            if (diskCached != null) {
+                log.info("object: " + archivalObject.getStorageId() + " has been retrieved from disk cache.");
+                return new ObjectRetrievalResource(diskCached, null);
+            }
+        }
         List<StorageService> storageServicesByPriorities = storageProvider.getReachableStorageServicesByPriorities();
+        AtomicReference<ObjectReadAttempt> failedHedge = new AtomicReference<>();
         ObjectRetrievalResource objectRef;
         try {
-            objectRef = retrieveObjectFromStorage(archivalObject, storageServicesByPriorities.get(0));
+            objectRef = streaming ? streamObjectFromStorage(archivalObject, storageServicesByPriorities) :
+                    hedgedRetrieveObject(archivalObject, storageServicesByPriorities, failedHedge);
             if (objectRef == null) {
-                objectRef = recoverObjectFromOtherStorages(archivalObject, storageServicesByPriorities, true);
+                objectRef = recoverObjectFromOtherStorages(archivalObject, storageServicesByPriorities, true, failedHedge.get());
             }
         } catch (ObjectCouldNotBeRetrievedException e) {
             log.error("Cannot retrieve object " + archivalObject.getStorageId() + " form neither of the storages.");
             throw e;
         } catch (StorageException e) {
             log.error("Storage error has occurred during retrieval process of object: " + archivalObject.getStorageId());
-            objectRef = recoverObjectFromOtherStorages(archivalObject, storageServicesByPriorities, false);
+            objectRef = recoverObjectFromOtherStorages(archivalObject, storageServicesByPriorities, false, failedHedge.get());
         }
         log.info("object: " + archivalObject.getStorageId() + " has been successfully retrieved.");
+        File tmpFile = tmpFolder.resolve(objectRef.getId()).toFile();
+        if (!streaming && tmpFile.isFile())
+            objectRef.setSize(tmpFile.length());
+        if (cacheable) {
+            cacheObject(archivalObject, objectRef);
+            if (streaming)
+                objectRef.setInputStream(diskCache.cacheWhileReading(archivalObject.getDatabaseId(), objectRef.getInputStream(), archivalObject.getChecksum()));
+            else
+                addFileToDiskCache(archivalObject.getDatabaseId(), archivalObject.getChecksum(), tmpFile.toPath());
+        }
         return objectRef;
     }
 
+    /**
+     * Adds the object to {@link ObjectCache} if it was copied to the tmp folder, i.e. it was already verified, and it
+     * is small enough. Objects which are streamed from the storage are not cached as they are verified only once read.
+     *
+     * @param objectDto DTO of the retrieved object
+     * @param objectRef retrieved object
+     */
+    private void cacheObject(ArchivalObjectDto objectDto, ObjectRetrievalResource objectRef) {
+        File tmpFile = tmpFolder.resolve(objectRef.getId()).toFile();
+        if (!tmpFile.isFile() || !objectCache.accepts(tmpFile.length()))
+            return;
+        try {
+            objectCache.put(objectDto.getDatabaseId(), objectDto.getChecksum(), Files.readAllBytes(tmpFile.toPath()));
+        } catch (IOException e) {
+            log.warn("Object " + objectDto.getStorageId() + " could not be added to object cache.", e);
+        }
+    }
+
     /**
      * Retrieves references to AIP files from storage together with information whether or not are SIP and XMLs valid
      * i.e. their checksum match expected values. Currently SIP is stored to local temp folder and XMLs into main memory.
@@ -575,26 +1027,90 @@ public class ArchivalService {
         String storageName = storageService.getStorage().getName();
         log.info("Storage: " + storageName + " chosen to retrieve AIP: " + sipEntity.getId());
 
-        AipRetrievalResource aipFromStorage = storageService.getAip(sipEntity.getId(), sipEntity.getOwner().getDataSpace(), xmls.stream()
-                .map(AipXml::getVersion)
-                .collect(Collectors.toList())
-                .toArray(new Integer[xmls.size()]));
+        long start = System.nanoTime();
+        AipRetrievalResource aipFromStorage;
+        try {
+            aipFromStorage = storageService.getAip(sipEntity.getId(), sipEntity.getOwner().getDataSpace(), xmls.stream()
+                    .map(AipXml::getVersion)
+                    .collect(Collectors.toList())
+                    .toArray(new Integer[xmls.size()]));
+        } catch (StorageException e) {
+            readStatistics.recordError(storageService.getStorage());
+            throw e;
+        }
+        long opened = System.nanoTime();
         String tmpSipFileId = aipFromStorage.getId();
         File tmpSipFile = tmpFolder.resolve(tmpSipFileId).toFile();
 
         AipRetrievalResult result = new AipRetrievalResult(aipFromStorage, storageService);
+        try {
+            copyAipToTmpFolderAndVerifyChecksums(sipEntity, xmls, storageService, result);
+        } catch (RuntimeException e) {
+            readStatistics.recordError(storageService.getStorage());
+            throw e;
+        }
+        if (result.isInvalidChecksumFound())
+            readStatistics.recordError(storageService.getStorage());
+        else {
+            long bytes = tmpSipFile.length();
+            for (AipXml xmlEntity : xmls) {
+                bytes += tmpFolder.resolve(toXmlId(aipFromStorage.getId(), xmlEntity.getVersion())).toFile().length();
+            }
+            readStatistics.recordRead(storageService.getStorage(), opened - start, bytes, System.nanoTime() - opened);
+        }
+        return result;
+    }
 
-        boolean sipValid = copyObjectToTmpFolderAndVerifyChecksum(aipFromStorage.getSip(), sipEntity.getChecksum(),
-                tmpSipFile, tmpSipFileId, storageName);
-        if (!sipValid) {
+    /**
+     * Copies AIP files retrieved from the storage to the tmp folder and verifies their checksums. SIP and XMLs are
+     * transferred concurrently by {@link #retrievalExecutor}. Verified files are reassigned to the retrieved AIP,
+     * corrupted ones are recorded in the result.
+     *
+     * @param sipEntity      sip from main request
+     * @param xmls           xmls from main request
+     * @param storageService service used for retrieval
+     * @param result         result with the retrieved AIP
+     */
+    private void copyAipToTmpFolderAndVerifyChecksums(AipSip sipEntity, List<AipXml> xmls, StorageService storageService,
+                                                      AipRetrievalResult result) {
+        String storageName = storageService.getStorage().getName();
+        AipRetrievalResource aipFromStorage = result.getAipFromStorage();
+        String tmpSipFileId = aipFromStorage.getId();
+        File tmpSipFile = tmpFolder.resolve(tmpSipFileId).toFile();
+
+        InputStream sipStream = aipFromStorage.getSip();
+        CompletableFuture<Boolean> sipCopy = CompletableFuture.supplyAsync(() -> copyObjectToTmpFolderAndVerifyChecksum(
+                sipStream, sipEntity.getChecksum(), tmpSipFile, tmpSipFileId, storageName), retrievalExecutor);
+        Map<AipXml, CompletableFuture<Boolean>> xmlCopies = new LinkedHashMap<>();
+        for (AipXml xmlEntity : xmls) {
+            String tmpXmlFileId = toXmlId(aipFromStorage.getId(), xmlEntity.getVersion());
+            File tmpXmlFile = tmpFolder.resolve(tmpXmlFileId).toFile();
+            InputStream xmlStream = aipFromStorage.getXmls().get(xmlEntity.getVersion());
+            xmlCopies.put(xmlEntity, CompletableFuture.supplyAsync(() -> copyObjectToTmpFolderAndVerifyChecksum(
+                    xmlStream, xmlEntity.getChecksum(), tmpXmlFile, tmpXmlFileId, storageName), retrievalExecutor));
+        }
+        List<CompletableFuture<Boolean>> copies = new ArrayList<>(xmlCopies.values());
+        copies.add(sipCopy);
+        try {
+            //waits for all the copies even if some has failed so that no copy writes to the tmp folder afterwards
+            CompletableFuture.allOf(copies.toArray(new CompletableFuture[copies.size()])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new GeneralException(e.getCause());
+        }
+
+        if (!sipCopy.join()) {
             log.info("Invalid checksum of SIP with id " + sipEntity.getId() + " at storage " + storageService.getStorage().getName() + ".");
             result.setInvalidChecksumSip(sipEntity);
+            verifiedCopyCache.invalidate(sipEntity.toDto(), storageService.getStorage());
             result.setInvalidChecksumFound(true);
         }
         //reassigning the dto with the input stream
         else {
             log.info("Validated checksum of SIP with id " + sipEntity.getId() + " retrieved from storage " +
                     storageService.getStorage().getName() + ".");
+            verifiedCopyCache.put(sipEntity.toDto(), storageService.getStorage(), tmpSipFile.length());
             try {
                 aipFromStorage.setSip(new FileInputStream(tmpSipFile));
             } catch (FileNotFoundException e) {
@@ -602,34 +1118,31 @@ public class ArchivalService {
             }
         }
 
-        //copy xmls to tmp folders and verify checksum
         for (AipXml xmlEntity : xmls) {
             String tmpXmlFileId = toXmlId(aipFromStorage.getId(), xmlEntity.getVersion());
-            File tmpXmlFile = tmpFolder.resolve(tmpXmlFileId).toFile();
-            boolean xmlValid = copyObjectToTmpFolderAndVerifyChecksum(aipFromStorage.getXmls().get(xmlEntity.getVersion()),
-                    xmlEntity.getChecksum(), tmpXmlFile, tmpXmlFileId, storageName);
-
-            if (!xmlValid) {
+            if (!xmlCopies.get(xmlEntity).join()) {
                 result.addInvalidChecksumXml(xmlEntity);
+                verifiedCopyCache.invalidate(xmlEntity.toDto(), storageService.getStorage());
                 result.setInvalidChecksumFound(true);
             }
             //reassigning the dto with the input stream
             else {
                 log.info("Validated checksum of XML with id " + xmlEntity.getId() + " of AIP with id " + sipEntity.getId() +
                         " retrieved from storage " + storageService.getStorage().getName() + ".");
+                verifiedCopyCache.put(xmlEntity.toDto(), storageService.getStorage(), tmpFolder.resolve(tmpXmlFileId).toFile().length());
                 try {
-                    aipFromStorage.getXmls().put(xmlEntity.getVersion(), new FileInputStream(tmpXmlFile));
+                    aipFromStorage.getXmls().put(xmlEntity.getVersion(), new FileInputStream(tmpFolder.resolve(tmpXmlFileId).toFile()));
                 } catch (FileNotFoundException e) {
                     throw new UncheckedIOException("could not find tmp file " + tmpXmlFileId, e);
                 }
             }
         }
-        return result;
     }
 
     /**
      * Retrieves single object from storage. Returns <code>null</code> if the object has been corrupted, i.e. its checksum does not match expected value.
-     * The retrieved object is stored in temporary file. Connection used for retrieval is closed.
+     * The retrieved object is stored in temporary file. Connection used for retrieval is closed as soon as the object is
+     * copied to the temporary file, also if the copy fails or the object is corrupted.
      *
      * @param objectDto      DTO with the object to retrieve
      * @param storageService storage services to retrieve he object from
@@ -638,15 +1151,54 @@ public class ArchivalService {
      */
     private ObjectRetrievalResource retrieveObjectFromStorage(ArchivalObjectDto objectDto, StorageService storageService)
             throws StorageException {
+        return retrieveObjectFromStorage(objectDto, storageService, null);
+    }
+
+    /**
+     * Same as {@link #retrieveObjectFromStorage(ArchivalObjectDto, StorageService)} but the read is tracked by the
+     * attempt, so that its progress can be watched and the read can be cancelled. Tmp file of a failed read is deleted.
+     *
+     * @param attempt attempt tracking the read, or null
+     */
+    private ObjectRetrievalResource retrieveObjectFromStorage(ArchivalObjectDto objectDto, StorageService storageService,
+                                                              ObjectReadAttempt attempt)
+            throws StorageException {
         String storageName = storageService.getStorage().getName();
         log.info("Storage: " + storageName + " chosen to retrieve object: " + objectDto.getStorageId());
 
-        ObjectRetrievalResource objectFromStorage = storageService.getObject(objectDto.getStorageId(), objectDto.getOwner().getDataSpace());
+        long start = System.nanoTime();
+        ObjectRetrievalResource objectFromStorage;
+        try {
+            objectFromStorage = storageService.getObject(objectDto.getStorageId(), objectDto.getOwner().getDataSpace());
+        } catch (StorageException e) {
+            readStatistics.recordError(storageService.getStorage());
+            throw e;
+        }
+        long opened = System.nanoTime();
         String tmpFileId = objectFromStorage.getId();
         File tmpFile = tmpFolder.resolve(tmpFileId).toFile();
-        boolean valid = copyObjectToTmpFolderAndVerifyChecksum(objectFromStorage.getInputStream(), objectDto.getChecksum(), tmpFile, tmpFileId, storageName);
-        if (!valid)
+        boolean valid;
+        InputStream objectIs = attempt == null ? objectFromStorage.getInputStream() : attempt.track(objectFromStorage.getInputStream());
+        try {
+            valid = copyObjectToTmpFolderAndVerifyChecksum(objectIs, objectDto.getChecksum(), tmpFile, tmpFileId, storageName);
+        } catch (RuntimeException e) {
+            tmpFile.delete();
+            if (attempt != null && attempt.isCancelled())
+                log.info("Read of object " + objectDto.getStorageId() + " from storage " + storageName + " has been cancelled.");
+            else
+                readStatistics.recordError(storageService.getStorage());
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(objectIs);
+            objectFromStorage.closeWithoutDelay();
+        }
+        if (!valid) {
+            readStatistics.recordError(storageService.getStorage());
+            verifiedCopyCache.invalidate(objectDto, storageService.getStorage());
             return null;
+        }
+        readStatistics.recordRead(storageService.getStorage(), opened - start, tmpFile.length(), System.nanoTime() - opened);
+        verifiedCopyCache.put(objectDto, storageService.getStorage(), tmpFile.length());
         try {
             log.info("Validated checksum of object with storage id " + objectDto.getStorageId() +
                     " retrieved from storage " + storageService.getStorage().getName() + ".");
@@ -658,9 +1210,185 @@ public class ArchivalService {
     }
 
     /**
-     * This method is called when the very first attempt to return AIP fails. It scans through all storages until it finds
-     * valid AIP. Then it tries to recover all AIPs on storages where the AIP was corrupted. If the recovery fails it is logged
-     * and the method continues.
+     * Retrieves object from the first storage. If hedged reads are enabled and the first storage has not sent any data
+     * or is slower than the minimal throughput after the hedged read delay, the object is read also from the second
+     * storage. The read which is verified first is returned and the other one is cancelled, its tmp file is deleted.
+     * <p>
+     * If both reads fail, the result of the read from the first storage is returned or thrown and the hedged read is
+     * passed to the caller, so that the recovery does not read the object from the second storage again. If one read
+     * wins, the object is queued for repair at the storage of the other read if that read has found it corrupted, even
+     * if it finds so only after the win.
+     * </p>
+     *
+     * @param objectDto       DTO with the object to retrieve
+     * @param storageServices storage services sorted by priorities
+     * @param failedHedge     set to the hedged read if it has been started and has failed as well as the first read
+     * @return DTO with object stream if object was found and is valid, null if object checksum does not match expected value
+     * @throws StorageException if an error occurred during object retrieval
+     */
+    private ObjectRetrievalResource hedgedRetrieveObject(ArchivalObjectDto objectDto, List<StorageService> storageServices,
+                                                         AtomicReference<ObjectReadAttempt> failedHedge)
+            throws StorageException {
+        if (hedgedReadDelay <= 0 || storageServices.size() < 2)
+            return retrieveObjectFromStorage(objectDto, storageServices.get(0));
+        AtomicReference<ObjectReadAttempt> winner = new AtomicReference<>();
+        CompletionService<ObjectRetrievalResource> completionService = new ExecutorCompletionService<>(hedgedReadExecutor);
+        ObjectReadAttempt first = new ObjectReadAttempt(objectDto, storageServices.get(0), winner);
+        ObjectReadAttempt hedge = null;
+        Future<ObjectRetrievalResource> firstFuture = completionService.submit(first);
+        try {
+            Future<ObjectRetrievalResource> done = completionService.poll(hedgedReadDelay, TimeUnit.MILLISECONDS);
+            while (done == null && first.isProgressing(hedgedReadMinThroughput))
+                done = completionService.poll(hedgedReadDelay, TimeUnit.MILLISECONDS);
+            if (done != null)
+                return getAttemptResult(done);
+
+            hedge = new ObjectReadAttempt(objectDto, storageServices.get(1), winner);
+            log.info("Read of object " + objectDto.getStorageId() + " from storage " + first.getStorageName() +
+                    " is slow, hedging it by read from storage " + hedge.getStorageName() + ".");
+            completionService.submit(hedge);
+            StorageException firstException = null;
+            RuntimeException firstRuntimeException = null;
+            for (int i = 0; i < 2; i++) {
+                done = completionService.take();
+                ObjectRetrievalResource result = null;
+                try {
+                    result = getAttemptResult(done);
+                } catch (StorageException e) {
+                    if (done == firstFuture)
+                        firstException = e;
+                } catch (RuntimeException e) {
+                    if (done == firstFuture)
+                        firstRuntimeException = e;
+                }
+                if (result != null) {
+                    ObjectReadAttempt loser = done == firstFuture ? hedge : first;
+                    loser.cancel();
+                    loser.repairIfCorrupted();
+                    return result;
+                }
+            }
+            failedHedge.set(hedge);
+            if (firstException != null)
+                throw firstException;
+            if (firstRuntimeException != null)
+                throw firstRuntimeException;
+            return null;
+        } catch (InterruptedException e) {
+            first.cancel();
+            if (hedge != null)
+                hedge.cancel();
+            Thread.currentThread().interrupt();
+            throw new GeneralException("thread has been interrupted during retrieval of object " + objectDto.getStorageId(), e);
+        }
+    }
+
+    private ObjectRetrievalResource getAttemptResult(Future<ObjectRetrievalResource> future)
+            throws StorageException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException)
+                throw (StorageException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new GeneralException(e.getCause());
+        }
+    }
+
+    /**
+     * Retrieves AIP from the first storage without copying it to the tmp folder. Streams of the storage are returned,
+     * wrapped so that their checksums are computed while they are read and verified when their end is reached. If a
+     * checksum does not match, the stream throws {@link InvalidChecksumException} instead of reporting its end, so the
+     * response which is being written is aborted, and the AIP is recovered from other storages in background.
+     *
+     * @param sipEntity       sip from main request
+     * @param xmls            xmls from main request
+     * @param storageServices storage services sorted by priorities, the first one is used for retrieval
+     * @return AIP with verifying streams
+     * @throws StorageException if an error occurred during AIP retrieval
+     */
+    private AipRetrievalResource streamAipFromStorage(AipSip sipEntity, List<AipXml> xmls, List<StorageService> storageServices)
+            throws StorageException {
+        StorageService storageService = storageServices.get(0);
+        String storageName = storageService.getStorage().getName();
+        log.info("Storage: " + storageName + " chosen to stream AIP: " + sipEntity.getId());
+
+        long start = System.nanoTime();
+        AipRetrievalResource aipFromStorage;
+        try {
+            aipFromStorage = storageService.getAip(sipEntity.getId(), sipEntity.getOwner().getDataSpace(), xmls.stream()
+                    .map(AipXml::getVersion)
+                    .collect(Collectors.toList())
+                    .toArray(new Integer[xmls.size()]));
+        } catch (StorageException e) {
+            readStatistics.recordError(storageService.getStorage());
+            throw e;
+        }
+        readStatistics.recordLatency(storageService.getStorage(), System.nanoTime() - start);
+        aipFromStorage.setSip(new VerifyingInputStream(aipFromStorage.getSip(), sipEntity.getChecksum(), computedChecksum -> {
+            readStatistics.recordError(storageService.getStorage());
+            logInvalidStreamedChecksum(sipEntity.getId(), storageName, sipEntity.getChecksum(), computedChecksum);
+            verifiedCopyCache.invalidate(sipEntity.toDto(), storageService.getStorage());
+            repairQueue.enqueue(sipEntity.toDto(), storageService.getStorage());
+        }));
+        for (AipXml xmlEntity : xmls) {
+            InputStream xmlStream = aipFromStorage.getXmls().get(xmlEntity.getVersion());
+            aipFromStorage.addXml(xmlEntity.getVersion(), new VerifyingInputStream(xmlStream, xmlEntity.getChecksum(), computedChecksum -> {
+                readStatistics.recordError(storageService.getStorage());
+                logInvalidStreamedChecksum(xmlEntity.getId(), storageName, xmlEntity.getChecksum(), computedChecksum);
+                verifiedCopyCache.invalidate(xmlEntity.toDto(), storageService.getStorage());
+                repairQueue.enqueue(xmlEntity.toDto(), storageService.getStorage());
+            }));
+        }
+        return aipFromStorage;
+    }
+
+    /**
+     * Retrieves object from the first storage without copying it to the tmp folder, see
+     * {@link #streamAipFromStorage(AipSip, List, List)}.
+     *
+     * @param objectDto       DTO with the object to retrieve
+     * @param storageServices storage services sorted by priorities, the first one is used for retrieval
+     * @return DTO with verifying object stream
+     * @throws StorageException if an error occurred during object retrieval
+     */
+    private ObjectRetrievalResource streamObjectFromStorage(ArchivalObjectDto objectDto, List<StorageService> storageServices)
+            throws StorageException {
+        StorageService storageService = storageServices.get(0);
+        String storageName = storageService.getStorage().getName();
+        log.info("Storage: " + storageName + " chosen to stream object: " + objectDto.getStorageId());
+
+        long start = System.nanoTime();
+        ObjectRetrievalResource objectFromStorage;
+        try {
+            objectFromStorage = storageService.getObject(objectDto.getStorageId(), objectDto.getOwner().getDataSpace());
+        } catch (StorageException e) {
+            readStatistics.recordError(storageService.getStorage());
+            throw e;
+        }
+        readStatistics.recordLatency(storageService.getStorage(), System.nanoTime() - start);
+        objectFromStorage.setInputStream(new VerifyingInputStream(objectFromStorage.getInputStream(), objectDto.getChecksum(), computedChecksum -> {
+            readStatistics.recordError(storageService.getStorage());
+            logInvalidStreamedChecksum(objectDto.getStorageId(), storageName, objectDto.getChecksum(), computedChecksum);
+            verifiedCopyCache.invalidate(objectDto, storageService.getStorage());
+            repairQueue.enqueue(objectDto, storageService.getStorage());
+        }));
+        return objectFromStorage;
+    }
+
+    private void logInvalidStreamedChecksum(String objectLogId, String storageLogName, Checksum checksum, Checksum computedChecksum) {
+        log.error("Checksum for streamed object " + objectLogId + " is invalid at storage " + storageLogName +
+                ". Expected checksum: " + checksum + " computed checksum: " + computedChecksum +
+                ". Response has been aborted, the object has been queued for repair.");
+    }
+
+    /**
+     * This method is called when the very first attempt to return AIP fails. If the first storage has returned the AIP
+     * but some of its parts were corrupted, only those parts are retrieved from other storages, one by one, and the
+     * valid parts are kept. If the first storage has failed, the whole AIP is retrieved from the first of the other
+     * storages which returns it and its corrupted parts are retrieved the same way. Then it queues the corrupted parts
+     * for repair at storages where they were found corrupted, see {@link RepairQueue}.
      *
      * @param sipEntity                   sip from the main request
      * @param xmls                        xmls from the main request
@@ -670,86 +1398,111 @@ public class ArchivalService {
      * @return valid AIP
      * @throws ObjectCouldNotBeRetrievedException if no valid AIP was found
      */
-    //todo: possible optimization: if SIP is ok there is no need to pull whole AIP from the storage, only particular XML/XMLs
     private AipRetrievalResource recoverAipFromOtherStorages(AipSip sipEntity, List<AipXml> xmls,
                                                              List<StorageService> storageServices,
                                                              AipRetrievalResult latestInvalidChecksumResult)
             throws ObjectCouldNotBeRetrievedException {
         log.info("Recovering AIP: " + sipEntity.getId() + " from other storages.");
-        List<AipRetrievalResult> invalidChecksumResults = new ArrayList<>();
 
-        if (latestInvalidChecksumResult != null) {
-            tmpFolder.resolve(latestInvalidChecksumResult.getAipFromStorage().getId()).toFile().delete();
-            invalidChecksumResults.add(latestInvalidChecksumResult);
-        }
-
-        AipRetrievalResult result = null;
-        StorageService successfulService = null;
-        //iterate over all the storages to find an uncorrupted version of the AIP
-        for (int i = 1; i < storageServices.size(); i++) {
+        AipRetrievalResult result = latestInvalidChecksumResult;
+        int nextStorage = 1;
+        //if the first storage has failed, retrieve the whole AIP from the first of the other storages which returns it
+        while (result == null && nextStorage < storageServices.size()) {
+            StorageService storageService = storageServices.get(nextStorage++);
             try {
-                result = retrieveAipFromStorage(sipEntity, xmls, storageServices.get(i));
-                if (!result.invalidChecksumFound) {
-                    successfulService = storageServices.get(i);
-                    break;
-                }
-                invalidChecksumResults.add(result);
-                tmpFolder.resolve(result.getAipFromStorage().getId()).toFile().delete();
+                result = retrieveAipFromStorage(sipEntity, xmls, storageService);
             } catch (StorageException e) {
                 //try other storages when the current storage has failed
                 log.error("Storage error has occurred during retrieval process of AIP " + sipEntity.getId() + " from storage " +
-                        storageServices.get(i).getStorage().getName() + ".");
+                        storageService.getStorage().getName() + ".");
             }
         }
-        List<StorageService> invalidChecksumStorages = invalidChecksumResults.stream()
-                .map(AipRetrievalResult::getStorageService)
-                .collect(Collectors.toList());
-
-        if (successfulService == null) {
+        if (result == null) {
             log.error("AIP: " + sipEntity.getId() + " has failed to be recovered from any storage service.");
-            storageServices.removeAll(invalidChecksumStorages);
-            arcstorageMailCenter.sendObjectRetrievalError(sipEntity.toDto(), null, servicesToEntities(storageServices), servicesToEntities(invalidChecksumStorages), null);
+            arcstorageMailCenter.sendObjectRetrievalError(sipEntity.toDto(), null, servicesToEntities(storageServices), new ArrayList<>(), null);
             throw new ObjectCouldNotBeRetrievedException(sipEntity);
         }
 
-        log.info("AIP " + sipEntity.getId() + " has been successfully retrieved.");
-        List<StorageService> recoveredStorages = new ArrayList<>();
-        for (AipRetrievalResult invalidChecksumResult : invalidChecksumResults) {
-            StorageService usedStorageService = invalidChecksumResult.storageService;
-            boolean success = true;
-            //repair sip at the storage
-            if (invalidChecksumResult.invalidChecksumSip != null) {
-                success = recoverSingleObject(usedStorageService, sipEntity.toDto(), result.getAipFromStorage().getId());
+        AipRetrievalResource aip = result.getAipFromStorage();
+        //objects with invalid checksum by the storages at which they were found, with ids of their valid tmp files
+        Map<StorageService, List<Pair<ArchivalObjectDto, String>>> invalidChecksumObjects = new LinkedHashMap<>();
+        //only the corrupted parts are retrieved from other storages, the valid ones are kept
+        List<Pair<ArchivalObjectDto, String>> corruptedParts = new ArrayList<>();
+        Map<String, Integer> xmlVersionsByTmpFileId = new HashMap<>();
+        if (result.getInvalidChecksumSip() != null)
+            corruptedParts.add(new Pair<>(sipEntity.toDto(), aip.getId()));
+        for (AipXml xml : result.getInvalidChecksumXmls()) {
+            String tmpXmlFileId = toXmlId(aip.getId(), xml.getVersion());
+            corruptedParts.add(new Pair<>(xml.toDto(), tmpXmlFileId));
+            xmlVersionsByTmpFileId.put(tmpXmlFileId, xml.getVersion());
+        }
+        if (!corruptedParts.isEmpty())
+            invalidChecksumObjects.put(result.getStorageService(), corruptedParts);
+
+        for (Pair<ArchivalObjectDto, String> part : corruptedParts) {
+            ArchivalObjectDto objectDto = part.getL();
+            ObjectRetrievalResource recovered = null;
+            for (int i = nextStorage; i < storageServices.size() && recovered == null; i++) {
+                StorageService storageService = storageServices.get(i);
+                try {
+                    recovered = retrieveObjectFromStorage(objectDto, storageService);
+                    if (recovered == null)
+                        invalidChecksumObjects.computeIfAbsent(storageService, k -> new ArrayList<>()).add(part);
+                } catch (StorageException e) {
+                    //try other storages when the current storage has failed
+                    log.error("Storage error has occurred during retrieval process of object " + objectDto.getStorageId() +
+                            " from storage " + storageService.getStorage().getName() + ".");
+                }
+            }
+            if (recovered == null) {
+                log.error("Object " + objectDto.getStorageId() + " of AIP: " + sipEntity.getId() +
+                        " has failed to be recovered from any storage service.");
+                List<StorageService> invalidChecksumStorages = new ArrayList<>(invalidChecksumObjects.keySet());
+                storageServices.removeAll(invalidChecksumStorages);
+                arcstorageMailCenter.sendObjectRetrievalError(sipEntity.toDto(), null, servicesToEntities(storageServices),
+                        servicesToEntities(invalidChecksumStorages), null);
+                throw new ObjectCouldNotBeRetrievedException(sipEntity);
+            }
+            IOUtils.closeQuietly(recovered.getInputStream());
+            recovered.close();
+            Path partFile = tmpFolder.resolve(part.getR());
+            try {
+                Files.move(tmpFolder.resolve(recovered.getId()), partFile, StandardCopyOption.REPLACE_EXISTING);
+                Integer xmlVersion = xmlVersionsByTmpFileId.get(part.getR());
+                if (xmlVersion == null)
+                    aip.setSip(new FileInputStream(partFile.toFile()));
+                else
+                    aip.addXml(xmlVersion, new FileInputStream(partFile.toFile()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("could not move recovered object " + objectDto.getStorageId() + " to tmp file " + partFile, e);
             }
-            //repair XMLs at the storage
-            for (AipXml xml : invalidChecksumResult.invalidChecksumXmls) {
-                ArchivalObjectDto xmlDto = xml.toDto();
-                success = success && recoverSingleObject(usedStorageService, xmlDto, xmlDto.getStorageId());
+        }
+
+        log.info("AIP " + sipEntity.getId() + " has been successfully retrieved.");
+        for (Map.Entry<StorageService, List<Pair<ArchivalObjectDto, String>>> invalidAtStorage : invalidChecksumObjects.entrySet()) {
+            for (Pair<ArchivalObjectDto, String> part : invalidAtStorage.getValue()) {
+                repairQueue.enqueue(part.getL(), invalidAtStorage.getKey().getStorage());
             }
-            if (success)
-                log.info("AIP has been successfully recovered at storage " + usedStorageService.getStorage().getName() + ".");
-            recoveredStorages.add(invalidChecksumResult.getStorageService());
         }
-        storageServices.removeAll(invalidChecksumStorages);
-        arcstorageMailCenter.sendObjectRetrievalError(sipEntity.toDto(), successfulService.getStorage(), servicesToEntities(storageServices),
-                servicesToEntities(invalidChecksumStorages), servicesToEntities(recoveredStorages));
-        return result.getAipFromStorage();
+        return aip;
     }
 
     /**
      * This method is called when the very first attempt to return object fails. It scans through all storages until it finds
-     * valid object. Then it tries to recover all objects on storages where the object was corrupted. If the recovery fails it is logged
-     * and the method continues.
+     * valid object. Then it queues the object for repair at storages where the object was corrupted, see {@link RepairQueue}.
      *
      * @param objectDto                 object from the main request
      * @param storageServices           storage services which are used for retrieval
      * @param problemWasInvalidChecksum true if the first storage has failed because of corrupted object,
      *                                  or false if the first attempt failed because of other error
+     * @param failedHedge               hedged read which has failed as well as the first attempt, its storage is not read
+     *                                  again, null if there was no hedged read
      * @return {@link ObjectRetrievalResource} with valid object
      * @throws ObjectCouldNotBeRetrievedException if no valid object was found
      */
     private ObjectRetrievalResource recoverObjectFromOtherStorages(ArchivalObjectDto objectDto, List<StorageService> storageServices,
-                                                                   boolean problemWasInvalidChecksum) throws ObjectCouldNotBeRetrievedException {
+                                                                   boolean problemWasInvalidChecksum, ObjectReadAttempt failedHedge)
+            throws ObjectCouldNotBeRetrievedException {
         log.info("Recovering object " + objectDto.getStorageId() + " from other storages.");
         List<StorageService> invalidChecksumStorages = new ArrayList<>();
 
@@ -757,17 +1510,19 @@ public class ArchivalService {
         if (problemWasInvalidChecksum) {
             invalidChecksumStorages.add(storageServices.get(0));
         }
+        if (failedHedge != null && failedHedge.isInvalidChecksum()) {
+            invalidChecksumStorages.add(failedHedge.getStorageService());
+        }
 
         ObjectRetrievalResource objectRetrievalResource = null;
-        StorageService successfulService = null;
         //iterate over all the storages to find an uncorrupted version of the object
         for (int i = 1; i < storageServices.size(); i++) {
+            if (failedHedge != null && storageServices.get(i) == failedHedge.getStorageService())
+                continue;
             try {
                 objectRetrievalResource = retrieveObjectFromStorage(objectDto, storageServices.get(i));
-                if (objectRetrievalResource != null) {
-                    successfulService = storageServices.get(i);
+                if (objectRetrievalResource != null)
                     break;
-                }
                 invalidChecksumStorages.add(storageServices.get(i));
             } catch (StorageException e) {
                 //try other storages when the current storage has failed
@@ -783,14 +1538,9 @@ public class ArchivalService {
         }
 
         log.info("object " + objectDto.getStorageId() + " has been successfully retrieved");
-        List<StorageService> recoveredStorages = new ArrayList<>();
         for (StorageService storageService : invalidChecksumStorages) {
-            boolean success = recoverSingleObject(storageService, objectDto, objectRetrievalResource.getId());
-            if (success)
-                recoveredStorages.add(storageService);
+            repairQueue.enqueue(objectDto, storageService.getStorage());
         }
-        storageServices.removeAll(invalidChecksumStorages);
-        arcstorageMailCenter.sendObjectRetrievalError(objectDto, successfulService.getStorage(), servicesToEntities(storageServices), servicesToEntities(invalidChecksumStorages), servicesToEntities(recoveredStorages));
         return objectRetrievalResource;
     }
 
@@ -874,6 +1624,49 @@ public class ArchivalService {
         }
     }
 
+    /**
+     * Repairs object at the storage where it was found corrupted by a valid copy from other reachable storage. Storages
+     * which return corrupted copy are queued for repair too. Used by {@link RepairQueue}.
+     *
+     * @param objectDto object to repair
+     * @param storageId id of the storage to repair the object at
+     * @return true if the object has been repaired, false if no valid copy has been found
+     * @throws GeneralException if the storage to repair is not reachable
+     */
+    public boolean repairObject(ArchivalObjectDto objectDto, String storageId) throws NoLogicalStorageReachableException,
+            NoLogicalStorageAttachedException {
+        List<StorageService> storageServices = storageProvider.getReachableStorageServicesByPriorities();
+        StorageService target = storageServices.stream()
+                .filter(service -> service.getStorage().getId().equals(storageId))
+                .findFirst()
+                .orElseThrow(() -> new GeneralException("storage " + storageId + " to repair object " +
+                        objectDto.getStorageId() + " at is not reachable"));
+        for (StorageService source : storageServices) {
+            if (source.getStorage().getId().equals(storageId))
+                continue;
+            ObjectRetrievalResource validCopy;
+            try {
+                validCopy = retrieveObjectFromStorage(objectDto, source);
+            } catch (StorageException e) {
+                log.error("Storage error has occurred during retrieval of object " + objectDto.getStorageId() +
+                        " from storage " + source.getStorage().getName() + ".");
+                continue;
+            }
+            if (validCopy == null) {
+                repairQueue.enqueue(objectDto, source.getStorage());
+                continue;
+            }
+            try {
+                IOUtils.closeQuietly(validCopy.getInputStream());
+                return recoverSingleObject(target, objectDto, validCopy.getId());
+            } finally {
+                tmpFolder.resolve(validCopy.getId()).toFile().delete();
+                validCopy.close();
+            }
+        }
+        return false;
+    }
+
     /**
      * Recovers object at the provided archival storage.
      *
@@ -972,6 +1765,101 @@ public class ArchivalService {
         }
     }
 
+    /**
+     * Read of an object from one storage which races with other reads of the same object. The first read which is
+     * verified becomes the winner, reads which complete later are discarded.
+     */
+    private class ObjectReadAttempt implements Callable<ObjectRetrievalResource> {
+        private final ArchivalObjectDto objectDto;
+        private final StorageService storageService;
+        private final AtomicReference<ObjectReadAttempt> winner;
+        private final long start = System.nanoTime();
+        private volatile CancellableInputStream stream;
+        private volatile boolean cancelled;
+        private volatile boolean invalidChecksum;
+
+        ObjectReadAttempt(ArchivalObjectDto objectDto, StorageService storageService, AtomicReference<ObjectReadAttempt> winner) {
+            this.objectDto = objectDto;
+            this.storageService = storageService;
+            this.winner = winner;
+        }
+
+        /**
+         * @return verified object, or null if the checksum does not match or other read has already won
+         */
+        @Override
+        public ObjectRetrievalResource call() throws StorageException {
+            ObjectRetrievalResource result = retrieveObjectFromStorage(objectDto, storageService, this);
+            if (result == null) {
+                invalidChecksum = true;
+                //if other read has already won, the corrupted object is not recovered by the caller
+                if (winner.get() != null)
+                    repairIfCorrupted();
+                return null;
+            }
+            if (winner.compareAndSet(null, this))
+                return result;
+            log.info("Discarding read of object " + objectDto.getStorageId() + " from storage " + getStorageName() +
+                    " as the object has already been read from other storage.");
+            IOUtils.closeQuietly(result.getInputStream());
+            tmpFolder.resolve(result.getId()).toFile().delete();
+            result.close();
+            return null;
+        }
+
+        InputStream track(InputStream in) {
+            stream = new CancellableInputStream(in);
+            if (cancelled)
+                stream.cancel();
+            return stream;
+        }
+
+        /**
+         * @param minThroughput minimal throughput in bytes per second, 0 if any progress is sufficient
+         * @return true if some data have been read and the throughput is at least the minimal throughput
+         */
+        boolean isProgressing(long minThroughput) {
+            CancellableInputStream s = stream;
+            long bytes = s == null ? 0 : s.getBytesRead();
+            if (bytes == 0)
+                return false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return minThroughput <= 0 || bytes / seconds >= minThroughput;
+        }
+
+        void cancel() {
+            cancelled = true;
+            CancellableInputStream s = stream;
+            if (s != null)
+                s.cancel();
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Queues the object for repair at the storage of this read if the read has found it corrupted. Called for the
+         * read which has lost to other one, both the read itself and the caller may call it, queueing is idempotent.
+         */
+        void repairIfCorrupted() {
+            if (invalidChecksum)
+                repairQueue.enqueue(objectDto, storageService.getStorage());
+        }
+
+        String getStorageName() {
+            return storageService.getStorage().getName();
+        }
+
+        StorageService getStorageService() {
+            return storageService;
+        }
+
+        boolean isInvalidChecksum() {
+            return invalidChecksum;
+        }
+    }
+
     @Inject
     public void setArchivalDbService(ArchivalDbService archivalDbService) {
         this.archivalDbService = archivalDbService;
@@ -992,11 +1880,59 @@ public class ArchivalService {
         this.arcstorageMailCenter = arcstorageMailCenter;
     }
 
+    @Inject
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+
+    @Inject
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    @Inject
+    public void setRetrievalCoalescer(RetrievalCoalescer retrievalCoalescer) {
+        this.retrievalCoalescer = retrievalCoalescer;
+    }
+
+    @Inject
+    public void setRepairQueue(RepairQueue repairQueue) {
+        this.repairQueue = repairQueue;
+    }
+
+    @Inject
+    public void setVerifiedCopyCache(VerifiedCopyCache verifiedCopyCache) {
+        this.verifiedCopyCache = verifiedCopyCache;
+    }
+
+    @Inject
+    public void setReadStatistics(StorageReadStatistics readStatistics) {
+        this.readStatistics = readStatistics;
+    }
+
     @Inject
     public void setTmpFolder(@Value("${arcstorage.tmp-folder}") String path) {
         this.tmpFolder = Paths.get(path);
     }
 
+    /**
+     * @param delay         time in milliseconds after which a slow read of an object is hedged by a read from other
+     *                      storage, 0 disables hedged reads
+     * @param minThroughput throughput in bytes per second under which the read is considered slow, with 0 only a read
+     *                      which has not sent any data is considered slow
+     */
+    @Inject
+    public void setHedgedRead(@Value("${arcstorage.hedged-read.delay:0}") long delay,
+                              @Value("${arcstorage.hedged-read.min-throughput:0}") long minThroughput) {
+        this.hedgedReadDelay = delay;
+        this.hedgedReadMinThroughput = minThroughput;
+    }
+
+    @Resource(name = "RetrievalExecutorService")
+    public void setRetrievalExecutor(ExecutorService retrievalExecutor) {
+        this.retrievalExecutor = retrievalExecutor;
+    }
+
     @Resource(name = "ReservedExecutorService")
     public void setExecutor(ExecutorService executor) {
         this.executor = executor;
@@ -0,0 +1,43 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.storage.exception.StorageException;
+import cz.cas.lib.arcstorage.storage.fs.FsAdapter;
+import cz.cas.lib.arcstorage.storage.fs.FsObjectMetadata;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+
+/**
+ * Converts metadata of the objects stored at FS/ZFS storage in the legacy layout to the metadata files, see
+ * {@link FsObjectMetadata}.
+ */
+@Service
+@Slf4j
+public class FsMetadataMigrationService {
+
+    /**
+     * Migrates metadata of all objects of the data spaces. Runs asynchronously, the result is logged. Migration can be
+     * safely run again if it has failed or while the storage is in use.
+     *
+     * @param storageService adapter of the FS/ZFS storage
+     * @param dataSpaces     data spaces to migrate
+     */
+    @Async
+    public void migrate(FsAdapter storageService, Collection<String> dataSpaces) {
+        String storageName = storageService.getStorage().getName();
+        log.info("starting migration of metadata of storage " + storageName);
+        int migrated = 0;
+        for (String dataSpace : dataSpaces) {
+            try {
+                migrated += storageService.migrateMetadata(dataSpace);
+            } catch (StorageException e) {
+                log.error("migration of metadata of storage " + storageName + " has failed at data space " + dataSpace +
+                        " after " + migrated + " migrated objects", e);
+                return;
+            }
+        }
+        log.info("migration of metadata of storage " + storageName + " has finished, migrated objects: " + migrated);
+    }
+}
@@ -0,0 +1,124 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ObjectCacheStatsDto;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of small objects (typically AIP XMLs) which were retrieved from storage and whose checksum was
+ * verified. Entries are keyed by database id of the object and its checksum so that an entry is never returned for
+ * an object whose expected checksum has changed. The cache is bounded by the total size of the cached contents, the
+ * least recently used entries are evicted first.
+ * <p>
+ * Entries are invalidated by {@link ArchivalDbService} whenever the object leaves the {@link cz.cas.lib.arcstorage.dto.ObjectState#ARCHIVED}
+ * state (deletion, removal, rollback, failure) or its XML version is registered again.
+ * </p>
+ */
+@Slf4j
+@Service
+public class ObjectCache {
+
+    private final long maxSize;
+    private final long maxObjectSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize       maximal total size of the cached objects in bytes, 0 disables the cache
+     * @param maxObjectSize maximal size of a single cached object in bytes, larger objects are never cached
+     */
+    @Inject
+    public ObjectCache(@Value("${arcstorage.object-cache.max-size:67108864}") long maxSize,
+                       @Value("${arcstorage.object-cache.max-object-size:1048576}") long maxObjectSize) {
+        if (maxSize < 0 || maxObjectSize < 0)
+            throw new IllegalArgumentException("size limits of object cache must not be negative, max size: " + maxSize
+                    + ", max object size: " + maxObjectSize);
+        this.maxSize = maxSize;
+        this.maxObjectSize = Math.min(maxObjectSize, maxSize);
+    }
+
+    /**
+     * @return true if the object of the given size may be cached
+     */
+    public boolean accepts(long objectSize) {
+        return objectSize <= maxObjectSize && maxSize > 0;
+    }
+
+    /**
+     * @param databaseId database id of the object
+     * @param checksum   expected checksum of the object
+     * @return cached content, null if the object is not cached or was cached with other checksum
+     */
+    public synchronized byte[] get(String databaseId, Checksum checksum) {
+        Entry entry = entries.get(databaseId);
+        if (entry == null || !entry.checksum.equals(checksum)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.content;
+    }
+
+    /**
+     * Caches the verified content of the object. Content larger than the max object size is ignored.
+     *
+     * @param databaseId database id of the object
+     * @param checksum   checksum which the content was verified against
+     * @param content    content of the object, must not be modified afterwards
+     */
+    public synchronized void put(String databaseId, Checksum checksum, byte[] content) {
+        if (!accepts(content.length))
+            return;
+        Entry previous = entries.put(databaseId, new Entry(checksum, content));
+        if (previous != null)
+            size -= previous.content.length;
+        size += content.length;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.content.length;
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes the object from the cache, does nothing if the object is not cached.
+     */
+    public synchronized void invalidate(String databaseId) {
+        Entry removed = entries.remove(databaseId);
+        if (removed != null) {
+            size -= removed.content.length;
+            log.debug("Object " + databaseId + " invalidated in object cache.");
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized ObjectCacheStatsDto getStats() {
+        return new ObjectCacheStatsDto(hits, misses, evictions, entries.size(), size, maxSize);
+    }
+
+    private static class Entry {
+        private final Checksum checksum;
+        private final byte[] content;
+
+        private Entry(Checksum checksum, byte[] content) {
+            this.checksum = checksum;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.exception.GeneralException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent retrievals of the same data. The first request for a key becomes the leader which retrieves and
+ * verifies the data, requests which come while the retrieval is in progress wait for it and then read the same verified
+ * tmp files instead of retrieving the data again.
+ * <p>
+ * Shared files are renamed when the retrieval completes so that they are not deleted by any of the requests. They are
+ * deleted when all requests which took part in the retrieval have closed their streams.
+ * </p>
+ */
+@Slf4j
+@Service
+public class RetrievalCoalescer {
+    private static final String SHARED_FILE_SUFFIX = "-shared";
+
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    /**
+     * Joins the retrieval of the key, or starts it if there is none in progress.
+     *
+     * @param key key of the retrieved data, e.g. id of the object
+     * @return participant of the retrieval, {@link Participant#isLeader()} is true if the caller has to retrieve the data
+     */
+    public synchronized Participant join(String key) {
+        Flight flight = flights.get(key);
+        if (flight == null) {
+            flight = new Flight(key);
+            flights.put(key, flight);
+            return new Participant(flight, true);
+        }
+        flight.participants++;
+        log.debug("Retrieval of " + key + " is already in progress, waiting for it.");
+        return new Participant(flight, false);
+    }
+
+    /**
+     * @return number of retrievals in progress
+     */
+    public synchronized int getInProgressCount() {
+        return flights.size();
+    }
+
+    private synchronized void finish(Flight flight) {
+        flights.remove(flight.key, flight);
+    }
+
+    /**
+     * Retrieval shared by concurrent requests.
+     */
+    private class Flight {
+        private final String key;
+        private final CompletableFuture<Map<String, Path>> files = new CompletableFuture<>();
+        /**
+         * number of requests which have not released the retrieval yet, guarded by the coalescer
+         */
+        private int participants = 1;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        private void release() {
+            synchronized (RetrievalCoalescer.this) {
+                if (--participants > 0)
+                    return;
+            }
+            Map<String, Path> sharedFiles = files.isCompletedExceptionally() ? null : files.getNow(null);
+            if (sharedFiles == null)
+                return;
+            for (Path file : sharedFiles.values()) {
+                file.toFile().delete();
+            }
+            log.debug("Shared files of retrieval of " + key + " have been deleted.");
+        }
+    }
+
+    /**
+     * Request taking part in a coalesced retrieval. Leader has to call either {@link #complete(Map)} or
+     * {@link #fail(Throwable)}, other participants call {@link #await()}.
+     */
+    public class Participant {
+        private final Flight flight;
+        private final boolean leader;
+
+        private Participant(Flight flight, boolean leader) {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Completes the retrieval and shares the files. Leader obtains streams of the shared files by {@link #await()}
+         * afterwards and closes the streams it had opened on the tmp files before.
+         *
+         * @param tmpFiles verified tmp files by the names under which they are returned, null or missing files if there
+         *                 is nothing to share, in which case other participants retrieve the data on their own
+         */
+        public void complete(Map<String, Path> tmpFiles) {
+            Map<String, Path> sharedFiles = null;
+            if (tmpFiles != null && tmpFiles.values().stream().allMatch(Files::isRegularFile)) {
+                sharedFiles = new LinkedHashMap<>();
+                try {
+                    for (Map.Entry<String, Path> file : tmpFiles.entrySet()) {
+                        Path sharedFile = file.getValue().resolveSibling(file.getValue().getFileName() + SHARED_FILE_SUFFIX);
+                        Files.move(file.getValue(), sharedFile);
+                        sharedFiles.put(file.getKey(), sharedFile);
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not share tmp files of retrieval of " + flight.key + ", other requests retrieve it on their own.", e);
+                    for (Map.Entry<String, Path> file : sharedFiles.entrySet()) {
+                        try {
+                            Files.move(file.getValue(), tmpFiles.get(file.getKey()));
+                        } catch (IOException moveBackException) {
+                            throw new UncheckedIOException("could not move back shared file " + file.getValue(), moveBackException);
+                        }
+                    }
+                    sharedFiles = null;
+                }
+            }
+            finish(flight);
+            flight.files.complete(sharedFiles);
+        }
+
+        /**
+         * Fails the retrieval, waiting participants get the same error.
+         *
+         * @param e error of the retrieval
+         */
+        public void fail(Throwable e) {
+            finish(flight);
+            flight.files.completeExceptionally(e);
+            flight.release();
+        }
+
+        /**
+         * Waits until the retrieval completes and opens the shared files. The retrieval is released when all the
+         * streams are closed.
+         *
+         * @return streams of the shared files by their names, or null if the leader had nothing to share
+         * @throws ExecutionException with the error of the leader as the cause if the retrieval has failed
+         */
+        public Map<String, InputStream> await() throws ExecutionException {
+            Map<String, Path> sharedFiles;
+            try {
+                sharedFiles = flight.files.get();
+            } catch (InterruptedException e) {
+                flight.release();
+                Thread.currentThread().interrupt();
+                throw new GeneralException("thread has been interrupted while waiting for retrieval of " + flight.key, e);
+            } catch (ExecutionException e) {
+                if (!leader)
+                    flight.release();
+                throw e;
+            }
+            if (sharedFiles == null) {
+                flight.release();
+                return null;
+            }
+            return open(sharedFiles);
+        }
+
+        private Map<String, InputStream> open(Map<String, Path> sharedFiles) {
+            Map<String, InputStream> streams = new LinkedHashMap<>();
+            int[] openStreams = {sharedFiles.size()};
+            try {
+                for (Map.Entry<String, Path> file : sharedFiles.entrySet()) {
+                    streams.put(file.getKey(), new FilterInputStream(new FileInputStream(file.getValue().toFile())) {
+                        private boolean closed;
+
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            synchronized (openStreams) {
+                                if (closed)
+                                    return;
+                                closed = true;
+                                if (--openStreams[0] > 0)
+                                    return;
+                            }
+                            flight.release();
+                        }
+                    });
+                }
+            } catch (FileNotFoundException e) {
+                streams.values().forEach(IOUtils::closeQuietly);
+                flight.release();
+                throw new UncheckedIOException("shared file of retrieval of " + flight.key + " not found", e);
+            }
+            return streams;
+        }
+    }
+}
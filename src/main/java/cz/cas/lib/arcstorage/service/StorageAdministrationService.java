@@ -7,10 +7,12 @@ import cz.cas.lib.arcstorage.domain.entity.User;
 import cz.cas.lib.arcstorage.domain.store.ArchivalObjectStore;
 import cz.cas.lib.arcstorage.domain.store.ConfigurationStore;
 import cz.cas.lib.arcstorage.domain.store.StorageStore;
+import cz.cas.lib.arcstorage.exception.BadRequestException;
 import cz.cas.lib.arcstorage.security.user.UserStore;
 import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
 import cz.cas.lib.arcstorage.storage.StorageService;
 import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
+import cz.cas.lib.arcstorage.storage.fs.FsAdapter;
 import cz.cas.lib.arcstorage.storagesync.*;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -34,6 +36,7 @@ public class StorageAdministrationService {
     private ConfigurationStore configurationStore;
     private UserStore userStore;
     private ArchivalObjectStore archivalObjectStore;
+    private FsMetadataMigrationService fsMetadataMigrationService;
     private int transactionTimeoutSeconds;
     private int synchronizationInitTimeoutSeconds;
 
@@ -118,6 +121,25 @@ public class StorageAdministrationService {
         }
     }
 
+    /**
+     * Starts migration of the metadata of the objects stored at FS/ZFS storage in the legacy layout (state and checksum
+     * files) to the metadata files. The migration runs in background, see {@link FsMetadataMigrationService}.
+     *
+     * @param storageId id of the FS/ZFS storage
+     * @throws BadRequestException                      if the storage is not FS/ZFS storage
+     * @throws SomeLogicalStoragesNotReachableException if the storage is not reachable
+     */
+    public void migrateFsMetadata(String storageId) throws BadRequestException, SomeLogicalStoragesNotReachableException {
+        StorageService storageService = storageProvider.createAdapter(storageId);
+        if (!(storageService instanceof FsAdapter))
+            throw new BadRequestException("metadata migration is supported only by FS/ZFS storages, storage " +
+                    storageService.getStorage().getName() + " is of type " + storageService.getStorage().getStorageType());
+        if (!storageService.getStorage().isReachable())
+            throw new SomeLogicalStoragesNotReachableException(storageService.getStorage());
+        Set<String> dataSpaces = userStore.findAll().stream().map(User::getDataSpace).filter(Objects::nonNull).collect(Collectors.toSet());
+        fsMetadataMigrationService.migrate((FsAdapter) storageService, dataSpaces);
+    }
+
     private void setReadWriteConfig(Configuration configuration) {
         if (!syncStatusStore.anyInInitialOrFinishingPhase()) {
             configuration.setReadOnly(false);
@@ -165,6 +187,11 @@ public class StorageAdministrationService {
         this.archivalObjectStore = archivalObjectStore;
     }
 
+    @Inject
+    public void setFsMetadataMigrationService(FsMetadataMigrationService fsMetadataMigrationService) {
+        this.fsMetadataMigrationService = fsMetadataMigrationService;
+    }
+
     @Inject
     public void setTransactionTimeoutSeconds(@Value("${arcstorage.state-change-transaction-timeout}") int transactionTimeoutSeconds) {
         this.transactionTimeoutSeconds = transactionTimeoutSeconds;
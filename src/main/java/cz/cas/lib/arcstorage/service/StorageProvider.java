@@ -1,11 +1,15 @@
 package cz.cas.lib.arcstorage.service;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
 import cz.cas.lib.arcstorage.domain.store.ConfigurationStore;
+import cz.cas.lib.arcstorage.domain.store.StorageChangedEvent;
 import cz.cas.lib.arcstorage.domain.store.StorageStore;
 import cz.cas.lib.arcstorage.domain.store.Transactional;
+import cz.cas.lib.arcstorage.dto.SshPoolStatsDto;
 import cz.cas.lib.arcstorage.exception.GeneralException;
 import cz.cas.lib.arcstorage.exception.MissingObject;
 import cz.cas.lib.arcstorage.service.exception.ConfigParserException;
@@ -13,27 +17,43 @@ import cz.cas.lib.arcstorage.service.exception.ReadOnlyStateException;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageReachableException;
 import cz.cas.lib.arcstorage.service.exception.storage.SomeLogicalStoragesNotReachableException;
+import cz.cas.lib.arcstorage.storage.ParallelRangeReader;
 import cz.cas.lib.arcstorage.storage.StorageService;
 import cz.cas.lib.arcstorage.storage.ceph.CephAdapterType;
+import cz.cas.lib.arcstorage.storage.ceph.CephS3ClientConfig;
 import cz.cas.lib.arcstorage.storage.ceph.CephS3StorageService;
+import cz.cas.lib.arcstorage.storage.fs.ChecksumVerificationMode;
 import cz.cas.lib.arcstorage.storage.fs.FsStorageService;
+import cz.cas.lib.arcstorage.storage.fs.RemoteFsProcessor;
+import cz.cas.lib.arcstorage.storage.fs.ShardLayout;
+import cz.cas.lib.arcstorage.storage.fs.SshSessionPool;
 import cz.cas.lib.arcstorage.storage.fs.ZfsStorageService;
+import cz.cas.lib.arcstorage.util.Utils.Pair;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.TreeMap;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import static cz.cas.lib.arcstorage.storage.StorageUtils.isLocalhost;
 import static cz.cas.lib.arcstorage.util.Utils.notNull;
 import static cz.cas.lib.arcstorage.util.Utils.parseEnumFromConfig;
-import static java.util.Collections.shuffle;
 
+/**
+ * Provides {@link StorageService} adapters of the logical storages.
+ * <p>
+ * Adapters are kept in a registry which is built from the database objects and reused until some {@link Storage} is
+ * changed. Reachability of the storages is tested periodically in the background and the reachability flag of the
+ * {@link Storage} is updated if changed.
+ * </p>
+ */
 @Service
 @Slf4j
 public class StorageProvider {
@@ -42,6 +62,21 @@ public class StorageProvider {
     private StorageStore storageStore;
     private int connectionTimeout;
     private ConfigurationStore configurationStore;
+    private int sshPoolSize;
+    private long sshPoolIdleTimeout;
+    private StorageReadStatistics readStatistics;
+    private final Map<String, SshSessionPool> sshSessionPools = new ConcurrentHashMap<>();
+    private final Map<String, Pair<CephS3ClientConfig, AmazonS3>> s3Clients = new ConcurrentHashMap<>();
+
+    /**
+     * adapters of all storages, the key is the storage id, null if the registry has to be rebuilt
+     */
+    private volatile Map<String, StorageService> adapterRegistry;
+    /**
+     * incremented with every invalidation so that the registry built from outdated database objects is not published
+     */
+    private final AtomicLong registryVersion = new AtomicLong();
+    private final Object registryLock = new Object();
 
     /**
      * Returns storage service according to the database object. The storage is tested for reachability and is updated if
@@ -52,6 +87,19 @@ public class StorageProvider {
      * @throws ConfigParserException
      */
     private StorageService createAdapter(Storage storage) throws ConfigParserException {
+        StorageService service = buildAdapter(storage);
+        updateReachability(service, service.testConnection());
+        return service;
+    }
+
+    /**
+     * Returns storage service according to the database object. The storage is not tested for reachability.
+     *
+     * @param storage
+     * @return storage service
+     * @throws ConfigParserException
+     */
+    private StorageService buildAdapter(Storage storage) throws ConfigParserException {
         StorageService service;
         JsonNode root;
         try {
@@ -63,12 +111,14 @@ public class StorageProvider {
             case FS:
                 String rootDirPath = root.at("/rootDirPath").textValue();
                 notNull(rootDirPath, () -> new ConfigParserException("rootDirPath string missing in FS storage config"));
-                service = new FsStorageService(storage, rootDirPath, keyFilePath, connectionTimeout);
+                service = new FsStorageService(storage, rootDirPath, getSshSessionPool(storage), parseReadAhead(root),
+                        parseChecksumVerificationMode(root), parseShardLayout(root), parseParallelRead(root));
                 break;
             case ZFS:
                 rootDirPath = root.at("/rootDirPath").textValue();
                 notNull(rootDirPath, () -> new ConfigParserException("rootDirPath string missing in FS storage config"));
-                service = new ZfsStorageService(storage, rootDirPath, keyFilePath, connectionTimeout);
+                service = new ZfsStorageService(storage, rootDirPath, getSshSessionPool(storage), parseReadAhead(root),
+                        parseChecksumVerificationMode(root), parseShardLayout(root), parseParallelRead(root));
                 break;
             case CEPH:
                 CephAdapterType cephAdapterType = parseEnumFromConfig(root, "/adapterType", CephAdapterType.class);
@@ -77,11 +127,21 @@ public class StorageProvider {
                 switch(cephAdapterType) {
                     case S3:
                         String region = root.at("/region").textValue();
-                        boolean https = root.at("https").booleanValue();
+                        boolean https = root.at("/https").booleanValue();
                         if(userKey == null)
                             throw new ConfigParserException("userKey string missing in CEPH storage config");
                         userSecret = userSecret == null ? "ldap" : userSecret;
-                        service = new CephS3StorageService(storage, userKey, userSecret, https, region, connectionTimeout);
+                        CephS3ClientConfig clientConfig = new CephS3ClientConfig(storage.getHost(), storage.getPort(),
+                                userKey, userSecret, https, region, connectionTimeout,
+                                root.at("/socketTimeout").asInt(ClientConfiguration.DEFAULT_SOCKET_TIMEOUT),
+                                root.at("/requestTimeout").asInt(ClientConfiguration.DEFAULT_REQUEST_TIMEOUT),
+                                root.at("/maxConnections").asInt(ClientConfiguration.DEFAULT_MAX_CONNECTIONS));
+                        int partSize = root.at("/partSize").asInt(CephS3StorageService.DEFAULT_PART_SIZE / 1024 / 1024) * 1024 * 1024;
+                        int uploadConcurrency = root.at("/uploadConcurrency").asInt(CephS3StorageService.DEFAULT_UPLOAD_CONCURRENCY);
+                        if(partSize < CephS3StorageService.MIN_PART_SIZE || uploadConcurrency < 1)
+                            throw new ConfigParserException("partSize must be at least 5 (MiB) and uploadConcurrency must be positive in CEPH storage config");
+                        service = new CephS3StorageService(storage, getS3Client(storage, clientConfig), partSize, uploadConcurrency,
+                                parseParallelRead(root));
                         break;
                     case SWIFT:
                         throw new UnsupportedOperationException();
@@ -94,17 +154,186 @@ public class StorageProvider {
             default:
                 throw new GeneralException("unknown storage type: " + storage.getStorageType());
         }
-        boolean reachable = service.testConnection();
-        if(reachable != storage.isReachable()) {
-            storage.setReachable(reachable);
-            storageStore.save(storage);
-        }
         return service;
     }
 
+    private int parseReadAhead(JsonNode root) throws ConfigParserException {
+        int readAhead = root.at("/readAhead").asInt(RemoteFsProcessor.DEFAULT_READ_AHEAD);
+        if(readAhead < 1)
+            throw new ConfigParserException("readAhead must be positive in FS storage config");
+        return readAhead;
+    }
+
+    /**
+     * Parses settings of reading large objects by concurrent ranged reads: <i>readConnections</i> (1 disables ranged
+     * reads), <i>parallelReadThreshold</i> and <i>readPartSize</i> (both in MiB) and <i>maxReadAheadParts</i> (parts read
+     * ahead by all retrievals of the storage together).
+     */
+    private ParallelRangeReader parseParallelRead(JsonNode root) throws ConfigParserException {
+        int connections = root.at("/readConnections").asInt(ParallelRangeReader.DEFAULT_CONNECTIONS);
+        long threshold = root.at("/parallelReadThreshold").asLong(ParallelRangeReader.DEFAULT_THRESHOLD / 1024 / 1024) * 1024 * 1024;
+        int partSize = root.at("/readPartSize").asInt(ParallelRangeReader.DEFAULT_PART_SIZE / 1024 / 1024) * 1024 * 1024;
+        int maxReadAheadParts = root.at("/maxReadAheadParts").asInt(ParallelRangeReader.DEFAULT_MAX_READ_AHEAD_PARTS);
+        if(connections < 1 || threshold < 0 || partSize < 1 || maxReadAheadParts < 1)
+            throw new ConfigParserException("readConnections, readPartSize and maxReadAheadParts must be positive and parallelReadThreshold must not be negative in storage config");
+        return new ParallelRangeReader(connections, threshold, partSize, maxReadAheadParts);
+    }
+
+    private ChecksumVerificationMode parseChecksumVerificationMode(JsonNode root) throws ConfigParserException {
+        if(root.at("/checksumVerification").isMissingNode())
+            return ChecksumVerificationMode.READ_BACK;
+        return parseEnumFromConfig(root, "/checksumVerification", ChecksumVerificationMode.class);
+    }
+
+    private ShardLayout parseShardLayout(JsonNode root) throws ConfigParserException {
+        try {
+            return new ShardLayout(root.at("/shardDepth").asInt(ShardLayout.DEFAULT_DEPTH),
+                    root.at("/shardWidth").asInt(ShardLayout.DEFAULT_WIDTH));
+        } catch(IllegalArgumentException e) {
+            throw new ConfigParserException(e.getMessage() + " in FS storage config");
+        }
+    }
+
     /**
-     * Returns all storage services according to the database objects. All storages are tested for reachability and their
-     * reachablity flag is updated if changed.
+     * Saves the new reachability flag of the storage if it has changed. Saving the storage invalidates the registry.
+     */
+    private void updateReachability(StorageService service, boolean reachable) {
+        Storage storage = service.getStorage();
+        if(reachable == storage.isReachable())
+            return;
+        log.warn(storage + " has become " + (reachable ? "reachable" : "unreachable"));
+        storage.setReachable(reachable);
+        storageStore.save(storage);
+    }
+
+    /**
+     * Returns adapters of all storages from the registry. If the registry has been invalidated, it is rebuilt from the
+     * database objects.
+     *
+     * @return adapters of all storages, the key is the storage id
+     */
+    private Map<String, StorageService> getAdapterRegistry() {
+        Map<String, StorageService> registry = adapterRegistry;
+        if(registry != null)
+            return registry;
+        synchronized(registryLock) {
+            registry = adapterRegistry;
+            if(registry != null)
+                return registry;
+            long version = registryVersion.get();
+            registry = new LinkedHashMap<>();
+            for(Storage storage : storageStore.findAll()) {
+                registry.put(storage.getId(), buildAdapter(storage));
+            }
+            registry = Collections.unmodifiableMap(registry);
+            releaseConnections(registry.keySet());
+            if(version == registryVersion.get())
+                adapterRegistry = registry;
+            log.debug("registry of storage adapters rebuilt, storages: " + registry.size());
+            return registry;
+        }
+    }
+
+    /**
+     * Invalidates the registry of storage adapters. Called once the transaction which has changed the storage is committed.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStorageChanged(StorageChangedEvent event) {
+        log.debug("storage " + event.getStorageId() + " changed, invalidating registry of storage adapters");
+        registryVersion.incrementAndGet();
+        adapterRegistry = null;
+    }
+
+    /**
+     * Tests reachability of all storages and updates their reachability flag if changed.
+     */
+    @Scheduled(fixedDelayString = "${arcstorage.storage-check-interval:60000}")
+    public void checkStorageReachability() {
+        for(StorageService service : getAdapterRegistry().values()) {
+            try {
+                updateReachability(service, service.testConnection());
+            } catch(Exception e) {
+                log.error("reachability check of " + service.getStorage() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Closes ssh session pools and S3 clients of storages which no longer exist.
+     */
+    private void releaseConnections(Set<String> existingStorageIds) {
+        sshSessionPools.entrySet().removeIf(e -> {
+            if(existingStorageIds.contains(e.getKey()))
+                return false;
+            e.getValue().close();
+            return true;
+        });
+        s3Clients.entrySet().removeIf(e -> {
+            if(existingStorageIds.contains(e.getKey()))
+                return false;
+            e.getValue().getR().shutdown();
+            return true;
+        });
+    }
+
+    /**
+     * Returns pool of ssh connections shared by all adapters of the storage. The pool is replaced if the storage has been
+     * moved to another host/port since the pool creation.
+     *
+     * @param storage remote storage
+     * @return ssh session pool, null if the storage is located at localhost
+     */
+    private SshSessionPool getSshSessionPool(Storage storage) {
+        if (isLocalhost(storage))
+            return null;
+        return sshSessionPools.compute(storage.getId(), (id, pool) -> {
+            if (pool != null && pool.matches(storage, keyFilePath, connectionTimeout, sshPoolSize, sshPoolIdleTimeout))
+                return pool;
+            if (pool != null) {
+                log.info("configuration of storage " + storage.getName() + " changed, replacing ssh session pool: " + pool);
+                pool.close();
+            }
+            return new SshSessionPool(storage, keyFilePath, connectionTimeout, sshPoolSize, sshPoolIdleTimeout);
+        });
+    }
+
+    /**
+     * Returns S3 client shared by all adapters of the storage. The client is rebuilt (and the old one shut down) if the
+     * client config of the storage has changed since the client creation.
+     *
+     * @param storage      Ceph storage
+     * @param clientConfig actual client config of the storage
+     * @return S3 client
+     */
+    private AmazonS3 getS3Client(Storage storage, CephS3ClientConfig clientConfig) {
+        return s3Clients.compute(storage.getId(), (id, client) -> {
+            if (client != null && client.getL().equals(clientConfig))
+                return client;
+            if (client != null) {
+                log.info("configuration of storage " + storage.getName() + " changed, rebuilding S3 client: " + clientConfig);
+                client.getR().shutdown();
+            }
+            return new Pair<>(clientConfig, clientConfig.buildClient());
+        }).getR();
+    }
+
+    /**
+     * @return state and counters of the ssh session pools of remote FS/ZFS storages
+     */
+    public List<SshPoolStatsDto> getSshPoolStats() {
+        List<SshPoolStatsDto> result = new ArrayList<>();
+        for (SshSessionPool pool : sshSessionPools.values()) {
+            Storage storage = pool.getStorage();
+            result.add(new SshPoolStatsDto(storage.getId(), storage.getName(), pool.getMaxSize(), pool.getActiveCount(),
+                    pool.getIdleCount(), pool.getBorrowCount(), pool.getCreatedCount(), pool.getDiscardedCount(),
+                    pool.getAverageWaitTime(), pool.getMaxWaitTime(), pool.getTotalWaitTime()));
+        }
+        return result;
+    }
+
+    /**
+     * Returns all storage services from the registry. Reachability of the storages is the one of the last reachability
+     * check.
      *
      * @return storage services for all storages
      * @throws SomeLogicalStoragesNotReachableException                       if some storage is unreachable
@@ -116,10 +345,9 @@ public class StorageProvider {
             throw new ReadOnlyStateException();
         List<StorageService> storageServices = new ArrayList<>();
         List<Storage> unreachableStorages = new ArrayList<>();
-        for(Storage storage : storageStore.findAll()) {
-            StorageService service = createAdapter(storage);
+        for(StorageService service : getAdapterRegistry().values()) {
             if(!service.getStorage().isReachable()) {
-                unreachableStorages.add(storage);
+                unreachableStorages.add(service.getStorage());
                 continue;
             }
             storageServices.add(service);
@@ -132,21 +360,22 @@ public class StorageProvider {
     }
 
     /**
-     * Returns all storage services according to the database objects. All storages are tested for reachability and their
-     * reachablity flag is updated if changed.
+     * Returns all storage services from the registry. Reachability of the storages is the one of the last reachability
+     * check.
      *
      * @return storage services
      * @throws ConfigParserException
      */
     public List<StorageService> createAllAdapters() throws NoLogicalStorageAttachedException {
-        List<StorageService> list = storageStore.findAll().stream().map(this::createAdapter).collect(Collectors.toList());
+        List<StorageService> list = new ArrayList<>(getAdapterRegistry().values());
         if(list.isEmpty())
             throw new NoLogicalStorageAttachedException();
         return list;
     }
 
     /**
-     * Returns storage service according to the {@link Storage} with the provided id.
+     * Returns storage service according to the {@link Storage} with the provided id. The storage is tested for
+     * reachability and its reachability flag is updated if changed.
      *
      * @param storageId
      * @return storage service for the storage
@@ -160,6 +389,10 @@ public class StorageProvider {
 
     /**
      * called only by retrieval, GET methods.. methods which writes writes to all storages
+     * <p>
+     * Storages of the same priority are ordered by {@link StorageReadStatistics}, i.e. the storage with the shortest
+     * expected read time is first, with some randomness so that the statistics of all storages are kept up to date.
+     * </p>
      *
      * @return map of reachable and readable storage services sorted by priorities in the descending order (highest priority storages first),
      * where the key is the priority and the value is a list of storages with the given priority
@@ -183,7 +416,7 @@ public class StorageProvider {
             throw new NoLogicalStorageReachableException();
         }
         List<StorageService> orderedShuffledStorageServices = storageServicesByPriorities.values().stream().map(storageServicesByPriority -> {
-            shuffle(storageServicesByPriority);
+            readStatistics.order(storageServicesByPriority);
             return storageServicesByPriority;
         })
                 .flatMap(List::stream)
@@ -206,8 +439,26 @@ public class StorageProvider {
         this.connectionTimeout = Integer.parseInt(connectionTimeout);
     }
 
+    @Inject
+    public void setSshPoolSize(@Value("${arcstorage.ssh-pool.size:8}") int sshPoolSize) {
+        this.sshPoolSize = sshPoolSize;
+    }
+
+    /**
+     * @param sshPoolIdleTimeout time in seconds after which the idle ssh connection is closed
+     */
+    @Inject
+    public void setSshPoolIdleTimeout(@Value("${arcstorage.ssh-pool.idle-timeout:300}") long sshPoolIdleTimeout) {
+        this.sshPoolIdleTimeout = sshPoolIdleTimeout * 1000;
+    }
+
     @Inject
     public void setConfigurationStore(ConfigurationStore configurationStore) {
         this.configurationStore = configurationStore;
     }
+
+    @Inject
+    public void setReadStatistics(StorageReadStatistics readStatistics) {
+        this.readStatistics = readStatistics;
+    }
 }
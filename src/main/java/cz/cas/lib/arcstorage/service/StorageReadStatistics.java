@@ -0,0 +1,171 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.StorageReadStatsDto;
+import cz.cas.lib.arcstorage.storage.StorageService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps statistics of reads from the logical storages and orders storages of the same priority by the expected time of
+ * the read. Latency, throughput and error rate of every storage are exponentially weighted moving averages.
+ * <p>
+ * Object sizes are not stored in the database, so the expected time is computed for the moving average of sizes of
+ * all the reads. A storage without any measured read is preferred so that it gets measured. To keep the statistics of
+ * all storages up to date, a fraction of the orderings (the exploration rate) is random.
+ * </p>
+ */
+@Service
+public class StorageReadStatistics {
+    /**
+     * weight of the newest sample in the moving averages
+     */
+    public static final double ALPHA = 0.2;
+    /**
+     * error rate from which all storages are considered equally unreliable
+     */
+    private static final double MAX_ERROR_RATE = 0.9;
+
+    private final Map<String, Stats> statsByStorage = new ConcurrentHashMap<>();
+    private double explorationRate = 0.1;
+    /**
+     * moving average of the sizes of the reads in bytes, -1 until the first transfer is measured
+     */
+    private volatile double averageReadSize = -1;
+
+    /**
+     * Records successful read including the transfer of the data.
+     *
+     * @param storage         storage read from
+     * @param latencyNanos    time of the request until the data were available
+     * @param bytes           size of the transferred data
+     * @param transferNanos   time of the transfer of the data
+     */
+    public void recordRead(Storage storage, long latencyNanos, long bytes, long transferNanos) {
+        synchronized (this) {
+            averageReadSize = averageReadSize < 0 ? bytes : ewma(averageReadSize, bytes);
+        }
+        stats(storage).record(latencyNanos / 1e6, transferNanos > 0 ? bytes / (transferNanos / 1e9) : -1, false);
+    }
+
+    /**
+     * Records successful request to the storage whose data are transferred later without measurement, e.g. when
+     * they are streamed to the client.
+     *
+     * @param storage      storage read from
+     * @param latencyNanos time of the request until the data were available
+     */
+    public void recordLatency(Storage storage, long latencyNanos) {
+        stats(storage).record(latencyNanos / 1e6, -1, false);
+    }
+
+    /**
+     * Records read which has failed or returned corrupted data.
+     */
+    public void recordError(Storage storage) {
+        stats(storage).record(-1, -1, true);
+    }
+
+    /**
+     * Orders storage services of the same priority by the expected time of the read, or randomly with the probability
+     * of the exploration rate.
+     *
+     * @param storageServices services to order in place
+     */
+    public void order(List<StorageService> storageServices) {
+        Collections.shuffle(storageServices);
+        if (storageServices.size() < 2 || ThreadLocalRandom.current().nextDouble() < explorationRate)
+            return;
+        double size = Math.max(averageReadSize, 0);
+        Map<StorageService, Double> expectedTimes = new HashMap<>();
+        for (StorageService service : storageServices) {
+            Stats stats = statsByStorage.get(service.getStorage().getId());
+            expectedTimes.put(service, stats == null ? 0 : stats.expectedReadTime(size));
+        }
+        storageServices.sort(Comparator.comparing(expectedTimes::get));
+    }
+
+    /**
+     * @param storages storages whose statistics are returned
+     * @return statistics of the storages, storages without any measured read have zero statistics
+     */
+    public List<StorageReadStatsDto> getStats(Collection<Storage> storages) {
+        double size = Math.max(averageReadSize, 0);
+        List<StorageReadStatsDto> result = new ArrayList<>();
+        for (Storage storage : storages) {
+            Stats stats = statsByStorage.get(storage.getId());
+            if (stats == null)
+                result.add(new StorageReadStatsDto(storage.getId(), storage.getName(), 0, 0, 0, 0, 0, 0));
+            else
+                result.add(stats.toDto(storage, size));
+        }
+        return result;
+    }
+
+    /**
+     * @param explorationRate probability that the storages of the same priority are ordered randomly, between 0 and 1
+     */
+    @Inject
+    public void setExplorationRate(@Value("${arcstorage.read-selection.exploration-rate:0.1}") double explorationRate) {
+        if (explorationRate < 0 || explorationRate > 1)
+            throw new IllegalArgumentException("exploration rate must be between 0 and 1, was: " + explorationRate);
+        this.explorationRate = explorationRate;
+    }
+
+    private Stats stats(Storage storage) {
+        return statsByStorage.computeIfAbsent(storage.getId(), id -> new Stats());
+    }
+
+    private static double ewma(double average, double sample) {
+        return average + ALPHA * (sample - average);
+    }
+
+    private static class Stats {
+        private double latency = -1;
+        private double throughput = -1;
+        private double errorRate;
+        private long reads;
+        private long errors;
+
+        /**
+         * @param latency    latency of the read in milliseconds, negative if not measured
+         * @param throughput throughput of the read in bytes per second, negative if not measured
+         * @param error      whether the read has failed
+         */
+        private synchronized void record(double latency, double throughput, boolean error) {
+            reads++;
+            if (error)
+                errors++;
+            errorRate = ewma(errorRate, error ? 1 : 0);
+            if (latency >= 0)
+                this.latency = this.latency < 0 ? latency : ewma(this.latency, latency);
+            if (throughput > 0)
+                this.throughput = this.throughput < 0 ? throughput : ewma(this.throughput, throughput);
+        }
+
+        /**
+         * @param size size of the object in bytes
+         * @return expected time of the read in milliseconds, penalized by the error rate as failed read has to be
+         * repeated at other storage, infinity if no read has succeeded yet
+         */
+        private synchronized double expectedReadTime(double size) {
+            if (errors == reads)
+                return Double.POSITIVE_INFINITY;
+            double time = Math.max(latency, 0);
+            if (throughput > 0)
+                time += size / throughput * 1000;
+            return time / (1 - Math.min(errorRate, MAX_ERROR_RATE));
+        }
+
+        private synchronized StorageReadStatsDto toDto(Storage storage, double size) {
+            double expectedReadTime = expectedReadTime(size);
+            return new StorageReadStatsDto(storage.getId(), storage.getName(), Math.max(latency, 0),
+                    Math.max(throughput, 0), errorRate, reads, errors, Double.isInfinite(expectedReadTime) ? -1 : expectedReadTime);
+        }
+    }
+}
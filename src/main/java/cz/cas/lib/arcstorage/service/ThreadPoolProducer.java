@@ -13,11 +13,14 @@ public class ThreadPoolProducer {
 
     private ExecutorService executorService;
     private ExecutorService reservedExecutorService;
+    private ExecutorService retrievalExecutorService;
 
     public ThreadPoolProducer(@Value("${arcstorage.thread-count}") int threadCount,
-                              @Value("${arcstorage.reserved-thread-count}") int reservedThreadCount) {
+                              @Value("${arcstorage.reserved-thread-count}") int reservedThreadCount,
+                              @Value("${arcstorage.retrieval-thread-count:8}") int retrievalThreadCount) {
         executorService = Executors.newFixedThreadPool(threadCount);
         reservedExecutorService = Executors.newFixedThreadPool(reservedThreadCount);
+        retrievalExecutorService = Executors.newFixedThreadPool(retrievalThreadCount);
     }
 
     @Bean
@@ -30,4 +33,12 @@ public class ThreadPoolProducer {
     public ExecutorService reservedExecutorService() {
         return reservedExecutorService;
     }
+
+    /**
+     * pool for transfers of the parts of retrieved AIPs, its tasks must not wait for other tasks of the pool
+     */
+    @Bean(name = "RetrievalExecutorService")
+    public ExecutorService retrievalExecutorService() {
+        return retrievalExecutorService;
+    }
 }
\ No newline at end of file
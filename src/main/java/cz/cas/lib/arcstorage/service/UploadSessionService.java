@@ -0,0 +1,358 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.UploadSessionDto;
+import cz.cas.lib.arcstorage.exception.BadRequestException;
+import cz.cas.lib.arcstorage.exception.ConflictObject;
+import cz.cas.lib.arcstorage.exception.ForbiddenByConfigException;
+import cz.cas.lib.arcstorage.exception.MissingObject;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static cz.cas.lib.arcstorage.storage.StorageUtils.checksumComputationPrecheck;
+import static cz.cas.lib.arcstorage.util.Utils.bytesToHexString;
+
+/**
+ * Sessions of chunked uploads of SIPs. The SIP of the session is assembled in a file at the tmp folder, every chunk is
+ * written to its position in the file as it is received, so chunks may be uploaded in any order and in parallel and a
+ * failed chunk is simply uploaded again. Once all chunks are received, the file is committed to
+ * {@link ArchivalService#saveAip(cz.cas.lib.arcstorage.dto.AipDto, Path)}.
+ * <p>
+ * Sessions are kept in memory, sessions without any activity for the configured timeout are removed together with
+ * their files. Files of sessions lost by a restart are removed at startup. Count of sessions and their total size are
+ * limited by the configuration.
+ * </p>
+ */
+@Slf4j
+@Service
+public class UploadSessionService {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String FILE_PREFIX = "upload-";
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private Path tmpFolder;
+    private long sessionTimeout;
+    private int maxSessions;
+    private long maxTotalSize;
+
+    /**
+     * Creates new session and allocates its file.
+     *
+     * @param userId    id of the user uploading the SIP, only this user can access the session
+     * @param size      size of the whole SIP in bytes
+     * @param chunkSize size of every chunk but the last one in bytes
+     * @return state of the created session
+     * @throws BadRequestException        if the sizes are not positive or there would be too many chunks
+     * @throws ForbiddenByConfigException if the session would exceed the max count of sessions or their max total size
+     */
+    public UploadSessionDto create(String userId, long size, int chunkSize) throws BadRequestException, IOException,
+            ForbiddenByConfigException {
+        if (size < 1 || chunkSize < 1)
+            throw new BadRequestException("size and chunk size must be positive, was: " + size + ", " + chunkSize);
+        long chunkCount = (size + chunkSize - 1) / chunkSize;
+        if (chunkCount > Integer.MAX_VALUE)
+            throw new BadRequestException("too many chunks: " + chunkCount + ", use larger chunk size");
+        Session session = new Session(UUID.randomUUID().toString(), userId, size, chunkSize, (int) chunkCount);
+        session.file = tmpFolder.resolve(FILE_PREFIX + session.id);
+        synchronized (sessions) {
+            if (sessions.size() >= maxSessions)
+                throw new ForbiddenByConfigException("there are already " + sessions.size() + " upload sessions, which is the limit");
+            long totalSize = 0;
+            for (Session existing : sessions.values()) {
+                totalSize += existing.size;
+            }
+            if (totalSize + size > maxTotalSize)
+                throw new ForbiddenByConfigException("upload sessions of total size " + totalSize + " bytes and the new " +
+                        "session of size " + size + " bytes would exceed the limit of " + maxTotalSize + " bytes");
+            sessions.put(session.id, session);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(session.file.toFile(), "rw")) {
+            file.setLength(size);
+        } catch (IOException e) {
+            sessions.remove(session.id);
+            Files.deleteIfExists(session.file);
+            throw e;
+        }
+        log.info("Upload session " + session.id + " of " + chunkCount + " chunks of SIP of size " + size + " has been created.");
+        return session.toDto();
+    }
+
+    /**
+     * Writes the chunk to its position in the file of the session and validates its checksum computed during the write.
+     * The chunk is marked as received only if the checksum matches.
+     *
+     * @param id       id of the session
+     * @param userId   id of the user uploading the SIP
+     * @param index    index of the chunk, starting from 0
+     * @param content  content of the chunk, not closed by this method
+     * @param checksum expected checksum of the chunk
+     * @throws InvalidChecksumException if the checksum does not match
+     * @throws BadRequestException      if the index is out of range or the length of the content does not match the
+     *                                  length of the chunk
+     */
+    public void writeChunk(String id, String userId, int index, InputStream content, Checksum checksum)
+            throws IOException, BadRequestException {
+        Session session = find(id, userId);
+        if (index < 0 || index >= session.chunkCount)
+            throw new BadRequestException("chunk index must be between 0 and " + (session.chunkCount - 1) + ", was: " + index);
+        session.startWrite(index);
+        try {
+            writeChunk(session, index, content, checksum);
+        } finally {
+            session.finishWrite();
+        }
+    }
+
+    private void writeChunk(Session session, int index, InputStream content, Checksum checksum) throws IOException,
+            BadRequestException {
+        long position = (long) index * session.chunkSize;
+        long length = Math.min(session.chunkSize, session.size - position);
+        MessageDigest digest = checksumComputationPrecheck(content, checksum.getType());
+        long written = 0;
+        try (FileChannel channel = FileChannel.open(session.file, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = content.read(buffer, 0, (int) Math.min(buffer.length, length - written + 1))) != -1) {
+                if (written + read > length)
+                    throw new BadRequestException("chunk " + index + " is longer than " + length + " bytes");
+                digest.update(buffer, 0, read);
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer, position + written + byteBuffer.position());
+                }
+                written += read;
+            }
+        }
+        if (written != length)
+            throw new BadRequestException("chunk " + index + " has " + written + " bytes, expected " + length);
+        Checksum computedChecksum = new Checksum(checksum.getType(), bytesToHexString(digest.digest()));
+        if (!checksum.equals(computedChecksum))
+            throw new InvalidChecksumException(computedChecksum, checksum);
+        session.received(index);
+    }
+
+    /**
+     * @param id     id of the session
+     * @param userId id of the user uploading the SIP
+     * @return state of the session
+     */
+    public UploadSessionDto get(String id, String userId) {
+        return find(id, userId).toDto();
+    }
+
+    /**
+     * Starts the commit of the session: no more chunks are accepted until {@link #finishCommit(String, boolean)} is
+     * called.
+     *
+     * @param id     id of the session
+     * @param userId id of the user uploading the SIP
+     * @return file with the whole SIP
+     * @throws BadRequestException if some chunks have not been received yet
+     */
+    public Path startCommit(String id, String userId) throws BadRequestException {
+        Session session = find(id, userId);
+        synchronized (session) {
+            if (session.committing)
+                throw new ConflictObject("upload session " + id + " is being committed");
+            if (session.activeWrites > 0)
+                throw new ConflictObject("chunks of upload session " + id + " are being written");
+            int missing = session.chunkCount - session.receivedChunks.cardinality();
+            if (missing > 0)
+                throw new BadRequestException(missing + " chunks of upload session " + id + " have not been received yet");
+            session.committing = true;
+        }
+        return session.file;
+    }
+
+    /**
+     * Finishes the commit of the session.
+     *
+     * @param id      id of the session
+     * @param success true if the SIP has been passed for storing, the session is then removed, otherwise it accepts
+     *                chunks again and can be committed again
+     */
+    public void finishCommit(String id, boolean success) {
+        Session session = sessions.get(id);
+        if (session == null)
+            return;
+        if (success) {
+            sessions.remove(id);
+            log.info("Upload session " + id + " has been committed.");
+            return;
+        }
+        synchronized (session) {
+            session.committing = false;
+            session.touch();
+        }
+    }
+
+    /**
+     * Removes the session and its file.
+     *
+     * @param id     id of the session
+     * @param userId id of the user uploading the SIP
+     */
+    public void remove(String id, String userId) throws IOException {
+        Session session = find(id, userId);
+        if (session.isCommitting())
+            throw new ConflictObject("upload session " + id + " is being committed");
+        sessions.remove(id);
+        Files.deleteIfExists(session.file);
+        log.info("Upload session " + id + " has been removed.");
+    }
+
+    /**
+     * Removes sessions without any activity for the session timeout, together with their files.
+     */
+    @Scheduled(fixedDelayString = "${arcstorage.upload.expiration-check-interval:600000}")
+    public void removeExpiredSessions() {
+        long now = System.currentTimeMillis();
+        for (Session session : new ArrayList<>(sessions.values())) {
+            synchronized (session) {
+                if (session.committing || now - session.lastActivity <= sessionTimeout)
+                    continue;
+                sessions.remove(session.id);
+            }
+            try {
+                Files.deleteIfExists(session.file);
+                log.info("Upload session " + session.id + " has expired and has been removed.");
+            } catch (IOException e) {
+                log.error("Could not delete file of expired upload session " + session.id + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Removes files of sessions which have been lost, e.g. by a restart of the application. Called at startup.
+     */
+    @PostConstruct
+    public void removeOrphanedFiles() {
+        if (!Files.isDirectory(tmpFolder))
+            return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmpFolder, FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                if (sessions.containsKey(file.getFileName().toString().substring(FILE_PREFIX.length())))
+                    continue;
+                Files.deleteIfExists(file);
+                log.info("Orphaned file " + file + " of upload session has been removed.");
+            }
+        } catch (IOException e) {
+            log.error("Could not remove orphaned files of upload sessions: " + e);
+        }
+    }
+
+    private Session find(String id, String userId) {
+        Session session = sessions.get(id);
+        if (session == null || !session.userId.equals(userId))
+            throw new MissingObject("upload session", id);
+        session.touch();
+        return session;
+    }
+
+    @Inject
+    public void setTmpFolder(@Value("${arcstorage.tmp-folder}") String path) {
+        this.tmpFolder = Paths.get(path);
+    }
+
+    /**
+     * @param sessionTimeout time in milliseconds without any activity after which the session expires
+     */
+    @Inject
+    public void setSessionTimeout(@Value("${arcstorage.upload.session-timeout:86400000}") long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * @param maxSessions max count of sessions existing at the same time
+     */
+    @Inject
+    public void setMaxSessions(@Value("${arcstorage.upload.max-sessions:100}") int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * @param maxTotalSize max total size of SIPs of all sessions in bytes
+     */
+    @Inject
+    public void setMaxTotalSize(@Value("${arcstorage.upload.max-total-size:1099511627776}") long maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    private static class Session {
+        private final String id;
+        private final String userId;
+        private final long size;
+        private final int chunkSize;
+        private final int chunkCount;
+        private final BitSet receivedChunks = new BitSet();
+        private Path file;
+        private boolean committing;
+        private int activeWrites;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private Session(String id, String userId, long size, int chunkSize, int chunkCount) {
+            this.id = id;
+            this.userId = userId;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+        }
+
+        private void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        private synchronized boolean isCommitting() {
+            return committing;
+        }
+
+        /**
+         * The chunk is no longer considered received as its content is being overwritten.
+         */
+        private synchronized void startWrite(int index) {
+            if (committing)
+                throw new ConflictObject("upload session " + id + " is being committed");
+            receivedChunks.clear(index);
+            activeWrites++;
+        }
+
+        private synchronized void finishWrite() {
+            activeWrites--;
+        }
+
+        private synchronized void received(int index) {
+            receivedChunks.set(index);
+        }
+
+        private synchronized UploadSessionDto toDto() {
+            List<Integer> missingChunks = new ArrayList<>();
+            for (int i = receivedChunks.nextClearBit(0); i < chunkCount; i = receivedChunks.nextClearBit(i + 1)) {
+                missingChunks.add(i);
+            }
+            return new UploadSessionDto(id, size, chunkSize, chunkCount, missingChunks);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.ArchivalObjectDto;
+import cz.cas.lib.arcstorage.dto.Checksum;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers copies of objects at storages which were read whole and whose checksum matched, together with their size.
+ * Checksum of a range can not be verified, so ranges of an object are served only from a storage whose copy is
+ * remembered here: the whole copy is verified once and its ranges are then read without verification.
+ * <p>
+ * Entries are keyed by the storage, database id and checksum of the object and expire after the configured time so
+ * that the copies are read whole again from time to time. The least recently used entries are evicted first.
+ * </p>
+ */
+@Service
+public class VerifiedCopyCache {
+
+    private final long ttl;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /**
+     * @param ttl        time in milliseconds for which the verification of a copy is valid
+     * @param maxEntries maximal number of remembered copies
+     */
+    @Inject
+    public VerifiedCopyCache(@Value("${arcstorage.ranged-read.verification-ttl:86400000}") long ttl,
+                             @Value("${arcstorage.ranged-read.max-verified-copies:10000}") int maxEntries) {
+        if (ttl < 0 || maxEntries < 0)
+            throw new IllegalArgumentException("limits of verified copy cache must not be negative, ttl: " + ttl
+                    + ", max entries: " + maxEntries);
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param objectDto object with its expected checksum
+     * @param storage   storage of the copy
+     * @return size of the copy in bytes, null if the copy was not verified or its verification has expired
+     */
+    public synchronized Long getSize(ArchivalObjectDto objectDto, Storage storage) {
+        String key = key(objectDto, storage);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.checksum.equals(objectDto.getChecksum()))
+            return null;
+        if (System.currentTimeMillis() - entry.verified > ttl) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.size;
+    }
+
+    /**
+     * Remembers the copy which was read whole and whose checksum matched the checksum of the DTO.
+     *
+     * @param objectDto object with its expected checksum
+     * @param storage   storage of the copy
+     * @param size      size of the copy in bytes
+     */
+    public synchronized void put(ArchivalObjectDto objectDto, Storage storage, long size) {
+        entries.put(key(objectDto, storage), new Entry(objectDto.getChecksum(), size, System.currentTimeMillis()));
+    }
+
+    /**
+     * Forgets the copy, e.g. once it was found corrupted.
+     */
+    public synchronized void invalidate(ArchivalObjectDto objectDto, Storage storage) {
+        entries.remove(key(objectDto, storage));
+    }
+
+    private String key(ArchivalObjectDto objectDto, Storage storage) {
+        return storage.getId() + "/" + objectDto.getDatabaseId();
+    }
+
+    private static class Entry {
+        private final Checksum checksum;
+        private final long size;
+        private final long verified;
+
+        private Entry(Checksum checksum, long size, long verified) {
+            this.checksum = checksum;
+            this.size = size;
+            this.verified = verified;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package cz.cas.lib.arcstorage.service.exception;
+
+import lombok.Getter;
+
+/**
+ * Thrown when the requested range starts beyond the end of the object.
+ */
+@Getter
+public class RangeNotSatisfiableException extends Exception {
+    private long objectSize;
+
+    public RangeNotSatisfiableException(String objectId, long objectSize) {
+        super("requested range of object " + objectId + " is not satisfiable, size of the object is " + objectSize);
+        this.objectSize = objectSize;
+    }
+}
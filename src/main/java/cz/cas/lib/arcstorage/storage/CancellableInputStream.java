@@ -0,0 +1,64 @@
+package cz.cas.lib.arcstorage.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream which counts the bytes read through it and which can be cancelled from other thread. Once cancelled, every
+ * following read throws {@link InterruptedIOException}, so the reader stops at the next read call without the
+ * underlying stream being closed concurrently.
+ */
+public class CancellableInputStream extends FilterInputStream {
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile boolean cancelled;
+
+    public CancellableInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        int b = super.read();
+        if (b != -1)
+            bytesRead.incrementAndGet();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkCancelled();
+        int read = super.read(b, off, len);
+        if (read > 0)
+            bytesRead.addAndGet(read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkCancelled();
+        long skipped = super.skip(n);
+        bytesRead.addAndGet(skipped);
+        return skipped;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled)
+            throw new InterruptedIOException("read has been cancelled");
+    }
+}
@@ -0,0 +1,73 @@
+package cz.cas.lib.arcstorage.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of equally sized chunks shared by several {@link FanOutReader}s, so that the memory used by all readers
+ * together is bounded regardless of the number of concurrent readers. Chunks are allocated lazily, up to the max count,
+ * released chunks are kept for reuse.
+ */
+public class ChunkPool {
+    private final int chunkSize;
+    private final int maxCount;
+    private final Deque<byte[]> free = new ArrayDeque<>();
+    private int allocated;
+
+    /**
+     * @param chunkSize size of the chunk in bytes
+     * @param maxCount  max number of chunks allocated
+     */
+    public ChunkPool(int chunkSize, int maxCount) {
+        if (chunkSize < 1 || maxCount < 1)
+            throw new IllegalArgumentException("chunk size and max count must be positive, was: " + chunkSize + ", " + maxCount);
+        this.chunkSize = chunkSize;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * @return chunk or null if all chunks are in use
+     */
+    public synchronized byte[] tryAcquire() {
+        if (!free.isEmpty())
+            return free.pop();
+        if (allocated < maxCount) {
+            allocated++;
+            return new byte[chunkSize];
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a chunk is available.
+     *
+     * @return chunk
+     */
+    public synchronized byte[] acquire() throws InterruptedException {
+        byte[] chunk;
+        while ((chunk = tryAcquire()) == null) {
+            wait();
+        }
+        return chunk;
+    }
+
+    public synchronized void release(byte[] chunk) {
+        free.push(chunk);
+        notifyAll();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * @return number of chunks in use
+     */
+    public synchronized int getUsedCount() {
+        return allocated - free.size();
+    }
+}
@@ -0,0 +1,324 @@
+package cz.cas.lib.arcstorage.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Reads the source once and feeds the data to several consumers, e.g. to writers of all storages, so that the source
+ * is not read by every consumer on its own.
+ * <p>
+ * The data are kept in a ring of chunks, a chunk is reused once it has been read by all consumers. Consumers read at
+ * their own pace, the consumer which needs a chunk not read from the source yet reads it. If the ring is full, the
+ * consumers which lag behind by the whole ring are detached: they continue by reading the source on their own, from
+ * the position they have reached, so that a slow consumer never slows down the others.
+ * </p>
+ * <p>
+ * Chunks of the ring are taken from the {@link ChunkPool} shared by all readers, one at a time as the source is read.
+ * If the pool has no free chunk, the ring stops growing and is reused at its current size, so that the memory used by
+ * all readers together is bounded. The chunks are returned to the pool once all consumers are closed.
+ * </p>
+ * <p>
+ * A source which can be read only once, e.g. a stream of the request, is read by
+ * {@link #FanOutReader(String, InputStream, int, long)}. Its consumers can not be detached, so the reading of the
+ * source waits until the consumers lagging behind by the whole ring read the oldest chunk.
+ * </p>
+ * <p>
+ * All consumers should be created by {@link #newInputStream()} before any of them starts reading, consumer created
+ * after the first chunk has been reused starts detached. The source is closed when all consumers are closed.
+ * </p>
+ */
+@Slf4j
+public class FanOutReader {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final String name;
+    private final Source source;
+    private final boolean reopenable;
+    private final ChunkPool chunkPool;
+    private final int chunkSize;
+    /**
+     * max number of chunks of the ring
+     */
+    private final int maxRingSize;
+    private final List<byte[]> ring = new ArrayList<>();
+    private final int[] chunkLengths;
+    private final List<Consumer> consumers = new ArrayList<>();
+    /**
+     * true once the ring does not grow any more and its chunks are reused
+     */
+    private boolean ringComplete;
+    private boolean chunksReleased;
+    private InputStream sourceStream;
+    /**
+     * number of chunks read from the source
+     */
+    private long chunksRead;
+    private boolean sourceReading;
+    private boolean eof;
+    private IOException sourceError;
+
+    /**
+     * @param name      name of the source, used for logging
+     * @param source    opens the source, called once for the shared read and once for every detached consumer
+     * @param chunkPool pool of the chunks of the ring
+     * @param maxLag    maximal number of bytes by which the consumer may lag behind the fastest one before it is
+     *                  detached, rounded up to whole chunks, lower if the pool has not enough free chunks
+     */
+    public FanOutReader(String name, Source source, ChunkPool chunkPool, long maxLag) {
+        this(name, source, true, chunkPool, maxLag);
+    }
+
+    /**
+     * @param name      name of the source, used for logging
+     * @param stream    source which can be read only once, closed when all consumers are closed
+     * @param chunkPool pool of the chunks of the ring
+     * @param maxLag    maximal number of bytes by which the consumer may lag behind the fastest one before the fastest
+     *                  one waits, rounded up to whole chunks, lower if the pool has not enough free chunks
+     */
+    public FanOutReader(String name, InputStream stream, ChunkPool chunkPool, long maxLag) {
+        this(name, () -> {
+            throw new IOException(name + " can be read only once");
+        }, false, chunkPool, maxLag);
+        this.sourceStream = stream;
+    }
+
+    private FanOutReader(String name, Source source, boolean reopenable, ChunkPool chunkPool, long maxLag) {
+        Objects.requireNonNull(chunkPool);
+        if (maxLag < 1)
+            throw new IllegalArgumentException("max lag must be positive, was: " + maxLag);
+        this.name = name;
+        this.source = source;
+        this.reopenable = reopenable;
+        this.chunkPool = chunkPool;
+        this.chunkSize = chunkPool.getChunkSize();
+        this.maxRingSize = (int) Math.min(chunkPool.getMaxCount(), (maxLag + chunkSize - 1) / chunkSize);
+        this.chunkLengths = new int[maxRingSize];
+    }
+
+    /**
+     * @return stream of the whole source for a new consumer
+     * @throws IllegalStateException if the source can be read only once and the first chunk has been already reused
+     */
+    public synchronized InputStream newInputStream() {
+        Consumer consumer = new Consumer();
+        if (chunksReleased || (ringComplete && chunksRead >= ring.size())) {
+            if (!reopenable)
+                throw new IllegalStateException(name + " can be read only once, its beginning has been already consumed");
+            consumer.detached = true;
+        }
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    /**
+     * @return number of consumers which have been detached and read the source on their own
+     */
+    public synchronized int getDetachedCount() {
+        return (int) consumers.stream().filter(consumer -> consumer.detached).count();
+    }
+
+    /**
+     * @return exception thrown by the shared read of the source, null if there has been none
+     */
+    public synchronized IOException getSourceError() {
+        return sourceError;
+    }
+
+    /**
+     * Reads next chunk of the source to the ring. Called by the consumer which has read all chunks read so far, after
+     * it has set {@link #sourceReading}. The source is read without holding the monitor, so that other consumers can
+     * read the ring meanwhile. Until the ring is complete, a new chunk is taken from the pool for every chunk read, the
+     * first one is waited for. Consumers which still need the chunk being overwritten are detached, or waited for if
+     * the source can not be reopened.
+     */
+    private void readChunk() {
+        int slot;
+        byte[] newChunk = null;
+        boolean firstChunk;
+        synchronized (this) {
+            firstChunk = ring.isEmpty() && !ringComplete;
+        }
+        if (firstChunk) {
+            try {
+                newChunk = chunkPool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (this) {
+                    sourceError = new InterruptedIOException("interrupted while waiting for a free chunk for " + name);
+                    sourceReading = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        synchronized (this) {
+            if (!ringComplete) {
+                if (newChunk == null)
+                    newChunk = chunkPool.tryAcquire();
+                if (newChunk != null)
+                    ring.add(newChunk);
+                ringComplete = newChunk == null || ring.size() == maxRingSize;
+            }
+            long overwrittenChunk = chunksRead - ring.size();
+            while (!reopenable && consumers.stream().anyMatch(consumer -> !consumer.closed && consumer.chunk <= overwrittenChunk)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sourceError = new InterruptedIOException("interrupted while waiting for consumers of " + name);
+                    sourceReading = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            for (Consumer consumer : consumers) {
+                if (!consumer.closed && !consumer.detached && consumer.chunk <= overwrittenChunk) {
+                    consumer.detached = true;
+                    log.info("Consumer of " + name + " lags behind by " + ring.size() * (long) chunkSize +
+                            " bytes, it continues by reading the source on its own.");
+                }
+            }
+            slot = (int) (chunksRead % ring.size());
+        }
+        int read = 0;
+        IOException error = null;
+        try {
+            if (sourceStream == null)
+                sourceStream = source.open();
+            read = IOUtils.read(sourceStream, ring.get(slot));
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            if (error != null)
+                sourceError = error;
+            else {
+                chunkLengths[slot] = read;
+                if (read > 0)
+                    chunksRead++;
+                if (read < chunkSize)
+                    eof = true;
+            }
+            sourceReading = false;
+            releaseChunks();
+            notifyAll();
+        }
+    }
+
+    private synchronized void consumerClosed() {
+        if (consumers.stream().allMatch(consumer -> consumer.closed))
+            IOUtils.closeQuietly(sourceStream);
+        releaseChunks();
+        notifyAll();
+    }
+
+    /**
+     * Returns the chunks of the ring to the pool once all consumers are closed and the source is not being read.
+     */
+    private synchronized void releaseChunks() {
+        if (chunksReleased || sourceReading || !consumers.stream().allMatch(consumer -> consumer.closed))
+            return;
+        ring.forEach(chunkPool::release);
+        ring.clear();
+        ringComplete = true;
+        chunksReleased = true;
+    }
+
+    /**
+     * Source which can be opened repeatedly, every opening returns stream of the whole source.
+     */
+    @FunctionalInterface
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private class Consumer extends InputStream {
+        /**
+         * index of the chunk read by the consumer
+         */
+        private long chunk;
+        private int chunkPosition;
+        private boolean detached;
+        private boolean closed;
+        /**
+         * own stream of the source, opened once the consumer is detached
+         */
+        private InputStream ownStream;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (true) {
+                synchronized (FanOutReader.this) {
+                    if (closed)
+                        throw new IOException("stream of " + name + " is closed");
+                    if (detached)
+                        break;
+                    if (chunk < chunksRead) {
+                        int slot = (int) (chunk % ring.size());
+                        int read = Math.min(len, chunkLengths[slot] - chunkPosition);
+                        System.arraycopy(ring.get(slot), chunkPosition, b, off, read);
+                        chunkPosition += read;
+                        if (chunkPosition == chunkLengths[slot]) {
+                            chunk++;
+                            chunkPosition = 0;
+                            if (!reopenable)
+                                FanOutReader.this.notifyAll();
+                        }
+                        return read;
+                    }
+                    if (sourceError != null)
+                        throw new IOException("reading of " + name + " has failed", sourceError);
+                    if (eof)
+                        return -1;
+                    if (sourceReading) {
+                        try {
+                            FanOutReader.this.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("interrupted while waiting for " + name);
+                        }
+                        continue;
+                    }
+                    sourceReading = true;
+                }
+                readChunk();
+            }
+            return readOwnStream(b, off, len);
+        }
+
+        private int readOwnStream(byte[] b, int off, int len) throws IOException {
+            if (ownStream == null) {
+                ownStream = source.open();
+                IOUtils.skipFully(ownStream, chunk * chunkSize + chunkPosition);
+            }
+            return ownStream.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (FanOutReader.this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+            IOUtils.closeQuietly(ownStream);
+            consumerClosed();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package cz.cas.lib.arcstorage.storage;
+
+import cz.cas.lib.arcstorage.dto.ObjectRangeRetrievalResource;
+import cz.cas.lib.arcstorage.dto.ObjectRetrievalResource;
+import cz.cas.lib.arcstorage.storage.exception.StorageException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+/**
+ * Reads large objects by several concurrent ranged reads, so that the retrieval is not limited by the throughput of a
+ * single connection (TCP window of the HTTP connection, window of the SSH channel).
+ * <p>
+ * The object is opened by a read of the whole object which reveals its size. Objects smaller than the threshold are
+ * read by that single stream. Otherwise only the first part is read from that stream and the following parts are read
+ * by ranged reads, at most connections - 1 of them running concurrently with the one being returned. Parts are
+ * returned in order, so the caller gets the same stream as if the object was read by a single read and verifies the
+ * checksum of the whole object as usual. Parts read ahead are kept in memory, so at most connections * part size bytes
+ * are held per retrieval.
+ * </p>
+ * <p>
+ * Parts are read ahead by a pool of threads shared by all retrievals of the reader and the number of parts read ahead
+ * by all retrievals together, running or kept in memory, is bounded. If the bound is reached, the retrieval reads its
+ * next part only once it is needed, by a ranged read in the calling thread which is not kept in memory.
+ * </p>
+ */
+@Slf4j
+public class ParallelRangeReader {
+    public static final int DEFAULT_CONNECTIONS = 1;
+    public static final long DEFAULT_THRESHOLD = 256 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_READ_AHEAD_PARTS = 8;
+
+    /**
+     * reader which reads every object by a single stream
+     */
+    public static final ParallelRangeReader DISABLED = new ParallelRangeReader(1, DEFAULT_THRESHOLD, DEFAULT_PART_SIZE);
+
+    private final int connections;
+    private final long threshold;
+    private final int partSize;
+    /**
+     * Part reads wait for the storage, they run in their own threads so that they do not exhaust other executors.
+     * Threads are created on demand, up to the max number of parts read ahead, and end once they are idle.
+     */
+    private final ThreadPoolExecutor partReadExecutor;
+    /**
+     * one permit for every part read ahead, taken when the read is scheduled and returned when the part is consumed
+     */
+    private final Semaphore readAheadPermits;
+
+    /**
+     * @param connections maximal number of concurrent reads of the object, 1 disables ranged reads
+     * @param threshold   size in bytes from which the object is read by ranged reads
+     * @param partSize    size of the part read by one ranged read in bytes
+     */
+    public ParallelRangeReader(int connections, long threshold, int partSize) {
+        this(connections, threshold, partSize, DEFAULT_MAX_READ_AHEAD_PARTS);
+    }
+
+    /**
+     * @param connections        maximal number of concurrent reads of the object, 1 disables ranged reads
+     * @param threshold          size in bytes from which the object is read by ranged reads
+     * @param partSize           size of the part read by one ranged read in bytes
+     * @param maxReadAheadParts  maximal number of parts read ahead by all retrievals together, also the max number of
+     *                           threads reading the parts
+     */
+    public ParallelRangeReader(int connections, long threshold, int partSize, int maxReadAheadParts) {
+        if (connections < 1 || threshold < 0 || partSize < 1 || maxReadAheadParts < 1)
+            throw new IllegalArgumentException("connections, part size and max read ahead parts must be positive and threshold must not be negative, was: "
+                    + connections + ", " + partSize + ", " + maxReadAheadParts + ", " + threshold);
+        this.connections = connections;
+        this.threshold = threshold;
+        this.partSize = partSize;
+        this.readAheadPermits = new Semaphore(maxReadAheadParts);
+        this.partReadExecutor = new ThreadPoolExecutor(maxReadAheadParts, maxReadAheadParts, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "parallel-range-read");
+            t.setDaemon(true);
+            return t;
+        });
+        this.partReadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return false if the objects should be read by {@link StorageService#getObject(String, String)} as usual
+     */
+    public boolean isEnabled() {
+        return connections > 1;
+    }
+
+    /**
+     * Reads the object, by ranged reads if it is large enough.
+     *
+     * @param id     id of the object, used for logging
+     * @param ranges ranged reads of the object
+     * @return stream of the whole object
+     * @throws StorageException if the object could not be opened
+     */
+    public ObjectRetrievalResource getObject(String id, RangeSource ranges) throws StorageException {
+        ObjectRangeRetrievalResource whole = ranges.getRange(0, Long.MAX_VALUE);
+        whole.setSize(whole.getObjectSize());
+        if (whole.getObjectSize() < threshold || whole.getObjectSize() <= partSize)
+            return whole;
+        log.debug("Reading object " + id + " of size " + whole.getObjectSize() + " by " + connections + " concurrent ranged reads.");
+        PartsInputStream parts = new PartsInputStream(id, ranges, whole);
+        ObjectRetrievalResource resource = new ObjectRetrievalResource(parts, parts);
+        resource.setSize(whole.getObjectSize());
+        return resource;
+    }
+
+    /**
+     * Ranged read of the object at the storage, see {@link StorageService#getObjectRange(String, String, long, long)}.
+     */
+    @FunctionalInterface
+    public interface RangeSource {
+        ObjectRangeRetrievalResource getRange(long offset, long length) throws StorageException;
+    }
+
+    /**
+     * Returns the first part from the stream of the whole object and the following parts from the ranged reads, in
+     * order.
+     */
+    private class PartsInputStream extends InputStream {
+        private final String id;
+        private final RangeSource ranges;
+        private final long objectSize;
+        private final Deque<Future<byte[]>> partReads = new ArrayDeque<>();
+        /**
+         * stream of the whole object, null once the first part has been read
+         */
+        private ObjectRangeRetrievalResource whole;
+        private InputStream current;
+        /**
+         * ranged read of the current part if it is read in the calling thread, null otherwise
+         */
+        private ObjectRangeRetrievalResource currentRange;
+        private long position;
+        private long currentEnd;
+        private long nextPartOffset;
+        private boolean closed;
+
+        private PartsInputStream(String id, RangeSource ranges, ObjectRangeRetrievalResource whole) {
+            this.id = id;
+            this.ranges = ranges;
+            this.objectSize = whole.getObjectSize();
+            this.whole = whole;
+            this.current = whole.getInputStream();
+            this.currentEnd = partSize;
+            this.nextPartOffset = partSize;
+            scheduleReads();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("stream of object " + id + " is closed");
+            if (len == 0)
+                return 0;
+            if (position == objectSize)
+                return -1;
+            if (position == currentEnd)
+                nextPart();
+            int read = current.read(b, off, (int) Math.min(len, currentEnd - position));
+            if (read == -1)
+                throw new EOFException("object " + id + " ended at " + position + " bytes, expected " + objectSize);
+            position += read;
+            return read;
+        }
+
+        private void nextPart() throws IOException {
+            if (whole != null) {
+                whole.closeWithoutDelay();
+                whole = null;
+            }
+            closeCurrentRange();
+            Future<byte[]> partRead = partReads.poll();
+            if (partRead == null) {
+                readNextPartDirectly();
+                scheduleReads();
+                return;
+            }
+            byte[] part;
+            try {
+                part = partRead.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reading part of object " + id);
+            } catch (ExecutionException e) {
+                throw new IOException("reading part of object " + id + " has failed", e.getCause());
+            } finally {
+                readAheadPermits.release();
+            }
+            scheduleReads();
+            current = new ByteArrayInputStream(part);
+            currentEnd = position + part.length;
+        }
+
+        /**
+         * Reads the next part in the calling thread as no part has been read ahead, e.g. because the max number of
+         * parts read ahead by all retrievals has been reached.
+         */
+        private void readNextPartDirectly() throws IOException {
+            int length = (int) Math.min(partSize, objectSize - nextPartOffset);
+            try {
+                currentRange = openPart(nextPartOffset, length);
+            } catch (StorageException e) {
+                throw new IOException("reading part of object " + id + " has failed", e);
+            }
+            nextPartOffset += length;
+            current = currentRange.getInputStream();
+            currentEnd = position + length;
+        }
+
+        private void scheduleReads() {
+            while (partReads.size() < connections - 1 && nextPartOffset < objectSize && readAheadPermits.tryAcquire()) {
+                long offset = nextPartOffset;
+                int length = (int) Math.min(partSize, objectSize - offset);
+                partReads.add(partReadExecutor.submit(() -> readPart(offset, length)));
+                nextPartOffset += length;
+            }
+        }
+
+        private byte[] readPart(long offset, int length) throws StorageException, IOException {
+            ObjectRangeRetrievalResource range = openPart(offset, length);
+            try {
+                byte[] part = new byte[length];
+                IOUtils.readFully(range.getInputStream(), part);
+                return part;
+            } finally {
+                range.closeWithoutDelay();
+            }
+        }
+
+        /**
+         * @return ranged read of the part
+         * @throws IOException if the object has changed since the retrieval has started
+         */
+        private ObjectRangeRetrievalResource openPart(long offset, int length) throws StorageException, IOException {
+            ObjectRangeRetrievalResource range = ranges.getRange(offset, length);
+            if (range.getObjectSize() != objectSize || range.getLength() != length) {
+                range.closeWithoutDelay();
+                throw new IOException("object " + id + " has changed during the read, size: " + range.getObjectSize()
+                        + ", expected: " + objectSize);
+            }
+            return range;
+        }
+
+        private void closeCurrentRange() {
+            if (currentRange != null) {
+                IOUtils.closeQuietly(currentRange.getInputStream());
+                currentRange.closeWithoutDelay();
+                currentRange = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            for (Future<byte[]> partRead : partReads) {
+                partRead.cancel(false);
+                readAheadPermits.release();
+            }
+            partReads.clear();
+            closeCurrentRange();
+            if (whole != null)
+                whole.closeWithoutDelay();
+        }
+    }
+}
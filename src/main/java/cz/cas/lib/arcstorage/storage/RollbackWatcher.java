@@ -0,0 +1,114 @@
+package cz.cas.lib.arcstorage.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches rollback flags of in-flight transfers and runs the registered cancellation action (e.g. killing the
+ * connection) as soon as the flag is set. All flags are checked by a single shared thread, no thread is created per
+ * transfer. The flags are polled only while there is a registered transfer, the thread ends once it has been idle for
+ * a while.
+ */
+@Slf4j
+public final class RollbackWatcher {
+
+    /**
+     * interval of checking the rollback flags, in milliseconds
+     */
+    public static final long CHECK_INTERVAL = 10;
+
+    private static final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+    private static final ScheduledThreadPoolExecutor watcher = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "rollback-watcher");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Object pollingLock = new Object();
+    /**
+     * periodic check of the flags, null if there is nothing to watch
+     */
+    private static ScheduledFuture<?> polling;
+
+    static {
+        watcher.setKeepAliveTime(1, TimeUnit.MINUTES);
+        watcher.allowCoreThreadTimeOut(true);
+        watcher.setRemoveOnCancelPolicy(true);
+    }
+
+    private RollbackWatcher() {
+    }
+
+    /**
+     * Registers action which is run once the rollback flag is set. The action is run at most once, by the watcher
+     * thread, and has to be fast and non-blocking.
+     *
+     * @param rollback   rollback flag of the transfer
+     * @param onRollback cancellation action
+     * @return registration which has to be closed once the transfer has ended, the action is not run after that
+     */
+    public static Registration watch(AtomicBoolean rollback, Runnable onRollback) {
+        Registration registration = new Registration(rollback, onRollback);
+        registrations.add(registration);
+        synchronized (pollingLock) {
+            if (polling == null)
+                polling = watcher.scheduleWithFixedDelay(RollbackWatcher::checkRollbacks, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return registration;
+    }
+
+    /**
+     * @return number of transfers being watched
+     */
+    public static int getWatchedCount() {
+        return registrations.size();
+    }
+
+    /**
+     * @return true if the flags are being polled
+     */
+    static boolean isPolling() {
+        synchronized (pollingLock) {
+            return polling != null;
+        }
+    }
+
+    private static void checkRollbacks() {
+        for (Registration registration : registrations) {
+            if (registration.rollback.get() && registrations.remove(registration)) {
+                try {
+                    registration.onRollback.run();
+                } catch (RuntimeException e) {
+                    log.error("cancellation of transfer after rollback has failed", e);
+                }
+            }
+        }
+        synchronized (pollingLock) {
+            if (registrations.isEmpty() && polling != null) {
+                polling.cancel(false);
+                polling = null;
+            }
+        }
+    }
+
+    public static class Registration implements Closeable {
+        private final AtomicBoolean rollback;
+        private final Runnable onRollback;
+
+        private Registration(AtomicBoolean rollback, Runnable onRollback) {
+            this.rollback = rollback;
+            this.onRollback = onRollback;
+        }
+
+        @Override
+        public void close() {
+            registrations.remove(this);
+        }
+    }
+}
@@ -107,6 +107,19 @@ public interface StorageService {
      */
     ObjectRetrievalResource getObject(String id, String dataSpace) throws StorageException;
 
+    /**
+     * Retrieves reference to a byte range of the object, only the range is transferred from the storage. The range is
+     * not verified as the checksum is known only for the whole object, see {@link cz.cas.lib.arcstorage.service.VerifiedCopyCache}.
+     * Caller is responsible for calling {@link ObjectRetrievalResource#close()} once the stream is not needed anymore.
+     *
+     * @param id     of the object
+     * @param offset position of the first byte of the range
+     * @param length number of bytes of the range, must be positive, the range is truncated at the end of the object
+     * @return {@link ObjectRangeRetrievalResource} with opened stream of the range and size of the whole object
+     * @throws StorageException in the case of error
+     */
+    ObjectRangeRetrievalResource getObjectRange(String id, String dataSpace, long offset, long length) throws StorageException;
+
     /**
      * Deletes SIP object from storage. Must not fail if SIP is already physically deleted.
      * <p>
@@ -6,9 +6,13 @@ import cz.cas.lib.arcstorage.dto.ChecksumType;
 import cz.cas.lib.arcstorage.exception.GeneralException;
 import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.regex.Matcher;
@@ -112,6 +116,50 @@ public class StorageUtils {
         }
     }
 
+    /**
+     * Copies the stream to the file and validates checksum of the stream computed during the copy, so that the file does
+     * not have to be read again.
+     *
+     * @param inputStream stream to copy, not closed by this method
+     * @param target      file to which the stream is copied, replaced if it exists
+     * @param checksum    expected checksum of the stream
+     * @throws InvalidChecksumException if the computed checksum does not match, the file is copied anyway
+     */
+    public static void copyStreamAndValidateChecksum(InputStream inputStream, Path target, Checksum checksum) throws IOException {
+        MessageDigest digest = checksumComputationPrecheck(inputStream, checksum.getType());
+        Files.copy(new DigestInputStream(inputStream, digest), target, StandardCopyOption.REPLACE_EXISTING);
+        validateDigest(checksum, digest);
+    }
+
+    /**
+     * Reads the stream to memory and validates checksum of the stream computed during the read.
+     *
+     * @param inputStream stream to read, not closed by this method
+     * @param checksum    expected checksum of the stream
+     * @return content of the stream
+     * @throws InvalidChecksumException if the computed checksum does not match
+     */
+    public static byte[] readStreamAndValidateChecksum(InputStream inputStream, Checksum checksum) throws IOException {
+        MessageDigest digest = checksumComputationPrecheck(inputStream, checksum.getType());
+        byte[] content = IOUtils.toByteArray(new DigestInputStream(inputStream, digest));
+        validateDigest(checksum, digest);
+        return content;
+    }
+
+    private static void validateDigest(Checksum checksum, MessageDigest digest) throws InvalidChecksumException {
+        Checksum computedChecksum = new Checksum(checksum.getType(), bytesToHexString(digest.digest()));
+        if (!checksum.equals(computedChecksum)) {
+            throw new InvalidChecksumException(computedChecksum, checksum);
+        }
+    }
+
+    /**
+     * @return number of bytes of the range which lie within the object
+     */
+    public static long rangeLength(long objectSize, long offset, long length) {
+        return Math.max(0, Math.min(length, objectSize - offset));
+    }
+
     public static String toXmlId(String sipId, int version) {
         return sipId + "_xml_" + version;
     }
@@ -0,0 +1,106 @@
+package cz.cas.lib.arcstorage.storage;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.function.Consumer;
+
+import static cz.cas.lib.arcstorage.util.Utils.bytesToHexString;
+
+/**
+ * Stream which computes checksum of the data read through it and verifies the checksum once the end of the stream is
+ * reached. If the checksum does not match, the mismatch action is called and {@link InvalidChecksumException} is thrown
+ * instead of reporting the end of the stream, so that the reader never finishes successfully with corrupted data.
+ * <p>
+ * The checksum is not verified if the stream is closed before its end is reached.
+ * </p>
+ */
+public class VerifyingInputStream extends FilterInputStream {
+    private final MessageDigest digest;
+    private final Checksum expectedChecksum;
+    private final Consumer<Checksum> mismatchAction;
+    private Checksum computedChecksum;
+
+    /**
+     * @param in               stream to verify
+     * @param expectedChecksum expected checksum of the whole stream
+     * @param mismatchAction   called with the computed checksum if it does not match the expected one, called once
+     */
+    public VerifyingInputStream(InputStream in, Checksum expectedChecksum, Consumer<Checksum> mismatchAction) {
+        super(in);
+        this.digest = StorageUtils.checksumComputationPrecheck(in, expectedChecksum.getType());
+        this.expectedChecksum = expectedChecksum;
+        this.mismatchAction = mismatchAction;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1)
+            verify();
+        else
+            digest.update((byte) b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read == -1)
+            verify();
+        else
+            digest.update(b, off, read);
+        return read;
+    }
+
+    /**
+     * Skipped data are read so that they are included in the checksum.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[8192];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read == -1)
+                break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * @return checksum of the whole stream, null if the end of the stream has not been reached yet
+     */
+    public Checksum getComputedChecksum() {
+        return computedChecksum;
+    }
+
+    private void verify() throws InvalidChecksumException {
+        if (computedChecksum == null) {
+            computedChecksum = new Checksum(expectedChecksum.getType(), bytesToHexString(digest.digest()));
+            if (!expectedChecksum.equals(computedChecksum))
+                mismatchAction.accept(computedChecksum);
+        }
+        if (!expectedChecksum.equals(computedChecksum))
+            throw new InvalidChecksumException(computedChecksum, expectedChecksum);
+    }
+}
@@ -0,0 +1,474 @@
+package cz.cas.lib.arcstorage.storage.cache;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectCacheStatsDto;
+import cz.cas.lib.arcstorage.exception.GeneralException;
+import cz.cas.lib.arcstorage.storage.StorageUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static cz.cas.lib.arcstorage.util.Utils.bytesToHexString;
+
+/**
+ * Cache of retrieved objects kept in a local folder, consulted by {@link cz.cas.lib.arcstorage.service.ArchivalService}
+ * before any storage. Entries are keyed by database id of the object, independently of the storage the object was
+ * retrieved from, and hold the expected checksum of the object so that an entry is never returned for an object whose
+ * expected checksum has changed. Only objects which were verified against their expected checksum are added.
+ * <p>
+ * Every entry consists of the data file and a metadata file with the key, size and checksum of the data, so the cache
+ * survives restarts of the application. The data file is verified against the checksum before every use, a corrupted
+ * entry is dropped.
+ * </p>
+ * <p>
+ * Total size of the data files is bounded, the least recently used entries are evicted first. The time of the last
+ * use is kept as the modification time of the data file. The cache is disabled if no folder is configured.
+ * </p>
+ * <p>
+ * Hits are counted by the cache itself, they are never recorded in the read statistics of the storages.
+ * </p>
+ */
+@Slf4j
+@Service
+public class DiskCache {
+    private static final String DATA_SUFFIX = ".data";
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String KEY = "key";
+    private static final String SIZE = "size";
+    private static final String CHECKSUM = "checksum";
+    private static final String CHECKSUM_TYPE = "checksumType";
+
+    private final Path folder;
+    private final long maxSize;
+    /**
+     * entries ordered from the least recently used one
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param folder  folder of the cache, the cache is disabled if empty
+     * @param maxSize maximal total size of the cached files in MiB
+     * @throws IOException if the folder could not be created or read
+     */
+    @Inject
+    public DiskCache(@Value("${arcstorage.disk-cache.folder:}") String folder,
+                     @Value("${arcstorage.disk-cache.max-size:10240}") long maxSize) throws IOException {
+        this(folder.isEmpty() ? null : Paths.get(folder), maxSize * 1024 * 1024);
+    }
+
+    /**
+     * Creates the cache and loads the entries which are already present in the folder.
+     *
+     * @param folder  folder of the cache, created if it does not exist, the cache is disabled if null
+     * @param maxSize maximal total size of the cached files in bytes
+     * @throws IOException if the folder could not be created or read
+     */
+    public DiskCache(Path folder, long maxSize) throws IOException {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("max size of disk cache must be positive, was: " + maxSize);
+        this.folder = folder;
+        this.maxSize = maxSize;
+        if (folder == null)
+            return;
+        Files.createDirectories(folder);
+        load();
+    }
+
+    public boolean isEnabled() {
+        return folder != null;
+    }
+
+    /**
+     * Opens the cached file. The file is verified against the checksum it was cached with.
+     *
+     * @param key      key of the entry
+     * @param checksum expected checksum of the object
+     * @return stream of the cached file, null if there is no such entry, the entry was cached with other checksum or
+     * the entry is corrupted
+     */
+    public InputStream get(String key, Checksum checksum) {
+        if (!isEnabled())
+            return null;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.checksum.equals(checksum)) {
+            countMiss();
+            return null;
+        }
+        Path dataFile = dataFile(entry.fileName);
+        try {
+            Checksum computed = StorageUtils.computeChecksum(new FileInputStream(dataFile.toFile()), checksum.getType());
+            if (!computed.equals(entry.checksum)) {
+                log.warn("Entry " + key + " of disk cache " + folder + " is corrupted, expected: " + entry.checksum + " computed: " + computed);
+                invalidate(key);
+                countMiss();
+                return null;
+            }
+            Files.setLastModifiedTime(dataFile, FileTime.fromMillis(System.currentTimeMillis()));
+            FileInputStream in = new FileInputStream(dataFile.toFile());
+            synchronized (this) {
+                hits++;
+            }
+            return in;
+        } catch (IOException | GeneralException e) {
+            //entry evicted in the meantime
+            log.debug("Entry " + key + " of disk cache " + folder + " could not be read: " + e);
+            countMiss();
+            return null;
+        }
+    }
+
+    /**
+     * Wraps the stream so that the data read through it are written to the cache. Once the end of the stream is
+     * reached, the entry is added if the data match the expected checksum. If the stream is closed before, or the data
+     * do not match, nothing is cached. Errors of the cache do not affect the returned stream.
+     *
+     * @param key      key of the entry
+     * @param in       stream to cache
+     * @param checksum expected checksum of the object
+     * @return stream to be read instead of the original one
+     */
+    public InputStream cacheWhileReading(String key, InputStream in, Checksum checksum) {
+        if (!isEnabled())
+            return in;
+        Path tmpFile = folder.resolve(UUID.randomUUID().toString() + TMP_SUFFIX);
+        try {
+            return new CachingInputStream(in, key, checksum, tmpFile);
+        } catch (IOException e) {
+            log.warn("Could not create file " + tmpFile + " of disk cache: " + e);
+            return in;
+        }
+    }
+
+    /**
+     * Adds the file which was already verified against the expected checksum of the object. The file is linked to the
+     * cache if possible, copied otherwise, it is not modified.
+     *
+     * @param key      key of the entry
+     * @param checksum checksum which the file was verified against
+     * @param file     verified file
+     */
+    public void put(String key, Checksum checksum, Path file) {
+        if (!isEnabled())
+            return;
+        Path tmpFile = folder.resolve(UUID.randomUUID().toString() + TMP_SUFFIX);
+        try {
+            try {
+                Files.createLink(tmpFile, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(file, tmpFile);
+            }
+            commit(key, tmpFile, checksum);
+        } catch (IOException e) {
+            log.warn("Could not add entry " + key + " to disk cache " + folder + ": " + e);
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException e1) {
+                log.warn("Could not delete file " + tmpFile + " of disk cache: " + e1);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry, does nothing if there is no such entry.
+     */
+    public synchronized void invalidate(String key) {
+        if (!isEnabled())
+            return;
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            delete(entry);
+    }
+
+    /**
+     * @return total size of the cached files in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized ObjectCacheStatsDto getStats() {
+        return new ObjectCacheStatsDto(hits, misses, evictions, entries.size(), size, maxSize);
+    }
+
+    private synchronized void countMiss() {
+        misses++;
+    }
+
+    /**
+     * Adds the written file to the cache, replacing the previous entry with the same key.
+     */
+    private void commit(String key, Path tmpFile, Checksum checksum) throws IOException {
+        long fileSize = Files.size(tmpFile);
+        if (fileSize > maxSize) {
+            Files.deleteIfExists(tmpFile);
+            return;
+        }
+        String fileName = UUID.randomUUID().toString();
+        Properties props = new Properties();
+        props.setProperty(KEY, key);
+        props.setProperty(SIZE, String.valueOf(fileSize));
+        props.setProperty(CHECKSUM, checksum.getValue());
+        props.setProperty(CHECKSUM_TYPE, checksum.getType().toString());
+        Path tmpMetadataFile = folder.resolve(fileName + METADATA_SUFFIX + TMP_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(tmpMetadataFile, StandardCharsets.UTF_8)) {
+            props.store(writer, null);
+        }
+        synchronized (this) {
+            Files.move(tmpFile, dataFile(fileName), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpMetadataFile, metadataFile(fileName), StandardCopyOption.ATOMIC_MOVE);
+            Entry previous = entries.put(key, new Entry(key, fileName, fileSize, checksum));
+            if (previous != null)
+                delete(previous);
+            size += fileSize;
+            evict();
+        }
+        log.debug("Entry " + key + " added to disk cache " + folder + ", size: " + fileSize);
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            delete(eldest);
+            evictions++;
+            log.debug("Entry " + eldest.key + " evicted from disk cache " + folder);
+        }
+    }
+
+    /**
+     * Deletes files of the removed entry and subtracts its size.
+     */
+    private void delete(Entry entry) {
+        size -= entry.size;
+        try {
+            Files.deleteIfExists(metadataFile(entry.fileName));
+            Files.deleteIfExists(dataFile(entry.fileName));
+        } catch (IOException e) {
+            log.warn("Could not delete files of entry " + entry.key + " of disk cache " + folder + ": " + e);
+        }
+    }
+
+    /**
+     * Loads the entries from the folder, deletes leftover temporary files and files of incomplete entries.
+     */
+    private synchronized void load() throws IOException {
+        List<Entry> loaded = new ArrayList<>();
+        Map<Entry, Long> lastUse = new HashMap<>();
+        Set<String> validFiles = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + METADATA_SUFFIX)) {
+            for (Path metadataFile : files) {
+                String name = metadataFile.getFileName().toString();
+                String fileName = name.substring(0, name.length() - METADATA_SUFFIX.length());
+                Path dataFile = dataFile(fileName);
+                Properties props = new Properties();
+                try (Reader reader = Files.newBufferedReader(metadataFile, StandardCharsets.UTF_8)) {
+                    props.load(reader);
+                    //entries of older versions, which have no checksum type, were keyed by storage and are dropped
+                    String checksumType = props.getProperty(CHECKSUM_TYPE);
+                    if (checksumType == null)
+                        continue;
+                    Entry entry = new Entry(props.getProperty(KEY), fileName, Long.parseLong(props.getProperty(SIZE)),
+                            new Checksum(ChecksumType.valueOf(checksumType), props.getProperty(CHECKSUM)));
+                    if (entry.key == null || entry.checksum.getValue() == null || !Files.isRegularFile(dataFile)
+                            || Files.size(dataFile) != entry.size)
+                        continue;
+                    loaded.add(entry);
+                    lastUse.put(entry, Files.getLastModifiedTime(dataFile).toMillis());
+                    validFiles.add(name);
+                    validFiles.add(dataFile.getFileName().toString());
+                } catch (IOException | IllegalArgumentException e) {
+                    log.warn("Invalid metadata file " + metadataFile + " of disk cache: " + e);
+                }
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                if (!validFiles.contains(file.getFileName().toString()))
+                    Files.deleteIfExists(file);
+            }
+        }
+        loaded.sort(Comparator.comparing(lastUse::get));
+        for (Entry entry : loaded) {
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null)
+                delete(previous);
+            size += entry.size;
+        }
+        evict();
+        log.info("Disk cache " + folder + " loaded, entries: " + entries.size() + ", size: " + size);
+    }
+
+    private Path dataFile(String fileName) {
+        return folder.resolve(fileName + DATA_SUFFIX);
+    }
+
+    private Path metadataFile(String fileName) {
+        return folder.resolve(fileName + METADATA_SUFFIX);
+    }
+
+    private static class Entry {
+        private final String key;
+        private final String fileName;
+        private final long size;
+        private final Checksum checksum;
+
+        private Entry(String key, String fileName, long size, Checksum checksum) {
+            this.key = key;
+            this.fileName = fileName;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Stream which copies the data read through it to the temporary file of the cache and computes their checksum.
+     * Once the end is reached, the file is committed to the cache if the checksum matches the expected one. If the copy
+     * fails, the stream continues to work as the original stream.
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private final String key;
+        private final Checksum checksum;
+        private final Path tmpFile;
+        private final MessageDigest digest;
+        private OutputStream out;
+
+        private CachingInputStream(InputStream in, String key, Checksum checksum, Path tmpFile) throws IOException {
+            super(in);
+            this.key = key;
+            this.checksum = checksum;
+            this.tmpFile = tmpFile;
+            this.digest = StorageUtils.checksumComputationPrecheck(in, checksum.getType());
+            this.out = new BufferedOutputStream(Files.newOutputStream(tmpFile));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                finish();
+            else if (out != null) {
+                digest.update((byte) b);
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1)
+                finish();
+            else if (out != null) {
+                digest.update(b, off, read);
+                write(b, off, read);
+            }
+            return read;
+        }
+
+        /**
+         * Skipped data are read so that they are cached.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[8192];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                discard();
+            }
+        }
+
+        private void write(byte[] b, int off, int len) {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                log.warn("Could not write file " + tmpFile + " of disk cache: " + e);
+                discard();
+            }
+        }
+
+        private void finish() {
+            if (out == null)
+                return;
+            try {
+                out.close();
+                out = null;
+                Checksum computed = new Checksum(checksum.getType(), bytesToHexString(digest.digest()));
+                if (!computed.equals(checksum)) {
+                    log.debug("Entry " + key + " not added to disk cache " + folder + ", expected checksum: " + checksum
+                            + " computed: " + computed);
+                    discard();
+                    return;
+                }
+                commit(key, tmpFile, checksum);
+            } catch (IOException e) {
+                log.warn("Could not add entry " + key + " to disk cache " + folder + ": " + e);
+                discard();
+            }
+        }
+
+        private void discard() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //deleted anyway
+                }
+                out = null;
+            }
+            try {
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException e) {
+                log.warn("Could not delete file " + tmpFile + " of disk cache: " + e);
+            }
+        }
+    }
+}
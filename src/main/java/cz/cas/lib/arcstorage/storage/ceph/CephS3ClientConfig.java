@@ -0,0 +1,94 @@
+package cz.cas.lib.arcstorage.storage.ceph;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Settings of the S3 client connecting to the Ceph storage. Two configs are equal if the clients built from them would
+ * be interchangeable, so the client has to be rebuilt only if its config is no longer equal to the actual one.
+ */
+@Getter
+@AllArgsConstructor
+@EqualsAndHashCode
+public class CephS3ClientConfig {
+
+    private String host;
+    private int port;
+    private String userAccessKey;
+    private String userSecretKey;
+    private boolean https;
+    //not used for now
+    private String region;
+    /**
+     * timeout for establishing connection, in milliseconds
+     */
+    private int connectionTimeout;
+    /**
+     * timeout for reading data from an established connection, in milliseconds
+     */
+    private int socketTimeout;
+    /**
+     * timeout of the whole request, in milliseconds, 0 means no timeout
+     */
+    private int requestTimeout;
+    /**
+     * max number of opened HTTP connections held in the connection pool of the client
+     */
+    private int maxConnections;
+
+    public CephS3ClientConfig(Storage storage, String userAccessKey, String userSecretKey, boolean https, String region, int connectionTimeout) {
+        this(storage.getHost(), storage.getPort(), userAccessKey, userSecretKey, https, region, connectionTimeout,
+                ClientConfiguration.DEFAULT_SOCKET_TIMEOUT, ClientConfiguration.DEFAULT_REQUEST_TIMEOUT,
+                ClientConfiguration.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Builds a new client. The client is thread safe and should be reused, {@link AmazonS3#shutdown()} has to be called
+     * once the client is no longer needed.
+     *
+     * @return new S3 client
+     */
+    public AmazonS3 buildClient() {
+        AWSStaticCredentialsProvider provider = new AWSStaticCredentialsProvider(new BasicAWSCredentials(userAccessKey, userSecretKey));
+        ClientConfiguration clientConfig = new ClientConfiguration();
+        //force usage of AWS signature v2 instead of v4 to enable multipart uploads (v4 does not work with multipart upload for now)
+        clientConfig.setSignerOverride("S3SignerType");
+        if (https)
+            clientConfig.setProtocol(Protocol.HTTPS);
+        else
+            clientConfig.setProtocol(Protocol.HTTP);
+        clientConfig.setConnectionTimeout(connectionTimeout);
+        clientConfig.setSocketTimeout(socketTimeout);
+        clientConfig.setRequestTimeout(requestTimeout);
+        clientConfig.setMaxConnections(maxConnections);
+        return AmazonS3ClientBuilder
+                .standard()
+                .withCredentials(provider)
+                .withClientConfiguration(clientConfig)
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(host + ":" + port, region))
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "CephS3ClientConfig{" +
+                "host='" + host + '\'' +
+                ", port=" + port +
+                ", https=" + https +
+                ", region='" + region + '\'' +
+                ", connectionTimeout=" + connectionTimeout +
+                ", socketTimeout=" + socketTimeout +
+                ", requestTimeout=" + requestTimeout +
+                ", maxConnections=" + maxConnections +
+                '}';
+    }
+}
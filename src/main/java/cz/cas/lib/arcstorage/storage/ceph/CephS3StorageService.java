@@ -1,17 +1,11 @@
 package cz.cas.lib.arcstorage.storage.ceph;
 
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.Protocol;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
 import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.exception.GeneralException;
+import cz.cas.lib.arcstorage.storage.ParallelRangeReader;
 import cz.cas.lib.arcstorage.storage.StorageService;
 import cz.cas.lib.arcstorage.storage.StorageUtils;
 import cz.cas.lib.arcstorage.storage.exception.FileCorruptedAfterStoreException;
@@ -19,30 +13,42 @@ import cz.cas.lib.arcstorage.storage.exception.FileDoesNotExistException;
 import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpStatus;
 import org.apache.commons.io.input.NullInputStream;
 
 import java.io.*;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
+import static cz.cas.lib.arcstorage.util.Utils.bytesToHexString;
 
 /**
  * Implementation of {@link StorageService} for the Ceph accessed over S3.
  * <p>
- * Metadata are stored in a separate metadata object, which id is idOfTheObject.meta
+ * Metadata are stored in a separate metadata object, which id is idOfTheObject.meta, the state is stored in another
+ * object, which id is idOfTheObject.state, so that the state is changed by a single request without reading the other
+ * metadata first. Both are empty objects holding the values in the user metadata.
  * </p>
  * Fulfillment of the requirements on the metadata storing specified by the interface:
  * <ul>
  * <li>initial checksum of the object: stored in metadata object</li>
  * <li>creation time of the object: stored in metadata object</li>
- * <li>state of object matching {@link ObjectState}: stored in metadata object</li>
+ * <li>state of object matching {@link ObjectState}: stored in state object, objects stored by older versions without
+ * the state object have the state stored in the metadata object</li>
  * <li>for AIP XML its version and ID of SIP: id of XML is in form aipId_xml_versionNumber</li>
  * </ul>
+ * <p>
+ * The S3 client is thread safe and reused by all requests to the storage, it is shut down by the owner of the client,
+ * not by this service.
+ * </p>
  */
 @Slf4j
 public class CephS3StorageService implements StorageService {
@@ -51,22 +57,51 @@ public class CephS3StorageService implements StorageService {
     static final String STATE_KEY = "state";
     static final String CREATED_KEY = "created";
 
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
+    /**
+     * minimal size of the part (except the last one) allowed by S3
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final ExecutorService partUploadExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "s3-part-upload");
+        t.setDaemon(true);
+        return t;
+    });
+
     private Storage storage;
-    private String userAccessKey;
-    private String userSecretKey;
-    private int connectionTimeout;
-    private boolean https;
+    private AmazonS3 s3;
+    private PartBufferPool bufferPool;
+    private ParallelRangeReader rangeReader;
 
-    //not used for now
-    private String region;
+    /**
+     * @param storage           storage
+     * @param s3                shared client connected to the storage
+     * @param partSize          size of the part of the multipart upload in bytes
+     * @param uploadConcurrency max number of parts uploaded in parallel, also max number of part buffers allocated
+     * @param rangeReader       reader of large objects by concurrent ranged GET requests
+     */
+    public CephS3StorageService(Storage storage, AmazonS3 s3, int partSize, int uploadConcurrency, ParallelRangeReader rangeReader) {
+        if (partSize < MIN_PART_SIZE)
+            throw new IllegalArgumentException("part size must be at least " + MIN_PART_SIZE + " bytes, was: " + partSize);
+        if (uploadConcurrency < 1)
+            throw new IllegalArgumentException("upload concurrency must be positive, was: " + uploadConcurrency);
+        this.storage = storage;
+        this.s3 = s3;
+        this.bufferPool = new PartBufferPool(partSize, uploadConcurrency);
+        this.rangeReader = rangeReader;
+    }
+
+    public CephS3StorageService(Storage storage, AmazonS3 s3) {
+        this(storage, s3, DEFAULT_PART_SIZE, DEFAULT_UPLOAD_CONCURRENCY, ParallelRangeReader.DISABLED);
+    }
 
+    /**
+     * Creates service with its own client using default client settings.
+     */
     public CephS3StorageService(Storage storage, String userAccessKey, String userSecretKey, boolean https, String region, int connectionTimeout) {
-        this.storage = storage;
-        this.userAccessKey = userAccessKey;
-        this.userSecretKey = userSecretKey;
-        this.region = region;
-        this.connectionTimeout = connectionTimeout;
-        this.https=https;
+        this(storage, new CephS3ClientConfig(storage, userAccessKey, userSecretKey, https, region, connectionTimeout).buildClient());
     }
 
     @Override
@@ -76,7 +111,6 @@ public class CephS3StorageService implements StorageService {
 
     @Override
     public void storeAip(AipDto aipDto, AtomicBoolean rollback, String dataSpace) throws StorageException {
-        AmazonS3 s3 = connect();
         ArchivalObjectDto sip = aipDto.getSip();
         ArchivalObjectDto xml = aipDto.getXml();
         storeFile(s3, sip.getDatabaseId(), sip.getInputStream(), sip.getChecksum(), rollback, dataSpace);
@@ -84,15 +118,20 @@ public class CephS3StorageService implements StorageService {
     }
 
     @Override
-    public AipRetrievalResource getAip(String aipId, String dataSpace, Integer... xmlVersions) throws FileDoesNotExistException {
-        AmazonS3 s3 = connect();
-        checkFileExists(s3, aipId, dataSpace);
-        AipRetrievalResource aip = new AipRetrievalResource(new ClosableS3(s3));
-        aip.setSip(s3.getObject(dataSpace, aipId).getObjectContent());
-        for (Integer xmlVersion : xmlVersions) {
-            String xmlId = toXmlId(aipId, xmlVersion);
-            checkFileExists(s3, xmlId, dataSpace);
-            aip.addXml(xmlVersion, s3.getObject(dataSpace, xmlId).getObjectContent());
+    public AipRetrievalResource getAip(String aipId, String dataSpace, Integer... xmlVersions) throws StorageException {
+        S3ObjectsConnection connection = new S3ObjectsConnection();
+        AipRetrievalResource aip = new AipRetrievalResource(connection);
+        try {
+            if (rangeReader.isEnabled())
+                aip.setSip(connection.add(rangeReader.getObject(aipId, (offset, length) -> getObjectRange(aipId, dataSpace, offset, length))));
+            else
+                aip.setSip(connection.add(getS3Object(s3, aipId, dataSpace).getObjectContent()));
+            for (Integer xmlVersion : xmlVersions) {
+                aip.addXml(xmlVersion, connection.add(getS3Object(s3, toXmlId(aipId, xmlVersion), dataSpace).getObjectContent()));
+            }
+        } catch (Exception e) {
+            connection.close();
+            throw e;
         }
         return aip;
     }
@@ -100,7 +139,6 @@ public class CephS3StorageService implements StorageService {
     @Override
     public void storeObject(ArchivalObjectDto objectDto, AtomicBoolean rollback, String dataSpace) throws StorageException {
         try {
-            AmazonS3 s3 = connect();
             String id = objectDto.getStorageId();
             switch (objectDto.getState()) {
                 case ARCHIVAL_FAILURE:
@@ -129,65 +167,65 @@ public class CephS3StorageService implements StorageService {
     }
 
     @Override
-    public ObjectRetrievalResource getObject(String id, String dataSpace) throws FileDoesNotExistException {
-        AmazonS3 s3 = connect();
-        checkFileExists(s3, id, dataSpace);
+    public ObjectRetrievalResource getObject(String id, String dataSpace) throws StorageException {
+        if (rangeReader.isEnabled())
+            return rangeReader.getObject(id, (offset, length) -> getObjectRange(id, dataSpace, offset, length));
+        S3ObjectsConnection connection = new S3ObjectsConnection();
         return new ObjectRetrievalResource(
-                s3.getObject(dataSpace, id).getObjectContent(),
-                new ClosableS3(s3));
+                connection.add(getS3Object(s3, id, dataSpace).getObjectContent()),
+                connection);
+    }
+
+    /**
+     * The range is retrieved by a single ranged GET request, size of the object is taken from the Content-Range header
+     * of the response.
+     */
+    @Override
+    public ObjectRangeRetrievalResource getObjectRange(String id, String dataSpace, long offset, long length) throws FileDoesNotExistException {
+        if (length <= 0)
+            throw new IllegalArgumentException("length of range of object " + id + " must be positive: " + length);
+        S3ObjectsConnection connection = new S3ObjectsConnection();
+        long end = length > Long.MAX_VALUE - offset ? Long.MAX_VALUE - 1 : offset + length - 1;
+        S3Object object = getS3Object(s3, new GetObjectRequest(dataSpace, id).withRange(offset, end));
+        ObjectMetadata metadata = object.getObjectMetadata();
+        return new ObjectRangeRetrievalResource(connection.add(object.getObjectContent()), connection, offset,
+                metadata.getContentLength(), metadata.getInstanceLength());
     }
 
     @Override
     public void delete(String sipId, String dataSpace) throws StorageException {
-        AmazonS3 s3 = connect();
-        String metadataId = toMetadataObjectId(sipId);
-        ObjectMetadata metadata = s3.getObjectMetadata(dataSpace, metadataId);
-        metadata.addUserMetadata(STATE_KEY, ObjectState.PROCESSING.toString());
-        s3.putObject(dataSpace, toMetadataObjectId(sipId), new NullInputStream(0), metadata);
+        putState(s3, sipId, ObjectState.PROCESSING, dataSpace);
         s3.deleteObject(dataSpace, sipId);
-        metadata.addUserMetadata(STATE_KEY, ObjectState.DELETED.toString());
-        s3.putObject(dataSpace, toMetadataObjectId(sipId), new NullInputStream(0), metadata);
+        putState(s3, sipId, ObjectState.DELETED, dataSpace);
     }
 
     @Override
     public void remove(String sipId, String dataSpace) throws StorageException {
-        AmazonS3 s3 = connect();
-        String metadataId = toMetadataObjectId(sipId);
-        ObjectMetadata objectMetadata = s3.getObjectMetadata(dataSpace, metadataId);
-        objectMetadata.addUserMetadata(STATE_KEY, ObjectState.REMOVED.toString());
-        s3.putObject(dataSpace, toMetadataObjectId(sipId), new NullInputStream(0), objectMetadata);
+        putState(s3, sipId, ObjectState.REMOVED, dataSpace);
     }
 
     @Override
     public void renew(String sipId, String dataSpace) throws StorageException {
-        AmazonS3 s3 = connect();
-        String metadataId = toMetadataObjectId(sipId);
-        ObjectMetadata objectMetadata = s3.getObjectMetadata(dataSpace, metadataId);
-        objectMetadata.addUserMetadata(STATE_KEY, ObjectState.ARCHIVED.toString());
-        s3.putObject(dataSpace, toMetadataObjectId(sipId), new NullInputStream(0), objectMetadata);
+        putState(s3, sipId, ObjectState.ARCHIVED, dataSpace);
     }
 
 
     @Override
     public void rollbackAip(String sipId, String dataSpace) throws StorageException {
-        AmazonS3 s3 = connect();
         rollbackFile(s3, sipId, dataSpace);
         rollbackFile(s3, toXmlId(sipId, 1), dataSpace);
     }
 
     @Override
     public void rollbackObject(String id, String dataSpace) throws StorageException {
-        AmazonS3 s3 = connect();
         rollbackFile(s3, id, dataSpace);
     }
 
     @Override
     public AipStateInfoDto getAipInfo(String aipId, Checksum sipChecksum, ObjectState objectState, Map<Integer, Checksum> xmlVersions, String dataSpace) throws FileDoesNotExistException {
-        AmazonS3 s3 = connect();
         AipStateInfoDto info = new AipStateInfoDto(storage.getName(), storage.getStorageType(), objectState, sipChecksum, true);
         if (objectState == ObjectState.ARCHIVED || objectState == ObjectState.REMOVED) {
-            checkFileExists(s3, aipId, dataSpace);
-            S3Object sipObject = s3.getObject(dataSpace, aipId);
+            S3Object sipObject = getS3Object(s3, aipId, dataSpace);
             Checksum storageFileChecksum = StorageUtils.computeChecksum(sipObject.getObjectContent(),
                     sipChecksum.getType());
             info.setSipStorageChecksum(storageFileChecksum);
@@ -198,9 +236,7 @@ public class CephS3StorageService implements StorageService {
         }
 
         for (Integer version : xmlVersions.keySet()) {
-            String xmlId = toXmlId(aipId, version);
-            checkFileExists(s3, xmlId, dataSpace);
-            S3Object xmlObject = s3.getObject(dataSpace, xmlId);
+            S3Object xmlObject = getS3Object(s3, toXmlId(aipId, version), dataSpace);
             Checksum dbChecksum = xmlVersions.get(version);
             Checksum storageFileChecksum = StorageUtils.computeChecksum(xmlObject.getObjectContent(),
                     dbChecksum.getType());
@@ -219,7 +255,6 @@ public class CephS3StorageService implements StorageService {
     @Override
     public boolean testConnection() {
         try {
-            AmazonS3 s3 = connect();
             s3.getS3AccountOwner();
         } catch (Exception e) {
             log.error(storage.getName() + " unable to connect: " + e.getClass() + " " + e.getMessage());
@@ -230,12 +265,13 @@ public class CephS3StorageService implements StorageService {
 
     @Override
     public void createNewDataSpace(String dataSpace) {
-        AmazonS3 s3 = connect();
         s3.createBucket(dataSpace);
     }
 
     /**
-     * Stores file and then reads it and verifies its fixity.
+     * Stores file using multipart upload, parts are verified by the gateway using Content-MD5 header and then by ETag
+     * comparison. Parts are uploaded in parallel, their buffers are taken from the pool shared by all uploads to the
+     * storage so that the number of parts in flight and the memory used are bounded.
      * <p>
      * If rollback is set to true by another thread, this method returns ASAP (without throwing exception), leaving the file uncompleted but closing stream.  Uncompleted files are to be cleaned during rollback.
      * </p>
@@ -246,46 +282,78 @@ public class CephS3StorageService implements StorageService {
     void storeFile(AmazonS3 s3, String id, InputStream stream, Checksum checksum, AtomicBoolean rollback, String dataSpace) throws FileCorruptedAfterStoreException, IOStorageException {
         if (rollback.get())
             return;
-        try (BufferedInputStream bis = new BufferedInputStream(stream)) {
+        List<Future<PartETag>> parts = new ArrayList<>();
+        try (InputStream is = stream) {
             InitiateMultipartUploadRequest initReq = new InitiateMultipartUploadRequest(dataSpace, id, new ObjectMetadata());
             InitiateMultipartUploadResult initRes = s3.initiateMultipartUpload(initReq);
 
-            PutObjectRequest metadataPutRequest = storeMetadata(s3, id, checksum, ObjectState.PROCESSING, dataSpace);
+            storeMetadata(s3, id, checksum, ObjectState.PROCESSING, dataSpace);
 
-            byte[] buff = new byte[8 * 1024 * 1024];
-            int read;
-            boolean last;
-            List<PartETag> partETags = new ArrayList<>();
+            boolean last = false;
             int partNumber = 0;
-            do {
-                if (rollback.get())
-                    return;
+            while (!last) {
+                byte[] buff = bufferPool.acquire(rollback);
+                if (buff == null)
+                    break;
+                int size;
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                try {
+                    size = fillBuffer(is, buff, md5, rollback);
+                } catch (Exception e) {
+                    bufferPool.release(buff);
+                    throw e;
+                }
+                if (rollback.get()) {
+                    bufferPool.release(buff);
+                    break;
+                }
+                last = size < buff.length;
                 partNumber++;
-                read = bis.read(buff);
-                last = read != buff.length;
-                long partSize = Math.min(read, buff.length);
-                if (last)
-                    buff = Arrays.copyOf(buff, read);
+                byte[] digest = md5.digest();
                 UploadPartRequest uploadPartRequest = new UploadPartRequest()
                         .withBucketName(dataSpace)
                         .withUploadId(initRes.getUploadId())
                         .withKey(id)
-                        .withInputStream(new ByteArrayInputStream(buff))
+                        .withInputStream(new ByteArrayInputStream(buff, 0, size))
                         .withPartNumber(partNumber)
-                        .withPartSize(partSize)
+                        .withPartSize(size)
+                        .withMD5Digest(Base64.getEncoder().encodeToString(digest))
                         .withLastPart(last);
-                UploadPartResult uploadPartResult = s3.uploadPart(uploadPartRequest);
-                Checksum partChecksum = computeChecksumRollbackAware(new ByteArrayInputStream(buff), ChecksumType.MD5, rollback);
-                if (partChecksum == null)
-                    return;
-                if (!partChecksum.getValue().equalsIgnoreCase(uploadPartResult.getETag()))
-                    throw new FileCorruptedAfterStoreException("S3 - part of multipart file", new Checksum(ChecksumType.MD5, uploadPartResult.getETag()), partChecksum);
-                partETags.add(uploadPartResult.getPartETag());
-            } while (!last);
+                Checksum partChecksum = toPartChecksum(digest);
+                parts.add(partUploadExecutor.submit(() -> {
+                    try {
+                        if (rollback.get())
+                            return null;
+                        UploadPartResult uploadPartResult;
+                        try {
+                            uploadPartResult = s3.uploadPart(uploadPartRequest);
+                        } catch (AmazonS3Exception e) {
+                            if ("BadDigest".equals(e.getErrorCode()))
+                                throw new FileCorruptedAfterStoreException("S3 - part of multipart file rejected by the gateway,", null, partChecksum);
+                            throw e;
+                        }
+                        if (!partChecksum.getValue().equalsIgnoreCase(uploadPartResult.getETag()))
+                            throw new FileCorruptedAfterStoreException("S3 - part of multipart file", new Checksum(ChecksumType.MD5, uploadPartResult.getETag()), partChecksum);
+                        return uploadPartResult.getPartETag();
+                    } catch (Exception e) {
+                        rollback.set(true);
+                        throw e;
+                    } finally {
+                        bufferPool.release(buff);
+                    }
+                }));
+                checkFailedParts(parts);
+            }
+            //failure of any part is thrown even if the loop has ended because of the rollback caused by that failure
+            List<PartETag> partETags = new ArrayList<>();
+            for (Future<PartETag> part : parts) {
+                partETags.add(getPart(part));
+            }
+            if (rollback.get())
+                return;
             CompleteMultipartUploadRequest completeReq = new CompleteMultipartUploadRequest(dataSpace, id, initRes.getUploadId(), partETags);
             s3.completeMultipartUpload(completeReq);
-            metadataPutRequest.getMetadata().addUserMetadata(STATE_KEY, ObjectState.ARCHIVED.toString());
-            s3.putObject(metadataPutRequest);
+            putState(s3, id, ObjectState.ARCHIVED, dataSpace);
         } catch (Exception e) {
             rollback.set(true);
             if (e instanceof IOException)
@@ -296,78 +364,219 @@ public class CephS3StorageService implements StorageService {
         }
     }
 
+    /**
+     * Reads the stream until the buffer is full or the stream ends, updating the digest with the read data.
+     *
+     * @return number of bytes read, lower than buffer size only if the stream has ended
+     */
+    private int fillBuffer(InputStream is, byte[] buff, MessageDigest digest, AtomicBoolean rollback) throws IOException {
+        int size = 0;
+        int read;
+        while (size < buff.length && !rollback.get() && (read = is.read(buff, size, buff.length - size)) != -1) {
+            digest.update(buff, size, read);
+            size += read;
+        }
+        return size;
+    }
+
+    Checksum toPartChecksum(byte[] md5Digest) {
+        return new Checksum(ChecksumType.MD5, bytesToHexString(md5Digest));
+    }
+
+    /**
+     * Rethrows exception of any part which has already failed.
+     */
+    private void checkFailedParts(List<Future<PartETag>> parts) throws Exception {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone())
+                getPart(part);
+        }
+    }
+
+    private PartETag getPart(Future<PartETag> part) throws Exception {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
     void rollbackFile(AmazonS3 s3, String id, String dataSpace) {
-        ObjectMetadata objectMetadata;
-        String metadataId = toMetadataObjectId(id);
-        boolean metadataExists = s3.doesObjectExist(dataSpace, metadataId);
-        if (!metadataExists)
-            objectMetadata = new ObjectMetadata();
-        else
-            objectMetadata = s3.getObjectMetadata(dataSpace, metadataId);
-        objectMetadata.addUserMetadata(STATE_KEY, ObjectState.PROCESSING.toString());
-        s3.putObject(dataSpace, metadataId, new NullInputStream(0), objectMetadata);
+        putState(s3, id, ObjectState.PROCESSING, dataSpace);
         List<MultipartUpload> multipartUploads = s3.listMultipartUploads(new ListMultipartUploadsRequest(dataSpace).withPrefix(id)).getMultipartUploads();
         if (multipartUploads.size() == 1)
             s3.abortMultipartUpload(new AbortMultipartUploadRequest(dataSpace, id, multipartUploads.get(0).getUploadId()));
         else if (multipartUploads.size() > 1)
             throw new GeneralException("unexpected error during rollback of file: " + id + " : there are more than one upload in progress");
         s3.deleteObject(dataSpace, id);
-        objectMetadata.addUserMetadata(STATE_KEY, ObjectState.ROLLED_BACK.toString());
-        s3.putObject(dataSpace, metadataId, new NullInputStream(0), objectMetadata);
+        putState(s3, id, ObjectState.ROLLED_BACK, dataSpace);
     }
 
     AmazonS3 connect() {
-        AWSCredentials credentials = new BasicAWSCredentials(userAccessKey, userSecretKey);
-        AWSStaticCredentialsProvider provider = new AWSStaticCredentialsProvider(credentials);
-        ClientConfiguration clientConfig = new ClientConfiguration();
-        //force usage of AWS signature v2 instead of v4 to enable multipart uploads (v4 does not work with multipart upload for now)
-        clientConfig.setSignerOverride("S3SignerType");
-        if(https)
-            clientConfig.setProtocol(Protocol.HTTPS);
-        else
-            clientConfig.setProtocol(Protocol.HTTP);
-        clientConfig.setConnectionTimeout(connectionTimeout);
-        AmazonS3 conn = AmazonS3ClientBuilder
-                .standard()
-                .withCredentials(provider)
-                .withClientConfiguration(clientConfig)
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(storage.getHost() + ":" + storage.getPort(), region))
-                .build();
-        return conn;
-    }
-
-    private PutObjectRequest storeMetadata(AmazonS3 s3, String objId, Checksum checksum, ObjectState state, String dataSpace) {
+        return s3;
+    }
+
+    /**
+     * Stores the metadata object and the state object. The state object is always written so that a state object left
+     * by a previous storing of the same object does not take precedence.
+     */
+    private void storeMetadata(AmazonS3 s3, String objId, Checksum checksum, ObjectState state, String dataSpace) {
         ObjectMetadata objectMetadata = new ObjectMetadata();
         objectMetadata.addUserMetadata(checksum.getType().toString(), checksum.getValue());
-        objectMetadata.addUserMetadata(STATE_KEY, state.toString());
         objectMetadata.addUserMetadata(CREATED_KEY, LocalDateTime.now().toString());
         objectMetadata.setContentLength(0);
-        PutObjectRequest metadataPutRequest = new PutObjectRequest(dataSpace, toMetadataObjectId(objId), new NullInputStream(0), objectMetadata);
-        s3.putObject(metadataPutRequest);
-        return metadataPutRequest;
+        s3.putObject(dataSpace, toMetadataObjectId(objId), new NullInputStream(0), objectMetadata);
+        putState(s3, objId, state, dataSpace);
+    }
+
+    /**
+     * Retrieves the object, existence of the object is not checked in advance but recognized from the response so that
+     * the retrieval takes a single request.
+     *
+     * @throws FileDoesNotExistException if the object does not exist
+     */
+    private S3Object getS3Object(AmazonS3 s3, String id, String dataSpace) throws FileDoesNotExistException {
+        try {
+            return s3.getObject(dataSpace, id);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HttpStatus.SC_NOT_FOUND)
+                throw new FileDoesNotExistException("bucket: " + dataSpace + " storageId: " + id);
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves range of the object.
+     *
+     * @throws FileDoesNotExistException if the object does not exist
+     */
+    private S3Object getS3Object(AmazonS3 s3, GetObjectRequest request) throws FileDoesNotExistException {
+        try {
+            return s3.getObject(request);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HttpStatus.SC_NOT_FOUND)
+                throw new FileDoesNotExistException("bucket: " + request.getBucketName() + " storageId: " + request.getKey());
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the state object. The state object is empty and the state is the only user metadata, the state is
+     * therefore changed by a single request without any payload and without reading the other metadata first.
+     * Existence of the object is not checked, the states of the objects are tracked by the database.
+     */
+    private void putState(AmazonS3 s3, String objId, ObjectState state, String dataSpace) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(STATE_KEY, state.toString());
+        metadata.setContentLength(0);
+        s3.putObject(dataSpace, toStateObjectId(objId), new NullInputStream(0), metadata);
     }
 
-    private void checkFileExists(AmazonS3 s3, String id, String dataSpace) throws FileDoesNotExistException {
-        boolean exist = s3.doesObjectExist(dataSpace, id);
-        if (!exist)
-            throw new FileDoesNotExistException("bucket: " + dataSpace + " storageId: " + id);
+    /**
+     * Reads the state of the object from the state object, or from the metadata object if the object was stored by an
+     * older version which kept the state in the metadata object.
+     *
+     * @return state of the object, null if neither the state object nor the metadata object exists
+     */
+    ObjectState getState(AmazonS3 s3, String objId, String dataSpace) {
+        for (String stateHolderId : new String[]{toStateObjectId(objId), toMetadataObjectId(objId)}) {
+            try {
+                String state = s3.getObjectMetadata(dataSpace, stateHolderId).getUserMetadata().get(STATE_KEY);
+                return state == null ? null : ObjectState.valueOf(state);
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND)
+                    throw e;
+            }
+        }
+        return null;
     }
 
     String toMetadataObjectId(String objId) {
         return objId + ".meta";
     }
 
-    private class ClosableS3 implements Closeable {
+    String toStateObjectId(String objId) {
+        return objId + ".state";
+    }
 
-        private AmazonS3 s3;
+    /**
+     * Pool of buffers for the parts of multipart uploads. Buffers are allocated lazily, up to the max count.
+     */
+    static class PartBufferPool {
+        private final BlockingQueue<byte[]> buffers;
+        private final AtomicInteger allocated = new AtomicInteger();
+        private final int bufferSize;
+        private final int maxCount;
+
+        PartBufferPool(int bufferSize, int maxCount) {
+            this.bufferSize = bufferSize;
+            this.maxCount = maxCount;
+            this.buffers = new ArrayBlockingQueue<>(maxCount);
+        }
 
-        public ClosableS3(AmazonS3 s3) {
-            this.s3 = s3;
+        /**
+         * Waits until a buffer is available.
+         *
+         * @return buffer or null if rollback flag has been set to true while waiting
+         */
+        byte[] acquire(AtomicBoolean rollback) throws InterruptedException {
+            byte[] buffer = buffers.poll();
+            while (buffer == null) {
+                if (rollback.get())
+                    return null;
+                int count = allocated.get();
+                if (count < maxCount && allocated.compareAndSet(count, count + 1))
+                    return new byte[bufferSize];
+                buffer = buffers.poll(1, TimeUnit.SECONDS);
+            }
+            return buffer;
+        }
+
+        void release(byte[] buffer) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Releases HTTP connections of the retrieved objects. Connection of the object which was read till the end is
+     * returned to the connection pool of the client, connection of partially read object is aborted so that the rest of
+     * the object is not downloaded.
+     */
+    private static class S3ObjectsConnection implements Closeable {
+
+        private List<S3ObjectInputStream> streams = new ArrayList<>();
+        private List<ObjectRetrievalResource> resources = new ArrayList<>();
+
+        S3ObjectInputStream add(S3ObjectInputStream stream) {
+            streams.add(stream);
+            return stream;
+        }
+
+        /**
+         * Adds object read by {@link ParallelRangeReader}, its connections are closed together with this one.
+         *
+         * @return stream of the object
+         */
+        InputStream add(ObjectRetrievalResource resource) {
+            resources.add(resource);
+            return resource.getInputStream();
         }
 
         @Override
-        public void close() throws IOException {
-            s3.shutdown();
+        public void close() {
+            resources.forEach(ObjectRetrievalResource::closeWithoutDelay);
+            for (S3ObjectInputStream stream : streams) {
+                try {
+                    if (stream.read() == -1)
+                        stream.close();
+                    else
+                        stream.abort();
+                } catch (IOException e) {
+                    stream.abort();
+                }
+            }
         }
     }
 }
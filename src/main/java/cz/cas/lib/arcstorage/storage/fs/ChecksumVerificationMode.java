@@ -0,0 +1,16 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+/**
+ * Way in which {@link RemoteFsProcessor} computes checksum of the file stored at the remote server.
+ */
+public enum ChecksumVerificationMode {
+    /**
+     * file is read back over SFTP and the checksum is computed locally
+     */
+    READ_BACK,
+    /**
+     * checksum is computed at the remote server by md5sum/sha512sum command executed over SSH, if the command fails
+     * the file is read back
+     */
+    REMOTE_COMMAND
+}
@@ -0,0 +1,54 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers folders which are known to exist so that they are not created again before every write. The cache is
+ * bounded: once it is full it is cleared and filled again by the following writes, which only costs a repeated
+ * creation of already existing folders.
+ * <p>
+ * Folders deleted outside of the application are not detected, write to such folder fails until the cache is cleared.
+ * </p>
+ */
+public class CreatedFolderCache {
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private final int capacity;
+    private final Set<String> folders = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public CreatedFolderCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive, was: " + capacity);
+        this.capacity = capacity;
+    }
+
+    public CreatedFolderCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return true if the folder has been created (or found existing) since the cache was last cleared
+     */
+    public boolean contains(String folder) {
+        return folders.contains(folder);
+    }
+
+    /**
+     * Marks the folder as existing. Should be called only after the folder was successfully created.
+     */
+    public void add(String folder) {
+        if (folders.size() >= capacity)
+            folders.clear();
+        folders.add(folder);
+    }
+
+    public void clear() {
+        folders.clear();
+    }
+
+    public int size() {
+        return folders.size();
+    }
+}
@@ -13,7 +13,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public interface FsAdapter extends StorageService {
 
-    StorageService getFsProcessor();
+    FsProcessor getFsProcessor();
 
     @Override
     StorageStateDto getStorageState() throws StorageException;
@@ -43,6 +43,11 @@ public interface FsAdapter extends StorageService {
         return getFsProcessor().getObject(id,dataSpace);
     }
 
+    @Override
+    default ObjectRangeRetrievalResource getObjectRange(String id, String dataSpace, long offset, long length) throws StorageException {
+        return getFsProcessor().getObjectRange(id, dataSpace, offset, length);
+    }
+
     @Override
     default void delete(String id, String dataSpace) throws StorageException {
         getFsProcessor().delete(id,dataSpace);
@@ -77,4 +82,11 @@ public interface FsAdapter extends StorageService {
     default void createNewDataSpace(String dataSpace) throws IOStorageException {
         getFsProcessor().createNewDataSpace(dataSpace);
     }
-}
\ No newline at end of file
+
+    /**
+     * @see FsProcessor#migrateMetadata(String)
+     */
+    default int migrateMetadata(String dataSpace) throws StorageException {
+        return getFsProcessor().migrateMetadata(dataSpace);
+    }
+}
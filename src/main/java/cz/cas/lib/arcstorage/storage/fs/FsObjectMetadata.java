@@ -0,0 +1,193 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import static cz.cas.lib.arcstorage.storage.StorageUtils.extractXmlVersion;
+
+/**
+ * Metadata of the object stored at FS/ZFS storage, kept in a single file with original file name and <i>.meta</i>
+ * suffix next to the file itself. The metadata file is always replaced as a whole: written to a temporary file which is
+ * then renamed over the old one, so that a reader never sees partially written metadata.
+ * <p>
+ * Objects stored before the metadata file was introduced are described by the legacy layout: empty files with
+ * <i>.STATE</i> suffix (e.g. fileId.PROCESSING) and a text file with <i>.{@link ChecksumType}</i> suffix holding the
+ * checksum. Metadata of such objects is assembled from these files, the legacy files are deleted once the metadata
+ * file is written.
+ * </p>
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class FsObjectMetadata {
+
+    public static final String METADATA_FILE_SUFFIX = ".meta";
+    public static final String TMP_FILE_SUFFIX = ".tmp";
+
+    private static final String STATE = "state";
+    private static final String CHECKSUM_TYPE = "checksumType";
+    private static final String CHECKSUM = "checksum";
+    private static final String CREATED = "created";
+    private static final String XML_VERSION = "xmlVersion";
+
+    private ObjectState state;
+    /**
+     * checksum of the object provided when the object was stored, null if the object has never been stored (e.g. it
+     * was rolled back before the transfer has started)
+     */
+    private Checksum checksum;
+    private Instant created;
+    /**
+     * version of AIP XML, null if the object is not AIP XML
+     */
+    private Integer xmlVersion;
+    /**
+     * names of the files of the legacy layout from which the metadata was assembled, these are deleted once the
+     * metadata file is written
+     */
+    private List<String> legacyFiles = new ArrayList<>();
+
+    public FsObjectMetadata(String fileId, ObjectState state, Checksum checksum) {
+        this.state = state;
+        this.checksum = checksum;
+        this.created = Instant.now();
+        this.xmlVersion = parseXmlVersion(fileId);
+    }
+
+    /**
+     * @return true if the metadata was assembled from the legacy layout
+     */
+    public boolean isLegacy() {
+        return !legacyFiles.isEmpty();
+    }
+
+    public byte[] serialize() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(STATE).append('=').append(state).append('\n');
+        if (checksum != null) {
+            sb.append(CHECKSUM_TYPE).append('=').append(checksum.getType()).append('\n');
+            sb.append(CHECKSUM).append('=').append(checksum.getValue()).append('\n');
+        }
+        if (created != null)
+            sb.append(CREATED).append('=').append(created).append('\n');
+        if (xmlVersion != null)
+            sb.append(XML_VERSION).append('=').append(xmlVersion).append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param is stream of the metadata file
+     * @return parsed metadata
+     * @throws IOException if the stream could not be read or does not contain valid metadata
+     */
+    public static FsObjectMetadata parse(InputStream is) throws IOException {
+        Properties props = new Properties();
+        props.load(is);
+        FsObjectMetadata metadata = new FsObjectMetadata();
+        try {
+            metadata.state = ObjectState.valueOf(props.getProperty(STATE));
+            String checksumType = props.getProperty(CHECKSUM_TYPE);
+            if (checksumType != null)
+                metadata.checksum = new Checksum(ChecksumType.valueOf(checksumType), props.getProperty(CHECKSUM));
+            String created = props.getProperty(CREATED);
+            if (created != null)
+                metadata.created = Instant.parse(created);
+            String xmlVersion = props.getProperty(XML_VERSION);
+            if (xmlVersion != null)
+                metadata.xmlVersion = Integer.parseInt(xmlVersion);
+        } catch (IllegalArgumentException | NullPointerException | DateTimeParseException e) {
+            throw new IOException("invalid metadata file: " + props, e);
+        }
+        return metadata;
+    }
+
+    public static String toMetadataFileName(String fileId) {
+        return fileId + METADATA_FILE_SUFFIX;
+    }
+
+    /**
+     * @return name of the temporary file to which the metadata file is written before it is renamed, unique per write
+     * so that concurrent writes of the same object do not share the file
+     */
+    public static String toTmpMetadataFileName(String fileId) {
+        return toMetadataFileName(fileId) + "." + UUID.randomUUID() + TMP_FILE_SUFFIX;
+    }
+
+    /**
+     * @return version of the XML if the file id is id of AIP XML, null otherwise
+     */
+    public static Integer parseXmlVersion(String fileId) {
+        return fileId.contains("_xml_") ? extractXmlVersion(fileId) : null;
+    }
+
+    /**
+     * @return id of the file to which the file of the legacy layout belongs, null if the file name is not name of
+     * a legacy state or checksum file
+     */
+    public static String legacyFileId(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 1)
+            return null;
+        String suffix = fileName.substring(dot + 1);
+        if (toLegacyState(suffix) == null && toLegacyChecksumType(suffix) == null)
+            return null;
+        return fileName.substring(0, dot);
+    }
+
+    /**
+     * @return state represented by the legacy state file, null if the file is not a legacy state file
+     */
+    public static ObjectState legacyState(String fileName) {
+        return toLegacyState(fileName.substring(fileName.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * @return type of the checksum held in the legacy checksum file, null if the file is not a legacy checksum file
+     */
+    public static ChecksumType legacyChecksumType(String fileName) {
+        return toLegacyChecksumType(fileName.substring(fileName.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Resolves the state of the object from the legacy state files. States were not always cleaned up consistently
+     * so the state which wins is the one which was set last in the object lifecycle.
+     *
+     * @param states states of which the legacy state file exists
+     * @return resolved state, {@link ObjectState#PROCESSING} if there is no state file
+     */
+    public static ObjectState resolveLegacyState(Collection<ObjectState> states) {
+        for (ObjectState state : Arrays.asList(ObjectState.ROLLED_BACK, ObjectState.PROCESSING, ObjectState.DELETED,
+                ObjectState.REMOVED, ObjectState.ARCHIVED)) {
+            if (states.contains(state))
+                return state;
+        }
+        return ObjectState.PROCESSING;
+    }
+
+    private static ObjectState toLegacyState(String suffix) {
+        for (ObjectState state : ObjectState.values()) {
+            if (state.toString().equals(suffix))
+                return state;
+        }
+        return null;
+    }
+
+    private static ChecksumType toLegacyChecksumType(String suffix) {
+        for (ChecksumType type : ChecksumType.values()) {
+            if (type.toString().equals(suffix))
+                return type;
+        }
+        return null;
+    }
+}
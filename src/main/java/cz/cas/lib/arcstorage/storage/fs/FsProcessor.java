@@ -0,0 +1,22 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import cz.cas.lib.arcstorage.storage.StorageService;
+import cz.cas.lib.arcstorage.storage.exception.StorageException;
+
+/**
+ * Processor which provides {@link FsAdapter} with access to the files of FS/ZFS storage, see {@link LocalFsProcessor}
+ * and {@link RemoteFsProcessor}.
+ */
+public interface FsProcessor extends StorageService {
+
+    /**
+     * Converts metadata of all objects of the data space which are still stored in the legacy layout (state and
+     * checksum files) to the metadata files, see {@link FsObjectMetadata}. Legacy files of objects which already have
+     * the metadata file are deleted.
+     *
+     * @param dataSpace data space
+     * @return number of objects which had some legacy files
+     * @throws StorageException in case of error, objects processed before the error remain migrated
+     */
+    int migrateMetadata(String dataSpace) throws StorageException;
+}
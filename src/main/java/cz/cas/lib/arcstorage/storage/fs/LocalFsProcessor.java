@@ -3,7 +3,6 @@ package cz.cas.lib.arcstorage.storage.fs;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
 import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.exception.GeneralException;
-import cz.cas.lib.arcstorage.storage.StorageService;
 import cz.cas.lib.arcstorage.storage.StorageUtils;
 import cz.cas.lib.arcstorage.storage.exception.FileCorruptedAfterStoreException;
 import cz.cas.lib.arcstorage.storage.exception.FileDoesNotExistException;
@@ -11,12 +10,24 @@ import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static cz.cas.lib.arcstorage.storage.StorageUtils.rangeLength;
 import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
 import static cz.cas.lib.arcstorage.util.Utils.strSF;
 import static cz.cas.lib.arcstorage.util.Utils.strSX;
@@ -27,15 +38,25 @@ import static cz.cas.lib.arcstorage.util.Utils.strSX;
  * for access to the Local FS/ZFS or FS/ZFS mapped with NFS
  */
 @Slf4j
-public class LocalFsProcessor implements StorageService {
+public class LocalFsProcessor implements FsProcessor {
 
     @Getter
     private Storage storage;
     private String rootDirPath;
+    private ShardLayout shardLayout;
+    private CreatedFolderCache createdFolders = new CreatedFolderCache();
 
-    public LocalFsProcessor(Storage storage, String rootDirPath) {
+    public LocalFsProcessor(Storage storage, String rootDirPath, ShardLayout shardLayout) {
         this.storage = storage;
         this.rootDirPath = rootDirPath;
+        this.shardLayout = shardLayout;
+    }
+
+    /**
+     * Creates processor with the default folder structure.
+     */
+    public LocalFsProcessor(Storage storage, String rootDirPath) {
+        this(storage, rootDirPath, ShardLayout.DEFAULT);
     }
 
     @Override
@@ -122,14 +143,40 @@ public class LocalFsProcessor implements StorageService {
         }
     }
 
+    /**
+     * The range is read from the position of the file channel, the preceding part of the file is not read.
+     */
+    @Override
+    public ObjectRangeRetrievalResource getObjectRange(String id, String dataSpace, long offset, long length) throws StorageException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(getFolderPath(id, dataSpace).resolve(id), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileDoesNotExistException(strSX(storage.getName(), id));
+        } catch (IOException e) {
+            throw new IOStorageException(e);
+        }
+        try {
+            long objectSize = channel.size();
+            long rangeLength = rangeLength(objectSize, offset, length);
+            channel.position(offset);
+            InputStream rangeStream = new BoundedInputStream(Channels.newInputStream(channel), rangeLength);
+            return new ObjectRangeRetrievalResource(rangeStream, null, offset, rangeLength, objectSize);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(channel);
+            throw new IOStorageException(e);
+        }
+    }
+
     @Override
     public void delete(String sipId, String dataSpace) throws IOStorageException, FileDoesNotExistException {
         Path sipFolder = getFolderPath(sipId, dataSpace);
         Path sipFilePath = sipFolder.resolve(sipId);
         try {
-            setState(sipFolder, sipId, ObjectState.PROCESSING);
+            FsObjectMetadata metadata = setState(sipFolder, sipId, ObjectState.PROCESSING);
             Files.deleteIfExists(sipFilePath);
-            transitState(sipFolder, sipId, ObjectState.PROCESSING, ObjectState.DELETED);
+            metadata.setState(ObjectState.DELETED);
+            writeMetadata(sipFolder, sipId, metadata);
         } catch (IOException ex) {
             throw new IOStorageException(ex);
         }
@@ -140,7 +187,6 @@ public class LocalFsProcessor implements StorageService {
         Path sipFolder = getFolderPath(sipId, dataSpace);
         try {
             transitState(sipFolder, sipId, ObjectState.ARCHIVED, ObjectState.REMOVED);
-        } catch (FileAlreadyExistsException e) {
         } catch (IOException ex) {
             throw new IOStorageException(ex);
         }
@@ -151,7 +197,6 @@ public class LocalFsProcessor implements StorageService {
         Path sipFolder = getFolderPath(sipId, dataSpace);
         try {
             transitState(sipFolder, sipId, ObjectState.REMOVED, ObjectState.ARCHIVED);
-        } catch (FileAlreadyExistsException e) {
         } catch (IOException ex) {
             throw new IOStorageException(ex);
         }
@@ -235,9 +280,16 @@ public class LocalFsProcessor implements StorageService {
     void storeFile(Path folder, String id, InputStream stream, Checksum checksum, AtomicBoolean rollback) throws FileCorruptedAfterStoreException, IOStorageException {
         if (rollback.get())
             return;
+        try {
+            createFolder(folder);
+        } catch (IOException e) {
+            rollback.set(true);
+            throw new IOStorageException(e);
+        }
         try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(folder.resolve(id).toFile()))) {
-            setState(folder, id, ObjectState.PROCESSING);
-            Files.copy(new ByteArrayInputStream(checksum.getValue().getBytes()), folder.resolve(id + "." + checksum.getType()), StandardCopyOption.REPLACE_EXISTING);
+            FsObjectMetadata metadata = new FsObjectMetadata(id, ObjectState.PROCESSING, checksum);
+            addLegacyFiles(folder, id, metadata);
+            writeMetadata(folder, id, metadata);
 
             byte[] buffer = new byte[8192];
             int read = stream.read(buffer);
@@ -251,7 +303,8 @@ public class LocalFsProcessor implements StorageService {
             boolean rollbackInterruption = !verifyChecksum(new FileInputStream(folder.resolve(id).toFile()), checksum, rollback);
             if (rollbackInterruption)
                 return;
-            transitState(folder, id, ObjectState.PROCESSING, ObjectState.ARCHIVED);
+            metadata.setState(ObjectState.ARCHIVED);
+            writeMetadata(folder, id, metadata);
         } catch (IOException e) {
             rollback.set(true);
             throw new IOStorageException(e);
@@ -264,43 +317,185 @@ public class LocalFsProcessor implements StorageService {
     }
 
     void rollbackFile(Path folder, String fileId) throws StorageException, IOException {
-        String processingStateId = toStateStr(fileId, ObjectState.PROCESSING);
-        if (Files.notExists(folder.resolve(processingStateId)))
-            Files.createFile(folder.resolve(processingStateId));
-        Files.deleteIfExists(folder.resolve(toStateStr(fileId, ObjectState.REMOVED)));
-        Files.deleteIfExists(folder.resolve(toStateStr(fileId, ObjectState.DELETED)));
-        Files.deleteIfExists(folder.resolve(toStateStr(fileId, ObjectState.ROLLED_BACK)));
+        FsObjectMetadata metadata = setState(folder, fileId, ObjectState.PROCESSING);
         Files.deleteIfExists(folder.resolve(fileId));
-        transitState(folder, fileId, ObjectState.PROCESSING, ObjectState.ROLLED_BACK);
+        metadata.setState(ObjectState.ROLLED_BACK);
+        writeMetadata(folder, fileId, metadata);
     }
 
+    /**
+     * Resolves path to the folder of the object, the folder is not created, see {@link #createFolder(Path)}.
+     */
     Path getFolderPath(String fileName, String dataSpace) {
-        Path path = Paths.get(rootDirPath).resolve(dataSpace).resolve(fileName.substring(0, 2)).resolve(fileName.substring(2, 4)).resolve(fileName.substring(4, 6));
+        Path path = Paths.get(rootDirPath).resolve(dataSpace);
+        for (String shard : shardLayout.getShards(fileName)) {
+            path = path.resolve(shard);
+        }
+        return path;
+    }
+
+    /**
+     * Creates the folder of the object if it has not been created yet.
+     */
+    void createFolder(Path folder) throws IOException {
+        String key = folder.toString();
+        if (createdFolders.contains(key))
+            return;
+        Files.createDirectories(folder);
+        createdFolders.add(key);
+    }
+
+    /**
+     * Reads metadata of the object, from the metadata file or, if there is none, from the files of the legacy layout.
+     *
+     * @return metadata or null if there is no metadata of the object
+     */
+    FsObjectMetadata readMetadata(Path folder, String fileId) throws IOException {
+        try (InputStream is = Files.newInputStream(folder.resolve(FsObjectMetadata.toMetadataFileName(fileId)))) {
+            return FsObjectMetadata.parse(is);
+        } catch (NoSuchFileException e) {
+            return readLegacyMetadata(folder, fileId);
+        }
+    }
+
+    /**
+     * Atomically replaces the metadata file of the object and deletes the legacy files from which the metadata was
+     * assembled. The new metadata is flushed to the disk before it replaces the old one, so that a crash can not leave
+     * an empty metadata file behind.
+     */
+    void writeMetadata(Path folder, String fileId, FsObjectMetadata metadata) throws IOException {
+        Path tmpFile = folder.resolve(FsObjectMetadata.toTmpMetadataFileName(fileId));
         try {
-            Files.createDirectories(path);
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(metadata.serialize());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tmpFile, folder.resolve(FsObjectMetadata.toMetadataFileName(fileId)), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            Files.deleteIfExists(tmpFile);
+            throw e;
         }
-        return path;
+        for (String legacyFile : metadata.getLegacyFiles()) {
+            Files.deleteIfExists(folder.resolve(legacyFile));
+        }
+        metadata.getLegacyFiles().clear();
     }
 
-    private void setState(Path folder, String fileId, ObjectState state) throws IOException {
-        if (!Files.exists(folder.resolve(toStateStr(fileId, state))))
-            Files.createFile(folder.resolve(toStateStr(fileId, state)));
+    /**
+     * Adds files of the legacy layout left by a previous storing of the object to the files which are deleted once the
+     * metadata file is written, so that they do not outlive the object stored again.
+     */
+    private void addLegacyFiles(Path folder, String fileId, FsObjectMetadata metadata) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder,
+                f -> fileId.equals(FsObjectMetadata.legacyFileId(f.getFileName().toString())))) {
+            for (Path file : files) {
+                metadata.getLegacyFiles().add(file.getFileName().toString());
+            }
+        }
     }
 
-    private String toStateStr(String fileId, ObjectState objectState) {
-        return fileId + "." + objectState.toString();
+    @Override
+    public int migrateMetadata(String dataSpace) throws IOStorageException {
+        Path dataSpaceRoot = Paths.get(rootDirPath).resolve(dataSpace);
+        if (Files.notExists(dataSpaceRoot))
+            return 0;
+        AtomicInteger migrated = new AtomicInteger();
+        try {
+            Files.walkFileTree(dataSpaceRoot, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null)
+                        throw exc;
+                    migrated.addAndGet(migrateFolder(dir));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new IOStorageException("migration of metadata of data space " + dataSpace + " has failed after " +
+                    migrated.get() + " migrated objects", e);
+        }
+        log.info(storage.getName() + " migrated metadata of " + migrated.get() + " objects of data space " + dataSpace);
+        return migrated.get();
     }
 
-    private void transitState(Path folder, String fileId, ObjectState oldState, ObjectState newState) throws IOException {
-        File oldFile = folder
-                .resolve(toStateStr(fileId, oldState))
-                .toFile();
-        File newFile = folder.resolve(toStateStr(fileId, newState)).toFile();
-        if (newFile.exists())
-            oldFile.delete();
-        else
-            oldFile.renameTo(newFile);
+    private int migrateFolder(Path folder) throws IOException {
+        Set<String> legacyIds = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileId = FsObjectMetadata.legacyFileId(file.getFileName().toString());
+                if (fileId != null)
+                    legacyIds.add(fileId);
+            }
+        }
+        for (String fileId : legacyIds) {
+            FsObjectMetadata legacyMetadata = readLegacyMetadata(folder, fileId);
+            if (Files.exists(folder.resolve(FsObjectMetadata.toMetadataFileName(fileId)))) {
+                for (String legacyFile : legacyMetadata.getLegacyFiles()) {
+                    Files.deleteIfExists(folder.resolve(legacyFile));
+                }
+            } else
+                writeMetadata(folder, fileId, legacyMetadata);
+        }
+        return legacyIds.size();
+    }
+
+    private FsObjectMetadata readLegacyMetadata(Path folder, String fileId) throws IOException {
+        FsObjectMetadata metadata = new FsObjectMetadata();
+        Set<ObjectState> states = EnumSet.noneOf(ObjectState.class);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder,
+                f -> fileId.equals(FsObjectMetadata.legacyFileId(f.getFileName().toString())))) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                ObjectState state = FsObjectMetadata.legacyState(fileName);
+                if (state != null)
+                    states.add(state);
+                else
+                    metadata.setChecksum(new Checksum(FsObjectMetadata.legacyChecksumType(fileName),
+                            new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim()));
+                Instant modified = Files.getLastModifiedTime(file).toInstant();
+                if (metadata.getCreated() == null || modified.isBefore(metadata.getCreated()))
+                    metadata.setCreated(modified);
+                metadata.getLegacyFiles().add(fileName);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!metadata.isLegacy())
+            return null;
+        metadata.setState(FsObjectMetadata.resolveLegacyState(states));
+        metadata.setXmlVersion(FsObjectMetadata.parseXmlVersion(fileId));
+        return metadata;
+    }
+
+    /**
+     * Sets state of the object, the metadata are created if the object has none.
+     *
+     * @return updated metadata
+     */
+    private FsObjectMetadata setState(Path folder, String fileId, ObjectState state) throws IOException {
+        FsObjectMetadata metadata = readMetadata(folder, fileId);
+        if (metadata == null) {
+            createFolder(folder);
+            metadata = new FsObjectMetadata(fileId, state, null);
+        }
+        metadata.setState(state);
+        writeMetadata(folder, fileId, metadata);
+        return metadata;
+    }
+
+    /**
+     * Changes state of the object if the object is in the old state, does nothing otherwise.
+     */
+    private void transitState(Path folder, String fileId, ObjectState oldState, ObjectState newState) throws IOException, FileDoesNotExistException {
+        FsObjectMetadata metadata = readMetadata(folder, fileId);
+        if (metadata == null)
+            throw new FileDoesNotExistException(folder.resolve(fileId).toAbsolutePath().toString());
+        if (metadata.getState() != oldState)
+            return;
+        metadata.setState(newState);
+        writeMetadata(folder, fileId, metadata);
     }
 }
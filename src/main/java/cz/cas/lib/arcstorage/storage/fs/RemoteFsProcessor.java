@@ -3,49 +3,102 @@ package cz.cas.lib.arcstorage.storage.fs;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
 import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.exception.GeneralException;
-import cz.cas.lib.arcstorage.storage.StorageService;
+import cz.cas.lib.arcstorage.storage.ParallelRangeReader;
+import cz.cas.lib.arcstorage.storage.RollbackWatcher;
 import cz.cas.lib.arcstorage.storage.StorageUtils;
 import cz.cas.lib.arcstorage.storage.exception.*;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.common.SSHException;
-import net.schmizz.sshj.sftp.SFTPClient;
-import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.sftp.*;
 import net.schmizz.sshj.xfer.FilePermission;
 import net.schmizz.sshj.xfer.InMemoryDestFile;
 import net.schmizz.sshj.xfer.InMemorySourceFile;
 import org.apache.commons.io.IOUtils;
-import org.apache.log4j.Logger;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import java.io.*;
-import java.util.Map;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static cz.cas.lib.arcstorage.storage.StorageUtils.rangeLength;
 import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
 
 /**
  * implementation used by {@link FsAdapter} to provide {@link ZfsStorageService} and {@link FsStorageService} with methods
  * for access to the remote FS/ZFS over SFTP
+ * <p>
+ * SSH connections are borrowed from {@link SshSessionPool} shared by all processors of the same storage.
+ * </p>
  */
 @Slf4j
-public class RemoteFsProcessor implements StorageService {
+public class RemoteFsProcessor implements FsProcessor {
 
     @Getter
     private Storage storage;
     private String S;
-    private String keyFilePath;
     private String rootDirPath;
-    private static final String USER = "arcstorage";
-    private int connectionTimeout;
-
-    public RemoteFsProcessor(Storage storage, String rootDirPath, String separator, String keyFilePath, int connectionTimeout) {
+    @Getter
+    private SshSessionPool sessionPool;
+    /**
+     * number of read requests sent in advance when reading remote file
+     */
+    private int readAhead;
+    /**
+     * cleared if the server does not support posix-rename extension used for atomic replacement of metadata files
+     */
+    private volatile boolean posixRenameSupported = true;
+    private ChecksumVerificationMode checksumVerificationMode;
+    private ShardLayout shardLayout;
+    private ParallelRangeReader rangeReader;
+    private CreatedFolderCache createdFolders = new CreatedFolderCache();
+    /**
+     * set if the remote checksum command is not available at the server, so that it is not called again
+     */
+    private volatile boolean remoteCommandUnavailable;
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final long DEFAULT_POOL_IDLE_TIMEOUT = 300000;
+    public static final int DEFAULT_READ_AHEAD = 16;
+    private static final int COMMAND_NOT_FOUND = 127;
+    private static final String POSIX_RENAME_EXTENSION = "posix-rename@openssh.com";
+    private static final int REMOTE_COMMAND_EXIT_TIMEOUT = 10;
+    private static final Pattern REMOTE_CHECKSUM_OUTPUT = Pattern.compile("^\\\\?([0-9a-fA-F]+)\\s");
+
+    public RemoteFsProcessor(Storage storage, String rootDirPath, String separator, SshSessionPool sessionPool, int readAhead,
+                             ChecksumVerificationMode checksumVerificationMode, ShardLayout shardLayout,
+                             ParallelRangeReader rangeReader) {
+        if (readAhead < 1)
+            throw new IllegalArgumentException("read ahead must be positive, was: " + readAhead);
         this.storage = storage;
         this.S = separator;
-        this.keyFilePath = keyFilePath;
-        this.connectionTimeout = connectionTimeout;
         this.rootDirPath = rootDirPath;
+        this.sessionPool = sessionPool;
+        this.readAhead = readAhead;
+        this.checksumVerificationMode = checksumVerificationMode;
+        this.shardLayout = shardLayout;
+        this.rangeReader = rangeReader;
+    }
+
+    public RemoteFsProcessor(Storage storage, String rootDirPath, String separator, SshSessionPool sessionPool, int readAhead,
+                             ChecksumVerificationMode checksumVerificationMode, ShardLayout shardLayout) {
+        this(storage, rootDirPath, separator, sessionPool, readAhead, checksumVerificationMode, shardLayout,
+                ParallelRangeReader.DISABLED);
+    }
+
+    /**
+     * Creates processor with its own session pool of default size.
+     */
+    public RemoteFsProcessor(Storage storage, String rootDirPath, String separator, String keyFilePath, int connectionTimeout) {
+        this(storage, rootDirPath, separator, new SshSessionPool(storage, keyFilePath, connectionTimeout, DEFAULT_POOL_SIZE, DEFAULT_POOL_IDLE_TIMEOUT), DEFAULT_READ_AHEAD,
+                ChecksumVerificationMode.READ_BACK, ShardLayout.DEFAULT);
     }
 
     public String getSeparator() {
@@ -54,13 +107,10 @@ public class RemoteFsProcessor implements StorageService {
 
     @Override
     public boolean testConnection() {
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                Set<net.schmizz.sshj.xfer.FilePermission> perms = sftp.perms(rootDirPath);
-                return (perms.contains(FilePermission.GRP_R) || perms.contains(FilePermission.USR_R)) &&
-                        perms.contains(FilePermission.GRP_W) || perms.contains(FilePermission.USR_W);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            Set<net.schmizz.sshj.xfer.FilePermission> perms = session.getSftp().perms(rootDirPath);
+            return (perms.contains(FilePermission.GRP_R) || perms.contains(FilePermission.USR_R)) &&
+                    perms.contains(FilePermission.GRP_W) || perms.contains(FilePermission.USR_W);
         } catch (Exception e) {
             log.error(storage.getName() + " unable to connect: " + e.getClass() + " " + e.getMessage());
             return false;
@@ -70,13 +120,11 @@ public class RemoteFsProcessor implements StorageService {
     @Override
     public void storeAip(AipDto aip, AtomicBoolean rollback, String dataSpace) throws StorageException {
         String folder = getFolderPath(aip.getSip().getDatabaseId(), dataSpace);
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            listenForRollbackToKillSession(ssh, rollback);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                storeFile(sftp, folder, toXmlId(aip.getSip().getDatabaseId(), 1), aip.getXml().getInputStream(), aip.getXml().getChecksum(), rollback);
-                storeFile(sftp, folder, aip.getSip().getDatabaseId(), aip.getSip().getInputStream(), aip.getSip().getChecksum(), rollback);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow();
+             RollbackWatcher.Registration rollbackRegistration = killSessionOnRollback(session, rollback)) {
+            SFTPClient sftp = session.getSftp();
+            storeFile(session.getSsh(), sftp, folder, toXmlId(aip.getSip().getDatabaseId(), 1), aip.getXml().getInputStream(), aip.getXml().getChecksum(), rollback);
+            storeFile(session.getSsh(), sftp, folder, aip.getSip().getDatabaseId(), aip.getSip().getInputStream(), aip.getSip().getChecksum(), rollback);
         } catch (IOException e) {
             rollback.set(true);
             throw new SshException(e);
@@ -88,65 +136,91 @@ public class RemoteFsProcessor implements StorageService {
 
     @Override
     public AipRetrievalResource getAip(String aipId, String dataSpace, Integer... xmlVersions) throws FileDoesNotExistException, StorageException {
-        SSHClient ssh = null;
+        if (rangeReader.isEnabled())
+            return getAipByRanges(aipId, dataSpace, xmlVersions);
+        SshSessionPool.Lease session;
         try {
-            ssh = new SSHClient();
-            connect(ssh);
-            SFTPClient sftp = ssh.newSFTPClient();
-            AipRetrievalResource aip = new AipRetrievalResource(ssh);
+            session = sessionPool.borrow();
+        } catch (IOException e) {
+            throw new SshException(e);
+        }
+        try {
+            AipRetrievalResource aip = new AipRetrievalResource(session);
             String folder = getFolderPath(aipId, dataSpace);
-            aip.setSip(getFile(ssh, sftp, folder + S + aipId));
+            aip.setSip(getFile(session, folder + S + aipId));
             for (Integer xmlVersion : xmlVersions) {
-                aip.addXml(xmlVersion, getFile(ssh, sftp, folder + S + toXmlId(aipId, xmlVersion)));
+                aip.addXml(xmlVersion, getFile(session, folder + S + toXmlId(aipId, xmlVersion)));
             }
             return aip;
         } catch (IOException e) {
-            try {
-                ssh.close();
-            } catch (IOException ioEx) {
-                throw new SshException(ioEx);
-            }
+            session.invalidate();
+            session.close();
             throw new SshException(e);
         } catch (Exception e) {
-            try {
-                if (ssh != null)
-                    ssh.close();
-            } catch (IOException ioEx) {
-                throw new SshException(ioEx);
-            }
+            session.close();
             throw e;
         }
     }
 
+    /**
+     * Reads the XMLs to memory by a connection which is returned right after, then reads the SIP by ranged reads which
+     * borrow their own connections. No connection is held while the ranged reads wait for a free one, so concurrent
+     * retrievals can not exhaust the pool by connections they would hold for the whole retrieval.
+     */
+    private AipRetrievalResource getAipByRanges(String aipId, String dataSpace, Integer... xmlVersions) throws StorageException {
+        String folder = getFolderPath(aipId, dataSpace);
+        Map<Integer, byte[]> xmls = new TreeMap<>();
+        SshSessionPool.Lease session;
+        try {
+            session = sessionPool.borrow();
+        } catch (IOException e) {
+            throw new SshException(e);
+        }
+        try {
+            for (Integer xmlVersion : xmlVersions) {
+                try (InputStream xml = openFile(session.getSftp(), folder + S + toXmlId(aipId, xmlVersion))) {
+                    xmls.put(xmlVersion, IOUtils.toByteArray(xml));
+                }
+            }
+        } catch (IOException e) {
+            session.invalidate();
+            throw new SshException(e);
+        } finally {
+            session.close();
+        }
+        ObjectRetrievalResource sip = rangeReader.getObject(aipId, (offset, length) -> getObjectRange(aipId, dataSpace, offset, length));
+        AipRetrievalResource aip = new AipRetrievalResource((Closeable) sip::closeWithoutDelay);
+        aip.setSip(sip.getInputStream());
+        xmls.forEach((version, xml) -> aip.addXml(version, new ByteArrayInputStream(xml)));
+        return aip;
+    }
+
     @Override
     public void storeObject(ArchivalObjectDto objectDto, AtomicBoolean rollback, String dataSpace) throws StorageException {
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            listenForRollbackToKillSession(ssh, rollback);
+        try (SshSessionPool.Lease session = sessionPool.borrow();
+             RollbackWatcher.Registration rollbackRegistration = killSessionOnRollback(session, rollback)) {
             String objId = objectDto.getStorageId();
             String folderPath = getFolderPath(objId, dataSpace);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-
-                switch (objectDto.getState()) {
-                    case ARCHIVAL_FAILURE:
-                        throw new IllegalArgumentException("trying to store object " + objId + " which is in failed state");
-                    case DELETION_FAILURE:
-                        objectDto.setState(ObjectState.DELETED);
-                    case ROLLED_BACK:
-                    case DELETED:
-                        setState(sftp, folderPath, objId, objectDto.getState());
-                        break;
-                    case REMOVED:
-                        storeFile(sftp, folderPath, objId, objectDto.getInputStream(), objectDto.getChecksum(), rollback);
-                        remove(objId, dataSpace);
-                        break;
-                    case ARCHIVED:
-                    case PROCESSING:
-                        storeFile(sftp, folderPath, objId, objectDto.getInputStream(), objectDto.getChecksum(), rollback);
-                        break;
-                    default:
-                        throw new IllegalStateException(objectDto.toString());
-                }
+            SFTPClient sftp = session.getSftp();
+            switch (objectDto.getState()) {
+                case ARCHIVAL_FAILURE:
+                    throw new IllegalArgumentException("trying to store object " + objId + " which is in failed state");
+                case DELETION_FAILURE:
+                    objectDto.setState(ObjectState.DELETED);
+                case ROLLED_BACK:
+                case DELETED:
+                    setState(sftp, folderPath, objId, objectDto.getState());
+                    break;
+                case REMOVED:
+                    storeFile(session.getSsh(), sftp, folderPath, objId, objectDto.getInputStream(), objectDto.getChecksum(), rollback);
+                    transitState(sftp, folderPath, objId, ObjectState.ARCHIVED, ObjectState.REMOVED);
+                    break;
+                case ARCHIVED:
+                case PROCESSING:
+                    storeFile(session.getSsh(), sftp, folderPath, objId, objectDto.getInputStream(), objectDto.getChecksum(), rollback);
+                    break;
+                default:
+                    throw new IllegalStateException(objectDto.toString());
             }
         } catch (IOException e) {
             rollback.set(true);
@@ -156,28 +230,59 @@ public class RemoteFsProcessor implements StorageService {
 
     @Override
     public ObjectRetrievalResource getObject(String id, String dataSpace) throws FileDoesNotExistException, StorageException {
+        if (rangeReader.isEnabled())
+            return rangeReader.getObject(id, (offset, length) -> getObjectRange(id, dataSpace, offset, length));
         String objectFilePath = getFolderPath(id, dataSpace) + S + id;
-        SSHClient ssh = null;
+        SshSessionPool.Lease session;
         try {
-            ssh = new SSHClient();
-            connect(ssh);
-            SFTPClient sftp = ssh.newSFTPClient();
-            InputStream inputStream = getFile(ssh, sftp, objectFilePath);
-            return new ObjectRetrievalResource(inputStream, ssh);
+            session = sessionPool.borrow();
         } catch (IOException e) {
-            try {
-                ssh.close();
-            } catch (IOException ioEx) {
-                throw new SshException(ioEx);
-            }
+            throw new SshException(e);
+        }
+        try {
+            InputStream inputStream = getFile(session, objectFilePath);
+            return new ObjectRetrievalResource(inputStream, session);
+        } catch (IOException e) {
+            session.invalidate();
+            session.close();
             throw new SshException(e);
         } catch (Exception e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The range is read by SFTP read requests starting at the offset, the preceding part of the file is not transferred.
+     */
+    @Override
+    public ObjectRangeRetrievalResource getObjectRange(String id, String dataSpace, long offset, long length) throws StorageException {
+        String objectFilePath = getFolderPath(id, dataSpace) + S + id;
+        SshSessionPool.Lease session;
+        try {
+            session = sessionPool.borrow();
+        } catch (IOException e) {
+            throw new SshException(e);
+        }
+        try {
+            RemoteFile remoteFile = openRemoteFile(session.getSftp(), objectFilePath);
+            long objectSize;
             try {
-                if (ssh != null)
-                    ssh.close();
-            } catch (IOException ioEx) {
-                throw new SshException(ioEx);
+                objectSize = remoteFile.length();
+            } catch (IOException e) {
+                remoteFile.close();
+                throw e;
             }
+            long rangeLength = rangeLength(objectSize, offset, length);
+            InputStream rangeStream = session.closeOnReturn(new BoundedInputStream(
+                    new RemoteFileStream(remoteFile, readAhead, offset), rangeLength));
+            return new ObjectRangeRetrievalResource(rangeStream, session, offset, rangeLength, objectSize);
+        } catch (IOException e) {
+            session.invalidate();
+            session.close();
+            throw new SshException(e);
+        } catch (Exception e) {
+            session.close();
             throw e;
         }
     }
@@ -186,13 +291,11 @@ public class RemoteFsProcessor implements StorageService {
     public void delete(String sipId, String dataSpace) throws StorageException {
         String sipFolder = getFolderPath(sipId, dataSpace);
         String sipFilePath = sipFolder + S + sipId;
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                setState(sftp, sipFolder, sipId, ObjectState.PROCESSING);
-                deleteIfExistsSftp(sftp, sipFilePath);
-                transitProcessingState(sftp, sipFolder, sipId, ObjectState.DELETED);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            FsObjectMetadata metadata = setState(session.getSftp(), sipFolder, sipId, ObjectState.PROCESSING);
+            deleteIfExistsSftp(session.getSftp(), sipFilePath);
+            metadata.setState(ObjectState.DELETED);
+            writeMetadata(session.getSftp(), sipFolder, sipId, metadata);
         } catch (IOException e) {
             throw new SshException(e);
         }
@@ -201,11 +304,8 @@ public class RemoteFsProcessor implements StorageService {
     @Override
     public void remove(String sipId, String dataSpace) throws StorageException {
         String sipFolder = getFolderPath(sipId, dataSpace);
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                transitState(sftp, sipFolder, sipId, ObjectState.ARCHIVED, ObjectState.REMOVED);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            transitState(session.getSftp(), sipFolder, sipId, ObjectState.ARCHIVED, ObjectState.REMOVED);
         } catch (IOException e) {
             throw new SshException(e);
         }
@@ -214,12 +314,8 @@ public class RemoteFsProcessor implements StorageService {
     @Override
     public void renew(String sipId, String dataSpace) throws StorageException {
         String sipFolder = getFolderPath(sipId, dataSpace);
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                transitState(sftp, sipFolder, sipId, ObjectState.REMOVED, ObjectState.ARCHIVED);
-
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            transitState(session.getSftp(), sipFolder, sipId, ObjectState.REMOVED, ObjectState.ARCHIVED);
         } catch (IOException e) {
             throw new SshException(e);
         }
@@ -229,12 +325,9 @@ public class RemoteFsProcessor implements StorageService {
     public void rollbackAip(String sipId, String dataSpace) throws StorageException {
         String folder = getFolderPath(sipId, dataSpace);
         String xmlId = toXmlId(sipId, 1);
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                rollbackFile(sftp, folder, sipId);
-                rollbackFile(sftp, folder, xmlId);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            rollbackFile(session.getSftp(), folder, sipId);
+            rollbackFile(session.getSftp(), folder, xmlId);
         } catch (IOException e) {
             throw new SshException(e);
         }
@@ -243,11 +336,8 @@ public class RemoteFsProcessor implements StorageService {
     @Override
     public void rollbackObject(String id, String dataSpace) throws StorageException {
         String folder = getFolderPath(id, dataSpace);
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                rollbackFile(sftp, folder, id);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            rollbackFile(session.getSftp(), folder, id);
         } catch (IOException e) {
             throw new SshException(e);
         }
@@ -257,23 +347,20 @@ public class RemoteFsProcessor implements StorageService {
     public AipStateInfoDto getAipInfo(String aipId, Checksum sipChecksum, ObjectState objectState, Map<Integer, Checksum> xmlVersions, String dataSpace) throws StorageException {
         String folder = getFolderPath(aipId, dataSpace);
         AipStateInfoDto info = new AipStateInfoDto(storage.getName(), storage.getStorageType(), objectState, sipChecksum, true);
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                if (objectState == ObjectState.ARCHIVED || objectState == ObjectState.REMOVED) {
-                    Checksum storageFileChecksum = StorageUtils.computeChecksum(getFile(ssh, sftp, folder + S + aipId), sipChecksum.getType());
-                    info.setSipStorageChecksum(storageFileChecksum);
-                    info.setConsistent(sipChecksum.equals(storageFileChecksum));
-                } else {
-                    info.setSipStorageChecksum(null);
-                    info.setConsistent(false);
-                }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            if (objectState == ObjectState.ARCHIVED || objectState == ObjectState.REMOVED) {
+                Checksum storageFileChecksum = computeStoredChecksum(session, folder + S + aipId, sipChecksum.getType());
+                info.setSipStorageChecksum(storageFileChecksum);
+                info.setConsistent(sipChecksum.equals(storageFileChecksum));
+            } else {
+                info.setSipStorageChecksum(null);
+                info.setConsistent(false);
+            }
 
-                for (Integer version : xmlVersions.keySet()) {
-                    Checksum dbChecksum = xmlVersions.get(version);
-                    Checksum storageFileChecksum = StorageUtils.computeChecksum(getFile(ssh, sftp, folder + S + toXmlId(aipId, version)), dbChecksum.getType());
-                    info.addXmlInfo(new XmlStateInfoDto(version, dbChecksum.equals(storageFileChecksum), storageFileChecksum, dbChecksum));
-                }
+            for (Integer version : xmlVersions.keySet()) {
+                Checksum dbChecksum = xmlVersions.get(version);
+                Checksum storageFileChecksum = computeStoredChecksum(session, folder + S + toXmlId(aipId, version), dbChecksum.getType());
+                info.addXmlInfo(new XmlStateInfoDto(version, dbChecksum.equals(storageFileChecksum), storageFileChecksum, dbChecksum));
             }
         } catch (IOException e) {
             throw new SshException(e);
@@ -288,40 +375,90 @@ public class RemoteFsProcessor implements StorageService {
 
     @Override
     public void createNewDataSpace(String dataSpace) throws IOStorageException {
-        try (SSHClient ssh = new SSHClient()) {
-            connect(ssh);
-            try (SFTPClient sftp = ssh.newSFTPClient()) {
-                sftp.mkdirs(rootDirPath + S + dataSpace);
-            }
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            session.getSftp().mkdirs(rootDirPath + S + dataSpace);
         } catch (IOException e) {
             throw new IOStorageException(e);
         }
     }
 
-    private InputStream getFile(SSHClient ssh, SFTPClient sftp, String pathToFile) throws IOException, FileDoesNotExistException {
-        PipedInputStream in = new PipedInputStream();
-        checkFileExists(ssh, sftp, pathToFile);
-        new Thread(() -> {
-            try (PipedOutputStream out = new PipedOutputStream(in)) {
-                sftp.get(pathToFile, new OutputStreamSource(out));
-            } catch (IOException e) {
-                IOUtils.closeQuietly(ssh);
-                throw new UncheckedIOException(e);
-            } catch (Exception e) {
-                IOUtils.closeQuietly(ssh);
-                throw e;
-            }
-        }).start();
+    /**
+     * Opens stream of the remote file. The stream is closed at latest when the session is returned to the pool.
+     */
+    private InputStream getFile(SshSessionPool.Lease session, String pathToFile) throws IOException, FileDoesNotExistException {
+        return session.closeOnReturn(openFile(session.getSftp(), pathToFile));
+    }
+
+    /**
+     * Opens stream which reads the remote file with {@link #readAhead} read requests sent in advance. The stream has
+     * to be closed to release the remote file handle.
+     *
+     * @throws FileDoesNotExistException if the file does not exist
+     */
+    InputStream openFile(SFTPClient sftp, String pathToFile) throws IOException, FileDoesNotExistException {
+        return new RemoteFileStream(openRemoteFile(sftp, pathToFile), readAhead, 0);
+    }
+
+    /**
+     * @throws FileDoesNotExistException if the file does not exist
+     */
+    private RemoteFile openRemoteFile(SFTPClient sftp, String pathToFile) throws IOException, FileDoesNotExistException {
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            return sftp.open(pathToFile);
+        } catch (SFTPException e) {
+            if (e.getStatusCode() == Response.StatusCode.NO_SUCH_FILE)
+                throw new FileDoesNotExistException(pathToFile);
+            throw e;
         }
-        return in;
     }
 
     /**
-     * Stores file and then reads it and verifies its fixity.
+     * Computes checksum of the stored file, at the remote server if configured so, otherwise by reading the file.
+     */
+    private Checksum computeStoredChecksum(SshSessionPool.Lease session, String pathToFile, ChecksumType checksumType) throws IOException, FileDoesNotExistException {
+        Checksum checksum = computeRemoteChecksum(session.getSsh(), pathToFile, checksumType);
+        if (checksum != null)
+            return checksum;
+        return StorageUtils.computeChecksum(getFile(session, pathToFile), checksumType);
+    }
+
+    /**
+     * Computes checksum of the file at the remote server using md5sum/sha512sum command.
+     *
+     * @return checksum or null if the {@link ChecksumVerificationMode#REMOTE_COMMAND} mode is not used or the command
+     * has failed, in which case the checksum has to be computed locally
+     */
+    Checksum computeRemoteChecksum(SSHClient ssh, String pathToFile, ChecksumType checksumType) {
+        if (checksumVerificationMode != ChecksumVerificationMode.REMOTE_COMMAND || remoteCommandUnavailable)
+            return null;
+        String command = (checksumType == ChecksumType.MD5 ? "md5sum" : "sha512sum") + " -b '" + pathToFile.replace("'", "'\\''") + "'";
+        try (Session sshSession = ssh.startSession()) {
+            Session.Command cmd = sshSession.exec(command);
+            String output = IOUtils.toString(cmd.getInputStream(), StandardCharsets.UTF_8);
+            cmd.join(REMOTE_COMMAND_EXIT_TIMEOUT, TimeUnit.SECONDS);
+            Integer exitStatus = cmd.getExitStatus();
+            if (exitStatus == null || exitStatus != 0) {
+                if (exitStatus != null && exitStatus == COMMAND_NOT_FOUND) {
+                    remoteCommandUnavailable = true;
+                    log.warn(storage.getName() + " command: " + command + " not available, checksums of stored files will be computed locally");
+                } else
+                    log.warn(storage.getName() + " command: " + command + " failed with exit status: " + exitStatus + ", computing checksum locally");
+                return null;
+            }
+            Matcher m = REMOTE_CHECKSUM_OUTPUT.matcher(output);
+            if (!m.find()) {
+                log.warn(storage.getName() + " unexpected output of command: " + command + " : " + output + ", computing checksum locally");
+                return null;
+            }
+            return new Checksum(checksumType, m.group(1).toLowerCase());
+        } catch (IOException e) {
+            log.warn(storage.getName() + " command: " + command + " failed: " + e.getMessage() + ", computing checksum locally");
+            return null;
+        }
+    }
+
+    /**
+     * Stores file and then verifies its fixity, either at the remote server or by reading the file back.
      * <p>
      * If rollback is set to true by another thread, this method returns ASAP (without throwing exception), leaving the file uncompleted but closing stream.  Uncompleted files are to be cleaned during rollback.
      * </p>
@@ -329,32 +466,31 @@ public class RemoteFsProcessor implements StorageService {
      * In case of any exception, rollback flag is set to true.
      * </p>
      */
-    void storeFile(SFTPClient sftp, String folder, String id, InputStream stream, Checksum checksum, AtomicBoolean rollback) throws FileCorruptedAfterStoreException, IOStorageException {
+    void storeFile(SSHClient ssh, SFTPClient sftp, String folder, String id, InputStream stream, Checksum checksum, AtomicBoolean rollback) throws FileCorruptedAfterStoreException, IOStorageException {
         try {
             if (rollback.get())
                 return;
-            sftp.mkdirs(folder);
-            setState(sftp, folder, id, ObjectState.PROCESSING);
-            sftp.put(new InputStreamSource(new ByteArrayInputStream(checksum.getValue().getBytes()), id + "." + checksum.getType()), folder);
+            createFolder(sftp, folder);
+            FsObjectMetadata metadata = new FsObjectMetadata(id, ObjectState.PROCESSING, checksum);
+            addLegacyFiles(sftp, folder, id, metadata);
+            writeMetadata(sftp, folder, id, metadata);
             sftp.put(new InputStreamSource(stream, id), folder);
-            PipedInputStream in = new PipedInputStream();
-            PipedOutputStream out = new PipedOutputStream(in);
-            new Thread(() -> {
-                try {
-                    sftp.get(folder + S + id, new OutputStreamSource(out));
-                } catch (IOException e) {
-                    rollback.set(true);
-                    throw new GeneralException(new IOStorageException(e));
-                } catch (Exception e) {
+            if (rollback.get())
+                return;
+            Checksum storedChecksum = computeRemoteChecksum(ssh, folder + S + id, checksum.getType());
+            if (storedChecksum != null) {
+                if (!storedChecksum.equals(checksum)) {
                     rollback.set(true);
-                    throw new GeneralException(e);
+                    throw new FileCorruptedAfterStoreException(storedChecksum, checksum);
                 }
-            }).start();
-            boolean rollbackInterruption = !verifyChecksum(in, checksum, rollback);
-            if (rollbackInterruption)
-                return;
-            transitProcessingState(sftp, folder, id, ObjectState.ARCHIVED);
-        } catch (IOException e) {
+            } else {
+                boolean rollbackInterruption = !verifyChecksum(openFile(sftp, folder + S + id), checksum, rollback);
+                if (rollbackInterruption)
+                    return;
+            }
+            metadata.setState(ObjectState.ARCHIVED);
+            writeMetadata(sftp, folder, id, metadata);
+        } catch (IOException | FileDoesNotExistException e) {
             rollback.set(true);
             throw new IOStorageException(e);
         } catch (Exception e) {
@@ -366,31 +502,14 @@ public class RemoteFsProcessor implements StorageService {
     }
 
     /**
-     * Called by saveAip methods. Checks for rollback flag each second and if rollback is set to true,
-     * kills ssh connection so that method using that connection will immediately stop with ssh connection exception.
+     * Called by store methods. Once the rollback flag is set, kills ssh connection so that method using that connection
+     * will immediately stop with ssh connection exception. The session is not killed after the registration is closed.
      *
-     * @param ssh
+     * @param session
      * @param rollback
      */
-    //todo: it will be better to write data using buffer & periodic rollback flag instead because:
-    // a) using this approach, the exception is thrown twice: once by the method setting rollback and second time by this one so its not clear from the log which storage has failed
-    // b) its better to solve bussiness error other way than using force
-    private void listenForRollbackToKillSession(SSHClient ssh, AtomicBoolean rollback) {
-        new Thread(() -> {
-            try {
-                while (ssh.isConnected()) {
-                    if (rollback.get()) {
-                        ssh.disconnect();
-                        return;
-                    }
-                    Thread.sleep(1000);
-                }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            } catch (InterruptedException e) {
-                Logger.getLogger(RemoteFsProcessor.class).error("Fatal error: parallel process interrupted");
-            }
-        }).start();
+    private RollbackWatcher.Registration killSessionOnRollback(SshSessionPool.Lease session, AtomicBoolean rollback) {
+        return RollbackWatcher.watch(rollback, session::kill);
     }
 
     private void deleteIfExistsSftp(SFTPClient sftp, String filePath) throws IOException {
@@ -398,49 +517,210 @@ public class RemoteFsProcessor implements StorageService {
             sftp.rm(filePath);
     }
 
+    /**
+     * Resolves path to the folder of the object, the folder is not created, see {@link #createFolder(SFTPClient, String)}.
+     */
     String getFolderPath(String fileName, String dataSpace) {
-        return rootDirPath + S + dataSpace + S + fileName.substring(0, 2) + S + fileName.substring(2, 4) + S + fileName.substring(4, 6);
+        StringBuilder path = new StringBuilder(rootDirPath).append(S).append(dataSpace);
+        for (String shard : shardLayout.getShards(fileName)) {
+            path.append(S).append(shard);
+        }
+        return path.toString();
+    }
+
+    /**
+     * Creates the folder of the object if it has not been created yet. Saves the round trips of checking every level
+     * of the folder structure before each write.
+     */
+    void createFolder(SFTPClient sftp, String folder) throws IOException {
+        if (createdFolders.contains(folder))
+            return;
+        sftp.mkdirs(folder);
+        createdFolders.add(folder);
     }
 
-    void checkFileExists(SSHClient ssh, SFTPClient sftp, String pathToFile) throws FileDoesNotExistException, SSHException {
+    /**
+     * Reads metadata of the object, from the metadata file or, if there is none, from the files of the legacy layout.
+     *
+     * @return metadata or null if there is no metadata of the object
+     */
+    FsObjectMetadata readMetadata(SFTPClient sftp, String folder, String fileId) throws IOException {
+        try (InputStream is = openFile(sftp, folder + S + FsObjectMetadata.toMetadataFileName(fileId))) {
+            return FsObjectMetadata.parse(is);
+        } catch (FileDoesNotExistException e) {
+            return readLegacyMetadata(sftp, folder, fileId);
+        }
+    }
+
+    /**
+     * Replaces the metadata file of the object and deletes the legacy files from which the metadata was assembled.
+     * The replacement is atomic if the server supports posix-rename extension, otherwise the old file is deleted before
+     * the new one is renamed.
+     */
+    void writeMetadata(SFTPClient sftp, String folder, String fileId, FsObjectMetadata metadata) throws IOException {
+        String tmpFileName = FsObjectMetadata.toTmpMetadataFileName(fileId);
         try {
-            if (sftp.statExistence(pathToFile) == null) {
-                IOUtils.closeQuietly(ssh);
-                throw new FileDoesNotExistException(pathToFile);
-            }
+            sftp.put(new InputStreamSource(new ByteArrayInputStream(metadata.serialize()), tmpFileName), folder);
+            renameReplacing(sftp, folder + S + tmpFileName, folder + S + FsObjectMetadata.toMetadataFileName(fileId));
         } catch (IOException e) {
-            IOUtils.closeQuietly(ssh);
-            throw new SSHException(e);
+            deleteIfExistsSftp(sftp, folder + S + tmpFileName);
+            throw e;
         }
+        for (String legacyFile : metadata.getLegacyFiles()) {
+            deleteIfExistsSftp(sftp, folder + S + legacyFile);
+        }
+        metadata.getLegacyFiles().clear();
     }
 
-    private String toStateStr(String fileId, ObjectState objectState) {
-        return fileId + "." + objectState.toString();
+    /**
+     * Adds files of the legacy layout left by a previous storing of the object to the files which are deleted once the
+     * metadata file is written, so that they do not outlive the object stored again.
+     */
+    private void addLegacyFiles(SFTPClient sftp, String folder, String fileId, FsObjectMetadata metadata) throws IOException {
+        for (RemoteResourceInfo file : sftp.ls(folder, f -> fileId.equals(FsObjectMetadata.legacyFileId(f.getName())))) {
+            metadata.getLegacyFiles().add(file.getName());
+        }
     }
 
-    private void setState(SFTPClient sftp, String folder, String fileId, ObjectState state) throws IOException {
-        sftp.put(new InputStreamSource(new ByteArrayInputStream("".getBytes()), fileId + "." + state), folder);
+    @Override
+    public int migrateMetadata(String dataSpace) throws StorageException {
+        AtomicInteger migrated = new AtomicInteger();
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            String dataSpaceRoot = rootDirPath + S + dataSpace;
+            if (session.getSftp().statExistence(dataSpaceRoot) == null)
+                return 0;
+            migrateFolder(session.getSftp(), dataSpaceRoot, migrated);
+        } catch (IOException e) {
+            throw new SshException("migration of metadata of data space " + dataSpace + " has failed after " +
+                    migrated.get() + " migrated objects", e);
+        }
+        log.info(storage.getName() + " migrated metadata of " + migrated.get() + " objects of data space " + dataSpace);
+        return migrated.get();
+    }
+
+    private void migrateFolder(SFTPClient sftp, String folder, AtomicInteger migrated) throws IOException {
+        Map<String, List<RemoteResourceInfo>> legacyFiles = new HashMap<>();
+        Set<String> metadataFiles = new HashSet<>();
+        for (RemoteResourceInfo file : sftp.ls(folder)) {
+            if (file.isDirectory()) {
+                migrateFolder(sftp, folder + S + file.getName(), migrated);
+                continue;
+            }
+            String fileId = FsObjectMetadata.legacyFileId(file.getName());
+            if (fileId != null)
+                legacyFiles.computeIfAbsent(fileId, k -> new ArrayList<>()).add(file);
+            else if (file.getName().endsWith(FsObjectMetadata.METADATA_FILE_SUFFIX))
+                metadataFiles.add(file.getName());
+        }
+        for (Map.Entry<String, List<RemoteResourceInfo>> entry : legacyFiles.entrySet()) {
+            String fileId = entry.getKey();
+            FsObjectMetadata legacyMetadata = toLegacyMetadata(sftp, folder, fileId, entry.getValue());
+            if (metadataFiles.contains(FsObjectMetadata.toMetadataFileName(fileId))) {
+                for (String legacyFile : legacyMetadata.getLegacyFiles()) {
+                    deleteIfExistsSftp(sftp, folder + S + legacyFile);
+                }
+            } else
+                writeMetadata(sftp, folder, fileId, legacyMetadata);
+            migrated.incrementAndGet();
+        }
+    }
+
+    private FsObjectMetadata readLegacyMetadata(SFTPClient sftp, String folder, String fileId) throws IOException {
+        List<RemoteResourceInfo> legacyFiles;
+        try {
+            legacyFiles = sftp.ls(folder, f -> fileId.equals(FsObjectMetadata.legacyFileId(f.getName())));
+        } catch (SFTPException e) {
+            if (e.getStatusCode() == Response.StatusCode.NO_SUCH_FILE)
+                return null;
+            throw e;
+        }
+        if (legacyFiles.isEmpty())
+            return null;
+        return toLegacyMetadata(sftp, folder, fileId, legacyFiles);
+    }
+
+    private FsObjectMetadata toLegacyMetadata(SFTPClient sftp, String folder, String fileId, List<RemoteResourceInfo> legacyFiles) throws IOException {
+        FsObjectMetadata metadata = new FsObjectMetadata();
+        Set<ObjectState> states = EnumSet.noneOf(ObjectState.class);
+        for (RemoteResourceInfo file : legacyFiles) {
+            ObjectState state = FsObjectMetadata.legacyState(file.getName());
+            if (state != null)
+                states.add(state);
+            else {
+                try (InputStream is = openFile(sftp, file.getPath())) {
+                    metadata.setChecksum(new Checksum(FsObjectMetadata.legacyChecksumType(file.getName()),
+                            IOUtils.toString(is, StandardCharsets.UTF_8).trim()));
+                } catch (FileDoesNotExistException e) {
+                    continue;
+                }
+            }
+            Instant modified = Instant.ofEpochSecond(file.getAttributes().getMtime());
+            if (metadata.getCreated() == null || modified.isBefore(metadata.getCreated()))
+                metadata.setCreated(modified);
+            metadata.getLegacyFiles().add(file.getName());
+        }
+        metadata.setState(FsObjectMetadata.resolveLegacyState(states));
+        metadata.setXmlVersion(FsObjectMetadata.parseXmlVersion(fileId));
+        return metadata;
+    }
+
+    /**
+     * Renames the file, replacing the target file if it exists.
+     */
+    private void renameReplacing(SFTPClient sftp, String from, String to) throws IOException {
+        if (posixRenameSupported) {
+            SFTPEngine engine = sftp.getSFTPEngine();
+            Request request = engine.newExtendedRequest(POSIX_RENAME_EXTENSION);
+            request.putString(from, engine.getSubsystem().getRemoteCharset());
+            request.putString(to, engine.getSubsystem().getRemoteCharset());
+            try {
+                engine.request(request).retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+                return;
+            } catch (SFTPException e) {
+                if (e.getStatusCode() != Response.StatusCode.OP_UNSUPPORTED && e.getStatusCode() != Response.StatusCode.UNKNOWN)
+                    throw e;
+                posixRenameSupported = false;
+                log.warn(storage.getName() + " server does not support " + POSIX_RENAME_EXTENSION + ", metadata files will not be replaced atomically");
+            }
+        }
+        deleteIfExistsSftp(sftp, to);
+        sftp.rename(from, to);
     }
 
-    private void transitProcessingState(SFTPClient sftp, String folder, String fileId, ObjectState newState) throws IOException {
-        transitState(sftp, folder, fileId, ObjectState.PROCESSING, newState);
+    /**
+     * Sets state of the object, the metadata are created if the object has none.
+     *
+     * @return updated metadata
+     */
+    private FsObjectMetadata setState(SFTPClient sftp, String folder, String fileId, ObjectState state) throws IOException {
+        FsObjectMetadata metadata = readMetadata(sftp, folder, fileId);
+        if (metadata == null) {
+            createFolder(sftp, folder);
+            metadata = new FsObjectMetadata(fileId, state, null);
+        }
+        metadata.setState(state);
+        writeMetadata(sftp, folder, fileId, metadata);
+        return metadata;
     }
 
-    private void transitState(SFTPClient sftp, String folder, String fileId, ObjectState oldState, ObjectState newState) throws IOException {
-        if (sftp.statExistence(folder + S + fileId + "." + newState) != null)
-            deleteIfExistsSftp(sftp, folder + S + fileId + "." + oldState);
-        else
-            sftp.rename(folder + S + toStateStr(fileId, oldState), folder + S + toStateStr(fileId, newState));
+    /**
+     * Changes state of the object if the object is in the old state, does nothing otherwise.
+     */
+    private void transitState(SFTPClient sftp, String folder, String fileId, ObjectState oldState, ObjectState newState) throws IOException, FileDoesNotExistException {
+        FsObjectMetadata metadata = readMetadata(sftp, folder, fileId);
+        if (metadata == null)
+            throw new FileDoesNotExistException(folder + S + fileId);
+        if (metadata.getState() != oldState)
+            return;
+        metadata.setState(newState);
+        writeMetadata(sftp, folder, fileId, metadata);
     }
 
     void rollbackFile(SFTPClient sftp, String folder, String fileId) throws IOException {
-        sftp.mkdirs(folder);
-        setState(sftp, folder, fileId, ObjectState.PROCESSING);
-        deleteIfExistsSftp(sftp, folder + S + toStateStr(fileId, ObjectState.REMOVED));
-        deleteIfExistsSftp(sftp, folder + S + toStateStr(fileId, ObjectState.ROLLED_BACK));
-        deleteIfExistsSftp(sftp, folder + S + toStateStr(fileId, ObjectState.DELETED));
+        FsObjectMetadata metadata = setState(sftp, folder, fileId, ObjectState.PROCESSING);
         deleteIfExistsSftp(sftp, folder + S + fileId);
-        transitProcessingState(sftp, folder, fileId, ObjectState.ROLLED_BACK);
+        metadata.setState(ObjectState.ROLLED_BACK);
+        writeMetadata(sftp, folder, fileId, metadata);
     }
 
     public static class InputStreamSource extends InMemorySourceFile {
@@ -469,6 +749,28 @@ public class RemoteFsProcessor implements StorageService {
         }
     }
 
+    /**
+     * Read-ahead stream of the remote file which closes the remote file handle when closed.
+     */
+    private static class RemoteFileStream extends FilterInputStream {
+
+        private RemoteFile remoteFile;
+
+        RemoteFileStream(RemoteFile remoteFile, int readAhead, long offset) {
+            super(remoteFile.new ReadAheadRemoteFileInputStream(readAhead, offset));
+            this.remoteFile = remoteFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                remoteFile.close();
+            }
+        }
+    }
+
     public static class OutputStreamSource extends InMemoryDestFile {
 
         private OutputStream outputStream;
@@ -482,11 +784,4 @@ public class RemoteFsProcessor implements StorageService {
             return outputStream;
         }
     }
-
-    private void connect(SSHClient ssh) throws IOException {
-        ssh.addHostKeyVerifier(new PromiscuousVerifier());
-        ssh.setConnectTimeout(connectionTimeout);
-        ssh.connect(storage.getHost(), storage.getPort());
-        ssh.authPublickey(USER, keyFilePath);
-    }
 }
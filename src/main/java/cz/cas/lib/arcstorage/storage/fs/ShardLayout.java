@@ -0,0 +1,49 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of the folder structure of FS/ZFS storage. Objects are distributed into <i>depth</i> levels of folders, name
+ * of the folder at each level is the next <i>width</i> characters of the object id. E.g. with the default layout, file
+ * with id <i>38a4a26f-67fd-4e4c-8af3-1fd0f26465f6</i> is stored into /38/a4/a2 folder.
+ * <p>
+ * The layout can not be changed once the storage contains data, objects would not be found at their folders.
+ * </p>
+ */
+@Getter
+public class ShardLayout {
+    public static final int DEFAULT_DEPTH = 3;
+    public static final int DEFAULT_WIDTH = 2;
+    /**
+     * maximal number of characters of the id used for folder names, the folders are named after the first group of
+     * UUID which is eight characters long
+     */
+    public static final int MAX_SHARDED_CHARS = 8;
+    public static final ShardLayout DEFAULT = new ShardLayout(DEFAULT_DEPTH, DEFAULT_WIDTH);
+
+    private final int depth;
+    private final int width;
+
+    public ShardLayout(int depth, int width) {
+        if (depth < 1 || width < 1 || depth * width > MAX_SHARDED_CHARS)
+            throw new IllegalArgumentException("shard depth and width must be positive and their product must not exceed " +
+                    MAX_SHARDED_CHARS + ", was: depth " + depth + ", width " + width);
+        this.depth = depth;
+        this.width = width;
+    }
+
+    /**
+     * @param fileName id of the object
+     * @return names of the folders, from the top level down, in which the object is stored
+     */
+    public List<String> getShards(String fileName) {
+        List<String> shards = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            shards.add(fileName.substring(i * width, (i + 1) * width));
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,329 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of authenticated SSH connections with opened SFTP channel to a single remote {@link Storage}.
+ * <p>
+ * Connection is validated when borrowed and replaced by a new one if it is no longer usable. Connections idle for longer
+ * than the idle timeout are closed periodically. Number of connections (idle and borrowed) never exceeds the max size,
+ * threads which are not able to obtain a connection within the connection timeout fail with {@link IOException}.
+ * </p>
+ */
+@Slf4j
+public class SshSessionPool implements Closeable {
+
+    private static final String USER = "arcstorage";
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ssh-session-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Getter
+    private Storage storage;
+    private String keyFilePath;
+    private int connectionTimeout;
+    @Getter
+    private int maxSize;
+    @Getter
+    private long idleTimeout;
+
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final ScheduledFuture<?> eviction;
+    private volatile boolean closed;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * @param storage           remote storage
+     * @param keyFilePath       path to private key used for authentication to remote server
+     * @param connectionTimeout timeout of connection establishment and of waiting for a free connection, in milliseconds
+     * @param maxSize           max number of connections to the storage
+     * @param idleTimeout       time after which the idle connection is closed, in milliseconds
+     */
+    public SshSessionPool(Storage storage, String keyFilePath, int connectionTimeout, int maxSize, long idleTimeout) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("ssh session pool size must be positive, was: " + maxSize);
+        this.storage = storage;
+        this.keyFilePath = keyFilePath;
+        this.connectionTimeout = connectionTimeout;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.permits = new Semaphore(maxSize, true);
+        long evictionPeriod = Math.max(idleTimeout / 2, 1000);
+        this.eviction = evictor.scheduleWithFixedDelay(this::evictIdle, evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows connection from the pool. Returned {@link Lease} has to be closed to return the connection back to the pool.
+     *
+     * @return lease of a validated connection
+     * @throws IOException if no connection was available within the connection timeout or the new connection could not
+     *                     be established
+     */
+    public Lease borrow() throws IOException {
+        if (closed)
+            throw new IOException("ssh session pool of storage " + storage.getName() + " is closed");
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS))
+                throw new IOException("timeout while waiting for ssh session of storage " + storage.getName() +
+                        ", all " + maxSize + " sessions are in use");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for ssh session of storage " + storage.getName(), e);
+        }
+        long waitTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        totalWaitTime.addAndGet(waitTime);
+        maxWaitTime.accumulateAndGet(waitTime, Math::max);
+        borrowCount.incrementAndGet();
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (connection.isValid())
+                    break;
+                log.debug("discarding broken ssh session of storage " + storage.getName());
+                discard(connection);
+            }
+            if (connection == null)
+                connection = open();
+            active.incrementAndGet();
+            return new Lease(connection);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes connections which are idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection connection : idle) {
+            if (now - connection.lastUsed > idleTimeout && idle.remove(connection)) {
+                log.debug("closing idle ssh session of storage " + storage.getName());
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections and stops the pool. Borrowed connections are closed once returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        eviction.cancel(false);
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null)
+            discard(connection);
+    }
+
+    /**
+     * @return true if the pool connects to the same server in the same way as a new pool created with given parameters would
+     */
+    public boolean matches(Storage storage, String keyFilePath, int connectionTimeout, int maxSize, long idleTimeout) {
+        return !closed && Objects.equals(this.storage.getHost(), storage.getHost()) && this.storage.getPort() == storage.getPort()
+                && Objects.equals(this.keyFilePath, keyFilePath) && this.connectionTimeout == connectionTimeout
+                && this.maxSize == maxSize && this.idleTimeout == idleTimeout;
+    }
+
+    /**
+     * @return number of borrowed connections
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return number of opened connections which are waiting in the pool
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * @return sum of times which threads spent waiting for a free connection, in milliseconds
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    /**
+     * @return longest time which a thread spent waiting for a free connection, in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    public double getAverageWaitTime() {
+        long borrows = borrowCount.get();
+        return borrows == 0 ? 0 : (double) totalWaitTime.get() / borrows;
+    }
+
+    @Override
+    public String toString() {
+        return "SshSessionPool{" +
+                "storage=" + storage.getName() +
+                ", active=" + getActiveCount() +
+                ", idle=" + getIdleCount() +
+                ", maxSize=" + maxSize +
+                ", borrowed=" + getBorrowCount() +
+                ", created=" + getCreatedCount() +
+                ", discarded=" + getDiscardedCount() +
+                ", avgWaitMs=" + getAverageWaitTime() +
+                ", maxWaitMs=" + getMaxWaitTime() +
+                '}';
+    }
+
+    private PooledConnection open() throws IOException {
+        SSHClient ssh = new SSHClient();
+        try {
+            ssh.addHostKeyVerifier(new PromiscuousVerifier());
+            ssh.setConnectTimeout(connectionTimeout);
+            ssh.connect(storage.getHost(), storage.getPort());
+            ssh.authPublickey(USER, keyFilePath);
+            SFTPClient sftp = ssh.newSFTPClient();
+            createdCount.incrementAndGet();
+            return new PooledConnection(ssh, sftp);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(ssh);
+            throw e;
+        }
+    }
+
+    private void release(PooledConnection connection, boolean broken) {
+        active.decrementAndGet();
+        try {
+            if (broken || closed || !connection.isValid())
+                discard(connection);
+            else {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        discardedCount.incrementAndGet();
+        IOUtils.closeQuietly(connection.sftp);
+        IOUtils.closeQuietly(connection.ssh);
+    }
+
+    private static class PooledConnection {
+        private final SSHClient ssh;
+        private final SFTPClient sftp;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(SSHClient ssh, SFTPClient sftp) {
+            this.ssh = ssh;
+            this.sftp = sftp;
+        }
+
+        private boolean isValid() {
+            return ssh.isConnected() && ssh.isAuthenticated();
+        }
+    }
+
+    /**
+     * Connection borrowed from the pool. Closing the lease returns the connection to the pool, the connection is closed
+     * instead if the lease was invalidated or the connection is broken. Closing the lease more than once has no effect.
+     */
+    public class Lease implements Closeable {
+        private final PooledConnection connection;
+        private final List<Closeable> resources = new ArrayList<>();
+        private boolean returned;
+        private boolean broken;
+
+        private Lease(PooledConnection connection) {
+            this.connection = connection;
+        }
+
+        public SSHClient getSsh() {
+            return connection.ssh;
+        }
+
+        public SFTPClient getSftp() {
+            return connection.sftp;
+        }
+
+        /**
+         * Marks the connection as broken so that it is closed instead of being returned to the pool.
+         */
+        public synchronized void invalidate() {
+            broken = true;
+        }
+
+        /**
+         * Immediately disconnects the connection if the lease has not been returned yet. Any operation in progress on the
+         * connection fails with exception.
+         */
+        public synchronized void kill() {
+            if (returned)
+                return;
+            broken = true;
+            IOUtils.closeQuietly(connection.ssh);
+        }
+
+        public synchronized boolean isReturned() {
+            return returned;
+        }
+
+        /**
+         * Registers resource (e.g. remote file stream) which is closed, if not closed yet, before the connection is
+         * returned to the pool.
+         *
+         * @return the resource
+         */
+        public synchronized <T extends Closeable> T closeOnReturn(T resource) {
+            resources.add(resource);
+            return resource;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (returned)
+                return;
+            returned = true;
+            resources.forEach(IOUtils::closeQuietly);
+            release(connection, broken);
+        }
+    }
+}
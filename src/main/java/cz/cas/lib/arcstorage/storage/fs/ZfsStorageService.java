@@ -5,6 +5,7 @@ import cz.cas.lib.arcstorage.domain.store.Transactional;
 import cz.cas.lib.arcstorage.dto.ChecksumType;
 import cz.cas.lib.arcstorage.dto.ObjectState;
 import cz.cas.lib.arcstorage.dto.StorageStateDto;
+import cz.cas.lib.arcstorage.storage.ParallelRangeReader;
 import cz.cas.lib.arcstorage.storage.StorageService;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import lombok.Getter;
@@ -15,14 +16,17 @@ import static cz.cas.lib.arcstorage.storage.StorageUtils.isLocalhost;
 
 /**
  * Zettabyte File System implementation of {@link StorageService}.
- * <p>Data are distributed into three level folder structure based on their uuid. E.g. sip file with id <i>38a4a26f-67fd-4e4c-8af3-1fd0f26465f6</i> will be stored into /38/a4/a2 folder</p>
+ * <p>Data are distributed into folder structure based on their uuid, see {@link ShardLayout}. E.g. with the default layout, sip file with id <i>38a4a26f-67fd-4e4c-8af3-1fd0f26465f6</i> will be stored into /38/a4/a2 folder</p>
  * Fulfillment of the requirements on the metadata storing specified by the interface:
  * <ul>
- * <li>initial checksum of the object: checksums are stored during creation to the same directory as file into text file with file name and <i>.{@link ChecksumType}</i> suffix</li>
- * <li>creation time of the object: provided by filesystem</li>
- * <li>state of object matching {@link ObjectState}: states are handled by empty files with original file name and <i>.STATE</i> suffix (e.g. fileId.PROCESSING)</li>
- * <li>for AIP XML its version and ID of SIP: id of XML is in form aipId_xml_versionNumber</li>
+ * <li>initial checksum of the object, creation time of the object and state of object matching {@link ObjectState}:
+ * stored in a single metadata file with original file name and <i>.meta</i> suffix, see {@link FsObjectMetadata}</li>
+ * <li>for AIP XML its version and ID of SIP: id of XML is in form aipId_xml_versionNumber, the version is also stored
+ * in the metadata file</li>
  * </ul>
+ * Objects stored in the legacy layout (checksum in file with <i>.{@link ChecksumType}</i> suffix, states in empty files
+ * with <i>.STATE</i> suffix) are still readable and are converted to the metadata file when their state changes or by
+ * {@link #migrateMetadata(String)}.
  */
 @Transactional
 @Slf4j
@@ -31,21 +35,32 @@ public class ZfsStorageService implements FsAdapter {
     @Getter
     private Storage storage;
     @Getter
-    private StorageService fsProcessor;
+    private FsProcessor fsProcessor;
 
     /**
      * Creates a new ZFS storage service.
      *
      * @param storage     storage
-     * @param keyFilePath path to private key used for authentication to remote server
+     * @param rootDirPath path to the root folder of the storage
+     * @param sessionPool pool of ssh connections to the remote server, not used if the storage is located at localhost
+     * @param readAhead   number of read requests sent in advance when reading remote file, not used if the storage is
+     *                    located at localhost
+     * @param checksumVerificationMode how the fixity of the stored file is verified, not used if the storage is
+     *                                 located at localhost
+     * @param shardLayout layout of the folder structure
+     * @param rangeReader reader of large remote files by concurrent reads, not used if the storage is located at
+     *                    localhost
      */
-    public ZfsStorageService(Storage storage, String rootDirPath, String keyFilePath, int connectionTimeout) {
+    public ZfsStorageService(Storage storage, String rootDirPath, SshSessionPool sessionPool, int readAhead,
+                             ChecksumVerificationMode checksumVerificationMode, ShardLayout shardLayout,
+                             ParallelRangeReader rangeReader) {
         this.storage = storage;
         String separator = rootDirPath.startsWith("/") ? "/" : "\\";
         if (isLocalhost(storage))
-            this.fsProcessor = new LocalFsProcessor(storage, rootDirPath);
+            this.fsProcessor = new LocalFsProcessor(storage, rootDirPath, shardLayout);
         else
-            this.fsProcessor = new RemoteFsProcessor(storage, rootDirPath, separator, keyFilePath, connectionTimeout);
+            this.fsProcessor = new RemoteFsProcessor(storage, rootDirPath, separator, sessionPool, readAhead, checksumVerificationMode, shardLayout,
+                    rangeReader);
     }
 
     @Override
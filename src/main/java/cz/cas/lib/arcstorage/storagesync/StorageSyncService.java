@@ -175,7 +175,7 @@ public class StorageSyncService {
                 case ARCHIVED:
                 case REMOVED:
                     log.debug("copying " + object);
-                    ObjectRetrievalResource objectRetrievalResource = archivalService.getObject(object);
+                    ObjectRetrievalResource objectRetrievalResource = archivalService.getObject(object, false);
                     try (InputStream is = new BufferedInputStream(objectRetrievalResource.getInputStream())) {
                         object.setInputStream(is);
                         destinationStorage.storeObject(object, new AtomicBoolean(false), object.getOwner().getDataSpace());
@@ -450,6 +450,18 @@ public class Utils {
         }
     }
 
+    /**
+     * @param id UUID sent by the client, may be empty
+     * @return the given UUID, or a random one if none has been sent
+     * @throws BadRequestException if the given id is not a valid UUID
+     */
+    public static String checkUUIDOrGenerate(String id) throws BadRequestException {
+        if (id == null || id.isEmpty())
+            return UUID.randomUUID().toString();
+        checkUUID(id);
+        return id;
+    }
+
     public static byte[] inputStreamToBytes(InputStream ios) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         IOUtils.copy(ios, baos);
@@ -5,14 +5,17 @@ import cz.cas.lib.arcstorage.domain.store.AipSipStore;
 import cz.cas.lib.arcstorage.domain.store.AipXmlStore;
 import cz.cas.lib.arcstorage.domain.store.ConfigurationStore;
 import cz.cas.lib.arcstorage.dto.*;
+import cz.cas.lib.arcstorage.exception.TransferAbortedException;
 import cz.cas.lib.arcstorage.security.Role;
 import cz.cas.lib.arcstorage.security.user.UserStore;
 import cz.cas.lib.arcstorage.service.ArchivalDbService;
+import cz.cas.lib.arcstorage.service.ObjectCache;
 import cz.cas.lib.arcstorage.service.StorageProvider;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageReachableException;
 import cz.cas.lib.arcstorage.storage.StorageService;
 import cz.cas.lib.arcstorage.storage.ceph.CephS3StorageService;
+import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import cz.cas.lib.arcstorage.storage.fs.FsStorageService;
 import cz.cas.lib.arcstorage.storage.fs.ZfsStorageService;
@@ -22,6 +25,8 @@ import cz.cas.lib.arcstorage.storagesync.ObjectAuditStore;
 import helper.ApiTest;
 import helper.auth.WithMockCustomUser;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -31,23 +36,32 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.transaction.TransactionTimedOutException;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import javax.inject.Inject;
 import javax.persistence.PersistenceException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -100,6 +114,8 @@ public class AipApiTest implements ApiTest {
     private ObjectAuditStore objectAuditStore;
     @Inject
     private ArchivalDbService archivalDbService;
+    @Inject
+    private ObjectCache objectCache;
 
     @Inject
     private UserStore userStore;
@@ -280,6 +296,40 @@ public class AipApiTest implements ApiTest {
         assertThat(packedFiles, containsInAnyOrder(SIP_ID + ".zip", toXmlId(SIP_ID, 2) + ".xml"));
     }
 
+    /**
+     * Retrieves AIP data for a client which disconnects while the SIP is being sent and verifies that all streams of
+     * the retrieved AIP are closed, so that no tmp file is left behind.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getSipAndLatestXmlAborted() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return new ServletOutputStream() {
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("connection reset by the client");
+                    }
+                };
+            }
+        };
+
+        assertThrown(() -> api.getAip(SIP_ID, false, false, new ServletWebRequest(new MockHttpServletRequest(), response), response))
+                .isInstanceOf(IOException.class);
+        assertThat(tmpFolder.toFile().list(), emptyArray());
+    }
+
     /**
      * Send request for AIP data and verifies that ZIP file containing one ZIP (SIP) and all AIP XMLs are retrieved.
      *
@@ -364,6 +414,79 @@ public class AipApiTest implements ApiTest {
         assertThat(xmlContent, equalTo(XML1_ID.getBytes()));
     }
 
+    /**
+     * Send request for streamed xml which is corrupted at the storage and verifies that the transfer is aborted instead
+     * of being finished with an error response.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getCorruptedXmlStreaming() throws Exception {
+        objectCache.clear();
+        String xmlId = toXmlId(SIP_ID, 2);
+        when(fsStorageService.getObject(xmlId, DATA_SPACE)).thenReturn(corruptedObject());
+        when(zfsStorageService.getObject(xmlId, DATA_SPACE)).thenReturn(corruptedObject());
+        when(cephS3StorageService.getObject(xmlId, DATA_SPACE)).thenReturn(corruptedObject());
+
+        assertThrown(() -> mvc(api).perform(MockMvcRequestBuilders.get(BASE + "/{aipId}/xml", SIP_ID).param("streaming", "true")))
+                .hasCauseInstanceOf(TransferAbortedException.class);
+    }
+
+    /**
+     * Send request for latest xml with its ETag in If-None-Match header and verifies that nothing is returned.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getXmlNotModified() throws Exception {
+        String eTag = "\"MD5-" + XML2_HASH.toLowerCase() + "\"";
+        mvc(api)
+                .perform(MockMvcRequestBuilders.get(BASE + "/{aipId}/xml", SIP_ID))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", eTag));
+        byte[] xmlContent = mvc(api)
+                .perform(MockMvcRequestBuilders.get(BASE + "/{aipId}/xml", SIP_ID).header("If-None-Match", eTag))
+                .andExpect(status().isNotModified())
+                .andReturn().getResponse()
+                .getContentAsByteArray();
+        assertThat(xmlContent.length, is(0));
+    }
+
+    /**
+     * Send request for range of latest xml and verifies that the range is read from the storage once the whole xml
+     * is verified.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void getXmlRange() throws Exception {
+        byte[] range = XML2_ID.substring(1, 4).getBytes();
+        AtomicInteger closedConnections = new AtomicInteger();
+        when(fsStorageService.getObjectRange(toXmlId(SIP_ID, 2), DATA_SPACE, 1, 3)).thenReturn(
+                new ObjectRangeRetrievalResource(new ByteArrayInputStream(range), closedConnections::incrementAndGet, 1, 3, XML2_ID.length()));
+        when(zfsStorageService.getObjectRange(toXmlId(SIP_ID, 2), DATA_SPACE, 1, 3)).thenReturn(
+                new ObjectRangeRetrievalResource(new ByteArrayInputStream(range), closedConnections::incrementAndGet, 1, 3, XML2_ID.length()));
+        when(cephS3StorageService.getObjectRange(toXmlId(SIP_ID, 2), DATA_SPACE, 1, 3)).thenReturn(
+                new ObjectRangeRetrievalResource(new ByteArrayInputStream(range), closedConnections::incrementAndGet, 1, 3, XML2_ID.length()));
+        MockMvc mvc = mvc(api);
+        long start = System.currentTimeMillis();
+        byte[] xmlContent = mvc
+                .perform(MockMvcRequestBuilders.get(BASE + "/{aipId}/xml", SIP_ID).header("Range", "bytes=1-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 1-3/" + XML2_ID.length()))
+                .andReturn().getResponse()
+                .getContentAsByteArray();
+        assertThat(xmlContent, equalTo(range));
+        //the connection is closed right after the range is copied, without the delay of close()
+        assertThat(closedConnections.get(), is(1));
+        assertThat(System.currentTimeMillis() - start, lessThan(1000L));
+
+        mvc(api)
+                .perform(MockMvcRequestBuilders.get(BASE + "/{aipId}/xml", SIP_ID).header("Range", "bytes=100-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */" + XML2_ID.length()));
+    }
+
     /**
      * Send request for xml specified by version and verifies data in response.
      *
@@ -449,6 +572,137 @@ public class AipApiTest implements ApiTest {
         assertThat(aipSip.getXml(0).getState(), is(ObjectState.ARCHIVED));
     }
 
+    /**
+     * Sends AIP creation request to the streaming endpoint and verifies that the AIP is stored.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void saveStreaming() throws Exception {
+        String aipId = UUID.randomUUID().toString();
+        String xmlHash = "af5e897c3cc424f31b84af579b274626";
+        MultipartBody body = new MultipartBody()
+                .field("sipChecksumValue", SIP_HASH)
+                .field("sipChecksumType", valueOf(ChecksumType.MD5))
+                .field("aipXmlChecksumValue", xmlHash)
+                .field("aipXmlChecksumType", valueOf(ChecksumType.MD5))
+                .file("aipXml", "testXmlId".getBytes())
+                .file("sip", Files.readAllBytes(SIP_SOURCE_PATH));
+
+        String aipIdReturned = mvc(api)
+                .perform(MockMvcRequestBuilders.post(BASE + "/save/stream?UUID={aipId}", aipId)
+                        .contentType(body.getContentType()).content(body.getContent()))
+                .andExpect(status().isOk())
+                .andReturn().getResponse()
+                .getContentAsString();
+
+        assertThat(aipIdReturned, equalTo(aipId));
+        Thread.sleep(5000);
+
+        AipSip aipSip = sipStore.find(aipId);
+        assertThat(aipSip.getState(), is(ObjectState.ARCHIVED));
+        assertThat(aipSip.getXml(0).getState(), is(ObjectState.ARCHIVED));
+    }
+
+    /**
+     * Sends AIP creation request to the streaming endpoint which streams the SIP directly to storages and verifies that
+     * the AIP is stored once the response is received.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void saveStreamingDirectly() throws Exception {
+        String aipId = UUID.randomUUID().toString();
+        MultipartBody body = new MultipartBody()
+                .field("sipChecksumValue", SIP_HASH)
+                .field("sipChecksumType", valueOf(ChecksumType.MD5))
+                .field("aipXmlChecksumValue", "af5e897c3cc424f31b84af579b274626")
+                .field("aipXmlChecksumType", valueOf(ChecksumType.MD5))
+                .field("direct", "true")
+                .file("aipXml", "testXmlId".getBytes())
+                .file("sip", Files.readAllBytes(SIP_SOURCE_PATH));
+        readSipOnStore(fsStorageService, zfsStorageService, cephS3StorageService);
+
+        mvc(api)
+                .perform(MockMvcRequestBuilders.post(BASE + "/save/stream?UUID={aipId}", aipId)
+                        .contentType(body.getContentType()).content(body.getContent()))
+                .andExpect(status().isOk());
+
+        AipSip aipSip = sipStore.find(aipId);
+        assertThat(aipSip.getState(), is(ObjectState.ARCHIVED));
+        assertThat(aipSip.getXml(0).getState(), is(ObjectState.ARCHIVED));
+    }
+
+    /**
+     * Sends AIP creation request to the streaming endpoint which streams the SIP directly to storages with SIP checksum
+     * which does not match and verifies that the AIP is rolled back.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void saveStreamingDirectlyNonMatchingHashOfSip() throws Exception {
+        String aipId = UUID.randomUUID().toString();
+        MultipartBody body = new MultipartBody()
+                .field("sipChecksumValue", "00000000000000000000000000000000")
+                .field("sipChecksumType", valueOf(ChecksumType.MD5))
+                .field("aipXmlChecksumValue", XML1_HASH)
+                .field("aipXmlChecksumType", valueOf(ChecksumType.MD5))
+                .field("direct", "true")
+                .file("aipXml", XML1_ID.getBytes())
+                .file("sip", Files.readAllBytes(SIP_SOURCE_PATH));
+        readSipOnStore(fsStorageService, zfsStorageService, cephS3StorageService);
+
+        mvc(api)
+                .perform(MockMvcRequestBuilders.post(BASE + "/save/stream?UUID={aipId}", aipId)
+                        .contentType(body.getContentType()).content(body.getContent()))
+                .andExpect(status().is(422));
+
+        assertThat(sipStore.find(aipId).getState(), is(ObjectState.ROLLED_BACK));
+    }
+
+    private ObjectRetrievalResource corruptedObject() {
+        return new ObjectRetrievalResource(new ByteArrayInputStream("corrupted".getBytes()), null);
+    }
+
+    /**
+     * Lets the mocked storages read the whole SIP when storing AIP, as the real storages do.
+     */
+    private void readSipOnStore(StorageService... storageServices) throws Exception {
+        when(storageProvider.createAdaptersForWriteOperation()).thenReturn(asList(storageServices));
+        for (StorageService storageService : storageServices) {
+            doAnswer(invocation -> {
+                AipDto aip = (AipDto) invocation.getArguments()[0];
+                try {
+                    IOUtils.copy(aip.getSip().getInputStream(), new NullOutputStream());
+                } catch (IOException e) {
+                    throw new IOStorageException(e);
+                }
+                return null;
+            }).when(storageService).storeAip(anyObject(), anyObject(), anyString());
+        }
+    }
+
+    /**
+     * Sends AIP creation request to the streaming endpoint with SIP preceding the XML.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void saveStreamingWrongOrder() throws Exception {
+        MultipartBody body = new MultipartBody()
+                .field("sipChecksumValue", SIP_HASH)
+                .field("sipChecksumType", valueOf(ChecksumType.MD5))
+                .field("aipXmlChecksumValue", XML1_HASH)
+                .field("aipXmlChecksumType", valueOf(ChecksumType.MD5))
+                .file("sip", Files.readAllBytes(SIP_SOURCE_PATH))
+                .file("aipXml", XML1_ID.getBytes());
+
+        mvc(api)
+                .perform(MockMvcRequestBuilders.post(BASE + "/save/stream")
+                        .contentType(body.getContentType()).content(body.getContent()))
+                .andExpect(status().isBadRequest());
+    }
+
     /**
      * Send AIP creation request with AIP data where MD5 param does not match MD5 of a file.
      *
@@ -741,4 +995,39 @@ public class AipApiTest implements ApiTest {
     public void setObjectAuditStore(ObjectAuditStore objectAuditStore) {
         this.objectAuditStore = objectAuditStore;
     }
+
+    /**
+     * Encoded multipart/form-data request body.
+     */
+    private static class MultipartBody {
+        private static final String BOUNDARY = "arcstorage-test-boundary";
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        private MultipartBody field(String name, String value) throws IOException {
+            return part("Content-Disposition: form-data; name=\"" + name + "\"", value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private MultipartBody file(String name, byte[] value) throws IOException {
+            return part("Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + name + "\"\r\n" +
+                    "Content-Type: application/octet-stream", value);
+        }
+
+        private MultipartBody part(String headers, byte[] value) throws IOException {
+            content.write(("--" + BOUNDARY + "\r\n" + headers + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            content.write(value);
+            content.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        private String getContentType() {
+            return "multipart/form-data; boundary=" + BOUNDARY;
+        }
+
+        private byte[] getContent() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            content.writeTo(body);
+            body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            return body.toByteArray();
+        }
+    }
 }
@@ -4,7 +4,9 @@ import cz.cas.lib.arcstorage.domain.entity.Configuration;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
 import cz.cas.lib.arcstorage.domain.store.ConfigurationStore;
 import cz.cas.lib.arcstorage.domain.store.StorageStore;
+import cz.cas.lib.arcstorage.dto.SshPoolStatsDto;
 import cz.cas.lib.arcstorage.dto.StorageType;
+import cz.cas.lib.arcstorage.service.StorageProvider;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import helper.ApiTest;
@@ -17,8 +19,11 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 import java.io.IOException;
+import java.util.Collections;
 
+import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringRunner.class)
@@ -36,6 +41,9 @@ public class StorageAdministrationApiTest extends DbTest implements ApiTest {
     @Mock
     private ConfigurationStore configurationStore;
 
+    @Mock
+    private StorageProvider storageProvider;
+
     private StorageStore storageStore;
 
     @Before
@@ -47,6 +55,7 @@ public class StorageAdministrationApiTest extends DbTest implements ApiTest {
         api = new StorageAdministrationApi();
         api.setConfigurationStore(configurationStore);
         api.setStorageStore(storageStore);
+        api.setStorageProvider(storageProvider);
 
         saveStorage(STORAGE1_ID);
         saveStorage(STORAGE2_ID);
@@ -67,6 +76,19 @@ public class StorageAdministrationApiTest extends DbTest implements ApiTest {
                 .andExpect(status().isForbidden());
     }
 
+    @Test
+    public void getSshPoolStats() throws Exception {
+        when(storageProvider.getSshPoolStats()).thenReturn(Collections.singletonList(
+                new SshPoolStatsDto(STORAGE1_ID, "sftp storage", 8, 2, 1, 10, 3, 0, 1.5, 7, 15)));
+        mvc(api)
+                .perform(MockMvcRequestBuilders.get(BASE_STORAGE + "/ssh-pools"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].storageId", is(STORAGE1_ID)))
+                .andExpect(jsonPath("$[0].active", is(2)))
+                .andExpect(jsonPath("$[0].idle", is(1)))
+                .andExpect(jsonPath("$[0].maxWaitTime", is(7)));
+    }
+
     private void saveStorage(String id) {
         Storage storage = new Storage("", "", 0, 0, StorageType.FS, "", "", false,true);
         storage.setId(id);
@@ -0,0 +1,125 @@
+package cz.cas.lib.arcstorage.api;
+
+import cz.cas.lib.arcstorage.domain.entity.User;
+import cz.cas.lib.arcstorage.dto.AipDto;
+import cz.cas.lib.arcstorage.security.Role;
+import cz.cas.lib.arcstorage.security.jwt.JwtTokenProvider;
+import cz.cas.lib.arcstorage.security.user.UserDelegate;
+import cz.cas.lib.arcstorage.security.user.UserStore;
+import cz.cas.lib.arcstorage.service.ArchivalService;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.context.embedded.LocalServerPort;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.DigestUtils;
+
+import javax.inject.Inject;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+/**
+ * Tests of the streaming upload on the embedded servlet container, which would spool the multipart body of the request
+ * before it is processed if the request parameters were read.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class StreamingUploadTest {
+    private static final String USER_ID = "b2c2a8a1-8d5f-4b9c-9a41-5f7c1c3e0d6a";
+    private static final String AIP_ID = "6f0c6e3b-1c2d-4e5f-8a9b-0c1d2e3f4a5b";
+    private static final String BOUNDARY = "streamingUploadBoundary";
+    private static final byte[] SIP = new byte[4 * 1024 * 1024];
+    private static final byte[] AIP_XML = "<aip/>".getBytes(StandardCharsets.UTF_8);
+
+    static {
+        new Random(1).nextBytes(SIP);
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @MockBean
+    private ArchivalService archivalService;
+
+    @Inject
+    private UserStore userStore;
+    @Inject
+    private JwtTokenProvider tokenProvider;
+
+    private String token;
+
+    @Before
+    public void before() {
+        User user = new User(USER_ID, "streaming", "pwd", "arclib", Role.ROLE_READ_WRITE, null);
+        userStore.save(user);
+        token = tokenProvider.generateToken(new UserDelegate(user));
+    }
+
+    /**
+     * Sends the first half of the SIP and verifies that the SIP is passed for storing before the rest of the request is
+     * sent, i.e. that neither the container nor any filter reads the whole body first. Checksums are sent as query
+     * parameters.
+     */
+    @Test
+    public void sipProcessedAsReceived() throws Exception {
+        CountDownLatch storingStarted = new CountDownLatch(1);
+        byte[][] storedSip = new byte[1][];
+        doAnswer(invocation -> {
+            storingStarted.countDown();
+            AipDto aip = (AipDto) invocation.getArguments()[0];
+            try (InputStream sip = aip.getSip().getInputStream()) {
+                storedSip[0] = IOUtils.toByteArray(sip);
+            }
+            return null;
+        }).when(archivalService).saveAip(any(AipDto.class));
+
+        URL url = new URL("http://localhost:" + port + AipApi.STREAMING_SAVE_PATH +
+                "?UUID=" + AIP_ID +
+                "&sipChecksumType=MD5&sipChecksumValue=" + DigestUtils.md5DigestAsHex(SIP) +
+                "&aipXmlChecksumType=MD5&aipXmlChecksumValue=" + DigestUtils.md5DigestAsHex(AIP_XML));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(64 * 1024);
+        connection.setRequestProperty("Authorization", "Bearer " + token);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(partHeader("aipXml", "aip.xml"));
+            out.write(AIP_XML);
+            out.write(("\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(partHeader("sip", "sip.zip"));
+            out.write(SIP, 0, SIP.length / 2);
+            out.flush();
+
+            assertThat(storingStarted.await(30, TimeUnit.SECONDS), is(true));
+
+            out.write(SIP, SIP.length / 2, SIP.length - SIP.length / 2);
+            out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        assertThat(connection.getResponseCode(), is(200));
+        try (InputStream response = connection.getInputStream()) {
+            assertThat(IOUtils.toString(response, StandardCharsets.UTF_8), is(AIP_ID));
+        }
+        assertThat(storedSip[0], is(SIP));
+    }
+
+    private byte[] partHeader(String name, String fileName) {
+        return ("--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,137 @@
+package cz.cas.lib.arcstorage.repair;
+
+import cz.cas.lib.arcstorage.domain.entity.ArchivalObject;
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.domain.entity.User;
+import cz.cas.lib.arcstorage.dto.ArchivalObjectDto;
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import cz.cas.lib.arcstorage.exception.MissingObject;
+import cz.cas.lib.arcstorage.mail.ArcstorageMailCenter;
+import cz.cas.lib.arcstorage.service.ArchivalDbService;
+import cz.cas.lib.arcstorage.service.ArchivalService;
+import helper.DbTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.orm.jpa.JpaTransactionManager;
+
+import java.time.Instant;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class RepairQueueTest extends DbTest {
+    private static final String OBJECT_ID = "objectId";
+    private static final String STORAGE_ID = "storageId";
+
+    private final RepairTaskStore repairTaskStore = new RepairTaskStore();
+    private final RepairQueue repairQueue = new RepairQueue();
+
+    @Mock
+    private ArchivalService archivalService;
+    @Mock
+    private ArchivalDbService archivalDbService;
+    @Mock
+    private ArcstorageMailCenter arcstorageMailCenter;
+
+    private ArchivalObject object;
+    private Storage storage;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        initializeStores(repairTaskStore);
+        repairQueue.setRepairTaskStore(repairTaskStore);
+        repairQueue.setArchivalService(archivalService);
+        repairQueue.setArchivalDbService(archivalDbService);
+        repairQueue.setArcstorageMailCenter(arcstorageMailCenter);
+        repairQueue.setTransactionTemplate(new JpaTransactionManager(getFactory()));
+        repairQueue.setLimits(10, 2, 0);
+
+        object = new ArchivalObject(new Checksum(ChecksumType.MD5, "md5"), new User("userId"), ObjectState.ARCHIVED);
+        object.setId(OBJECT_ID);
+        when(archivalDbService.getObject(OBJECT_ID)).thenReturn(object);
+        storage = new Storage();
+        storage.setId(STORAGE_ID);
+        storage.setName("corrupted storage");
+    }
+
+    @Test
+    public void enqueueDeduplicated() {
+        repairQueue.enqueue(object.toDto(), storage);
+        repairQueue.enqueue(object.toDto(), storage);
+        assertThat(repairTaskStore.countAll(), is(1L));
+        assertThat(repairTaskStore.find(OBJECT_ID, STORAGE_ID), notNullValue());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void repairedTaskRemovedAndReported() throws Exception {
+        when(archivalService.repairObject(any(ArchivalObjectDto.class), eq(STORAGE_ID))).thenReturn(true);
+        repairQueue.enqueue(object.toDto(), storage);
+        repairQueue.repairDueObjects();
+
+        verify(archivalService).repairObject(object.toDto(), STORAGE_ID);
+        assertThat(repairTaskStore.countAll(), is(0L));
+        ArgumentCaptor<List> repaired = ArgumentCaptor.forClass(List.class);
+        verify(arcstorageMailCenter).sendRepairDigest(repaired.capture(), eq(emptyList()), eq(0L));
+        assertThat(((RepairTask) repaired.getValue().get(0)).getObjectId(), is(OBJECT_ID));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void failedTaskRetriedThenGivenUp() throws Exception {
+        when(archivalService.repairObject(any(ArchivalObjectDto.class), eq(STORAGE_ID))).thenReturn(false);
+        repairQueue.enqueue(object.toDto(), storage);
+        repairQueue.repairDueObjects();
+
+        RepairTask task = repairTaskStore.find(OBJECT_ID, STORAGE_ID);
+        assertThat(task.getAttempts(), is(1));
+        assertThat(task.getLastError(), containsString("no valid copy"));
+        verify(arcstorageMailCenter, never()).sendRepairDigest(any(), any(), anyLong());
+
+        repairQueue.repairDueObjects();
+        assertThat(repairTaskStore.countAll(), is(0L));
+        ArgumentCaptor<List> failed = ArgumentCaptor.forClass(List.class);
+        verify(arcstorageMailCenter).sendRepairDigest(eq(emptyList()), failed.capture(), eq(0L));
+        assertThat(failed.getValue().size(), is(1));
+    }
+
+    @Test
+    public void retryPostponed() throws Exception {
+        repairQueue.setLimits(10, 5, 60_000);
+        when(archivalService.repairObject(any(ArchivalObjectDto.class), eq(STORAGE_ID))).thenThrow(new IllegalStateException("storage failure"));
+        repairQueue.enqueue(object.toDto(), storage);
+        repairQueue.repairDueObjects();
+        repairQueue.repairDueObjects();
+
+        verify(archivalService, times(1)).repairObject(any(ArchivalObjectDto.class), eq(STORAGE_ID));
+        RepairTask task = repairTaskStore.find(OBJECT_ID, STORAGE_ID);
+        assertThat(task.getNextAttempt(), greaterThan(Instant.now().plusSeconds(50)));
+        assertThat(task.getLastError(), containsString("storage failure"));
+    }
+
+    @Test
+    public void taskOfDeletedObjectDropped() throws Exception {
+        repairQueue.enqueue(object.toDto(), storage);
+        object.setState(ObjectState.DELETED);
+        repairQueue.repairDueObjects();
+        when(archivalDbService.getObject(OBJECT_ID)).thenThrow(new MissingObject(ArchivalObject.class, OBJECT_ID));
+        repairQueue.enqueue(object.toDto(), storage);
+        repairQueue.repairDueObjects();
+
+        verify(archivalService, never()).repairObject(any(), any());
+        assertThat(repairTaskStore.countAll(), is(0L));
+    }
+}
@@ -14,6 +14,7 @@ import cz.cas.lib.arcstorage.service.exception.ReadOnlyStateException;
 import cz.cas.lib.arcstorage.service.exception.state.DeletedStateException;
 import cz.cas.lib.arcstorage.service.exception.state.RollbackStateException;
 import cz.cas.lib.arcstorage.service.exception.state.StillProcessingStateException;
+import cz.cas.lib.arcstorage.storage.cache.DiskCache;
 import cz.cas.lib.arcstorage.storagesync.ObjectAuditStore;
 import helper.DbTest;
 import org.junit.After;
@@ -23,6 +24,8 @@ import org.junit.Test;
 import org.junit.rules.TestName;
 import org.springframework.orm.jpa.JpaTransactionManager;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -61,7 +64,7 @@ public class ArchivalDbServiceTest extends DbTest {
     private Configuration configuration;
 
     @Before
-    public void before() {
+    public void before() throws IOException {
         service.setTransactionTemplate(new JpaTransactionManager(getFactory()), 5);
         sipChecksum = new Checksum();
         sipChecksum.setType(ChecksumType.MD5);
@@ -81,6 +84,8 @@ public class ArchivalDbServiceTest extends DbTest {
         service.setConfigurationStore(configurationStore);
         service.setUserDetails(new UserDelegate(new User(USER_ID)));
         service.setUserStore(userStore);
+        service.setObjectCache(new ObjectCache(1024 * 1024, 1024));
+        service.setDiskCache(new DiskCache((Path) null, 1));
 
         userStore.save(new User(USER_ID));
         configuration = new Configuration(2, false);
@@ -4,15 +4,20 @@ import cz.cas.lib.arcstorage.domain.entity.*;
 import cz.cas.lib.arcstorage.domain.store.*;
 import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.exception.MissingObject;
+import cz.cas.lib.arcstorage.mail.ArcstorageMailCenter;
+import cz.cas.lib.arcstorage.repair.RepairQueue;
 import cz.cas.lib.arcstorage.security.Role;
 import cz.cas.lib.arcstorage.security.user.UserDelegate;
 import cz.cas.lib.arcstorage.security.user.UserStore;
+import cz.cas.lib.arcstorage.service.exception.RangeNotSatisfiableException;
 import cz.cas.lib.arcstorage.service.exception.state.DeletedStateException;
 import cz.cas.lib.arcstorage.service.exception.state.RollbackStateException;
 import cz.cas.lib.arcstorage.service.exception.state.StillProcessingStateException;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageAttachedException;
 import cz.cas.lib.arcstorage.service.exception.storage.NoLogicalStorageReachableException;
 import cz.cas.lib.arcstorage.storage.StorageService;
+import cz.cas.lib.arcstorage.storage.VerifyingInputStream;
+import cz.cas.lib.arcstorage.storage.cache.DiskCache;
 import cz.cas.lib.arcstorage.storage.exception.StorageException;
 import cz.cas.lib.arcstorage.storagesync.ObjectAuditStore;
 import cz.cas.lib.arcstorage.util.Utils;
@@ -22,20 +27,28 @@ import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpRange;
 import org.springframework.orm.jpa.JpaTransactionManager;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
 import static cz.cas.lib.arcstorage.util.Utils.asList;
@@ -44,12 +57,17 @@ import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ArchivalServiceTest extends DbTest {
 
     private static final ArchivalService archivalService = new ArchivalService();
+    private static final ExecutorService retrievalExecutor = Executors.newFixedThreadPool(4);
     private static final AipSipStore aipSipStore = new AipSipStore();
     private static final AipXmlStore aipXmlStore = new AipXmlStore();
     private static final StorageStore storageStore = new StorageStore();
@@ -87,6 +105,29 @@ public class ArchivalServiceTest extends DbTest {
         return new ByteArrayInputStream(XML1_ID.getBytes());
     }
 
+    /**
+     * @param atEnd true if the stream waits before it reports its end, false if it waits before its first read
+     * @return stream which waits once
+     */
+    private static InputStream delayed(InputStream in, long delay, boolean atEnd) {
+        return new FilterInputStream(in) {
+            private boolean waited;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!waited && (!atEnd || in.available() == 0)) {
+                    waited = true;
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return super.read(b, off, len);
+            }
+        };
+    }
+
     private static InputStream xml2Stream() {
         return new ByteArrayInputStream(XML2_ID.getBytes());
     }
@@ -97,13 +138,27 @@ public class ArchivalServiceTest extends DbTest {
     @Mock
     private StorageService storageService;
 
+    @Mock
+    private StorageService slowStorageService;
+
     @Mock
     private ArchivalAsyncService async;
 
+    @Mock
+    private ArcstorageMailCenter arcstorageMailCenter;
+
     @Mock
     private ObjectAuditStore objectAuditStore;
 
+    @Mock
+    private RepairQueue repairQueue;
+
+    @Rule
+    public TemporaryFolder diskCacheFolder = new TemporaryFolder();
+
     private Storage storage;
+    private ObjectCache objectCache;
+    private StorageReadStatistics readStatistics;
 
     private AipSip SIP;
     private AipXml XML1;
@@ -137,6 +192,10 @@ public class ArchivalServiceTest extends DbTest {
         archivalDbService.setObjectAuditStore(objectAuditStore);
         archivalDbService.setArchivalObjectStore(objectStore);
         archivalDbService.setUserDetails(new UserDelegate(new User(USER_ID)));
+        objectCache = new ObjectCache(1024 * 1024, 1024);
+        archivalDbService.setObjectCache(objectCache);
+        DiskCache disabledDiskCache = new DiskCache((Path) null, 1);
+        archivalDbService.setDiskCache(disabledDiskCache);
 
 
         async.setArchivalDbService(archivalDbService);
@@ -145,6 +204,16 @@ public class ArchivalServiceTest extends DbTest {
         archivalService.setAsyncService(async);
         archivalService.setStorageProvider(storageProvider);
         archivalService.setTmpFolder(tmpFolder.toString());
+        archivalService.setObjectCache(objectCache);
+        archivalService.setDiskCache(disabledDiskCache);
+        readStatistics = new StorageReadStatistics();
+        archivalService.setReadStatistics(readStatistics);
+        archivalService.setRetrievalCoalescer(new RetrievalCoalescer());
+        archivalService.setHedgedRead(0, 0);
+        archivalService.setRetrievalExecutor(retrievalExecutor);
+        archivalService.setArcstorageMailCenter(arcstorageMailCenter);
+        archivalService.setRepairQueue(repairQueue);
+        archivalService.setVerifiedCopyCache(new VerifiedCopyCache(60_000, 100));
 
         aipSipStore.save(SIP);
         XML1.setSip(SIP);
@@ -181,8 +250,8 @@ public class ArchivalServiceTest extends DbTest {
         when(storageProvider.createAllAdapters()).thenReturn(asList(storageService));
         when(storageProvider.createAdaptersForWriteOperation()).thenReturn(asList(storageService));
 
-        List<StorageService> serviceList = asList(storageService, storageService, storageService);
-        when(storageProvider.getReachableStorageServicesByPriorities()).thenReturn(serviceList);
+        when(storageProvider.getReachableStorageServicesByPriorities())
+                .then(invocation -> new ArrayList<>(asList(storageService, storageService, storageService)));
 
         ObjectRetrievalResource xml1 = new ObjectRetrievalResource(xml1Stream(), null);
         ObjectRetrievalResource xml2 = new ObjectRetrievalResource(xml2Stream(), null);
@@ -198,7 +267,7 @@ public class ArchivalServiceTest extends DbTest {
 
     @Test
     public void getAll() throws Exception {
-        AipRetrievalResource aip = archivalService.getAip(SIP_ID, true);
+        AipRetrievalResource aip = archivalService.getAip(SIP_ID, true, false);
 
         try (InputStream ios = aip.getSip(); InputStream sipStream = sipStream()) {
             assertTrue(IOUtils.contentEquals(ios, sipStream));
@@ -218,9 +287,33 @@ public class ArchivalServiceTest extends DbTest {
         }
     }
 
+    @Test
+    public void getAllCorruptedXmlRecovered() throws Exception {
+        AipRetrievalResource corrupted = new AipRetrievalResource(null);
+        corrupted.setSip(sipStream());
+        corrupted.addXml(1, new ByteArrayInputStream("corrupted".getBytes()));
+        corrupted.addXml(2, xml2Stream());
+        when(storageService.getAip(SIP_ID, DATA_SPACE, 1, 2)).thenReturn(corrupted);
+
+        AipRetrievalResource aip = archivalService.getAip(SIP_ID, true, false);
+        try (InputStream ios = aip.getSip(); InputStream sipStream = sipStream()) {
+            assertTrue(IOUtils.contentEquals(ios, sipStream));
+        }
+        try (InputStream inputStream1 = aip.getXmls().get(1); InputStream xml1Stream = xml1Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream1, xml1Stream));
+        }
+        try (InputStream inputStream2 = aip.getXmls().get(2); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream2, xml2Stream));
+        }
+        verify(storageService, times(1)).getAip(SIP_ID, DATA_SPACE, 1, 2);
+        verify(storageService, times(1)).getObject(XML1_ID, DATA_SPACE);
+        verify(repairQueue, times(1)).enqueue(any(), eq(storage));
+        verify(storageService, never()).storeObject(any(), any(), any());
+    }
+
     @Test
     public void getLatest() throws Exception {
-        AipRetrievalResource aip = archivalService.getAip(SIP_ID, false);
+        AipRetrievalResource aip = archivalService.getAip(SIP_ID, false, false);
 
         try (InputStream ios = aip.getSip(); InputStream sipStream = sipStream()) {
             assertTrue(IOUtils.contentEquals(ios, sipStream));
@@ -237,7 +330,7 @@ public class ArchivalServiceTest extends DbTest {
 
     @Test
     public void getXml() throws Exception {
-        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null);
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
         assertThat(xml.getL(), is(2));
         try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
             assertThat(inputStream, notNullValue());
@@ -245,16 +338,228 @@ public class ArchivalServiceTest extends DbTest {
         }
     }
 
+    @Test
+    public void getXmlStreaming() throws Exception {
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, true);
+        assertThat(xml.getL(), is(2));
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertThat(inputStream, instanceOf(VerifyingInputStream.class));
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        assertThat(Files.exists(tmpFolder.resolve(xml.getR().getId())), is(false));
+    }
+
+    @Test
+    public void getXmlCached() throws Exception {
+        archivalService.getXml(SIP_ID, null, false).getR().getInputStream().close();
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        verify(storageService, times(1)).getObject(XML2_ID, DATA_SPACE);
+        assertThat(objectCache.getStats().getHits(), is(1L));
+        assertThat(objectCache.getStats().getMisses(), is(1L));
+
+        archivalDbService.setObjectState(XML2_ID, ObjectState.ROLLED_BACK);
+        assertThat(objectCache.getStats().getCount(), is(0L));
+    }
+
+    @Test
+    public void getAllFromDiskCache() throws Exception {
+        DiskCache diskCache = new DiskCache(diskCacheFolder.getRoot().toPath(), 1024 * 1024);
+        archivalService.setDiskCache(diskCache);
+        archivalDbService.setDiskCache(diskCache);
+        archivalService.getAip(SIP_ID, true, false).close();
+        assertThat(diskCache.getCount(), is(3));
+
+        AipRetrievalResource aip = archivalService.getAip(SIP_ID, true, false);
+        try (InputStream ios = aip.getSip(); InputStream sipStream = sipStream()) {
+            assertTrue(IOUtils.contentEquals(ios, sipStream));
+        }
+        try (InputStream inputStream2 = aip.getXmls().get(2); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream2, xml2Stream));
+        }
+        aip.close();
+        verify(storageService, times(1)).getAip(SIP_ID, DATA_SPACE, 1, 2);
+        verify(storageProvider, times(1)).getReachableStorageServicesByPriorities();
+        assertThat(readStatistics.getStats(asList(storage)).get(0).getReads(), is(1L));
+        assertThat(diskCache.getStats().getHits(), is(3L));
+
+        archivalDbService.setObjectState(XML2_ID, ObjectState.REMOVED);
+        assertThat(diskCache.getCount(), is(2));
+    }
+
+    /**
+     * Connections are released once the objects are copied to the tmp folder, also the connection of the corrupted
+     * copy, so that the pooled connections of the storage are not exhausted by non-streaming downloads.
+     */
+    @Test
+    public void getXmlReleasesConnections() throws Exception {
+        Storage corruptedStorage = new Storage();
+        corruptedStorage.setName("corrupted storage");
+        when(slowStorageService.getStorage()).thenReturn(corruptedStorage);
+        AtomicInteger corruptedClosed = new AtomicInteger();
+        AtomicInteger validClosed = new AtomicInteger();
+        when(slowStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                new ByteArrayInputStream("corrupted".getBytes()), corruptedClosed::incrementAndGet));
+        when(storageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                xml2Stream(), validClosed::incrementAndGet));
+        when(storageProvider.getReachableStorageServicesByPriorities()).thenReturn(asList(slowStorageService, storageService));
+
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
+        assertThat(corruptedClosed.get(), is(1));
+        assertThat(validClosed.get(), is(1));
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        xml.getR().close();
+        assertThat(validClosed.get(), is(1));
+    }
+
+    @Test
+    public void getXmlHedged() throws Exception {
+        Storage slowStorage = new Storage();
+        slowStorage.setName("slow storage");
+        when(slowStorageService.getStorage()).thenReturn(slowStorage);
+        when(slowStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                new FilterInputStream(xml2Stream()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        try {
+                            Thread.sleep(2000);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return super.read(b, off, len);
+                    }
+                }, null));
+        when(storageProvider.getReachableStorageServicesByPriorities()).thenReturn(asList(slowStorageService, storageService));
+        archivalService.setHedgedRead(100, 0);
+
+        long start = System.currentTimeMillis();
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+        verify(slowStorageService).getObject(XML2_ID, DATA_SPACE);
+        verify(storageService).getObject(XML2_ID, DATA_SPACE);
+    }
+
+    @Test
+    public void getXmlHedgedLoserCorruptedAfterWin() throws Exception {
+        Storage corruptedStorage = new Storage();
+        corruptedStorage.setName("slow corrupted storage");
+        when(slowStorageService.getStorage()).thenReturn(corruptedStorage);
+        when(slowStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                delayed(new ByteArrayInputStream("corrupted".getBytes()), 1000, true), null));
+        when(storageProvider.getReachableStorageServicesByPriorities()).thenReturn(asList(slowStorageService, storageService));
+        archivalService.setHedgedRead(100, Long.MAX_VALUE);
+
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        verify(repairQueue, timeout(5000)).enqueue(any(), eq(corruptedStorage));
+        verify(repairQueue, never()).enqueue(any(), eq(storage));
+    }
+
+    @Test
+    public void getXmlHedgedLoserCorruptedBeforeWin() throws Exception {
+        Storage corruptedStorage = new Storage();
+        corruptedStorage.setName("slow corrupted storage");
+        when(slowStorageService.getStorage()).thenReturn(corruptedStorage);
+        when(slowStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                delayed(new ByteArrayInputStream("corrupted".getBytes()), 500, false), null));
+        when(storageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                delayed(xml2Stream(), 1500, false), null));
+        when(storageProvider.getReachableStorageServicesByPriorities()).thenReturn(asList(slowStorageService, storageService));
+        archivalService.setHedgedRead(100, 0);
+
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        verify(repairQueue).enqueue(any(), eq(corruptedStorage));
+        verify(repairQueue, never()).enqueue(any(), eq(storage));
+    }
+
+    /**
+     * Both the first and the hedged read find the object corrupted, the recovery reads it only from the remaining
+     * storage and both corrupted storages are queued for repair.
+     */
+    @Test
+    public void getXmlHedgedBothCorrupted() throws Exception {
+        Storage corruptedStorage = new Storage();
+        corruptedStorage.setName("slow corrupted storage");
+        when(slowStorageService.getStorage()).thenReturn(corruptedStorage);
+        when(slowStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                delayed(new ByteArrayInputStream("corrupted".getBytes()), 500, false), null));
+        when(storageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(
+                new ByteArrayInputStream("corrupted".getBytes()), null));
+        Storage validStorage = new Storage();
+        validStorage.setName("valid storage");
+        StorageService validStorageService = mock(StorageService.class);
+        when(validStorageService.getStorage()).thenReturn(validStorage);
+        when(validStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(new ObjectRetrievalResource(xml2Stream(), null));
+        when(storageProvider.getReachableStorageServicesByPriorities())
+                .then(invocation -> new ArrayList<>(asList(slowStorageService, storageService, validStorageService)));
+        archivalService.setHedgedRead(100, 0);
+
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, null, false);
+        try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
+            assertTrue(IOUtils.contentEquals(inputStream, xml2Stream));
+        }
+        verify(slowStorageService, times(1)).getObject(XML2_ID, DATA_SPACE);
+        verify(storageService, times(1)).getObject(XML2_ID, DATA_SPACE);
+        verify(validStorageService, times(1)).getObject(XML2_ID, DATA_SPACE);
+        verify(repairQueue).enqueue(any(), eq(corruptedStorage));
+        verify(repairQueue).enqueue(any(), eq(storage));
+        verify(repairQueue, never()).enqueue(any(), eq(validStorage));
+    }
+
+    @Test
+    public void getXmlRangeFromVerifiedCopy() throws Exception {
+        Storage corruptedStorage = new Storage();
+        corruptedStorage.setName("corrupted storage");
+        when(slowStorageService.getStorage()).thenReturn(corruptedStorage);
+        when(slowStorageService.getObject(XML2_ID, DATA_SPACE)).thenReturn(
+                new ObjectRetrievalResource(new ByteArrayInputStream("corrupted".getBytes()), null));
+        when(storageProvider.getReachableStorageServicesByPriorities())
+                .then(invocation -> new ArrayList<>(asList(slowStorageService, storageService)));
+        byte[] content = IOUtils.toByteArray(xml2Stream());
+        when(storageService.getObjectRange(eq(XML2_ID), eq(DATA_SPACE), anyLong(), anyLong())).then(invocation -> {
+            int offset = ((Long) invocation.getArguments()[2]).intValue();
+            int length = ((Long) invocation.getArguments()[3]).intValue();
+            return new ObjectRangeRetrievalResource(new ByteArrayInputStream(content, offset, length), null, offset,
+                    length, content.length);
+        });
+
+        ArchivalObjectDto xml2 = archivalService.findXml(SIP_ID, 2).toDto();
+        ObjectRangeRetrievalResource range = archivalService.getObjectRange(xml2, HttpRange.createByteRange(1, 2));
+        assertThat(IOUtils.toByteArray(range.getInputStream()), is(Arrays.copyOfRange(content, 1, 3)));
+        assertThat(range.getObjectSize(), is((long) content.length));
+        verify(repairQueue).enqueue(any(), eq(corruptedStorage));
+
+        //the verified copy is preferred and it is not read whole again
+        range = archivalService.getObjectRange(xml2, HttpRange.createSuffixRange(2));
+        assertThat(IOUtils.toByteArray(range.getInputStream()), is(Arrays.copyOfRange(content, content.length - 2, content.length)));
+        verify(slowStorageService, times(1)).getObject(XML2_ID, DATA_SPACE);
+        verify(storageService, times(1)).getObject(XML2_ID, DATA_SPACE);
+        assertThrown(() -> archivalService.getObjectRange(xml2, HttpRange.createByteRange(content.length)))
+                .isInstanceOf(RangeNotSatisfiableException.class);
+    }
+
     @Test
     public void getXmlVersionSpecified() throws Exception {
-        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, 1);
+        Utils.Pair<Integer, ObjectRetrievalResource> xml = archivalService.getXml(SIP_ID, 1, false);
         assertThat(xml.getL(), is(1));
         try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml1Stream = xml1Stream()) {
             assertThat(inputStream, notNullValue());
             assertTrue(IOUtils.contentEquals(inputStream, xml1Stream));
         }
 
-        xml = archivalService.getXml(SIP_ID, 2);
+        xml = archivalService.getXml(SIP_ID, 2, false);
         assertThat(xml.getL(), is(2));
         try (InputStream inputStream = xml.getR().getInputStream(); InputStream xml2Stream = xml2Stream()) {
             assertThat(inputStream, notNullValue());
@@ -264,18 +569,18 @@ public class ArchivalServiceTest extends DbTest {
 
     @Test
     public void getXmlNonExistentVersionSpecified() {
-        assertThrown(() -> archivalService.getXml(SIP_ID, 3)).isInstanceOf(MissingObject.class);
+        assertThrown(() -> archivalService.getXml(SIP_ID, 3, false)).isInstanceOf(MissingObject.class);
     }
 
     @Test
     public void getXmlIllegalStates() {
         XML2.setState(ObjectState.ROLLED_BACK);
         aipXmlStore.save(XML2);
-        assertThrown(() -> archivalService.getXml(SIP_ID, 2)).isInstanceOf(RollbackStateException.class);
+        assertThrown(() -> archivalService.getXml(SIP_ID, 2, false)).isInstanceOf(RollbackStateException.class);
 
         XML2.setState(ObjectState.PROCESSING);
         aipXmlStore.save(XML2);
-        assertThrown(() -> archivalService.getXml(SIP_ID, 2)).isInstanceOf(StillProcessingStateException.class);
+        assertThrown(() -> archivalService.getXml(SIP_ID, 2, false)).isInstanceOf(StillProcessingStateException.class);
     }
 
     @Test
@@ -333,19 +638,19 @@ public class ArchivalServiceTest extends DbTest {
     public void getIllegalStateSipTest() {
         SIP.setState(ObjectState.DELETED);
         aipSipStore.save(SIP);
-        assertThrown(() -> archivalService.getAip(SIP_ID, true)).isInstanceOf(DeletedStateException.class);
+        assertThrown(() -> archivalService.getAip(SIP_ID, true, false)).isInstanceOf(DeletedStateException.class);
 
         SIP.setState(ObjectState.ROLLED_BACK);
         aipSipStore.save(SIP);
-        assertThrown(() -> archivalService.getAip(SIP_ID, true)).isInstanceOf(RollbackStateException.class);
+        assertThrown(() -> archivalService.getAip(SIP_ID, true, false)).isInstanceOf(RollbackStateException.class);
 
         SIP.setState(ObjectState.PROCESSING);
         aipSipStore.save(SIP);
-        assertThrown(() -> archivalService.getAip(SIP_ID, true)).isInstanceOf(StillProcessingStateException.class);
+        assertThrown(() -> archivalService.getAip(SIP_ID, true, false)).isInstanceOf(StillProcessingStateException.class);
 
         XML1.setState(ObjectState.PROCESSING);
         aipXmlStore.save(XML1);
-        assertThrown(() -> archivalService.getAip(SIP_ID, true)).isInstanceOf(StillProcessingStateException.class);
+        assertThrown(() -> archivalService.getAip(SIP_ID, true, false)).isInstanceOf(StillProcessingStateException.class);
 
         XML1.setState(ObjectState.ROLLED_BACK);
         SIP.setState(ObjectState.ARCHIVED);
@@ -354,7 +659,7 @@ public class ArchivalServiceTest extends DbTest {
         aipXmlStore.delete(XML2);
         //findall does the trick so that service sees up-to-date records
         aipXmlStore.findAll();
-        assertThrown(() -> archivalService.getAip(SIP_ID, true)).isInstanceOf(IllegalStateException.class);
+        assertThrown(() -> archivalService.getAip(SIP_ID, true, false)).isInstanceOf(IllegalStateException.class);
     }
 
     @Test
@@ -0,0 +1,67 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectCacheStatsDto;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ObjectCacheTest {
+    private static final Checksum CHECKSUM = new Checksum(ChecksumType.MD5, "checksum");
+    private static final Checksum OTHER_CHECKSUM = new Checksum(ChecksumType.MD5, "other");
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        ObjectCache cache = new ObjectCache(30, 10);
+        cache.put("a", CHECKSUM, new byte[10]);
+        cache.put("b", CHECKSUM, new byte[10]);
+        cache.put("c", CHECKSUM, new byte[10]);
+        cache.get("a", CHECKSUM);
+        cache.put("d", CHECKSUM, new byte[10]);
+
+        assertThat(cache.get("b", CHECKSUM), nullValue());
+        assertThat(cache.get("a", CHECKSUM).length, is(10));
+        ObjectCacheStatsDto stats = cache.getStats();
+        assertThat(stats.getEvictions(), is(1L));
+        assertThat(stats.getCount(), is(3L));
+        assertThat(stats.getSize(), is(30L));
+        assertThat(stats.getHits(), is(2L));
+        assertThat(stats.getMisses(), is(1L));
+    }
+
+    @Test
+    public void largeObjectNotCached() {
+        ObjectCache cache = new ObjectCache(30, 10);
+        cache.put("a", CHECKSUM, new byte[11]);
+        assertThat(cache.get("a", CHECKSUM), nullValue());
+        assertThat(cache.getStats().getSize(), is(0L));
+
+        ObjectCache disabled = new ObjectCache(0, 10);
+        disabled.put("a", CHECKSUM, new byte[1]);
+        assertThat(disabled.get("a", CHECKSUM), nullValue());
+    }
+
+    @Test
+    public void otherChecksumMissed() {
+        ObjectCache cache = new ObjectCache(30, 10);
+        cache.put("a", CHECKSUM, new byte[5]);
+        assertThat(cache.get("a", OTHER_CHECKSUM), nullValue());
+        cache.put("a", OTHER_CHECKSUM, new byte[7]);
+        assertThat(cache.get("a", OTHER_CHECKSUM).length, is(7));
+        assertThat(cache.getStats().getSize(), is(7L));
+    }
+
+    @Test
+    public void invalidate() {
+        ObjectCache cache = new ObjectCache(30, 10);
+        cache.put("a", CHECKSUM, new byte[5]);
+        cache.invalidate("a");
+        cache.invalidate("missing");
+        assertThat(cache.get("a", CHECKSUM), nullValue());
+        assertThat(cache.getStats().getSize(), is(0L));
+        assertThat(cache.getStats().getCount(), is(0L));
+    }
+}
@@ -0,0 +1,101 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.exception.GeneralException;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RetrievalCoalescerTest {
+    private static final String KEY = "object:1";
+    private static final String CONTENT = "verified content";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private RetrievalCoalescer coalescer;
+    private Path tmpFile;
+
+    @Before
+    public void before() throws Exception {
+        coalescer = new RetrievalCoalescer();
+        tmpFile = tmpFolder.getRoot().toPath().resolve("tmpFileId");
+        Files.write(tmpFile, CONTENT.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void filesSharedUntilAllStreamsClosed() throws Exception {
+        RetrievalCoalescer.Participant leader = coalescer.join(KEY);
+        RetrievalCoalescer.Participant follower = coalescer.join(KEY);
+        assertThat(leader.isLeader(), is(true));
+        assertThat(follower.isLeader(), is(false));
+
+        leader.complete(Collections.singletonMap("object", tmpFile));
+        assertThat(coalescer.getInProgressCount(), is(0));
+        assertThat(coalescer.join(KEY).isLeader(), is(true));
+        assertThat(Files.exists(tmpFile), is(false));
+
+        InputStream leaderStream = leader.await().get("object");
+        InputStream followerStream = follower.await().get("object");
+        assertThat(IOUtils.toString(leaderStream, StandardCharsets.UTF_8), is(CONTENT));
+        leaderStream.close();
+        leaderStream.close();
+        assertThat(tmpFolder.getRoot().list().length, is(1));
+        assertThat(IOUtils.toString(followerStream, StandardCharsets.UTF_8), is(CONTENT));
+        followerStream.close();
+        assertThat(tmpFolder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void nothingShared() throws Exception {
+        RetrievalCoalescer.Participant leader = coalescer.join(KEY);
+        RetrievalCoalescer.Participant follower = coalescer.join(KEY);
+        leader.complete(Collections.singletonMap("object", tmpFolder.getRoot().toPath().resolve("missing")));
+        assertThat(leader.await(), nullValue());
+        assertThat(follower.await(), nullValue());
+        assertThat(Files.exists(tmpFile), is(true));
+    }
+
+    @Test
+    public void failurePropagated() throws Exception {
+        RetrievalCoalescer.Participant leader = coalescer.join(KEY);
+        RetrievalCoalescer.Participant follower = coalescer.join(KEY);
+        leader.fail(new GeneralException("storage failure"));
+        assertThrown(follower::await).isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(GeneralException.class);
+        assertThat(coalescer.getInProgressCount(), is(0));
+    }
+
+    @Test
+    public void followerWaitsForLeader() throws Exception {
+        RetrievalCoalescer.Participant leader = coalescer.join(KEY);
+        RetrievalCoalescer.Participant follower = coalescer.join(KEY);
+        Thread leaderThread = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            leader.complete(Collections.singletonMap("object", tmpFile));
+        });
+        leaderThread.start();
+        Map<String, InputStream> shared = follower.await();
+        try (InputStream is = shared.get("object")) {
+            assertThat(IOUtils.toString(is, StandardCharsets.UTF_8), is(CONTENT));
+        }
+        leaderThread.join();
+    }
+}
@@ -0,0 +1,96 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.domain.store.StorageChangedEvent;
+import cz.cas.lib.arcstorage.domain.store.StorageStore;
+import cz.cas.lib.arcstorage.dto.StorageType;
+import cz.cas.lib.arcstorage.storage.StorageService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static cz.cas.lib.arcstorage.util.Utils.asList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of the registry of storage adapters, which is rebuilt only once a storage has changed, and of the background
+ * reachability check, which replaces the reachability test at the time of the request.
+ */
+public class StorageProviderTest {
+    private static final String STORAGE_ID = "4fddaf00-43a9-485f-b81a-d3a4bcd6dd83";
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    @Mock
+    private StorageStore storageStore;
+
+    private StorageProvider storageProvider;
+    private Storage storage;
+    private Path rootDir;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        rootDir = tmpDir.getRoot().toPath().resolve("storage");
+
+        storage = new Storage();
+        storage.setId(STORAGE_ID);
+        storage.setName("local storage");
+        storage.setHost("localhost");
+        storage.setStorageType(StorageType.FS);
+        storage.setConfig("{\"rootDirPath\":\"" + rootDir.toString().replace("\\", "\\\\") + "\"}");
+        storage.setReachable(true);
+        when(storageStore.findAll()).thenReturn(asList(storage));
+
+        storageProvider = new StorageProvider();
+        storageProvider.setStorageStore(storageStore);
+        storageProvider.setReadStatistics(new StorageReadStatistics());
+        storageProvider.setKeyFilePath("");
+        storageProvider.setConnectionTimeout("1000");
+    }
+
+    @Test
+    public void registryReusedUntilStorageChanged() throws Exception {
+        List<StorageService> adapters = storageProvider.createAllAdapters();
+        assertThat(adapters, hasSize(1));
+        assertThat(storageProvider.createAllAdapters().get(0), sameInstance(adapters.get(0)));
+        verify(storageStore, times(1)).findAll();
+
+        storageProvider.onStorageChanged(new StorageChangedEvent(STORAGE_ID));
+
+        List<StorageService> rebuilt = storageProvider.createAllAdapters();
+        assertThat(rebuilt, hasSize(1));
+        assertThat(rebuilt.get(0), not(sameInstance(adapters.get(0))));
+        verify(storageStore, times(2)).findAll();
+    }
+
+    @Test
+    public void reachabilityCheckedInBackground() throws Exception {
+        storageProvider.createAllAdapters();
+        assertThat(storage.isReachable(), is(true));
+        verify(storageStore, never()).save(any(Storage.class));
+
+        storageProvider.checkStorageReachability();
+        assertThat(storage.isReachable(), is(false));
+        verify(storageStore, times(1)).save(storage);
+
+        storageProvider.checkStorageReachability();
+        verify(storageStore, times(1)).save(storage);
+
+        Files.createDirectories(rootDir);
+        storageProvider.checkStorageReachability();
+        assertThat(storage.isReachable(), is(true));
+        verify(storageStore, times(2)).save(storage);
+    }
+}
@@ -0,0 +1,98 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.StorageReadStatsDto;
+import cz.cas.lib.arcstorage.storage.StorageService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static cz.cas.lib.arcstorage.util.Utils.asList;
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class StorageReadStatisticsTest {
+    private static final long MS = 1_000_000;
+
+    @Mock
+    private StorageService fastService;
+    @Mock
+    private StorageService slowService;
+    @Mock
+    private StorageService failingService;
+
+    private Storage fast = new Storage("fast");
+    private Storage slow = new Storage("slow");
+    private Storage failing = new Storage("failing");
+    private StorageReadStatistics statistics;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        when(fastService.getStorage()).thenReturn(fast);
+        when(slowService.getStorage()).thenReturn(slow);
+        when(failingService.getStorage()).thenReturn(failing);
+        statistics = new StorageReadStatistics();
+        statistics.setExplorationRate(0);
+    }
+
+    @Test
+    public void fastestStorageFirst() {
+        for (int i = 0; i < 5; i++) {
+            statistics.recordRead(fast, 5 * MS, 1_000_000, 10 * MS);
+            statistics.recordRead(slow, 5 * MS, 1_000_000, 1000 * MS);
+            statistics.recordRead(failing, 8 * MS, 1_000_000, 1 * MS);
+            statistics.recordError(failing);
+            statistics.recordError(failing);
+        }
+        for (int i = 0; i < 20; i++) {
+            List<StorageService> services = new ArrayList<>(asList(slowService, failingService, fastService));
+            statistics.order(services);
+            assertThat(services, contains(fastService, failingService, slowService));
+        }
+    }
+
+    @Test
+    public void unmeasuredStorageFirstAndFailedLast() {
+        statistics.recordRead(fast, 5 * MS, 1000, 1 * MS);
+        statistics.recordError(failing);
+        List<StorageService> services = new ArrayList<>(asList(failingService, fastService, slowService));
+        statistics.order(services);
+        assertThat(services, contains(slowService, fastService, failingService));
+    }
+
+    @Test
+    public void explorationKeepsRandomOrder() {
+        statistics.setExplorationRate(1);
+        statistics.recordRead(fast, 1 * MS, 1000, 1 * MS);
+        statistics.recordRead(slow, 1000 * MS, 1000, 1000 * MS);
+        boolean slowFirst = false;
+        for (int i = 0; i < 100 && !slowFirst; i++) {
+            List<StorageService> services = new ArrayList<>(asList(fastService, slowService));
+            statistics.order(services);
+            slowFirst = services.get(0) == slowService;
+        }
+        assertThat(slowFirst, is(true));
+    }
+
+    @Test
+    public void stats() {
+        statistics.recordRead(fast, 10 * MS, 2000, 1000 * MS);
+        statistics.recordError(fast);
+        StorageReadStatsDto dto = statistics.getStats(asList(fast, slow)).get(0);
+        assertThat(dto.getLatency(), closeTo(10, 0.001));
+        assertThat(dto.getThroughput(), closeTo(2000, 0.001));
+        assertThat(dto.getErrorRate(), closeTo(StorageReadStatistics.ALPHA, 0.001));
+        assertThat(dto.getReads(), is(2L));
+        assertThat(dto.getErrors(), is(1L));
+        assertThat(dto.getExpectedReadTime(), closeTo(1010 / (1 - StorageReadStatistics.ALPHA), 0.001));
+        assertThat(statistics.getStats(asList(fast, slow)).get(1).getReads(), is(0L));
+        assertThrown(() -> statistics.setExplorationRate(2)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
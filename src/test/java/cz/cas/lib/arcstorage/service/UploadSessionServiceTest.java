@@ -0,0 +1,141 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.UploadSessionDto;
+import cz.cas.lib.arcstorage.exception.BadRequestException;
+import cz.cas.lib.arcstorage.exception.ConflictObject;
+import cz.cas.lib.arcstorage.exception.ForbiddenByConfigException;
+import cz.cas.lib.arcstorage.exception.MissingObject;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class UploadSessionServiceTest {
+    private static final String USER = "user";
+    private static final byte[] CONTENT = new byte[250];
+
+    static {
+        new Random(1).nextBytes(CONTENT);
+    }
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private UploadSessionService service;
+
+    @Before
+    public void before() {
+        service = new UploadSessionService();
+        service.setTmpFolder(tmpFolder.getRoot().getAbsolutePath());
+        service.setSessionTimeout(60000);
+        service.setMaxSessions(2);
+        service.setMaxTotalSize(2 * CONTENT.length);
+    }
+
+    @Test
+    public void chunksAssembledInAnyOrder() throws Exception {
+        UploadSessionDto session = service.create(USER, CONTENT.length, 100);
+        assertThat(session.getChunkCount(), is(3));
+        assertThat(session.getMissingChunks(), contains(0, 1, 2));
+
+        writeChunk(session.getId(), 2);
+        writeChunk(session.getId(), 0);
+        assertThat(service.get(session.getId(), USER).getMissingChunks(), contains(1));
+        assertThrown(() -> service.startCommit(session.getId(), USER)).isInstanceOf(BadRequestException.class);
+
+        writeChunk(session.getId(), 1);
+        Path sip = service.startCommit(session.getId(), USER);
+        assertThat(Files.readAllBytes(sip), is(CONTENT));
+        assertThrown(() -> writeChunk(session.getId(), 1)).isInstanceOf(ConflictObject.class);
+
+        service.finishCommit(session.getId(), true);
+        assertThrown(() -> service.get(session.getId(), USER)).isInstanceOf(MissingObject.class);
+    }
+
+    @Test
+    public void invalidChunkNotReceived() throws Exception {
+        UploadSessionDto session = service.create(USER, CONTENT.length, 100);
+        writeChunk(session.getId(), 0);
+
+        assertThrown(() -> service.writeChunk(session.getId(), USER, 0, new ByteArrayInputStream(CONTENT, 0, 100),
+                new Checksum(ChecksumType.MD5, "00000000000000000000000000000000")))
+                .isInstanceOf(InvalidChecksumException.class);
+        assertThrown(() -> service.writeChunk(session.getId(), USER, 1, new ByteArrayInputStream(CONTENT, 100, 99),
+                checksum(100, 99)))
+                .isInstanceOf(BadRequestException.class);
+        assertThrown(() -> service.writeChunk(session.getId(), USER, 2, new ByteArrayInputStream(CONTENT),
+                checksum(0, CONTENT.length)))
+                .isInstanceOf(BadRequestException.class);
+        assertThat(service.get(session.getId(), USER).getMissingChunks(), contains(0, 1, 2));
+    }
+
+    @Test
+    public void sessionOfOtherUserNotFound() throws Exception {
+        UploadSessionDto session = service.create(USER, CONTENT.length, 100);
+
+        assertThrown(() -> service.get(session.getId(), "other")).isInstanceOf(MissingObject.class);
+    }
+
+    @Test
+    public void expiredSessionRemoved() throws Exception {
+        service.setSessionTimeout(0);
+        UploadSessionDto session = service.create(USER, CONTENT.length, 100);
+        Path file = tmpFolder.getRoot().toPath().resolve("upload-" + session.getId());
+        assertThat(Files.exists(file), is(true));
+        Thread.sleep(10);
+
+        service.removeExpiredSessions();
+        assertThat(Files.exists(file), is(false));
+        assertThrown(() -> service.get(session.getId(), USER)).isInstanceOf(MissingObject.class);
+    }
+
+    @Test
+    public void sessionCountAndSizeLimited() throws Exception {
+        UploadSessionDto first = service.create(USER, CONTENT.length, 100);
+        assertThrown(() -> service.create(USER, CONTENT.length + 1, 100)).isInstanceOf(ForbiddenByConfigException.class);
+        service.create(USER, CONTENT.length, 100);
+        assertThrown(() -> service.create(USER, 1, 100)).isInstanceOf(ForbiddenByConfigException.class);
+
+        service.remove(first.getId(), USER);
+        service.create(USER, CONTENT.length, 100);
+    }
+
+    /**
+     * Files of sessions lost by a restart are removed at startup, files of existing sessions and other files are kept.
+     */
+    @Test
+    public void orphanedFilesRemoved() throws Exception {
+        UploadSessionDto session = service.create(USER, CONTENT.length, 100);
+        Path orphan = Files.createFile(tmpFolder.getRoot().toPath().resolve("upload-lost"));
+        Path other = Files.createFile(tmpFolder.getRoot().toPath().resolve("other"));
+
+        service.removeOrphanedFiles();
+        assertThat(Files.exists(orphan), is(false));
+        assertThat(Files.exists(other), is(true));
+        assertThat(Files.exists(tmpFolder.getRoot().toPath().resolve("upload-" + session.getId())), is(true));
+    }
+
+    private void writeChunk(String sessionId, int index) throws Exception {
+        int offset = index * 100;
+        int length = Math.min(100, CONTENT.length - offset);
+        service.writeChunk(sessionId, USER, index, new ByteArrayInputStream(CONTENT, offset, length), checksum(offset, length));
+    }
+
+    private Checksum checksum(int offset, int length) {
+        return new Checksum(ChecksumType.MD5, DigestUtils.md5DigestAsHex(Arrays.copyOfRange(CONTENT, offset, offset + length)));
+    }
+}
@@ -0,0 +1,59 @@
+package cz.cas.lib.arcstorage.service;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.domain.entity.User;
+import cz.cas.lib.arcstorage.dto.ArchivalObjectDto;
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class VerifiedCopyCacheTest {
+    private static final Checksum CHECKSUM = new Checksum(ChecksumType.MD5, "checksum");
+    private static final Checksum OTHER_CHECKSUM = new Checksum(ChecksumType.MD5, "other");
+
+    @Test
+    public void verifiedCopyRemembered() {
+        VerifiedCopyCache cache = new VerifiedCopyCache(60_000, 10);
+        cache.put(object("a", CHECKSUM), storage("s1"), 5);
+
+        assertThat(cache.getSize(object("a", CHECKSUM), storage("s1")), is(5L));
+        assertThat(cache.getSize(object("a", CHECKSUM), storage("s2")), nullValue());
+        assertThat(cache.getSize(object("a", OTHER_CHECKSUM), storage("s1")), nullValue());
+
+        cache.invalidate(object("a", CHECKSUM), storage("s1"));
+        assertThat(cache.getSize(object("a", CHECKSUM), storage("s1")), nullValue());
+    }
+
+    @Test
+    public void expiredAndLeastRecentlyUsedForgotten() throws Exception {
+        VerifiedCopyCache cache = new VerifiedCopyCache(60_000, 2);
+        cache.put(object("a", CHECKSUM), storage("s1"), 1);
+        cache.put(object("b", CHECKSUM), storage("s1"), 2);
+        cache.getSize(object("a", CHECKSUM), storage("s1"));
+        cache.put(object("c", CHECKSUM), storage("s1"), 3);
+        assertThat(cache.getSize(object("b", CHECKSUM), storage("s1")), nullValue());
+        assertThat(cache.getSize(object("a", CHECKSUM), storage("s1")), is(1L));
+
+        VerifiedCopyCache expiring = new VerifiedCopyCache(1, 10);
+        expiring.put(object("a", CHECKSUM), storage("s1"), 1);
+        Thread.sleep(10);
+        assertThat(expiring.getSize(object("a", CHECKSUM), storage("s1")), nullValue());
+    }
+
+    private ArchivalObjectDto object(String id, Checksum checksum) {
+        return new ArchivalObjectDto(id, id, checksum, new User("owner"), null, ObjectState.ARCHIVED, Instant.now());
+    }
+
+    private Storage storage(String id) {
+        Storage storage = new Storage();
+        storage.setId(id);
+        return storage;
+    }
+}
@@ -0,0 +1,152 @@
+package cz.cas.lib.arcstorage.storage;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FanOutReaderTest {
+    private static final byte[] CONTENT = new byte[10_000];
+
+    static {
+        new Random(1).nextBytes(CONTENT);
+    }
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    @Test
+    public void sourceReadOnceForAllConsumers() throws Exception {
+        FanOutReader reader = new FanOutReader("test", this::open, new ChunkPool(64, 1000), CONTENT.length);
+        List<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            streams.add(reader.newInputStream());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<byte[]>> reads = new ArrayList<>();
+            for (InputStream stream : streams) {
+                reads.add(executor.submit(() -> {
+                    try (InputStream s = stream) {
+                        return IOUtils.toByteArray(s);
+                    }
+                }));
+            }
+            for (Future<byte[]> read : reads) {
+                assertThat(read.get(), is(CONTENT));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(opened.get(), is(1));
+        assertThat(reader.getDetachedCount(), is(0));
+    }
+
+    @Test
+    public void laggingConsumerReadsSourceOnItsOwn() throws Exception {
+        FanOutReader reader = new FanOutReader("test", this::open, new ChunkPool(64, 1000), 256);
+        InputStream fast = reader.newInputStream();
+        InputStream slow = reader.newInputStream();
+
+        byte[] slowStart = new byte[100];
+        IOUtils.readFully(slow, slowStart);
+        byte[] fastContent = IOUtils.toByteArray(fast);
+        byte[] slowRest = IOUtils.toByteArray(slow);
+
+        assertThat(fastContent, is(CONTENT));
+        byte[] slowContent = new byte[slowStart.length + slowRest.length];
+        System.arraycopy(slowStart, 0, slowContent, 0, slowStart.length);
+        System.arraycopy(slowRest, 0, slowContent, slowStart.length, slowRest.length);
+        assertThat(slowContent, is(CONTENT));
+        assertThat(reader.getDetachedCount(), is(1));
+        assertThat(opened.get(), is(2));
+
+        InputStream late = reader.newInputStream();
+        assertThat(IOUtils.toByteArray(late), is(CONTENT));
+    }
+
+    @Test
+    public void streamSourceWaitsForLaggingConsumer() throws Exception {
+        FanOutReader reader = new FanOutReader("test", new ByteArrayInputStream(CONTENT), new ChunkPool(64, 1000), 256);
+        InputStream fast = reader.newInputStream();
+        InputStream slow = reader.newInputStream();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> fastRead = executor.submit(() -> IOUtils.toByteArray(fast));
+            Thread.sleep(100);
+            assertThat(fastRead.isDone(), is(false));
+            assertThat(IOUtils.toByteArray(slow), is(CONTENT));
+            assertThat(fastRead.get(), is(CONTENT));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(reader.getDetachedCount(), is(0));
+        assertThrown(reader::newInputStream).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void ringLimitedBySharedPool() throws Exception {
+        ChunkPool pool = new ChunkPool(64, 2);
+        FanOutReader reader = new FanOutReader("test", this::open, pool, 256);
+        InputStream fast = reader.newInputStream();
+        InputStream slow = reader.newInputStream();
+
+        IOUtils.readFully(slow, new byte[100]);
+        assertThat(IOUtils.toByteArray(fast), is(CONTENT));
+        assertThat(pool.getUsedCount(), is(2));
+        assertThat(reader.getDetachedCount(), is(1));
+
+        fast.close();
+        slow.close();
+        assertThat(pool.getUsedCount(), is(0));
+    }
+
+    @Test
+    public void firstChunkWaitsForFreeChunk() throws Exception {
+        ChunkPool pool = new ChunkPool(64, 1);
+        InputStream first = new FanOutReader("first", this::open, pool, 256).newInputStream();
+        InputStream second = new FanOutReader("second", this::open, pool, 256).newInputStream();
+        first.read();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> secondRead = executor.submit(() -> IOUtils.toByteArray(second));
+            Thread.sleep(100);
+            assertThat(secondRead.isDone(), is(false));
+            first.close();
+            assertThat(secondRead.get(), is(CONTENT));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedSourceFailsConsumers() throws Exception {
+        FanOutReader reader = new FanOutReader("test", () -> {
+            throw new IOException("no such file");
+        }, new ChunkPool(64, 1000), 256);
+        InputStream first = reader.newInputStream();
+        InputStream second = reader.newInputStream();
+
+        assertThrown(() -> IOUtils.toByteArray(first)).isInstanceOf(IOException.class);
+        assertThrown(() -> IOUtils.toByteArray(second)).isInstanceOf(IOException.class);
+    }
+
+    private InputStream open() {
+        opened.incrementAndGet();
+        return new ByteArrayInputStream(CONTENT);
+    }
+}
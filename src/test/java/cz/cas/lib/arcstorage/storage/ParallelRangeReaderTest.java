@@ -0,0 +1,122 @@
+package cz.cas.lib.arcstorage.storage;
+
+import cz.cas.lib.arcstorage.dto.ObjectRangeRetrievalResource;
+import cz.cas.lib.arcstorage.dto.ObjectRetrievalResource;
+import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ParallelRangeReaderTest {
+    private static final byte[] CONTENT = new byte[1000];
+
+    static {
+        new Random(1).nextBytes(CONTENT);
+    }
+
+    private final List<Long> offsets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Test
+    public void largeObjectReadByRanges() throws Exception {
+        ParallelRangeReader reader = new ParallelRangeReader(3, 100, 64);
+        ObjectRetrievalResource object = reader.getObject("id", this::getRange);
+
+        assertThat(object.getSize(), is((long) CONTENT.length));
+        assertThat(IOUtils.toByteArray(object.getInputStream()), is(CONTENT));
+        object.closeWithoutDelay();
+        List<Long> sortedOffsets = new ArrayList<>(offsets);
+        Collections.sort(sortedOffsets);
+        assertThat(sortedOffsets, hasSize(16));
+        for (int i = 0; i < sortedOffsets.size(); i++) {
+            assertThat(sortedOffsets.get(i), is(i * 64L));
+        }
+        assertThat(maxRunning.get(), lessThanOrEqualTo(3));
+    }
+
+    /**
+     * The read-ahead limit is shared by all retrievals, once it is reached the parts are read by the retrieving thread.
+     */
+    @Test
+    public void readAheadLimitSharedByRetrievals() throws Exception {
+        ParallelRangeReader reader = new ParallelRangeReader(3, 100, 64, 1);
+        ObjectRetrievalResource first = reader.getObject("first", this::getRange);
+        ObjectRetrievalResource second = reader.getObject("second", this::getRange);
+
+        byte[] firstContent = new byte[CONTENT.length];
+        byte[] secondContent = new byte[CONTENT.length];
+        for (int offset = 0; offset < CONTENT.length; offset += 100) {
+            int length = Math.min(100, CONTENT.length - offset);
+            IOUtils.readFully(first.getInputStream(), firstContent, offset, length);
+            IOUtils.readFully(second.getInputStream(), secondContent, offset, length);
+        }
+        assertThat(first.getInputStream().read(), is(-1));
+        assertThat(second.getInputStream().read(), is(-1));
+        first.closeWithoutDelay();
+        second.closeWithoutDelay();
+
+        assertThat(firstContent, is(CONTENT));
+        assertThat(secondContent, is(CONTENT));
+        assertThat(offsets, hasSize(32));
+        assertThat(maxRunning.get(), lessThanOrEqualTo(3));
+        assertThat(running.get(), is(0));
+    }
+
+    @Test
+    public void smallObjectReadBySingleStream() throws Exception {
+        ParallelRangeReader reader = new ParallelRangeReader(3, CONTENT.length + 1, 64);
+        ObjectRetrievalResource object = reader.getObject("id", this::getRange);
+
+        assertThat(IOUtils.toByteArray(object.getInputStream()), is(CONTENT));
+        assertThat(offsets, contains(0L));
+    }
+
+    @Test
+    public void failedPartFailsStream() throws Exception {
+        ParallelRangeReader reader = new ParallelRangeReader(3, 100, 64);
+        ObjectRetrievalResource object = reader.getObject("id", (offset, length) -> {
+            if (offset == 640)
+                throw new IOStorageException(new IOException("connection reset"));
+            return getRange(offset, length);
+        });
+
+        assertThrown(() -> IOUtils.copy(object.getInputStream(), new NullOutputStream())).isInstanceOf(IOException.class);
+        object.closeWithoutDelay();
+    }
+
+    @Test
+    public void changedObjectFailsStream() throws Exception {
+        ParallelRangeReader reader = new ParallelRangeReader(3, 100, 64);
+        ObjectRetrievalResource object = reader.getObject("id", (offset, length) -> {
+            ObjectRangeRetrievalResource range = getRange(offset, length);
+            if (offset == 0)
+                return range;
+            return new ObjectRangeRetrievalResource(range.getInputStream(), null, offset, range.getLength(), CONTENT.length + 1);
+        });
+
+        assertThrown(() -> IOUtils.copy(object.getInputStream(), new NullOutputStream())).isInstanceOf(IOException.class);
+        object.closeWithoutDelay();
+    }
+
+    private ObjectRangeRetrievalResource getRange(long offset, long length) {
+        offsets.add(offset);
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        int rangeLength = (int) StorageUtils.rangeLength(CONTENT.length, offset, length);
+        return new ObjectRangeRetrievalResource(new ByteArrayInputStream(CONTENT, (int) offset, rangeLength),
+                running::decrementAndGet, offset, rangeLength, CONTENT.length);
+    }
+}
@@ -0,0 +1,77 @@
+package cz.cas.lib.arcstorage.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RollbackWatcherTest {
+
+    @Test
+    public void actionRunOnRollback() throws Exception {
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        try (RollbackWatcher.Registration registration = RollbackWatcher.watch(rollback, () -> {
+            runs.incrementAndGet();
+            latch.countDown();
+        })) {
+            rollback.set(true);
+            assertThat(latch.await(500, TimeUnit.MILLISECONDS), is(true));
+            Thread.sleep(RollbackWatcher.CHECK_INTERVAL * 5);
+            assertThat(runs.get(), is(1));
+        }
+    }
+
+    @Test
+    public void actionNotRunAfterClose() throws Exception {
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        AtomicInteger runs = new AtomicInteger();
+        RollbackWatcher.Registration registration = RollbackWatcher.watch(rollback, runs::incrementAndGet);
+        registration.close();
+        rollback.set(true);
+        Thread.sleep(RollbackWatcher.CHECK_INTERVAL * 5);
+        assertThat(runs.get(), is(0));
+    }
+
+    @Test
+    public void pollingOnlyWhileWatched() throws Exception {
+        RollbackWatcher.Registration registration = RollbackWatcher.watch(new AtomicBoolean(false), () -> {
+        });
+        assertThat(RollbackWatcher.isPolling(), is(true));
+        registration.close();
+        Thread.sleep(RollbackWatcher.CHECK_INTERVAL * 5);
+        assertThat(RollbackWatcher.isPolling(), is(false));
+
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        CountDownLatch latch = new CountDownLatch(1);
+        RollbackWatcher.watch(rollback, latch::countDown);
+        assertThat(RollbackWatcher.isPolling(), is(true));
+        rollback.set(true);
+        assertThat(latch.await(500, TimeUnit.MILLISECONDS), is(true));
+        Thread.sleep(RollbackWatcher.CHECK_INTERVAL * 5);
+        assertThat(RollbackWatcher.isPolling(), is(false));
+    }
+
+    @Test
+    public void manyTransfersWatchedWithoutThreads() throws Exception {
+        int threadsBefore = Thread.activeCount();
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        CountDownLatch latch = new CountDownLatch(100);
+        RollbackWatcher.Registration[] registrations = new RollbackWatcher.Registration[100];
+        for (int i = 0; i < registrations.length; i++) {
+            registrations[i] = RollbackWatcher.watch(rollback, latch::countDown);
+        }
+        assertThat(Thread.activeCount() <= threadsBefore + 1, is(true));
+        rollback.set(true);
+        assertThat(latch.await(500, TimeUnit.MILLISECONDS), is(true));
+        for (RollbackWatcher.Registration registration : registrations) {
+            registration.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package cz.cas.lib.arcstorage.storage;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StorageUtilsTest {
+    private static final String CONTENT = "blah";
+    private static final Checksum CHECKSUM = new Checksum(ChecksumType.MD5, "6F1ED002AB5595859014EBF0951522D9");
+    private static final Checksum WRONG_CHECKSUM = new Checksum(ChecksumType.MD5, "alwayswrong");
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void copyStreamAndValidateChecksum() throws Exception {
+        Path target = tmpFolder.getRoot().toPath().resolve("file");
+        StorageUtils.copyStreamAndValidateChecksum(stream(), target, CHECKSUM);
+        assertThat(new String(Files.readAllBytes(target)), is(CONTENT));
+
+        assertThrown(() -> StorageUtils.copyStreamAndValidateChecksum(stream(), target, WRONG_CHECKSUM))
+                .isInstanceOf(InvalidChecksumException.class);
+    }
+
+    @Test
+    public void readStreamAndValidateChecksum() throws Exception {
+        assertThat(new String(StorageUtils.readStreamAndValidateChecksum(stream(), CHECKSUM)), is(CONTENT));
+
+        assertThrown(() -> StorageUtils.readStreamAndValidateChecksum(stream(), WRONG_CHECKSUM))
+                .isInstanceOf(InvalidChecksumException.class);
+    }
+
+    private InputStream stream() {
+        return new ByteArrayInputStream(CONTENT.getBytes());
+    }
+}
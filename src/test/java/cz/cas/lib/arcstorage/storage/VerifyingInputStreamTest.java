@@ -0,0 +1,57 @@
+package cz.cas.lib.arcstorage.storage;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.service.exception.InvalidChecksumException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class VerifyingInputStreamTest {
+    private static final String CONTENT = "blah";
+    private static final Checksum CHECKSUM = new Checksum(ChecksumType.MD5, "6F1ED002AB5595859014EBF0951522D9");
+
+    @Test
+    public void validStream() throws Exception {
+        AtomicInteger mismatches = new AtomicInteger();
+        VerifyingInputStream is = new VerifyingInputStream(stream(), CHECKSUM, c -> mismatches.incrementAndGet());
+        assertThat(IOUtils.toString(is), is(CONTENT));
+        assertThat(is.getComputedChecksum(), is(CHECKSUM));
+        assertThat(is.read(), is(-1));
+        assertThat(mismatches.get(), is(0));
+    }
+
+    @Test
+    public void corruptedStream() throws Exception {
+        AtomicInteger mismatches = new AtomicInteger();
+        Checksum expected = new Checksum(ChecksumType.MD5, "alwayswrong");
+        VerifyingInputStream is = new VerifyingInputStream(stream(), expected, c -> {
+            assertThat(c, is(CHECKSUM));
+            mismatches.incrementAndGet();
+        });
+        assertThrown(() -> IOUtils.copy(is, new NullOutputStream())).isInstanceOf(InvalidChecksumException.class);
+        assertThrown(is::read).isInstanceOf(InvalidChecksumException.class);
+        assertThat(mismatches.get(), is(1));
+    }
+
+    @Test
+    public void skippedDataVerified() throws Exception {
+        VerifyingInputStream is = new VerifyingInputStream(stream(), CHECKSUM, c -> {
+        });
+        assertThat(is.skip(2), is(2L));
+        assertThat(IOUtils.toString(is), is(CONTENT.substring(2)));
+        assertThat(is.getComputedChecksum(), is(CHECKSUM));
+    }
+
+    private InputStream stream() {
+        return new ByteArrayInputStream(CONTENT.getBytes());
+    }
+}
@@ -0,0 +1,133 @@
+package cz.cas.lib.arcstorage.storage.cache;
+
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DiskCacheTest {
+    private static final String OBJECT_ID = "objectId";
+    private static final String CONTENT = "object content";
+    private static final Checksum CHECKSUM = new Checksum(ChecksumType.MD5, "b4d4a3b99f3c954c2daf8e142a982d82");
+
+    @Rule
+    public TemporaryFolder cacheDir = new TemporaryFolder();
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private DiskCache cache;
+
+    @Before
+    public void before() throws Exception {
+        cache = new DiskCache(cacheDir.getRoot().toPath(), 1024);
+    }
+
+    @Test
+    public void objectServedFromCache() throws Exception {
+        assertThat(read(cache.cacheWhileReading(OBJECT_ID, stream(CONTENT), CHECKSUM)), is(CONTENT));
+        assertThat(read(cache.get(OBJECT_ID, CHECKSUM)), is(CONTENT));
+        assertThat(cache.get("other", CHECKSUM), nullValue());
+        assertThat(cache.getCount(), is(1));
+        assertThat(cache.getStats().getHits(), is(1L));
+        assertThat(cache.getStats().getMisses(), is(1L));
+    }
+
+    @Test
+    public void entryOfOtherChecksumNotServed() throws Exception {
+        read(cache.cacheWhileReading(OBJECT_ID, stream(CONTENT), CHECKSUM));
+        assertThat(cache.get(OBJECT_ID, new Checksum(ChecksumType.MD5, "00000000000000000000000000000000")), nullValue());
+    }
+
+    @Test
+    public void unverifiedObjectNotCached() throws Exception {
+        assertThat(read(cache.cacheWhileReading(OBJECT_ID, stream("corrupted content"), CHECKSUM)), is("corrupted content"));
+        assertThat(cache.get(OBJECT_ID, CHECKSUM), nullValue());
+        assertThat(cache.getCount(), is(0));
+        assertThat(cacheDir.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void partiallyReadObjectNotCached() throws Exception {
+        InputStream in = cache.cacheWhileReading(OBJECT_ID, stream(CONTENT), CHECKSUM);
+        in.read(new byte[4]);
+        in.close();
+        assertThat(cache.getCount(), is(0));
+        assertThat(cacheDir.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void verifiedFileAdded() throws Exception {
+        Path file = tmpDir.newFile().toPath();
+        Files.write(file, CONTENT.getBytes(StandardCharsets.UTF_8));
+        cache.put(OBJECT_ID, CHECKSUM, file);
+        Files.delete(file);
+        assertThat(read(cache.get(OBJECT_ID, CHECKSUM)), is(CONTENT));
+    }
+
+    @Test
+    public void corruptedEntryDropped() throws Exception {
+        read(cache.cacheWhileReading(OBJECT_ID, stream(CONTENT), CHECKSUM));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir.getRoot().toPath(), "*.data")) {
+            for (Path file : files) {
+                Files.write(file, "corrupted content".getBytes());
+            }
+        }
+        assertThat(cache.get(OBJECT_ID, CHECKSUM), nullValue());
+        assertThat(cache.getCount(), is(0));
+    }
+
+    @Test
+    public void cacheSurvivesRestart() throws Exception {
+        read(cache.cacheWhileReading(OBJECT_ID, stream(CONTENT), CHECKSUM));
+        DiskCache restarted = new DiskCache(cacheDir.getRoot().toPath(), 1024);
+        assertThat(read(restarted.get(OBJECT_ID, CHECKSUM)), is(CONTENT));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+        DiskCache smallCache = new DiskCache(cacheDir.getRoot().toPath(), CONTENT.length() * 2);
+        read(smallCache.cacheWhileReading(OBJECT_ID, stream(CONTENT), CHECKSUM));
+        read(smallCache.cacheWhileReading("a", stream(CONTENT), CHECKSUM));
+        read(smallCache.get(OBJECT_ID, CHECKSUM));
+        read(smallCache.cacheWhileReading("b", stream(CONTENT), CHECKSUM));
+
+        assertThat(smallCache.getCount(), is(2));
+        assertThat(smallCache.getSize(), is((long) CONTENT.length() * 2));
+        assertThat(read(smallCache.get(OBJECT_ID, CHECKSUM)), is(CONTENT));
+        assertThat(smallCache.get("a", CHECKSUM), nullValue());
+    }
+
+    @Test
+    public void disabledCache() throws Exception {
+        DiskCache disabled = new DiskCache((Path) null, 1024);
+        InputStream in = stream(CONTENT);
+        assertThat(disabled.cacheWhileReading(OBJECT_ID, in, CHECKSUM) == in, is(true));
+        read(in);
+        assertThat(disabled.get(OBJECT_ID, CHECKSUM), nullValue());
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+}
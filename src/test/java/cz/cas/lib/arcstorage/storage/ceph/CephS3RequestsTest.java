@@ -0,0 +1,114 @@
+package cz.cas.lib.arcstorage.storage.ceph;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import cz.cas.lib.arcstorage.storage.exception.FileDoesNotExistException;
+import org.apache.commons.io.input.NullInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.InputStream;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the number of requests sent to the gateway, runs against mocked client.
+ */
+public class CephS3RequestsTest {
+    private static final String BUCKET = "bucket";
+    private static final String ID = "objectId";
+
+    @Mock
+    private AmazonS3 s3;
+    private CephS3StorageService service;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        service = new CephS3StorageService(new Storage(), s3);
+    }
+
+    @Test
+    public void getObjectSingleRequest() throws Exception {
+        S3Object object = new S3Object();
+        object.setObjectContent(new NullInputStream(0));
+        when(s3.getObject(BUCKET, ID)).thenReturn(object);
+
+        service.getObject(ID, BUCKET);
+
+        verify(s3).getObject(BUCKET, ID);
+        verifyNoMoreInteractions(s3);
+    }
+
+    @Test
+    public void getMissingObject() throws Exception {
+        when(s3.getObject(BUCKET, ID)).thenThrow(notFound());
+
+        assertThrown(() -> service.getObject(ID, BUCKET)).isInstanceOf(FileDoesNotExistException.class);
+        assertThrown(() -> service.getAip(ID, BUCKET)).isInstanceOf(FileDoesNotExistException.class);
+        verify(s3, never()).doesObjectExist(anyString(), anyString());
+    }
+
+    @Test
+    public void removeSingleRequest() throws Exception {
+        service.remove(ID, BUCKET);
+
+        ArgumentCaptor<ObjectMetadata> captor = ArgumentCaptor.forClass(ObjectMetadata.class);
+        verify(s3).putObject(eq(BUCKET), eq(service.toStateObjectId(ID)), any(InputStream.class), captor.capture());
+        verifyNoMoreInteractions(s3);
+        assertThat(captor.getValue().getUserMetadata().get(CephS3StorageService.STATE_KEY), is(ObjectState.REMOVED.toString()));
+    }
+
+    @Test
+    public void deleteDoesNotReadMetadata() throws Exception {
+        service.delete(ID, BUCKET);
+
+        ArgumentCaptor<ObjectMetadata> captor = ArgumentCaptor.forClass(ObjectMetadata.class);
+        InOrder inOrder = inOrder(s3);
+        inOrder.verify(s3).putObject(eq(BUCKET), eq(service.toStateObjectId(ID)), any(InputStream.class), captor.capture());
+        inOrder.verify(s3).deleteObject(BUCKET, ID);
+        inOrder.verify(s3).putObject(eq(BUCKET), eq(service.toStateObjectId(ID)), any(InputStream.class), captor.capture());
+        verifyNoMoreInteractions(s3);
+        assertThat(captor.getAllValues().get(1).getUserMetadata().get(CephS3StorageService.STATE_KEY), is(ObjectState.DELETED.toString()));
+    }
+
+    /**
+     * Objects stored by older versions have the state in the metadata object and no state object.
+     */
+    @Test
+    public void stateOfOlderObject() throws Exception {
+        ObjectMetadata stored = new ObjectMetadata();
+        stored.addUserMetadata("md5", "checksum");
+        stored.addUserMetadata(CephS3StorageService.STATE_KEY, ObjectState.ARCHIVED.toString());
+        when(s3.getObjectMetadata(BUCKET, service.toStateObjectId(ID))).thenThrow(notFound());
+        when(s3.getObjectMetadata(BUCKET, service.toMetadataObjectId(ID))).thenReturn(stored);
+
+        assertThat(service.getState(s3, ID, BUCKET), is(ObjectState.ARCHIVED));
+
+        ObjectMetadata state = new ObjectMetadata();
+        state.addUserMetadata(CephS3StorageService.STATE_KEY, ObjectState.REMOVED.toString());
+        reset(s3);
+        when(s3.getObjectMetadata(BUCKET, service.toStateObjectId(ID))).thenReturn(state);
+        when(s3.getObjectMetadata(BUCKET, service.toMetadataObjectId(ID))).thenReturn(stored);
+
+        assertThat(service.getState(s3, ID, BUCKET), is(ObjectState.REMOVED));
+    }
+
+    private AmazonS3Exception notFound() {
+        AmazonS3Exception e = new AmazonS3Exception("Not Found");
+        e.setStatusCode(404);
+        return e;
+    }
+}
@@ -2,7 +2,6 @@ package cz.cas.lib.arcstorage.storage.ceph;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Owner;
 import com.amazonaws.services.s3.model.S3Object;
 import cz.cas.lib.arcstorage.domain.entity.Storage;
@@ -69,6 +68,19 @@ public class CephS3Test extends StorageServiceTest {
         return bucketName;
     }
 
+    /**
+     * Asserts the state as stored at the storage: the state is the user metadata of the state object, the metadata
+     * object, if any, does not hold the state any more.
+     */
+    private void assertStoredState(AmazonS3 s3, String objId, ObjectState state) {
+        Map<String, String> stateMetadata = s3.getObjectMetadata(bucketName, service.toStateObjectId(objId)).getUserMetadata();
+        assertThat(stateMetadata.get(CephS3StorageService.STATE_KEY), is(state.toString()));
+        if (s3.doesObjectExist(bucketName, service.toMetadataObjectId(objId))) {
+            Map<String, String> userMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(objId)).getUserMetadata();
+            assertThat(userMetadata, not(hasKey(CephS3StorageService.STATE_KEY)));
+        }
+    }
+
     /**
      * tests that file larger than 8MiB (split into two parts) is successfully stored together with metadata
      */
@@ -87,9 +99,8 @@ public class CephS3Test extends StorageServiceTest {
         Checksum checksumOfStoredFile = StorageUtils.computeChecksum(object.getObjectContent(), ChecksumType.MD5);
         assertThat(LARGE_SIP_CHECKSUM, is(checksumOfStoredFile));
 
-        ObjectMetadata objectMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId));
-        Map<String, String> userMetadata = objectMetadata.getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, fileId, ObjectState.ARCHIVED);
+        Map<String, String> userMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId)).getUserMetadata();
         assertThat(userMetadata.get(LARGE_SIP_CHECKSUM.getType().toString()), is(LARGE_SIP_CHECKSUM.getValue()));
         assertThat(userMetadata.get(CephS3StorageService.CREATED_KEY), not(isEmptyOrNullString()));
     }
@@ -110,9 +121,8 @@ public class CephS3Test extends StorageServiceTest {
         Checksum checksumOfStoredFile = StorageUtils.computeChecksum(object.getObjectContent(), ChecksumType.MD5);
         assertThat(SIP_CHECKSUM, is(checksumOfStoredFile));
 
-        ObjectMetadata objectMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId));
-        Map<String, String> userMetadata = objectMetadata.getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, fileId, ObjectState.ARCHIVED);
+        Map<String, String> userMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId)).getUserMetadata();
         assertThat(userMetadata.get(SIP_CHECKSUM.getType().toString()), is(SIP_CHECKSUM.getValue()));
         assertThat(userMetadata.get(CephS3StorageService.CREATED_KEY), not(isEmptyOrNullString()));
     }
@@ -143,9 +153,7 @@ public class CephS3Test extends StorageServiceTest {
             service.storeFile(s3, fileId, bos, LARGE_SIP_CHECKSUM, rollback, bucketName);
         }
 
-        ObjectMetadata objectMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId));
-        Map<String, String> userMetadata = objectMetadata.getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.PROCESSING.toString()));
+        assertStoredState(s3, fileId, ObjectState.PROCESSING);
     }
 
     /**
@@ -184,14 +192,12 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         S3Object sipObj = s3.getObject(bucketName, sipId);
-        S3Object sipObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(sipId));
         S3Object xmlObj = s3.getObject(bucketName, xmlId);
-        S3Object xmlObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(xmlId));
 
         assertThat(streamToString(sipObj.getObjectContent()), is(SIP_CONTENT));
-        assertThat(sipObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, sipId, ObjectState.ARCHIVED);
         assertThat(streamToString(xmlObj.getObjectContent()), is(XML_CONTENT));
-        assertThat(xmlObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, xmlId, ObjectState.ARCHIVED);
         assertThat(rollback.get(), is(false));
     }
 
@@ -205,10 +211,9 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         S3Object xmlObj = s3.getObject(bucketName, xmlId);
-        S3Object xmlObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(xmlId));
 
         assertThat(streamToString(xmlObj.getObjectContent()), is(XML_CONTENT));
-        assertThat(xmlObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, xmlId, ObjectState.ARCHIVED);
         assertThat(rollback.get(), is(false));
     }
 
@@ -226,14 +231,12 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         assertThrown(() -> s3.getObject(bucketName, sipId)).isInstanceOf(AmazonS3Exception.class).messageContains("NoSuchKey");
-        S3Object sipMeta = s3.getObject(bucketName, service.toMetadataObjectId(sipId));
-        assertThat(sipMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.DELETED.toString()));
+        assertStoredState(s3, sipId, ObjectState.DELETED);
 
         S3Object xmlObj = s3.getObject(bucketName, xmlId);
-        S3Object xmlObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(xmlId));
 
         assertThat(streamToString(xmlObj.getObjectContent()), is(XML_CONTENT));
-        assertThat(xmlObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, xmlId, ObjectState.ARCHIVED);
     }
 
     @Test
@@ -249,9 +252,8 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         S3Object sipObj = s3.getObject(bucketName, sipId);
-        S3Object sipObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(sipId));
         assertThat(streamToString(sipObj.getObjectContent()), is(SIP_CONTENT));
-        assertThat(sipObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.REMOVED.toString()));
+        assertStoredState(s3, sipId, ObjectState.REMOVED);
     }
 
     @Test
@@ -268,9 +270,8 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         S3Object sipObj = s3.getObject(bucketName, sipId);
-        S3Object sipObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(sipId));
         assertThat(streamToString(sipObj.getObjectContent()), is(SIP_CONTENT));
-        assertThat(sipObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
+        assertStoredState(s3, sipId, ObjectState.ARCHIVED);
     }
 
     @Test
@@ -295,15 +296,12 @@ public class CephS3Test extends StorageServiceTest {
             service.storeFile(s3, fileId, bos, LARGE_SIP_CHECKSUM, rollback, bucketName);
         }
 
-        ObjectMetadata objectMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId));
-        Map<String, String> userMetadata = objectMetadata.getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.PROCESSING.toString()));
+        assertStoredState(s3, fileId, ObjectState.PROCESSING);
 //actual test
         service.rollbackFile(s3, fileId, bucketName);
 
         assertThrown(() -> s3.getObject(bucketName, fileId)).isInstanceOf(AmazonS3Exception.class).messageContains("NoSuchKey");
-        userMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId)).getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.ROLLED_BACK.toString()));
+        assertStoredState(s3, fileId, ObjectState.ROLLED_BACK);
     }
 
     @Test
@@ -317,8 +315,7 @@ public class CephS3Test extends StorageServiceTest {
         service.rollbackFile(s3, fileId, bucketName);
 
         assertThrown(() -> s3.getObject(bucketName, fileId)).isInstanceOf(AmazonS3Exception.class).messageContains("NoSuchKey");
-        Map<String, String> userMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId)).getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.ROLLED_BACK.toString()));
+        assertStoredState(s3, fileId, ObjectState.ROLLED_BACK);
     }
 
     @Test
@@ -327,8 +324,7 @@ public class CephS3Test extends StorageServiceTest {
         String fileId = testName.getMethodName();
         AmazonS3 s3 = service.connect();
         service.rollbackFile(s3, fileId, bucketName);
-        Map<String, String> userMetadata = s3.getObjectMetadata(bucketName, service.toMetadataObjectId(fileId)).getUserMetadata();
-        assertThat(userMetadata.get(CephS3StorageService.STATE_KEY), is(ObjectState.ROLLED_BACK.toString()));
+        assertStoredState(s3, fileId, ObjectState.ROLLED_BACK);
     }
 
     @Test
@@ -344,13 +340,11 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         assertThrown(() -> s3.getObject(bucketName, sipId)).isInstanceOf(AmazonS3Exception.class).messageContains("NoSuchKey");
-        S3Object sipObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(sipId));
 
         assertThrown(() -> s3.getObject(bucketName, xmlId)).isInstanceOf(AmazonS3Exception.class).messageContains("NoSuchKey");
-        S3Object xmlObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(xmlId));
 
-        assertThat(sipObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ROLLED_BACK.toString()));
-        assertThat(xmlObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ROLLED_BACK.toString()));
+        assertStoredState(s3, sipId, ObjectState.ROLLED_BACK);
+        assertStoredState(s3, xmlId, ObjectState.ROLLED_BACK);
     }
 
     @Test
@@ -366,14 +360,12 @@ public class CephS3Test extends StorageServiceTest {
 
         AmazonS3 s3 = service.connect();
         S3Object sipObj = s3.getObject(bucketName, sipId);
-        S3Object sipObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(sipId));
 
         assertThrown(() -> s3.getObject(bucketName, xmlId)).isInstanceOf(AmazonS3Exception.class).messageContains("NoSuchKey");
-        S3Object xmlObjMeta = s3.getObject(bucketName, service.toMetadataObjectId(xmlId));
 
         assertThat(streamToString(sipObj.getObjectContent()), is(SIP_CONTENT));
-        assertThat(sipObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ARCHIVED.toString()));
-        assertThat(xmlObjMeta.getObjectMetadata().getUserMetadata().get(service.STATE_KEY), is(ObjectState.ROLLED_BACK.toString()));
+        assertStoredState(s3, sipId, ObjectState.ARCHIVED);
+        assertStoredState(s3, xmlId, ObjectState.ROLLED_BACK);
     }
 
     /**
@@ -404,7 +396,7 @@ public class CephS3Test extends StorageServiceTest {
         }
 
         @Override
-        public Checksum computeChecksumRollbackAware(InputStream fileStream, ChecksumType checksumType, AtomicBoolean rollback) throws IOException {
+        Checksum toPartChecksum(byte[] md5Digest) {
             return new Checksum(ChecksumType.MD5, "alwayswrong");
         }
     }
@@ -0,0 +1,239 @@
+package cz.cas.lib.arcstorage.storage.ceph;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import cz.cas.lib.arcstorage.storage.ParallelRangeReader;
+import cz.cas.lib.arcstorage.storage.exception.FileCorruptedAfterStoreException;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cz.cas.lib.arcstorage.storage.ceph.CephS3StorageService.MIN_PART_SIZE;
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests the multipart upload of {@link CephS3StorageService#storeFile}, runs against mocked client.
+ */
+public class CephS3UploadTest {
+    private static final String BUCKET = "bucket";
+    private static final String ID = "objectId";
+    private static final String UPLOAD_ID = "uploadId";
+    private static final int CONCURRENCY = 2;
+    /**
+     * two full parts and the last shorter one
+     */
+    private static final byte[] DATA = new byte[2 * MIN_PART_SIZE + 1024];
+    private static final Checksum CHECKSUM = new Checksum(ChecksumType.MD5, DigestUtils.md5DigestAsHex(DATA));
+
+    static {
+        new Random(1).nextBytes(DATA);
+    }
+
+    @Mock
+    private AmazonS3 s3;
+    private CephS3StorageService service;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        service = new CephS3StorageService(new Storage(), s3, MIN_PART_SIZE, CONCURRENCY, ParallelRangeReader.DISABLED);
+        InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+        initRes.setUploadId(UPLOAD_ID);
+        when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initRes);
+    }
+
+    /**
+     * The first part is not finished until the second one is being uploaded, the third one waits for a free buffer.
+     * Every part is sent with the MD5 of its content and the parts are completed in the order of the data.
+     */
+    @Test
+    public void partsUploadedInParallel() throws Exception {
+        CountDownLatch secondPartStarted = new CountDownLatch(1);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<String> contentMd5s = new ArrayList<>();
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                if (request.getPartNumber() == 2)
+                    secondPartStarted.countDown();
+                if (request.getPartNumber() == 1)
+                    assertThat(secondPartStarted.await(10, TimeUnit.SECONDS), is(true));
+                byte[] content = IOUtils.toByteArray(request.getInputStream());
+                synchronized (contentMd5s) {
+                    contentMd5s.add(request.getMd5Digest());
+                }
+                assertThat(request.getMd5Digest(), is(Base64.getEncoder().encodeToString(DigestUtils.md5Digest(content))));
+                return partResult(request.getPartNumber(), DigestUtils.md5DigestAsHex(content));
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        });
+
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        service.storeFile(s3, ID, new ByteArrayInputStream(DATA), CHECKSUM, rollback, BUCKET);
+
+        assertThat(rollback.get(), is(false));
+        assertThat(contentMd5s, hasSize(3));
+        assertThat(maxInFlight.get(), is(CONCURRENCY));
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeReq = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3).completeMultipartUpload(completeReq.capture());
+        assertThat(completeReq.getValue().getUploadId(), is(UPLOAD_ID));
+        List<Integer> partNumbers = new ArrayList<>();
+        for (PartETag partETag : completeReq.getValue().getPartETags()) {
+            partNumbers.add(partETag.getPartNumber());
+        }
+        assertThat(partNumbers, contains(1, 2, 3));
+        assertThat(lastState(), is(ObjectState.ARCHIVED));
+    }
+
+    /**
+     * Part rejected by the gateway because its content does not match the Content-MD5 header.
+     */
+    @Test
+    public void badDigest() throws Exception {
+        AmazonS3Exception badDigest = new AmazonS3Exception("The Content-MD5 you specified did not match what we received.");
+        badDigest.setErrorCode("BadDigest");
+        badDigest.setStatusCode(400);
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenThrow(badDigest);
+
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        assertThrown(() -> service.storeFile(s3, ID, new ByteArrayInputStream(DATA), CHECKSUM, rollback, BUCKET))
+                .isInstanceOf(FileCorruptedAfterStoreException.class);
+        assertThat(rollback.get(), is(true));
+        verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertThat(lastState(), is(ObjectState.PROCESSING));
+    }
+
+    /**
+     * ETag of the uploaded part does not match the MD5 of the sent content.
+     */
+    @Test
+    public void partETagMismatch() throws Exception {
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            return partResult(request.getPartNumber(), "00000000000000000000000000000000");
+        });
+
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        assertThrown(() -> service.storeFile(s3, ID, new ByteArrayInputStream(DATA), CHECKSUM, rollback, BUCKET))
+                .isInstanceOf(FileCorruptedAfterStoreException.class);
+        assertThat(rollback.get(), is(true));
+        verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    /**
+     * Rollback set by another thread while the second part is being read stops the upload without an exception, the
+     * stream is closed and the buffers are returned to the pool, so that the next upload is not blocked.
+     */
+    @Test
+    public void rollbackBetweenParts() throws Exception {
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            return partResult(request.getPartNumber(), DigestUtils.md5DigestAsHex(IOUtils.toByteArray(request.getInputStream())));
+        });
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        AtomicBoolean closed = new AtomicBoolean(false);
+        InputStream stream = new ByteArrayInputStream(DATA) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= MIN_PART_SIZE + 1024)
+                    rollback.set(true);
+                return super.read(b, off, Math.min(len, 1024));
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+            }
+        };
+
+        service.storeFile(s3, ID, stream, CHECKSUM, rollback, BUCKET);
+
+        assertThat(closed.get(), is(true));
+        verify(s3, atMost(1)).uploadPart(any(UploadPartRequest.class));
+        verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertThat(lastState(), is(ObjectState.PROCESSING));
+
+        reset(s3);
+        InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+        initRes.setUploadId(UPLOAD_ID);
+        when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initRes);
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            return partResult(request.getPartNumber(), DigestUtils.md5DigestAsHex(IOUtils.toByteArray(request.getInputStream())));
+        });
+        service.storeFile(s3, ID, new ByteArrayInputStream(DATA), CHECKSUM, new AtomicBoolean(false), BUCKET);
+        verify(s3, times(3)).uploadPart(any(UploadPartRequest.class));
+        verify(s3).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void bufferPool() throws Exception {
+        CephS3StorageService.PartBufferPool pool = new CephS3StorageService.PartBufferPool(16, 2);
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        byte[] first = pool.acquire(rollback);
+        byte[] second = pool.acquire(rollback);
+        assertThat(first.length, is(16));
+        assertThat(second, not(sameInstance(first)));
+
+        pool.release(first);
+        assertThat(pool.acquire(rollback), sameInstance(first));
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            pool.release(second);
+        }).start();
+        assertThat(pool.acquire(rollback), sameInstance(second));
+
+        rollback.set(true);
+        assertThat(pool.acquire(rollback), nullValue());
+    }
+
+    private UploadPartResult partResult(int partNumber, String eTag) {
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(partNumber);
+        result.setETag(eTag);
+        return result;
+    }
+
+    /**
+     * @return last state written to the state object
+     */
+    private ObjectState lastState() {
+        ArgumentCaptor<ObjectMetadata> captor = ArgumentCaptor.forClass(ObjectMetadata.class);
+        verify(s3, atLeastOnce()).putObject(eq(BUCKET), eq(service.toStateObjectId(ID)), any(InputStream.class), captor.capture());
+        List<ObjectMetadata> states = captor.getAllValues();
+        return ObjectState.valueOf(states.get(states.size() - 1).getUserMetadata().get(CephS3StorageService.STATE_KEY));
+    }
+}
@@ -5,6 +5,7 @@ import cz.cas.lib.arcstorage.domain.entity.User;
 import cz.cas.lib.arcstorage.dto.*;
 import cz.cas.lib.arcstorage.storage.StorageServiceTest;
 import cz.cas.lib.arcstorage.storage.exception.FileCorruptedAfterStoreException;
+import cz.cas.lib.arcstorage.storage.exception.FileDoesNotExistException;
 import cz.cas.lib.arcstorage.storage.exception.IOStorageException;
 import lombok.Getter;
 import org.apache.commons.io.FileUtils;
@@ -12,18 +13,24 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
 import static helper.ThrowableAssertion.assertThrown;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class LocalProcessorTest extends StorageServiceTest {
@@ -58,7 +65,7 @@ public class LocalProcessorTest extends StorageServiceTest {
         Path path = getFolderPath(id).resolve(id);
         service.storeFile(getFolderPath(id), id, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
         assertThat(streamToString(new FileInputStream(path.toFile())), is(SIP_CONTENT));
-        assertThat(getChecksumValue(path, SIP_CHECKSUM.getType()), is(SIP_CHECKSUM.getValue()));
+        assertThat(readMetadata(path).getChecksum(), is(SIP_CHECKSUM));
         assertThat(isInState(path, ObjectState.ARCHIVED), is(true));
     }
 
@@ -297,23 +304,109 @@ public class LocalProcessorTest extends StorageServiceTest {
         assertThat(badService.testConnection(), is(false));
     }
 
-    private String getChecksumValue(Path fileBasePath, ChecksumType checksumType) throws FileNotFoundException {
-        return streamToString(new FileInputStream(fileBasePath.resolveSibling(fileBasePath.getFileName() + "." + checksumType).toFile()));
+    @Test
+    public void legacyLayoutReadAndConvertedOnStateChange() throws Exception {
+        String sipId = testName.getMethodName();
+        Path folder = getFolderPath(sipId);
+        storeLegacy(folder, sipId, ObjectState.ARCHIVED);
+
+        assertThat(isInState(folder.resolve(sipId), ObjectState.ARCHIVED), is(true));
+        assertThat(readMetadata(folder.resolve(sipId)).getChecksum(), is(SIP_CHECKSUM));
+
+        service.remove(sipId, dataSpace);
+
+        assertThat(Files.exists(folder.resolve(sipId + FsObjectMetadata.METADATA_FILE_SUFFIX)), is(true));
+        assertThat(Files.exists(folder.resolve(sipId + "." + ObjectState.ARCHIVED)), is(false));
+        assertThat(Files.exists(folder.resolve(sipId + "." + SIP_CHECKSUM.getType())), is(false));
+        FsObjectMetadata metadata = readMetadata(folder.resolve(sipId));
+        assertThat(metadata.getState(), is(ObjectState.REMOVED));
+        assertThat(metadata.getChecksum(), is(SIP_CHECKSUM));
+        assertThat(metadata.isLegacy(), is(false));
     }
 
-    private boolean isInState(Path fileBasePath, ObjectState state) {
-        if (!Files.exists(fileBasePath.resolveSibling(fileBasePath.getFileName() + "." + state)))
-            return false;
-        //when there is a rolled_back file, other files do not not have to be deleted
-        if (state == ObjectState.ROLLED_BACK)
-            return true;
-        if (state == ObjectState.DELETED)
-            return !(Files.exists(fileBasePath.resolveSibling(fileBasePath.getFileName() + "." + ObjectState.PROCESSING)) ||
-                    Files.exists(fileBasePath.resolveSibling(fileBasePath.getFileName() + "." + ObjectState.ROLLED_BACK)));
-
-        return Arrays.stream(ObjectState.values()).filter(o -> o != state).noneMatch(
-                o -> Files.exists(fileBasePath.resolveSibling(fileBasePath.getFileName() + "." + o))
-        );
+    @Test
+    public void storeFileDeletesLegacyFiles() throws Exception {
+        String sipId = testName.getMethodName();
+        Path folder = getFolderPath(sipId);
+        storeLegacy(folder, sipId, ObjectState.ROLLED_BACK);
+
+        service.storeFile(folder, sipId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+
+        assertThat(Files.exists(folder.resolve(sipId + "." + ObjectState.ROLLED_BACK)), is(false));
+        assertThat(Files.exists(folder.resolve(sipId + "." + SIP_CHECKSUM.getType())), is(false));
+        assertThat(isInState(folder.resolve(sipId), ObjectState.ARCHIVED), is(true));
+    }
+
+    @Test
+    public void concurrentMetadataWrites() throws Exception {
+        String sipId = testName.getMethodName();
+        Path folder = getFolderPath(sipId);
+        service.storeFile(folder, sipId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            ObjectState state = i % 2 == 0 ? ObjectState.REMOVED : ObjectState.ARCHIVED;
+            writes.add(executor.submit(() -> {
+                FsObjectMetadata metadata = service.readMetadata(folder, sipId);
+                metadata.setState(state);
+                service.writeMetadata(folder, sipId, metadata);
+                return null;
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get();
+        }
+        executor.shutdown();
+
+        assertThat(readMetadata(folder.resolve(sipId)).getChecksum(), is(SIP_CHECKSUM));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + FsObjectMetadata.TMP_FILE_SUFFIX)) {
+            assertThat(files.iterator().hasNext(), is(false));
+        }
+    }
+
+    @Test
+    public void migrateMetadataOk() throws Exception {
+        String sipId = testName.getMethodName();
+        String xmlId = toXmlId(sipId, 1);
+        Path folder = getFolderPath(sipId);
+        storeLegacy(folder, sipId, ObjectState.REMOVED);
+        storeLegacy(folder, xmlId, ObjectState.ARCHIVED);
+        service.storeFile(folder, toXmlId(sipId, 2), getXml2Stream(), XML_CHECKSUM_2, new AtomicBoolean(false));
+
+        assertThat(service.migrateMetadata(dataSpace) >= 2, is(true));
+        assertThat(service.migrateMetadata(dataSpace), is(0));
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                assertThat(file.toString(), FsObjectMetadata.legacyFileId(file.getFileName().toString()), nullValue());
+            }
+        }
+        assertThat(isInState(folder.resolve(sipId), ObjectState.REMOVED), is(true));
+        FsObjectMetadata xmlMetadata = readMetadata(folder.resolve(xmlId));
+        assertThat(xmlMetadata.getState(), is(ObjectState.ARCHIVED));
+        assertThat(xmlMetadata.getXmlVersion(), is(1));
+        assertThat(xmlMetadata.getChecksum(), is(SIP_CHECKSUM));
+        assertThat(isInState(folder.resolve(toXmlId(sipId, 2)), ObjectState.ARCHIVED), is(true));
+    }
+
+    /**
+     * Stores file with metadata in the legacy layout: state file and checksum file.
+     */
+    private void storeLegacy(Path folder, String fileId, ObjectState state) throws IOException {
+        Files.createDirectories(folder);
+        Files.copy(getSipStream(), folder.resolve(fileId), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(folder.resolve(fileId + "." + SIP_CHECKSUM.getType()), SIP_CHECKSUM.getValue().getBytes());
+        Files.createFile(folder.resolve(fileId + "." + state));
+    }
+
+    private boolean isInState(Path fileBasePath, ObjectState state) throws IOException {
+        FsObjectMetadata metadata = readMetadata(fileBasePath);
+        return metadata != null && metadata.getState() == state;
+    }
+
+    private FsObjectMetadata readMetadata(Path fileBasePath) throws IOException {
+        return service.readMetadata(fileBasePath.getParent(), fileBasePath.getFileName().toString());
     }
 
     private static final class TestServiceSettingRollback extends LocalFsProcessor {
@@ -327,6 +420,47 @@ public class LocalProcessorTest extends StorageServiceTest {
         }
     }
 
+    @Test
+    public void readDoesNotCreateFolders() throws Exception {
+        String sipId = "f0" + testName.getMethodName();
+        Path folder = getFolderPath(sipId);
+        assertThrown(() -> service.getObject(sipId, dataSpace)).isInstanceOf(FileDoesNotExistException.class);
+        assertThrown(() -> service.getAip(sipId, dataSpace, 1)).isInstanceOf(FileDoesNotExistException.class);
+        assertThrown(() -> service.remove(sipId, dataSpace)).isInstanceOf(FileDoesNotExistException.class);
+        assertThat(Files.exists(folder.getParent().getParent()), is(false));
+
+        service.storeAip(new AipDto("ownerId", sipId, getSipStream(), SIP_CHECKSUM, getXmlStream(), XML_CHECKSUM), new AtomicBoolean(false), dataSpace);
+        assertThat(streamToString(service.getObject(sipId, dataSpace).getInputStream()), is(SIP_CONTENT));
+    }
+
+    @Test
+    public void getObjectRange() throws Exception {
+        String sipId = "f1" + testName.getMethodName();
+        assertThrown(() -> service.getObjectRange(sipId, dataSpace, 0, 1)).isInstanceOf(FileDoesNotExistException.class);
+        service.storeAip(new AipDto("ownerId", sipId, getSipStream(), SIP_CHECKSUM, getXmlStream(), XML_CHECKSUM), new AtomicBoolean(false), dataSpace);
+
+        ObjectRangeRetrievalResource range = service.getObjectRange(sipId, dataSpace, 1, 2);
+        assertThat(streamToString(range.getInputStream()), is(SIP_CONTENT.substring(1, 3)));
+        assertThat(range.getOffset(), is(1L));
+        assertThat(range.getLength(), is(2L));
+        assertThat(range.getObjectSize(), is((long) SIP_CONTENT.length()));
+
+        range = service.getObjectRange(sipId, dataSpace, 2, 100);
+        assertThat(streamToString(range.getInputStream()), is(SIP_CONTENT.substring(2)));
+        assertThat(range.getLength(), is((long) SIP_CONTENT.length() - 2));
+    }
+
+    @Test
+    public void customShardLayout() throws Exception {
+        LocalFsProcessor service = new LocalFsProcessor(storage, rootDirPath, new ShardLayout(2, 3));
+        String sipId = "ab1" + testName.getMethodName();
+        service.storeAip(new AipDto("ownerId", sipId, getSipStream(), SIP_CHECKSUM, getXmlStream(), XML_CHECKSUM), new AtomicBoolean(false), dataSpace);
+        Path folder = Paths.get(rootDirPath).resolve(dataSpace).resolve("ab1").resolve(sipId.substring(3, 6));
+        assertThat(service.getFolderPath(sipId, dataSpace), is(folder));
+        assertThat(streamToString(new FileInputStream(folder.resolve(sipId).toFile())), is(SIP_CONTENT));
+        assertThrown(() -> new ShardLayout(3, 3)).isInstanceOf(IllegalArgumentException.class);
+    }
+
     private Path getFolderPath(String fileName) {
         return service.getFolderPath(fileName, dataSpace);
     }
@@ -340,8 +474,12 @@ public class LocalProcessorTest extends StorageServiceTest {
         void storeFile(Path folder, String id, InputStream stream, Checksum checksum, AtomicBoolean rollback) throws FileCorruptedAfterStoreException, IOStorageException {
             if (rollback.get())
                 return;
+            try {
+                createFolder(folder);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
             try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(folder.resolve(id).toFile()))) {
-                Files.createDirectories(folder);
                 if (!Files.exists(folder.resolve(folder.resolve(id + ".PROCESSING"))))
                     Files.createFile(folder.resolve(id + ".PROCESSING"));
                 Files.copy(new ByteArrayInputStream(checksum.getValue().getBytes()), folder.resolve(id + "." + checksum.getType()), StandardCopyOption.REPLACE_EXISTING);
@@ -0,0 +1,145 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.AipStateInfoDto;
+import cz.cas.lib.arcstorage.dto.Checksum;
+import cz.cas.lib.arcstorage.dto.ChecksumType;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import cz.cas.lib.arcstorage.storage.exception.FileCorruptedAfterStoreException;
+import helper.EmbeddedSshServer;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cz.cas.lib.arcstorage.storage.StorageServiceTest.*;
+import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests verification of stored files by checksum command executed at the remote server. Runs against embedded SSH
+ * server which executes the commands in local shell.
+ */
+public class RemoteChecksumTest {
+    private static final String DATA_SPACE = "space";
+    private static EmbeddedSshServer sshd;
+    private static List<String> executedCommands;
+    private static Storage storage = new Storage();
+
+    @ClassRule
+    public static TemporaryFolder rootDir = new TemporaryFolder();
+
+    private SshSessionPool sessionPool;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        sshd = new EmbeddedSshServer(rootDir.getRoot().toPath().resolve("hostkey.ser"));
+        sshd.start();
+        executedCommands = sshd.getExecutedCommands();
+        storage.setName("embedded sftp storage");
+        storage.setHost(EmbeddedSshServer.HOST);
+        storage.setPort(sshd.getPort());
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        sshd.stop();
+    }
+
+    @Before
+    public void before() {
+        executedCommands.clear();
+        sshd.setCommandsAvailable(true);
+        sessionPool = new SshSessionPool(storage, EmbeddedSshServer.KEY_PATH, 10000, 2, 60000);
+    }
+
+    @After
+    public void after() {
+        sessionPool.close();
+    }
+
+    @Test
+    public void storeFileVerifiedByRemoteCommand() throws Exception {
+        RemoteFsProcessor service = processor(ChecksumVerificationMode.REMOTE_COMMAND);
+        String fileId = UUID.randomUUID().toString();
+        store(service, fileId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+        assertThat(executedCommands, hasSize(1));
+        assertThat(executedCommands.get(0), startsWith("md5sum -b '" + service.getFolderPath(fileId, DATA_SPACE)));
+    }
+
+    @Test
+    public void storeFileCorruptedDetectedByRemoteCommand() throws Exception {
+        RemoteFsProcessor service = processor(ChecksumVerificationMode.REMOTE_COMMAND);
+        String fileId = UUID.randomUUID().toString();
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        assertThrown(() -> store(service, fileId, getSipStream(), new Checksum(ChecksumType.MD5, "alwayswrong"), rollback))
+                .isInstanceOf(FileCorruptedAfterStoreException.class);
+        assertThat(rollback.get(), is(true));
+        assertThat(executedCommands, hasSize(1));
+    }
+
+    @Test
+    public void storeFileFallsBackToReadBack() throws Exception {
+        sshd.setCommandsAvailable(false);
+        RemoteFsProcessor service = processor(ChecksumVerificationMode.REMOTE_COMMAND);
+        store(service, UUID.randomUUID().toString(), getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+        AtomicBoolean rollback = new AtomicBoolean(false);
+        assertThrown(() -> store(service, UUID.randomUUID().toString(), getSipStream(), new Checksum(ChecksumType.MD5, "alwayswrong"), rollback))
+                .isInstanceOf(FileCorruptedAfterStoreException.class);
+        assertThat(rollback.get(), is(true));
+        //unavailable command is not called again
+        assertThat(executedCommands, hasSize(1));
+    }
+
+    @Test
+    public void storeFileReadBackMode() throws Exception {
+        RemoteFsProcessor service = processor(ChecksumVerificationMode.READ_BACK);
+        store(service, UUID.randomUUID().toString(), getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+        assertThat(executedCommands, empty());
+    }
+
+    @Test
+    public void getAipInfoComputedByRemoteCommand() throws Exception {
+        RemoteFsProcessor service = processor(ChecksumVerificationMode.REMOTE_COMMAND);
+        String sipId = UUID.randomUUID().toString();
+        store(service, sipId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+        store(service, toXmlId(sipId, 1), getXmlStream(), XML_CHECKSUM, new AtomicBoolean(false));
+        executedCommands.clear();
+
+        Map<Integer, Checksum> xmlVersions = new HashMap<>();
+        xmlVersions.put(1, XML_CHECKSUM);
+        AipStateInfoDto info = service.getAipInfo(sipId, SIP_CHECKSUM, ObjectState.ARCHIVED, xmlVersions, DATA_SPACE);
+        assertThat(info.isConsistent(), is(true));
+        assertThat(info.getSipStorageChecksum(), is(SIP_CHECKSUM));
+        assertThat(info.getXmlsState().get(0).isConsistent(), is(true));
+        assertThat(executedCommands, hasSize(2));
+        assertThat(executedCommands.get(1), startsWith("sha512sum -b "));
+    }
+
+    private RemoteFsProcessor processor(ChecksumVerificationMode mode) {
+        return new RemoteFsProcessor(storage, rootDir.getRoot().getAbsolutePath(), "/", sessionPool,
+                RemoteFsProcessor.DEFAULT_READ_AHEAD, mode, ShardLayout.DEFAULT);
+    }
+
+    private void store(RemoteFsProcessor service, String fileId, InputStream stream, Checksum checksum, AtomicBoolean rollback) throws Exception {
+        String folder = service.getFolderPath(fileId.substring(0, fileId.contains("_xml_") ? fileId.indexOf("_xml_") : fileId.length()), DATA_SPACE);
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            service.storeFile(session.getSsh(), session.getSftp(), folder, fileId, stream, checksum, rollback);
+        }
+    }
+
+    private InputStream getSipStream() {
+        return new ByteArrayInputStream(SIP_CONTENT.getBytes());
+    }
+
+    private InputStream getXmlStream() {
+        return new ByteArrayInputStream(XML_CONTENT.getBytes());
+    }
+}
@@ -0,0 +1,184 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.AipDto;
+import cz.cas.lib.arcstorage.dto.ObjectState;
+import cz.cas.lib.arcstorage.storage.exception.FileDoesNotExistException;
+import helper.EmbeddedSshServer;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cz.cas.lib.arcstorage.storage.StorageServiceTest.*;
+import static cz.cas.lib.arcstorage.storage.StorageUtils.toXmlId;
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests metadata files of remote FS storage and reading and migration of the legacy layout. Runs against embedded SSH
+ * server.
+ */
+public class RemoteMetadataTest {
+    private static final String DATA_SPACE = "space";
+    private static EmbeddedSshServer sshd;
+    private static Storage storage = new Storage();
+
+    @ClassRule
+    public static TemporaryFolder rootDir = new TemporaryFolder();
+
+    private SshSessionPool sessionPool;
+    private RemoteFsProcessor service;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        sshd = new EmbeddedSshServer(rootDir.getRoot().toPath().resolve("hostkey.ser"));
+        sshd.start();
+        storage.setName("embedded sftp storage");
+        storage.setHost(EmbeddedSshServer.HOST);
+        storage.setPort(sshd.getPort());
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        sshd.stop();
+    }
+
+    @Before
+    public void before() {
+        sessionPool = new SshSessionPool(storage, EmbeddedSshServer.KEY_PATH, 10000, 2, 60000);
+        service = new RemoteFsProcessor(storage, rootDir.getRoot().getAbsolutePath(), "/", sessionPool,
+                RemoteFsProcessor.DEFAULT_READ_AHEAD, ChecksumVerificationMode.READ_BACK, ShardLayout.DEFAULT);
+    }
+
+    @After
+    public void after() {
+        sessionPool.close();
+    }
+
+    @Test
+    public void storeAipWritesSingleMetadataFile() throws Exception {
+        String sipId = UUID.randomUUID().toString();
+        service.storeAip(new AipDto("ownerId", sipId, sipStream(), SIP_CHECKSUM, xmlStream(), XML_CHECKSUM), new AtomicBoolean(false), DATA_SPACE);
+        service.remove(sipId, DATA_SPACE);
+        service.renew(sipId, DATA_SPACE);
+        service.remove(sipId, DATA_SPACE);
+
+        Path folder = folder(sipId);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                assertThat(fileName, FsObjectMetadata.legacyFileId(fileName), nullValue());
+                assertThat(fileName.endsWith(FsObjectMetadata.TMP_FILE_SUFFIX), is(false));
+            }
+        }
+        FsObjectMetadata sipMetadata = readMetadata(sipId);
+        assertThat(sipMetadata.getState(), is(ObjectState.REMOVED));
+        assertThat(sipMetadata.getChecksum(), is(SIP_CHECKSUM));
+        assertThat(sipMetadata.getXmlVersion(), nullValue());
+        FsObjectMetadata xmlMetadata = readMetadata(toXmlId(sipId, 1));
+        assertThat(xmlMetadata.getState(), is(ObjectState.ARCHIVED));
+        assertThat(xmlMetadata.getChecksum(), is(XML_CHECKSUM));
+        assertThat(xmlMetadata.getXmlVersion(), is(1));
+    }
+
+    @Test
+    public void legacyLayoutReadAndConvertedOnStateChange() throws Exception {
+        String sipId = UUID.randomUUID().toString();
+        storeLegacy(sipId, ObjectState.ARCHIVED);
+
+        FsObjectMetadata legacyMetadata = readMetadata(sipId);
+        assertThat(legacyMetadata.isLegacy(), is(true));
+        assertThat(legacyMetadata.getState(), is(ObjectState.ARCHIVED));
+        assertThat(legacyMetadata.getChecksum(), is(SIP_CHECKSUM));
+
+        service.remove(sipId, DATA_SPACE);
+
+        assertThat(Files.exists(folder(sipId).resolve(sipId + "." + ObjectState.ARCHIVED)), is(false));
+        assertThat(Files.exists(folder(sipId).resolve(sipId + "." + SIP_CHECKSUM.getType())), is(false));
+        FsObjectMetadata metadata = readMetadata(sipId);
+        assertThat(metadata.isLegacy(), is(false));
+        assertThat(metadata.getState(), is(ObjectState.REMOVED));
+        assertThat(metadata.getChecksum(), is(SIP_CHECKSUM));
+    }
+
+    @Test
+    public void storeAipDeletesLegacyFiles() throws Exception {
+        String sipId = UUID.randomUUID().toString();
+        storeLegacy(sipId, ObjectState.ROLLED_BACK);
+
+        service.storeAip(new AipDto("ownerId", sipId, sipStream(), SIP_CHECKSUM, xmlStream(), XML_CHECKSUM), new AtomicBoolean(false), DATA_SPACE);
+
+        assertThat(Files.exists(folder(sipId).resolve(sipId + "." + ObjectState.ROLLED_BACK)), is(false));
+        assertThat(Files.exists(folder(sipId).resolve(sipId + "." + SIP_CHECKSUM.getType())), is(false));
+        FsObjectMetadata metadata = readMetadata(sipId);
+        assertThat(metadata.isLegacy(), is(false));
+        assertThat(metadata.getState(), is(ObjectState.ARCHIVED));
+    }
+
+    @Test
+    public void migrateMetadataOk() throws Exception {
+        String sipId = UUID.randomUUID().toString();
+        storeLegacy(sipId, ObjectState.DELETED);
+        storeLegacy(toXmlId(sipId, 1), ObjectState.ARCHIVED);
+
+        assertThat(service.migrateMetadata(DATA_SPACE) >= 2, is(true));
+        assertThat(service.migrateMetadata(DATA_SPACE), is(0));
+        assertThat(service.migrateMetadata("missingSpace"), is(0));
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder(sipId))) {
+            for (Path file : files) {
+                assertThat(file.toString(), FsObjectMetadata.legacyFileId(file.getFileName().toString()), nullValue());
+            }
+        }
+        assertThat(readMetadata(sipId).getState(), is(ObjectState.DELETED));
+        FsObjectMetadata xmlMetadata = readMetadata(toXmlId(sipId, 1));
+        assertThat(xmlMetadata.getState(), is(ObjectState.ARCHIVED));
+        assertThat(xmlMetadata.getXmlVersion(), is(1));
+    }
+
+    @Test
+    public void removeMissingObject() throws Exception {
+        String sipId = UUID.randomUUID().toString();
+        Files.createDirectories(folder(sipId));
+        assertThrown(() -> service.remove(sipId, DATA_SPACE)).isInstanceOf(FileDoesNotExistException.class);
+    }
+
+    /**
+     * Stores file with metadata in the legacy layout: state file and checksum file.
+     */
+    private void storeLegacy(String fileId, ObjectState state) throws IOException {
+        Path folder = folder(fileId);
+        Files.createDirectories(folder);
+        Files.write(folder.resolve(fileId), SIP_CONTENT.getBytes());
+        Files.write(folder.resolve(fileId + "." + SIP_CHECKSUM.getType()), SIP_CHECKSUM.getValue().getBytes());
+        Files.createFile(folder.resolve(fileId + "." + state));
+    }
+
+    private FsObjectMetadata readMetadata(String fileId) throws IOException {
+        try (SshSessionPool.Lease session = sessionPool.borrow()) {
+            return service.readMetadata(session.getSftp(), service.getFolderPath(fileId, DATA_SPACE), fileId);
+        }
+    }
+
+    private Path folder(String fileId) {
+        return Paths.get(service.getFolderPath(fileId, DATA_SPACE));
+    }
+
+    private ByteArrayInputStream sipStream() {
+        return new ByteArrayInputStream(SIP_CONTENT.getBytes());
+    }
+
+    private ByteArrayInputStream xmlStream() {
+        return new ByteArrayInputStream(XML_CONTENT.getBytes());
+    }
+}
@@ -17,7 +17,6 @@ import org.junit.Test;
 
 import java.io.*;
 import java.time.Instant;
-import java.util.Arrays;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -35,6 +34,7 @@ public class RemoteProcessorTest extends StorageServiceTest {
     private static String S = "/";
     private static final String KEY_PATH = "src/main/resources/arcstorage.ppk";
     private static final String USER = "arcstorage";
+    private static SSHClient ssh;
     private static SFTPClient sftp;
     private static Properties props;
     private static String dataSpace;
@@ -52,7 +52,7 @@ public class RemoteProcessorTest extends StorageServiceTest {
 
         //create connection held for the whole time
         //public methods of the services uses own connection, this is used only for private methods
-        SSHClient ssh = new SSHClient();
+        ssh = new SSHClient();
         ssh.addHostKeyVerifier(new PromiscuousVerifier());
         ssh.connect(storage.getHost(), storage.getPort());
         ssh.authPublickey(USER, KEY_PATH);
@@ -83,9 +83,9 @@ public class RemoteProcessorTest extends StorageServiceTest {
         String fileId = testName.getMethodName();
         String folder = getFolderPath(fileId);
 
-        service.storeFile(sftp, folder, fileId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+        service.storeFile(ssh, sftp, folder, fileId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
         assertThat(getFileContent(folder + S + fileId), is(SIP_CONTENT));
-        assertThat(getFileContent(folder + S + fileId + "." + SIP_CHECKSUM.getType()), is(SIP_CHECKSUM.getValue()));
+        assertThat(readMetadata(folder + S + fileId).getChecksum(), is(SIP_CHECKSUM));
         assertThat(isInState(folder + S + fileId, ObjectState.ARCHIVED), is(true));
     }
 
@@ -94,7 +94,7 @@ public class RemoteProcessorTest extends StorageServiceTest {
         String fileId = testName.getMethodName();
         String folder = getFolderPath(fileId);
         File file = new File(LARGE_SIP_PATH);
-        service.storeFile(sftp, folder, fileId, new FileInputStream(file), LARGE_SIP_CHECKSUM, new AtomicBoolean(false));
+        service.storeFile(ssh, sftp, folder, fileId, new FileInputStream(file), LARGE_SIP_CHECKSUM, new AtomicBoolean(false));
         assertThat(isInState(folder + S + fileId, ObjectState.ARCHIVED), is(true));
         ObjectRetrievalResource object = service.getObject(fileId, dataSpace);
         assertThat(object.getInputStream(), not(nullValue()));
@@ -119,7 +119,7 @@ public class RemoteProcessorTest extends StorageServiceTest {
         }).start();
 
         try (BufferedInputStream bos = new BufferedInputStream(new FileInputStream(file))) {
-            service.storeFile(sftp, folder, fileId, bos, LARGE_SIP_CHECKSUM, rollback);
+            service.storeFile(ssh, sftp, folder, fileId, bos, LARGE_SIP_CHECKSUM, rollback);
         }
         assertThat(isInState(folder + S + fileId, ObjectState.PROCESSING), is(true));
     }
@@ -132,13 +132,13 @@ public class RemoteProcessorTest extends StorageServiceTest {
         RemoteFsProcessor service = new TestServiceSettingRollback(storage);
         AtomicBoolean rollback = new AtomicBoolean(false);
 
-        assertThrown(() -> service.storeFile(sftp, folder, fileId, getSipStream(), SIP_CHECKSUM, rollback))
+        assertThrown(() -> service.storeFile(ssh, sftp, folder, fileId, getSipStream(), SIP_CHECKSUM, rollback))
                 .isInstanceOf(FileCorruptedAfterStoreException.class);
         assertThat(rollback.get(), is(true));
 
         rollback.set(false);
 
-        assertThrown(() -> service.storeFile(sftp, folder, fileId, getSipStream(), null, rollback))
+        assertThrown(() -> service.storeFile(ssh, sftp, folder, fileId, getSipStream(), null, rollback))
                 .isInstanceOf(Throwable.class);
         assertThat(rollback.get(), is(true));
     }
@@ -250,7 +250,7 @@ public class RemoteProcessorTest extends StorageServiceTest {
         String path = getFolderPath(fileId);
 
         try (BufferedInputStream bos = new BufferedInputStream(new FileInputStream(file))) {
-            service.storeFile(sftp, getFolderPath(fileId), fileId, bos, LARGE_SIP_CHECKSUM, rollback);
+            service.storeFile(ssh, sftp, getFolderPath(fileId), fileId, bos, LARGE_SIP_CHECKSUM, rollback);
         } catch (Exception e) {}
 
         service.rollbackFile(sftp, path, fileId);
@@ -265,7 +265,7 @@ public class RemoteProcessorTest extends StorageServiceTest {
         String fileId = testName.getMethodName();
         String path = getFolderPath(fileId);
 
-        service.storeFile(sftp, path, fileId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
+        service.storeFile(ssh, sftp, path, fileId, getSipStream(), SIP_CHECKSUM, new AtomicBoolean(false));
         service.rollbackFile(sftp, path, fileId);
         service.rollbackFile(sftp, path, fileId);
 
@@ -330,22 +330,13 @@ public class RemoteProcessorTest extends StorageServiceTest {
     }
 
     private boolean isInState(String filePath, ObjectState state) throws IOException {
-        if (sftp.statExistence(filePath + "." + state) == null)
-            return false;
-        //when there is a rolled_back file, other files do not not have to be deleted
-        if (state == ObjectState.ROLLED_BACK)
-            return true;
-        if (state == ObjectState.DELETED)
-            return !(sftp.statExistence(filePath + "." + ObjectState.ROLLED_BACK) != null ||
-                    sftp.statExistence(filePath + "." + ObjectState.PROCESSING) != null);
-        return Arrays.stream(ObjectState.values()).filter(o -> o != state).noneMatch(
-                o -> {
-                    try {
-                        return sftp.statExistence(filePath + "." + o) != null;
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
-                    }
-                });
+        FsObjectMetadata metadata = readMetadata(filePath);
+        return metadata != null && metadata.getState() == state;
+    }
+
+    private FsObjectMetadata readMetadata(String filePath) throws IOException {
+        int separatorIndex = filePath.lastIndexOf(S);
+        return service.readMetadata(sftp, filePath.substring(0, separatorIndex), filePath.substring(separatorIndex + S.length()));
     }
 
     private String getFileContent(String pathToFile) throws IOException {
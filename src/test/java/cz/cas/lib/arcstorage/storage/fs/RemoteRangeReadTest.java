@@ -0,0 +1,89 @@
+package cz.cas.lib.arcstorage.storage.fs;
+
+import cz.cas.lib.arcstorage.domain.entity.Storage;
+import cz.cas.lib.arcstorage.dto.AipDto;
+import cz.cas.lib.arcstorage.dto.AipRetrievalResource;
+import cz.cas.lib.arcstorage.storage.ParallelRangeReader;
+import helper.EmbeddedSshServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static cz.cas.lib.arcstorage.storage.StorageServiceTest.*;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Tests retrieval of AIPs by ranged reads from remote FS storage, which must not hold a connection of the pool while
+ * the ranges borrow connections from the same pool. Runs against embedded SSH server.
+ */
+public class RemoteRangeReadTest {
+    private static final String DATA_SPACE = "space";
+    private static EmbeddedSshServer sshd;
+    private static Storage storage = new Storage();
+
+    @ClassRule
+    public static TemporaryFolder rootDir = new TemporaryFolder();
+
+    private SshSessionPool sessionPool;
+    private RemoteFsProcessor service;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        sshd = new EmbeddedSshServer(rootDir.getRoot().toPath().resolve("hostkey.ser"));
+        sshd.start();
+        storage.setName("embedded sftp storage");
+        storage.setHost(EmbeddedSshServer.HOST);
+        storage.setPort(sshd.getPort());
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        sshd.stop();
+    }
+
+    @Before
+    public void before() {
+        sessionPool = new SshSessionPool(storage, EmbeddedSshServer.KEY_PATH, 2000, 2, 60000);
+        service = new RemoteFsProcessor(storage, rootDir.getRoot().getAbsolutePath(), "/", sessionPool,
+                RemoteFsProcessor.DEFAULT_READ_AHEAD, ChecksumVerificationMode.READ_BACK, ShardLayout.DEFAULT,
+                new ParallelRangeReader(2, 0, 2, 1));
+    }
+
+    @After
+    public void after() {
+        sessionPool.close();
+    }
+
+    /**
+     * Two AIPs retrieved at once by the pool of two connections, each of them holds a single connection until its SIP
+     * is read.
+     */
+    @Test
+    public void concurrentRetrievalsShareThePool() throws Exception {
+        String firstId = UUID.randomUUID().toString();
+        String secondId = UUID.randomUUID().toString();
+        storeAip(firstId);
+        storeAip(secondId);
+
+        AipRetrievalResource first = service.getAip(firstId, DATA_SPACE, 1);
+        AipRetrievalResource second = service.getAip(secondId, DATA_SPACE, 1);
+
+        assertThat(new String(IOUtils.toByteArray(first.getXmls().get(1))), is(XML_CONTENT));
+        assertThat(new String(IOUtils.toByteArray(first.getSip())), is(SIP_CONTENT));
+        first.closeWithoutDelay();
+        assertThat(new String(IOUtils.toByteArray(second.getXmls().get(1))), is(XML_CONTENT));
+        assertThat(new String(IOUtils.toByteArray(second.getSip())), is(SIP_CONTENT));
+        second.closeWithoutDelay();
+    }
+
+    private void storeAip(String sipId) throws Exception {
+        service.storeAip(new AipDto("ownerId", sipId, new ByteArrayInputStream(SIP_CONTENT.getBytes()), SIP_CHECKSUM,
+                new ByteArrayInputStream(XML_CONTENT.getBytes()), XML_CHECKSUM), new AtomicBoolean(false), DATA_SPACE);
+    }
+}
@@ -0,0 +1,126 @@
+package helper;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.io.IOUtils;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SSH server with SFTP subsystem running at localhost, used to test remote storages without external server. Accepts
+ * any public key and executes commands in local shell.
+ */
+public class EmbeddedSshServer {
+    public static final String HOST = "127.0.0.1";
+    public static final String KEY_PATH = "src/main/resources/arcstorage.ppk";
+
+    private final SshServer sshd;
+    @Getter
+    private final List<String> executedCommands = new CopyOnWriteArrayList<>();
+    /**
+     * if cleared, the commands behave as if they were not installed at the server
+     */
+    @Getter
+    @Setter
+    private volatile boolean commandsAvailable = true;
+
+    /**
+     * @param hostKeyPath file where the generated host key is stored
+     */
+    public EmbeddedSshServer(Path hostKeyPath) {
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost(HOST);
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(hostKeyPath));
+        sshd.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+        sshd.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        sshd.setCommandFactory(command -> {
+            executedCommands.add(command);
+            //shell exits with 127 if the command is not found
+            return new ShellCommand(commandsAvailable ? command : "exit 127");
+        });
+    }
+
+    public void start() throws IOException {
+        sshd.start();
+    }
+
+    public void stop() throws IOException {
+        sshd.stop(true);
+    }
+
+    public int getPort() {
+        return sshd.getPort();
+    }
+
+    /**
+     * Executes the command in local shell.
+     */
+    private static class ShellCommand implements Command, Runnable {
+        private final String command;
+        private OutputStream out;
+        private OutputStream err;
+        private ExitCallback callback;
+
+        ShellCommand(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            int exitStatus = 1;
+            try {
+                Process process = new ProcessBuilder("/bin/sh", "-c", command).start();
+                IOUtils.copy(process.getInputStream(), out);
+                IOUtils.copy(process.getErrorStream(), err);
+                exitStatus = process.waitFor();
+                out.flush();
+                err.flush();
+            } catch (IOException | InterruptedException e) {
+                //reported by the exit status
+            }
+            callback.onExit(exitStatus);
+        }
+
+        @Override
+        public void setInputStream(InputStream in) {
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err) {
+            this.err = err;
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void start(Environment env) {
+            new Thread(this, "embedded-ssh-command").start();
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}